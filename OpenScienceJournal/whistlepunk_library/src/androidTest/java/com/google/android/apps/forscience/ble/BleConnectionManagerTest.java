@@ -0,0 +1,447 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.PacketAssembler;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
+import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensors.BluetoothSensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link BleConnectionManager}, run against simulated peripherals.
+ */
+public class BleConnectionManagerTest extends AndroidTestCase {
+    private static final String TAG = "BleConnectionManagerTest";
+    private static final UUID SERVICE = UUID.fromString("555a0001-0aaa-467a-9538-01f0652c74e8");
+    private static final UUID VALUE = UUID.fromString("555a0003-0aaa-467a-9538-01f0652c74e8");
+    private static final UUID SETTING = UUID.fromString("555a0010-0aaa-467a-9538-01f0652c74e8");
+    private static final long LATENCY_MILLIS = 100;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private SimulatedBleClient mClient;
+    private BleConnectionManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClient = new SimulatedBleClient(getContext());
+        mManager = mClient.getConnectionManager();
+    }
+
+    public void testTimeToAllConnected() throws InterruptedException {
+        // One device first, to find out how long a single connection takes.
+        long single = timeToAllSubscribed(1);
+        int n = 6;
+        long all = timeToAllSubscribed(n);
+        Log.i(TAG, "Time to subscribed: 1 device " + single + "ms, " + n + " devices " + all
+                + "ms");
+        // Sequential setup would take n times as long.
+        assertTrue("took " + all + "ms", all < single * 2);
+    }
+
+    public void testOneRequestAtATimePerDevice() throws InterruptedException {
+        SimulatedBleClient.Peripheral peripheral = mClient.addPeripheral("a", SERVICE,
+                new UUID[]{VALUE}, LATENCY_MILLIS);
+        CountDownLatch subscribed = new CountDownLatch(3);
+        // Several setup operations queued at once still go out one at a time.
+        open("a", subscribed);
+        addSubscribeOperation("a", subscribed);
+        addSubscribeOperation("a", subscribed);
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, peripheral.getMaxOutstandingRequests());
+    }
+
+    public void testRetryAfterTimeout() throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.setOperationTimeout(Delay.millis(300), 2);
+            }
+        });
+        SimulatedBleClient.Peripheral peripheral = mClient.addPeripheral("a", SERVICE,
+                new UUID[]{VALUE}, LATENCY_MILLIS);
+        peripheral.ignoreConnectAttempts(1);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        open("a", subscribed);
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+        assertTrue(peripheral.isConnected());
+    }
+
+    public void testResubscribeAfterReconnect() throws InterruptedException {
+        SimulatedBleClient.Peripheral peripheral = mClient.addPeripheral("a", SERVICE,
+                new UUID[]{VALUE}, LATENCY_MILLIS);
+        CountDownLatch subscribed = new CountDownLatch(2);
+        open("a", subscribed);
+        long deadline = SystemClock.elapsedRealtime() + 10000;
+        while (peripheral.getSubscribeCount() < 1 && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, peripheral.getSubscribeCount());
+
+        mClient.simulateDisconnect("a");
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, peripheral.getConnectCount());
+        assertEquals(2, peripheral.getSubscribeCount());
+    }
+
+    public void testOpenWhileDisconnectingReconnects() throws InterruptedException {
+        final SimulatedBleClient.Peripheral peripheral = mClient.addPeripheral("a", SERVICE,
+                new UUID[]{VALUE}, LATENCY_MILLIS);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        final BleConnectionManager.ConnectionListener first = openAndSubscribe("a", subscribed);
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+        // The disconnect starts as soon as the last listener closes.
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch resubscribed = new CountDownLatch(1);
+        final boolean[] connectedWhileDisconnecting = new boolean[2];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.close("a", first, null);
+                mManager.open("a", latchingListener(connected));
+                connectedWhileDisconnecting[0] = connected.getCount() == 0;
+                connectedWhileDisconnecting[1] = mManager.isConnected("a");
+            }
+        });
+        addSubscribeOperation("a", resubscribed);
+        assertFalse(connectedWhileDisconnecting[0]);
+        assertFalse(connectedWhileDisconnecting[1]);
+
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        assertTrue(resubscribed.await(10, TimeUnit.SECONDS));
+        assertTrue(peripheral.isConnected());
+        assertEquals(2, peripheral.getConnectCount());
+        assertConnectedOnMainThread("a");
+    }
+
+    public void testOpenBeforeDisconnectStartsKeepsConnection() throws InterruptedException {
+        final SimulatedBleClient.Peripheral peripheral = mClient.addPeripheral("a", SERVICE,
+                new UUID[]{VALUE}, LATENCY_MILLIS);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        final BleConnectionManager.ConnectionListener first = openAndSubscribe("a", subscribed);
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+        // The disconnect waits behind the teardown, so reopening can cancel it.
+        final CountDownLatch tornDown = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch resubscribed = new CountDownLatch(1);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.close("a", first, new BleConnectionManager.Operation() {
+                    @Override
+                    public void addActions(BleFlow flow) {
+                        flow.lookupService(SERVICE)
+                                .lookupCharacteristic(VALUE)
+                                .disableNotification();
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        tornDown.countDown();
+                    }
+                });
+                mManager.open("a", latchingListener(connected));
+            }
+        });
+        // Still connected, so the listener is told right away.
+        assertEquals(0, connected.getCount());
+        addSubscribeOperation("a", resubscribed);
+
+        assertTrue(tornDown.await(10, TimeUnit.SECONDS));
+        assertTrue(resubscribed.await(10, TimeUnit.SECONDS));
+        assertTrue(peripheral.isConnected());
+        assertEquals(1, peripheral.getConnectCount());
+        assertConnectedOnMainThread("a");
+    }
+
+    public void testNotificationsRoutedByCharacteristic() throws InterruptedException {
+        mClient.addPeripheral("a", SERVICE, new UUID[]{VALUE, SETTING}, LATENCY_MILLIS);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        open("a", subscribed);
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+        final List<UUID> heard = new ArrayList<>();
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.setNotificationListener("a", VALUE, new BleNotificationListener() {
+                    @Override
+                    public void onNotification(UUID characteristic, int flags, byte[] value) {
+                        heard.add(characteristic);
+                    }
+                });
+            }
+        });
+
+        // The GATT layer's UUID object finds the listener registered under an equal one.
+        assertTrue(mClient.notifyCharacteristic("a", UUID.fromString(VALUE.toString()),
+                new byte[]{1}));
+        // The device's flow hears this one, but nothing on it is listening to SETTING.
+        assertTrue(mClient.notifyCharacteristic("a", SETTING, new byte[]{2}));
+        assertEquals(1, heard.size());
+        assertEquals(VALUE, heard.get(0));
+    }
+
+    /**
+     * Streams the same samples from a device stuck at the default MTU and from one that agrees
+     * to a larger MTU, and compares how many notifications (radio packets) each needs.
+     */
+    public void testLargerMtuCutsNotificationsPerSample() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        int samples = 500;
+        mClient.addPeripheral("small", SERVICE, new UUID[]{VALUE}, LATENCY_MILLIS);
+        SimulatedBleClient.Peripheral large = mClient.addPeripheral("large", SERVICE,
+                new UUID[]{VALUE}, LATENCY_MILLIS);
+        large.setMaxMtu(247);
+
+        int[] smallResult = streamSamples("small", samples);
+        int[] largeResult = streamSamples("large", samples);
+        Log.i(TAG, samples + " samples: " + smallResult[0] + " notifications at default MTU, "
+                + largeResult[0] + " at MTU " + large.getMtu());
+
+        // No samples lost either way.
+        assertEquals(samples, smallResult[1]);
+        assertEquals(samples, largeResult[1]);
+        assertEquals(247, large.getMtu());
+        assertTrue(largeResult[0] * 4 < smallResult[0]);
+    }
+
+    /**
+     * @return {notifications sent, samples received}
+     */
+    private int[] streamSamples(final String address, final int samples)
+            throws InterruptedException {
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.open(address, new BleConnectionManager.ConnectionListener() {
+                    @Override
+                    public void onConnected(String address) {
+                    }
+
+                    @Override
+                    public void onDisconnected(String address) {
+                    }
+
+                    @Override
+                    public void onConnectionFailed(String address, Exception error) {
+                    }
+                });
+                mManager.addSetupOperation(address, new BleConnectionManager.Operation() {
+                    @Override
+                    public void addActions(BleFlow flow) {
+                        flow.changeMessageTransferUnitSize(247)
+                                .lookupService(SERVICE)
+                                .lookupCharacteristic(VALUE)
+                                .enableNotification();
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        subscribed.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+
+        final int[] result = new int[2];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                final PacketAssembler assembler = new PacketAssembler(new StreamConsumer() {
+                    @Override
+                    public void addData(long timestampMillis, double value) {
+                        result[1]++;
+                    }
+                }, new Clock() {
+                    @Override
+                    public long getNow() {
+                        return 0;
+                    }
+                }, new BluetoothSensor("sensorId", new BleSensorSpec(address, "name"),
+                        BluetoothSensor.ANNING_SERVICE_SPEC));
+                mManager.setNotificationListener(address, VALUE, new BleNotificationListener() {
+                    @Override
+                    public void onNotification(UUID characteristic, int flags, byte[] value) {
+                        assembler.append(value);
+                    }
+                });
+
+                List<byte[]> messages = new ArrayList<>();
+                for (int i = 0; i < samples; i++) {
+                    messages.add(makeSensorData(i * 10, 100000 + i));
+                }
+                result[0] = mClient.sendMessages(address, VALUE, messages);
+            }
+        });
+        return result;
+    }
+
+    private static byte[] makeSensorData(int timestampKey, int analogValue) {
+        GoosciSensor.SensorData sd = new GoosciSensor.SensorData();
+        sd.timestampKey = timestampKey;
+        GoosciSensor.Data d = new GoosciSensor.Data();
+        GoosciSensor.AnalogValue av = new GoosciSensor.AnalogValue();
+        av.value = analogValue;
+        d.setAnalogValue(av);
+        d.pin = new GoosciSensor.Pin();
+        d.pin.setAnalogPin(new GoosciSensor.AnalogPin());
+        sd.setData(d);
+        return GoosciSensor.SensorData.toByteArray(sd);
+    }
+
+    private long timeToAllSubscribed(int count) throws InterruptedException {
+        CountDownLatch subscribed = new CountDownLatch(count);
+        String[] addresses = new String[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = "device" + count + "_" + i;
+            mClient.addPeripheral(addresses[i], SERVICE, new UUID[]{VALUE}, LATENCY_MILLIS);
+        }
+        long start = SystemClock.elapsedRealtime();
+        for (String address : addresses) {
+            open(address, subscribed);
+        }
+        assertTrue(subscribed.await(30, TimeUnit.SECONDS));
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Opens the device, with a setup operation that subscribes to VALUE, and counts down
+     * {@code subscribed} each time that completes.
+     */
+    private void open(final String address, final CountDownLatch subscribed)
+            throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.open(address, new BleConnectionManager.ConnectionListener() {
+                    @Override
+                    public void onConnected(String address) {
+                    }
+
+                    @Override
+                    public void onDisconnected(String address) {
+                    }
+
+                    @Override
+                    public void onConnectionFailed(String address, Exception error) {
+                    }
+                });
+            }
+        });
+        addSubscribeOperation(address, subscribed);
+    }
+
+    private BleConnectionManager.ConnectionListener openAndSubscribe(final String address,
+            CountDownLatch subscribed) throws InterruptedException {
+        final BleConnectionManager.ConnectionListener listener =
+                latchingListener(new CountDownLatch(1));
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.open(address, listener);
+            }
+        });
+        addSubscribeOperation(address, subscribed);
+        return listener;
+    }
+
+    private BleConnectionManager.ConnectionListener latchingListener(
+            final CountDownLatch connected) {
+        return new BleConnectionManager.ConnectionListener() {
+            @Override
+            public void onConnected(String address) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+            }
+
+            @Override
+            public void onConnectionFailed(String address, Exception error) {
+            }
+        };
+    }
+
+    private void assertConnectedOnMainThread(final String address) throws InterruptedException {
+        final boolean[] connected = new boolean[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                connected[0] = mManager.isConnected(address);
+            }
+        });
+        assertTrue(connected[0]);
+    }
+
+    private void addSubscribeOperation(final String address, final CountDownLatch subscribed)
+            throws InterruptedException {
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mManager.addSetupOperation(address, new BleConnectionManager.Operation() {
+                    @Override
+                    public void addActions(BleFlow flow) {
+                        flow.lookupService(SERVICE)
+                                .lookupCharacteristic(VALUE)
+                                .enableNotification();
+                    }
+
+                    @Override
+                    public void onSuccess() {
+                        subscribed.countDown();
+                    }
+                });
+            }
+        });
+    }
+
+    private void runOnMainThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.test.AndroidTestCase;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests for {@link BleNotificationRouter}, and for how {@link BleFlow} registers with it.
+ */
+public class BleNotificationRouterTest extends AndroidTestCase {
+    private static final UUID VALUE = UUID.fromString("555a0003-0aaa-467a-9538-01f0652c74e8");
+
+    private static class RecordingListener implements BleNotificationListener {
+        List<UUID> characteristics = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+
+        @Override
+        public void onNotification(UUID characteristic, int flags, byte[] value) {
+            characteristics.add(characteristic);
+            values.add(value);
+        }
+    }
+
+    private static class RecordingFlowListener extends BleFlowListener {
+        RecordingListener notifications = new RecordingListener();
+        int successes = 0;
+
+        @Override
+        public void onSuccess() {
+            successes++;
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, int flags, byte[] value) {
+        }
+
+        @Override
+        public void onNotification(UUID characteristic, int flags, byte[] value) {
+            notifications.onNotification(characteristic, flags, value);
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+
+        @Override
+        public void onConnect() {
+        }
+
+        @Override
+        public void onNotificationSubscribed() {
+        }
+
+        @Override
+        public void onNotificationUnsubscribed() {
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+        }
+    }
+
+    public void testDeliversToRegisteredListener() {
+        BleNotificationRouter router = new BleNotificationRouter();
+        RecordingListener listener = new RecordingListener();
+        router.setListener("a", listener);
+        byte[] value = new byte[]{1, 2, 3};
+
+        assertTrue(router.deliver("a", VALUE, 0, value));
+        assertEquals(1, listener.characteristics.size());
+        // The UUID and bytes are passed along as they are, not copied or parsed from a String.
+        assertSame(VALUE, listener.characteristics.get(0));
+        assertSame(value, listener.values.get(0));
+    }
+
+    public void testDropsWithoutListener() {
+        BleNotificationRouter router = new BleNotificationRouter();
+        RecordingListener listener = new RecordingListener();
+        router.setListener("a", listener);
+
+        assertFalse(router.deliver("b", VALUE, 0, new byte[]{1}));
+        assertEquals(0, listener.characteristics.size());
+    }
+
+    public void testClearLeavesReplacementRegistered() {
+        BleNotificationRouter router = new BleNotificationRouter();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        router.setListener("a", first);
+        router.setListener("a", second);
+
+        // Clearing a listener that was already replaced doesn't unregister its replacement.
+        router.clearListener("a", first);
+        assertTrue(router.deliver("a", VALUE, 0, new byte[]{1}));
+        assertEquals(0, first.characteristics.size());
+        assertEquals(1, second.characteristics.size());
+
+        router.clearListener("a", second);
+        assertFalse(router.deliver("a", VALUE, 0, new byte[]{1}));
+    }
+
+    public void testFlowForwardsToCurrentListener() {
+        FakeBleClient client = new FakeBleClient(getContext());
+        BleFlow flow = client.getFlowFor("a");
+        RecordingFlowListener first = new RecordingFlowListener();
+        flow.resetAndAddListener(first);
+
+        // Not registered until it runs.
+        assertFalse(client.notifyCharacteristic("a", VALUE, new byte[]{1}));
+
+        BleFlow.run(flow);
+        assertEquals(1, first.successes);
+        byte[] value = new byte[]{2};
+        assertTrue(client.notifyCharacteristic("a", VALUE, value));
+        assertSame(VALUE, first.notifications.characteristics.get(0));
+        assertSame(value, first.notifications.values.get(0));
+
+        RecordingFlowListener second = new RecordingFlowListener();
+        flow.resetAndAddListener(second);
+        assertTrue(client.notifyCharacteristic("a", VALUE, new byte[]{3}));
+        assertEquals(1, first.notifications.characteristics.size());
+        assertEquals(1, second.notifications.characteristics.size());
+        flow.close();
+    }
+
+    public void testClosedFlowUnregisters() {
+        FakeBleClient client = new FakeBleClient(getContext());
+        BleFlow flow = client.getFlowFor("a");
+        RecordingFlowListener listener = new RecordingFlowListener();
+        BleFlow.run(flow.resetAndAddListener(listener));
+        assertTrue(client.notifyCharacteristic("a", VALUE, new byte[]{1}));
+
+        flow.close();
+        assertFalse(client.notifyCharacteristic("a", VALUE, new byte[]{2}));
+        assertEquals(1, listener.notifications.characteristics.size());
+    }
+
+    public void testClosingOldFlowKeepsNewOne() {
+        FakeBleClient client = new FakeBleClient(getContext());
+        BleFlow oldFlow = client.getFlowFor("a");
+        BleFlow.run(oldFlow.resetAndAddListener(new RecordingFlowListener()));
+        BleFlow newFlow = client.getFlowFor("a");
+        RecordingFlowListener listener = new RecordingFlowListener();
+        BleFlow.run(newFlow.resetAndAddListener(listener));
+
+        oldFlow.close();
+        assertTrue(client.notifyCharacteristic("a", VALUE, new byte[]{1}));
+        assertEquals(1, listener.notifications.characteristics.size());
+        newFlow.close();
+    }
+}
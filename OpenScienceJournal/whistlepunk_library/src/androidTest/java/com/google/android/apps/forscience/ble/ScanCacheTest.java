@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScanCacheTest extends AndroidTestCase {
+    private static class RecordingListener implements ScanCache.Listener {
+        final List<DeviceDiscoverer.DeviceRecord> added = new ArrayList<>();
+        final List<DeviceDiscoverer.DeviceRecord> updated = new ArrayList<>();
+        final List<DeviceDiscoverer.DeviceRecord> removed = new ArrayList<>();
+
+        @Override
+        public void onAdded(DeviceDiscoverer.DeviceRecord record) {
+            added.add(record);
+        }
+
+        @Override
+        public void onUpdated(DeviceDiscoverer.DeviceRecord record) {
+            updated.add(record);
+        }
+
+        @Override
+        public void onRemoved(DeviceDiscoverer.DeviceRecord record) {
+            removed.add(record);
+        }
+
+        void clear() {
+            added.clear();
+            updated.clear();
+            removed.clear();
+        }
+    }
+
+    public void testDedupsByAddress() {
+        ScanCache cache = new ScanCache(1000);
+        RecordingListener listener = new RecordingListener();
+        for (int i = 0; i < 20; i++) {
+            cache.onScanResult("a", null, -60, "", i * 10);
+            cache.onScanResult("b", null, -70, "", i * 10);
+        }
+        cache.flush(200, listener);
+        assertEquals(2, listener.added.size());
+        assertEquals(0, listener.updated.size());
+        assertEquals(2, cache.getDevices().size());
+
+        // Nothing new, nothing reported.
+        listener.clear();
+        cache.onScanResult("a", null, -60, "", 300);
+        cache.flush(400, listener);
+        assertEquals(0, listener.added.size() + listener.updated.size() + listener.removed.size());
+    }
+
+    public void testSmoothsRssi() {
+        ScanCache cache = new ScanCache(1000);
+        RecordingListener listener = new RecordingListener();
+        cache.onScanResult("a", null, -60, "", 0);
+        cache.flush(0, listener);
+
+        // A single outlier moves the smoothed value, but not enough to report.
+        listener.clear();
+        cache.onScanResult("a", null, -72, "", 10);
+        cache.flush(20, listener);
+        assertEquals(0, listener.updated.size());
+        assertEquals(-63.0, cache.getDevices().get(0).smoothedRssi, 0.001);
+        assertEquals(-72, cache.getDevices().get(0).lastRssi);
+
+        // A lasting change is reported, once per flush.
+        for (int i = 0; i < 10; i++) {
+            cache.onScanResult("a", null, -80, "", 30 + i);
+        }
+        cache.flush(50, listener);
+        assertEquals(1, listener.updated.size());
+    }
+
+    public void testReportsNameChange() {
+        ScanCache cache = new ScanCache(1000);
+        RecordingListener listener = new RecordingListener();
+        cache.onScanResult("a", null, -60, "", 0);
+        cache.flush(0, listener);
+        listener.clear();
+
+        cache.onScanResult("a", null, -60, "Rotation (Sci1234)", 10);
+        // A scan result without the scan response doesn't undo it.
+        cache.onScanResult("a", null, -60, "", 20);
+        cache.flush(30, listener);
+        assertEquals(1, listener.updated.size());
+        assertEquals("Rotation (Sci1234)", listener.updated.get(0).getLongName());
+    }
+
+    public void testExpiresStaleDevices() {
+        ScanCache cache = new ScanCache(1000);
+        RecordingListener listener = new RecordingListener();
+        cache.onScanResult("a", null, -60, "", 0);
+        cache.onScanResult("b", null, -60, "", 0);
+        cache.flush(0, listener);
+        listener.clear();
+
+        cache.onScanResult("b", null, -60, "", 900);
+        cache.flush(1500, listener);
+        assertEquals(1, listener.removed.size());
+        assertEquals(1, cache.getDevices().size());
+
+        // Seen again later: a new device as far as listeners are concerned.
+        listener.clear();
+        cache.onScanResult("a", null, -60, "", 1600);
+        cache.flush(1700, listener);
+        assertEquals(1, listener.added.size());
+    }
+
+    public void testUnreportedDeviceExpiresSilently() {
+        ScanCache cache = new ScanCache(1000);
+        RecordingListener listener = new RecordingListener();
+        cache.onScanResult("a", null, -60, "", 0);
+        cache.flush(2000, listener);
+        assertEquals(0, listener.added.size() + listener.updated.size() + listener.removed.size());
+        assertEquals(0, cache.getDevices().size());
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A FakeBleClient backed by simulated peripherals, which answer GATT requests with the same
+ * broadcasts MyBleService would send, after a configurable latency.
+ */
+public class SimulatedBleClient extends FakeBleClient {
+    private static final UUID CLIENT_CONFIG_DESCRIPTOR =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    public static class Peripheral {
+        private final BluetoothGattService mService;
+        private final long mLatencyMillis;
+        private int mConnectAttemptsToIgnore = 0;
+        private boolean mConnected = false;
+        private int mOutstandingRequests = 0;
+        private int mMaxOutstandingRequests = 0;
+        private int mConnectCount = 0;
+        private int mSubscribeCount = 0;
+        private int mMaxMtu = BleFlow.DEFAULT_MTU;
+        private int mMtu = BleFlow.DEFAULT_MTU;
+        private int mConnectionPriority = -1;
+
+        Peripheral(UUID serviceId, UUID[] characteristicIds, long latencyMillis) {
+            mService = new BluetoothGattService(serviceId,
+                    BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            for (UUID id : characteristicIds) {
+                BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(id,
+                        BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                                | BluetoothGattCharacteristic.PROPERTY_READ
+                                | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                        BluetoothGattCharacteristic.PERMISSION_READ
+                                | BluetoothGattCharacteristic.PERMISSION_WRITE);
+                characteristic.addDescriptor(new BluetoothGattDescriptor(
+                        CLIENT_CONFIG_DESCRIPTOR, BluetoothGattDescriptor.PERMISSION_WRITE));
+                mService.addCharacteristic(characteristic);
+            }
+            mLatencyMillis = latencyMillis;
+        }
+
+        /**
+         * The next {@code count} connection attempts will never be answered, as if the radio
+         * missed them.
+         */
+        public void ignoreConnectAttempts(int count) {
+            mConnectAttemptsToIgnore = count;
+        }
+
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        /**
+         * @return the most GATT requests that were ever outstanding at once on this device.
+         */
+        public int getMaxOutstandingRequests() {
+            return mMaxOutstandingRequests;
+        }
+
+        public int getConnectCount() {
+            return mConnectCount;
+        }
+
+        public int getSubscribeCount() {
+            return mSubscribeCount;
+        }
+
+        /**
+         * The largest MTU this device will agree to (the default is the minimum, 23).
+         */
+        public void setMaxMtu(int maxMtu) {
+            mMaxMtu = maxMtu;
+        }
+
+        public int getMtu() {
+            return mMtu;
+        }
+
+        /**
+         * @return the last connection priority requested, or -1 if none was.
+         */
+        public int getConnectionPriority() {
+            return mConnectionPriority;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Peripheral> mPeripherals = new HashMap<>();
+
+    public SimulatedBleClient(Context context) {
+        super(context);
+        mContext = context;
+    }
+
+    public Peripheral addPeripheral(String address, UUID serviceId, UUID[] characteristicIds,
+            long latencyMillis) {
+        Peripheral peripheral = new Peripheral(serviceId, characteristicIds, latencyMillis);
+        mPeripherals.put(address, peripheral);
+        return peripheral;
+    }
+
+    /**
+     * Drop the connection from the peripheral's end.
+     */
+    public void simulateDisconnect(final String address) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Peripheral peripheral = mPeripherals.get(address);
+                peripheral.mConnected = false;
+                peripheral.mOutstandingRequests = 0;
+                send(BleEvents.GATT_DISCONNECT, address, null, null);
+            }
+        });
+    }
+
+    @Override
+    public boolean connectToAddress(String address) {
+        mostRecentAddress = address;
+        Peripheral peripheral = mPeripherals.get(address);
+        if (peripheral == null) {
+            return false;
+        }
+        if (peripheral.mConnectAttemptsToIgnore > 0) {
+            peripheral.mConnectAttemptsToIgnore--;
+            return true;
+        }
+        respondLater(address, peripheral, BleEvents.GATT_CONNECT, null, null);
+        return true;
+    }
+
+    @Override
+    public void disconnectDevice(String address) {
+        Peripheral peripheral = mPeripherals.get(address);
+        respondLater(address, peripheral, BleEvents.GATT_DISCONNECT, null, null);
+    }
+
+    @Override
+    public void findServices(String address) {
+        respondLater(address, mPeripherals.get(address), BleEvents.SERVICES_OK, null, null);
+    }
+
+    @Override
+    public BluetoothGattService getService(String address, UUID serviceId) {
+        Peripheral peripheral = mPeripherals.get(address);
+        if (peripheral == null || !peripheral.mConnected
+                || !peripheral.mService.getUuid().equals(serviceId)) {
+            return null;
+        }
+        return peripheral.mService;
+    }
+
+    @Override
+    public void readValue(String address, BluetoothGattCharacteristic characteristic) {
+        respondLater(address, mPeripherals.get(address), BleEvents.READ_CHAR_OK,
+                characteristic.getUuid(), new byte[]{0x00, 0x08});
+    }
+
+    @Override
+    public void writeValue(String address, BluetoothGattCharacteristic characteristic,
+            byte[] value) {
+        respondLater(address, mPeripherals.get(address), BleEvents.WRITE_CHAR_OK, null, null);
+    }
+
+    @Override
+    public void writeValue(String address, BluetoothGattDescriptor descriptor, byte[] value) {
+        Peripheral peripheral = mPeripherals.get(address);
+        if (descriptor.getUuid().equals(CLIENT_CONFIG_DESCRIPTOR)
+                && value == BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE) {
+            peripheral.mSubscribeCount++;
+        }
+        respondLater(address, peripheral, BleEvents.WRITE_DESC_OK, null, null);
+    }
+
+    @Override
+    public void changeMtu(String address, int mtu) {
+        respondLater(address, mPeripherals.get(address), BleEvents.MTU_CHANGE_OK, null, null,
+                mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(String address, int priority) {
+        mPeripherals.get(address).mConnectionPriority = priority;
+        return true;
+    }
+
+    /**
+     * Sends {@code messages} (serialized SensorData) from the device, framed the way the
+     * firmware frames them: in chunks of at most 20 bytes at the default MTU, or packed as
+     * tightly as the negotiated MTU allows otherwise.  Must be called on the main thread.
+     *
+     * @return how many notifications it took.
+     */
+    public int sendMessages(String address, UUID characteristic, List<byte[]> messages) {
+        int payloadSize = mPeripherals.get(address).mMtu - 3;
+        boolean packed = payloadSize > BleFlow.DEFAULT_MTU - 3;
+        byte[] notification = new byte[payloadSize];
+        int position = 0;
+        int count = 0;
+        for (byte[] message : messages) {
+            int start = 0;
+            while (start < message.length) {
+                int room = Math.min(payloadSize - position - 2, 255);
+                if (room <= 0) {
+                    notifyCharacteristic(address, characteristic,
+                            Arrays.copyOf(notification, position));
+                    count++;
+                    position = 0;
+                    continue;
+                }
+                int length = Math.min(room, message.length - start);
+                boolean last = start + length == message.length;
+                notification[position] = (byte) length;
+                notification[position + 1] = (byte) (last ? 1 : 0);
+                System.arraycopy(message, start, notification, position + 2, length);
+                position += length + 2;
+                start += length;
+                // A message can only continue in the next notification from the very end of
+                // this one.
+                if (!last || !packed) {
+                    notifyCharacteristic(address, characteristic,
+                            Arrays.copyOf(notification, position));
+                    count++;
+                    position = 0;
+                }
+            }
+        }
+        if (position > 0) {
+            notifyCharacteristic(address, characteristic, Arrays.copyOf(notification, position));
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public boolean enableNotifications(String address,
+            BluetoothGattCharacteristic characteristic) {
+        return true;
+    }
+
+    @Override
+    public boolean disableNotifications(String address,
+            BluetoothGattCharacteristic characteristic) {
+        return true;
+    }
+
+    private void respondLater(String address, Peripheral peripheral, String action,
+            UUID characteristic, byte[] value) {
+        respondLater(address, peripheral, action, characteristic, value, 0);
+    }
+
+    private void respondLater(final String address, final Peripheral peripheral,
+            final String action, final UUID characteristic, final byte[] value,
+            final int requestedMtu) {
+        peripheral.mOutstandingRequests++;
+        peripheral.mMaxOutstandingRequests = Math.max(peripheral.mMaxOutstandingRequests,
+                peripheral.mOutstandingRequests);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                peripheral.mOutstandingRequests--;
+                Intent intent = makeIntent(action, address, characteristic, value);
+                if (BleEvents.GATT_CONNECT.equals(action)) {
+                    peripheral.mConnected = true;
+                    peripheral.mConnectCount++;
+                    peripheral.mMtu = BleFlow.DEFAULT_MTU;
+                } else if (BleEvents.GATT_DISCONNECT.equals(action)) {
+                    peripheral.mConnected = false;
+                } else if (BleEvents.MTU_CHANGE_OK.equals(action)) {
+                    peripheral.mMtu = Math.min(requestedMtu, peripheral.mMaxMtu);
+                    intent.putExtra(MyBleService.MTU, peripheral.mMtu);
+                }
+                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            }
+        }, peripheral.mLatencyMillis);
+    }
+
+    private void send(String action, String address, UUID characteristic, byte[] value) {
+        LocalBroadcastManager.getInstance(mContext).sendBroadcast(
+                makeIntent(action, address, characteristic, value));
+    }
+
+    private Intent makeIntent(String action, String address, UUID characteristic,
+            byte[] value) {
+        Intent intent = BleEvents.createIntent(action, address);
+        if (characteristic != null) {
+            intent.putExtra(MyBleService.UUID, characteristic.toString());
+            intent.putExtra(MyBleService.FLAGS, 0);
+            intent.putExtra(MyBleService.DATA, value);
+        }
+        return intent;
+    }
+}
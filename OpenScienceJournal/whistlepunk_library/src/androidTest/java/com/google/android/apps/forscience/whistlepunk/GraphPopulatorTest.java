@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GraphPopulatorTest extends AndroidTestCase {
+    private static final String TAG = "GraphPopulatorTest";
+    private static final String TEST_DATABASE_NAME = "graphpopulatortest.db";
+
+    private static class RecordingDisplay implements GraphPopulator.ObservationDisplay {
+        List<ChartData.DataPoint> mPoints = new ArrayList<>();
+        int mPointsWhenFinished = -1;
+
+        @Override
+        public void addRange(ScalarReadingList observations, long requestId) {
+            assertEquals(-1, mPointsWhenFinished);
+            mPoints.addAll(observations.asDataPoints());
+        }
+
+        @Override
+        public void onFinish(long requestId) {
+            mPointsWhenFinished = mPoints.size();
+        }
+    }
+
+    /**
+     * Counts the trips to the database, optionally capping how many readings each can return.
+     */
+    private static class CountingSource implements GraphPopulator.ReadingSource {
+        private final GraphPopulator.ReadingSource mSource;
+        private final int mMaxRecords;
+        int mTrips = 0;
+
+        CountingSource(GraphPopulator.ReadingSource source, int maxRecords) {
+            mSource = source;
+            mMaxRecords = maxRecords;
+        }
+
+        @Override
+        public void getScalarReadings(String databaseTag, int resolutionTier, TimeRange timeRange,
+                int maxRecords, MaybeConsumer<ScalarReadingList> onSuccess) {
+            mTrips++;
+            mSource.getScalarReadings(databaseTag, resolutionTier, timeRange,
+                    Math.min(maxRecords, mMaxRecords), onSuccess);
+        }
+    }
+
+    public void testNextPageSize() {
+        int min = GraphPopulator.MIN_DATAPOINTS_PER_SENSOR_LOAD;
+        int max = GraphPopulator.MAX_DATAPOINTS_PER_SENSOR_LOAD;
+        long target = GraphPopulator.TARGET_MILLIS_PER_SENSOR_LOAD;
+
+        // Quick trips grow the page, but only by so much at a time.
+        assertEquals(2 * min, GraphPopulator.nextPageSize(min, min, 0));
+        assertEquals(2 * min, GraphPopulator.nextPageSize(min, min, 1));
+        assertEquals(max, GraphPopulator.nextPageSize(max, max, 1));
+
+        // Slow trips shrink it.
+        assertEquals(400, GraphPopulator.nextPageSize(800, 800, 2 * target));
+        assertEquals(min, GraphPopulator.nextPageSize(800, 800, 100 * target));
+
+        // A short page was the end of the range, and says nothing about timing.
+        assertEquals(800, GraphPopulator.nextPageSize(800, 10, 100 * target));
+    }
+
+    public void testTimeToFullChart() {
+        SensorDatabaseImpl db = new SensorDatabaseImpl(getContext(), TEST_DATABASE_NAME);
+        int readings = 20000;
+        for (int i = 0; i < readings; i++) {
+            db.addScalarReading("tag", 0, i, Math.sin(i / 100.0));
+        }
+        DataControllerImpl dc = new DataControllerImpl(db, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(),
+                new MemoryMetadataManager(), new MonotonicClock());
+
+        // What it took with fixed pages of 100.
+        CountingSource fixed = new CountingSource(GraphPopulator.readingsFrom(dc), 100);
+        RecordingDisplay fixedDisplay = new RecordingDisplay();
+        long start = System.nanoTime();
+        new GraphPopulator(fixedDisplay).requestObservations(
+                GraphPopulator.constantGraphStatus(0, readings - 1), fixed,
+                LoggingConsumer.expectSuccess(TAG, "loading"), 0, "tag");
+        long fixedMillis = (System.nanoTime() - start) / 1000000;
+
+        CountingSource adaptive = new CountingSource(GraphPopulator.readingsFrom(dc),
+                Integer.MAX_VALUE);
+        RecordingDisplay adaptiveDisplay = new RecordingDisplay();
+        GraphPopulator populator = new GraphPopulator(adaptiveDisplay);
+        populator.setTargetPointCount(500);
+        start = System.nanoTime();
+        populator.requestObservations(GraphPopulator.constantGraphStatus(0, readings - 1),
+                adaptive, LoggingConsumer.expectSuccess(TAG, "loading"), 0, "tag");
+        long adaptiveMillis = (System.nanoTime() - start) / 1000000;
+
+        Log.i(TAG, "Full chart of " + readings + " readings: " + fixed.mTrips + " trips in "
+                + fixedMillis + "ms with fixed pages, " + adaptive.mTrips + " trips in "
+                + adaptiveMillis + "ms with adaptive pages");
+
+        for (RecordingDisplay display : new RecordingDisplay[]{fixedDisplay, adaptiveDisplay}) {
+            // Every point arrives once, in order, before the load is finished.
+            assertEquals(readings, display.mPointsWhenFinished);
+            for (int i = 0; i < readings; i++) {
+                assertEquals(i, display.mPoints.get(i).getX());
+            }
+        }
+        assertTrue(adaptive.mTrips < fixed.mTrips);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        File dbtest = getContext().getDatabasePath(TEST_DATABASE_NAME);
+        if (dbtest.exists()) {
+            dbtest.delete();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    }
+}
@@ -16,12 +16,14 @@
 
 package com.google.android.apps.forscience.whistlepunk;
 
+import android.os.Debug;
 import android.test.AndroidTestCase;
 
 import com.google.android.apps.forscience.ble.BleClient;
 import com.google.android.apps.forscience.ble.BleClientImpl;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
 import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.BatchStreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensors.BluetoothSensor;
@@ -171,4 +173,259 @@ public class PacketAssemblerTest extends AndroidTestCase {
         assertEquals(points.get(0).x, testTime);
         assertEquals(points.get(0).y, (double) testValue);
     }
+
+    public void testParseErrorsAreCounted() {
+        final TestStreamConsumer tsc = new TestStreamConsumer();
+        final PacketAssembler pa = makeAssembler(tsc);
+
+        // A varint tag with no terminating byte.
+        pa.append(new byte[]{3, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        // Declared length longer than the chunk.
+        pa.append(new byte[]{10, 1, 0});
+
+        assertEquals(0, tsc.getPoints().size());
+        assertEquals(1, pa.getParseErrorCount());
+        assertEquals(1, pa.getFramingErrorCount());
+
+        // Still works afterwards.
+        for (byte[] packet : frame(makeSensorData(7, testValue), 5)) {
+            pa.append(packet);
+        }
+        assertEquals(1, tsc.getPoints().size());
+        assertEquals((double) testValue, tsc.getPoints().get(0).y);
+    }
+
+    public void testLargeMessageGrowsBuffer() {
+        final TestStreamConsumer tsc = new TestStreamConsumer();
+        final PacketAssembler pa = makeAssembler(tsc);
+        int initialCapacity = pa.getBufferCapacity();
+
+        GoosciSensor.SensorData sd = new GoosciSensor.SensorData();
+        sd.timestampKey = 0;
+        GoosciSensor.Error error = new GoosciSensor.Error();
+        error.error = new String(new char[initialCapacity * 3]).replace('\0', 'x');
+        sd.setError(error);
+        byte[] value = GoosciSensor.SensorData.toByteArray(sd);
+        for (byte[] packet : frame(value, 18)) {
+            pa.append(packet);
+        }
+
+        assertTrue(pa.getBufferCapacity() >= value.length);
+        assertEquals(0, pa.getParseErrorCount());
+        assertEquals(1, pa.getMissingValueCount());
+    }
+
+    public void testMessageWithoutValueAfterDataIsMissingValue() {
+        final TestStreamConsumer tsc = new TestStreamConsumer();
+        final PacketAssembler pa = makeAssembler(tsc);
+        for (byte[] packet : frame(makeSensorData(1, testValue), 18)) {
+            pa.append(packet);
+        }
+        assertEquals(1, tsc.getPoints().size());
+
+        // Neither data nor batch: the last message's value must not be delivered again.
+        GoosciSensor.SensorData empty = new GoosciSensor.SensorData();
+        empty.timestampKey = 2;
+        for (byte[] packet : frame(GoosciSensor.SensorData.toByteArray(empty), 18)) {
+            pa.append(packet);
+        }
+        assertEquals(1, tsc.getPoints().size());
+        assertEquals(1, pa.getMissingValueCount());
+
+        // Data without a value, parsed into the Data left over from the first message.
+        for (byte[] packet : frame(makeSensorData(3, testValue), 18)) {
+            pa.append(packet);
+        }
+        GoosciSensor.SensorData noValue = new GoosciSensor.SensorData();
+        noValue.timestampKey = 4;
+        GoosciSensor.Data d = new GoosciSensor.Data();
+        d.pin = new GoosciSensor.Pin();
+        d.pin.setAnalogPin(new GoosciSensor.AnalogPin());
+        noValue.setData(d);
+        for (byte[] packet : frame(GoosciSensor.SensorData.toByteArray(noValue), 18)) {
+            pa.append(packet);
+        }
+        assertEquals(2, tsc.getPoints().size());
+        assertEquals(2, pa.getMissingValueCount());
+        assertEquals(0, pa.getParseErrorCount());
+    }
+
+    public void testSeveralMessagesInOneNotification() {
+        final TestStreamConsumer tsc = new TestStreamConsumer();
+        final PacketAssembler pa = makeAssembler(tsc);
+
+        // Two whole messages, then the start of a third, then zero padding.
+        byte[] first = frame(makeSensorData(1, 10), 255).get(0);
+        byte[] second = frame(makeSensorData(2, 20), 255).get(0);
+        List<byte[]> third = frame(makeSensorData(3, 30), 4);
+        byte[] notification = new byte[first.length + second.length + third.get(0).length];
+        System.arraycopy(first, 0, notification, 0, first.length);
+        System.arraycopy(second, 0, notification, first.length, second.length);
+        System.arraycopy(third.get(0), 0, notification, first.length + second.length,
+                third.get(0).length);
+        pa.append(notification);
+        assertEquals(2, tsc.getPoints().size());
+
+        for (int i = 1; i < third.size(); i++) {
+            pa.append(third.get(i));
+        }
+        byte[] padded = new byte[first.length + 6];
+        System.arraycopy(first, 0, padded, 0, first.length);
+        pa.append(padded);
+
+        assertEquals(4, tsc.getPoints().size());
+        assertEquals(30.0, tsc.getPoints().get(2).y);
+        assertEquals(10.0, tsc.getPoints().get(3).y);
+        assertEquals(0, pa.getParseErrorCount());
+        assertEquals(0, pa.getFramingErrorCount());
+    }
+
+    public void testBatchGoesToBlockPath() {
+        final List<Point> points = new ArrayList<>();
+        final int[] blocks = new int[1];
+        final PacketAssembler pa = makeAssembler(new BatchStreamConsumer() {
+            @Override
+            public void addData(long[] timestampsMillis, double[] values, int count) {
+                blocks[0]++;
+                for (int i = 0; i < count; i++) {
+                    points.add(new Point(timestampsMillis[i], values[i]));
+                }
+            }
+
+            @Override
+            public void addData(long timestampMillis, double value) {
+                points.add(new Point(timestampMillis, value));
+            }
+        });
+
+        int[] timestampDeltas = new int[]{0, 1, 1, 2};
+        int[] valueDeltas = new int[]{500, -3, 0, 10};
+        byte[] batch = makeSensorDataBatch(100, timestampDeltas, valueDeltas);
+        for (byte[] packet : frame(batch, 18)) {
+            pa.append(packet);
+        }
+        // A second batch, parsed into the same message, must not include the first one's
+        // readings.
+        for (byte[] packet : frame(makeSensorDataBatch(104, new int[]{1}, new int[]{7}), 18)) {
+            pa.append(packet);
+        }
+
+        assertEquals(2, blocks[0]);
+        assertEquals(5, points.size());
+        // The time skew is taken from the newest reading in the first batch.
+        long skew = testTime - 104;
+        long[] expectedTimes = new long[]{100, 101, 102, 104, 105};
+        double[] expectedValues = new double[]{500, 497, 497, 507, 7};
+        for (int i = 0; i < expectedTimes.length; i++) {
+            assertEquals(expectedTimes[i] + skew, points.get(i).x);
+            assertEquals(expectedValues[i], points.get(i).y);
+        }
+        assertEquals(0, pa.getParseErrorCount());
+    }
+
+    public void testBatchWithoutBlockPath() {
+        final TestStreamConsumer tsc = new TestStreamConsumer();
+        final PacketAssembler pa = makeAssembler(tsc);
+        for (byte[] packet : frame(makeSensorDataBatch(0, new int[]{0, 5, 5},
+                new int[]{1, 1, 1}), 18)) {
+            pa.append(packet);
+        }
+        assertEquals(3, tsc.getPoints().size());
+        assertEquals(3.0, tsc.getPoints().get(2).y);
+    }
+
+    /**
+     * Microbenchmark: replays a captured stream of 20-byte framed notifications (each sample
+     * spans two notifications) and counts allocations on this thread once the assembler has
+     * warmed up.
+     */
+    public void testSteadyStateParsingDoesNotAllocate() {
+        final int samples = 2000;
+        final int chunkSize = 18;
+        List<byte[]> stream = new ArrayList<>();
+        for (int i = 0; i < samples; i++) {
+            stream.addAll(frame(makeSensorData(1000 + i * 10, 100000 + i), chunkSize));
+        }
+        byte[][] packets = stream.toArray(new byte[stream.size()][]);
+
+        final long[] sum = new long[1];
+        final StreamConsumer summingConsumer = new StreamConsumer() {
+            @Override
+            public void addData(long timestampMillis, double value) {
+                sum[0] += timestampMillis;
+            }
+        };
+        final PacketAssembler pa = makeAssembler(summingConsumer);
+
+        // Warm up on the first tenth of the stream.
+        int warmup = packets.length / 10;
+        for (int i = 0; i < warmup; i++) {
+            pa.append(packets[i]);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long startNanos = System.nanoTime();
+        for (int i = warmup; i < packets.length; i++) {
+            pa.append(packets[i]);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        int measuredSamples = samples - samples / 10;
+        android.util.Log.i("PacketAssemblerTest", "allocations/sample: "
+                + (allocations / (double) measuredSamples) + ", ns/sample: "
+                + (elapsedNanos / measuredSamples));
+        assertEquals(0, pa.getParseErrorCount());
+        assertTrue(sum[0] > 0);
+        // Allow for a little background noise from the test harness itself.
+        assertTrue("allocations: " + allocations, allocations < measuredSamples / 100);
+    }
+
+    private PacketAssembler makeAssembler(StreamConsumer consumer) {
+        final BleSensorSpec bs = new BleSensorSpec("F7:83:CE:FE:56:C2", "name");
+        final BluetoothSensor s = new BluetoothSensor("sensorId", bs,
+                BluetoothSensor.ANNING_SERVICE_SPEC);
+        return new PacketAssembler(consumer, new TestSystemClock(), s);
+    }
+
+    private static List<byte[]> frame(byte[] value, int chunkSize) {
+        List<byte[]> packets = new ArrayList<>();
+        for (int start = 0; start < value.length; start += chunkSize) {
+            int l = Math.min(chunkSize, value.length - start);
+            byte[] packet = new byte[l + 2];
+            packet[0] = (byte) l;
+            packet[1] = (byte) (start + l == value.length ? 1 : 0);
+            System.arraycopy(value, start, packet, 2, l);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    private static byte[] makeSensorDataBatch(int timestampKey, int[] timestampDeltas,
+            int[] valueDeltas) {
+        GoosciSensor.SensorData sd = new GoosciSensor.SensorData();
+        sd.timestampKey = timestampKey;
+        GoosciSensor.SensorDataBatch batch = new GoosciSensor.SensorDataBatch();
+        batch.pin = new GoosciSensor.Pin();
+        batch.pin.setAnalogPin(new GoosciSensor.AnalogPin());
+        batch.timestampDelta = timestampDeltas;
+        batch.valueDelta = valueDeltas;
+        sd.setBatch(batch);
+        return GoosciSensor.SensorData.toByteArray(sd);
+    }
+
+    private static byte[] makeSensorData(int timestampKey, int analogValue) {
+        GoosciSensor.SensorData sd = new GoosciSensor.SensorData();
+        sd.timestampKey = timestampKey;
+        GoosciSensor.Data d = new GoosciSensor.Data();
+        GoosciSensor.AnalogValue av = new GoosciSensor.AnalogValue();
+        av.value = analogValue;
+        d.setAnalogValue(av);
+        d.pin = new GoosciSensor.Pin();
+        d.pin.setAnalogPin(new GoosciSensor.AnalogPin());
+        sd.setData(d);
+        return GoosciSensor.SensorData.toByteArray(sd);
+    }
 }
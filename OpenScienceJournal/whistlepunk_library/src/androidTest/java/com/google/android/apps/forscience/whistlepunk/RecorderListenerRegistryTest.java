@@ -16,11 +16,35 @@
 
 package com.google.android.apps.forscience.whistlepunk;
 
+import android.os.Bundle;
+import android.os.Debug;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HeadlessCapableObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RecorderListenerRegistryTest extends AndroidTestCase {
+    private static final String TAG = "RLRegistryTest";
+
+    private static class CountingObserver implements SensorObserver {
+        volatile long count = 0;
+        volatile long lastTimestamp = -1;
+
+        @Override
+        public void onNewData(long timestamp, Bundle data) {
+            count++;
+            lastTimestamp = timestamp;
+        }
+    }
+
     public void testImmediatelyUpdateStatus() {
         RecorderListenerRegistry r = new RecorderListenerRegistry();
         RecordingStatusListener beforeListener = new RecordingStatusListener();
@@ -34,4 +58,171 @@ public class RecorderListenerRegistryTest extends AndroidTestCase {
         assertEquals((Integer) status, afterListener.mostRecentStatuses.get("sensorId"));
     }
 
-}
\ No newline at end of file
+    public void testRemoveReportsLast() {
+        RecorderListenerRegistry r = new RecorderListenerRegistry();
+        String id1 = r.putListeners("sensorId", new RecordingSensorObserver(),
+                new RecordingStatusListener());
+        String id2 = r.putListeners("sensorId", new RecordingSensorObserver(),
+                new RecordingStatusListener());
+        assertFalse(r.remove("sensorId", "nonsense"));
+        assertFalse(r.remove("otherSensorId", id1));
+        assertFalse(r.remove("sensorId", id1));
+        assertTrue(r.remove("sensorId", id2));
+    }
+
+    public void testObserverMadeBeforeListenersAdded() {
+        RecorderListenerRegistry r = new RecorderListenerRegistry();
+        SensorObserver routing = r.makeObserverForRecorder("sensorId");
+        CountingObserver observer = new CountingObserver();
+        String observerId = r.putListeners("sensorId", observer, new RecordingStatusListener());
+        routing.onNewData(1, null);
+        assertEquals(1, observer.count);
+        r.remove("sensorId", observerId);
+        routing.onNewData(2, null);
+        assertEquals(1, observer.count);
+    }
+
+    /**
+     * Delivers samples on one thread while another adds and removes listeners as fast as it can.
+     * A listener that stays registered throughout must see every sample, in order, and delivery
+     * must never trip over a half-made change.
+     */
+    public void testConcurrentRegistrationAndDelivery() throws InterruptedException {
+        final RecorderListenerRegistry r = new RecorderListenerRegistry();
+        final SensorObserver routing = r.makeObserverForRecorder("sensorId");
+        final CountingObserver steady = new CountingObserver();
+        r.putListeners("sensorId", steady, new RecordingStatusListener());
+
+        final int samples = 200000;
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread delivery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < samples; i++) {
+                        routing.onNewData(i, null);
+                        if (steady.lastTimestamp != i) {
+                            throw new AssertionError("Missed sample " + i);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        });
+        delivery.start();
+
+        List<CountingObserver> churned = new ArrayList<>();
+        int churns = 0;
+        while (!done.get()) {
+            CountingObserver observer = new CountingObserver();
+            String id = r.putListeners("sensorId", observer, new RecordingStatusListener());
+            String other = r.putListeners("sensorId", new CountingObserver(),
+                    new RecordingStatusListener());
+            r.remove("sensorId", id);
+            r.remove("sensorId", other);
+            if (churned.size() < 1000) {
+                churned.add(observer);
+            }
+            churns++;
+        }
+        delivery.join();
+
+        assertNull(failure.get());
+        assertEquals(samples, steady.count);
+        Log.i(TAG, "Registration changes during delivery: " + churns);
+        // Removed observers must not hear anything after removal.
+        long before = 0;
+        for (CountingObserver observer : churned) {
+            before += observer.count;
+        }
+        routing.onNewData(samples, null);
+        long after = 0;
+        for (CountingObserver observer : churned) {
+            after += observer.count;
+        }
+        assertEquals(before, after);
+    }
+
+    /**
+     * Fanning out to 3 listeners shouldn't allocate.  Also logs the per-sample time, which is not
+     * a precise benchmark.
+     */
+    public void testDeliveryCost() {
+        RecorderListenerRegistry r = new RecorderListenerRegistry();
+        SensorObserver routing = r.makeObserverForRecorder("sensorId");
+        CountingObserver[] observers = new CountingObserver[3];
+        for (int i = 0; i < observers.length; i++) {
+            observers[i] = new CountingObserver();
+            r.putListeners("sensorId", observers[i], new RecordingStatusListener());
+        }
+        r.putListeners("otherSensorId", new CountingObserver(), new RecordingStatusListener());
+
+        int samples = 1000000;
+        // Warm up, so we aren't timing the interpreter.
+        for (int i = 0; i < samples / 10; i++) {
+            routing.onNewData(i, null);
+        }
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            routing.onNewData(i, null);
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        Log.i(TAG, "Delivery to 3 listeners: " + (elapsed / (double) samples) + " ns/sample, "
+                + allocations + " allocations");
+        assertEquals(samples + samples / 10, observers[2].count);
+        // Allow for a little background noise from the test harness itself.
+        assertTrue("allocations: " + allocations, allocations < samples / 1000);
+    }
+
+    public void testHeadlessOnlyWithoutListeners() {
+        RecorderListenerRegistry r = new RecorderListenerRegistry();
+        HeadlessCapableObserver routing = r.makeObserverForRecorder("sensorId");
+        assertFalse(routing.isHeadless());
+        r.setHeadless(true);
+        assertTrue(routing.isHeadless());
+        String observerId = r.putListeners("sensorId", new CountingObserver(),
+                new RecordingStatusListener());
+        assertFalse(routing.isHeadless());
+        r.remove("sensorId", observerId);
+        assertTrue(routing.isHeadless());
+    }
+
+    public void testNewListenerGetsLatestHeadlessData() {
+        RecorderListenerRegistry r = new RecorderListenerRegistry();
+        r.setHeadless(true);
+        HeadlessCapableObserver routing = r.makeObserverForRecorder("sensorId");
+        routing.onLatestData(10, 7, 7, 7, 7);
+        routing.onLatestData(20, 8, 7, 8, 7.5);
+
+        r.setHeadless(false);
+        final AtomicReference<Bundle> replayed = new AtomicReference<>();
+        CountingObserver observer = new CountingObserver() {
+            @Override
+            public void onNewData(long timestamp, Bundle data) {
+                super.onNewData(timestamp, data);
+                replayed.set(data);
+            }
+        };
+        r.putListeners("sensorId", observer, new RecordingStatusListener());
+        assertEquals(1, observer.count);
+        assertEquals(20, observer.lastTimestamp);
+        assertEquals(8.0, ScalarSensor.getValue(replayed.get()), 0.001);
+        assertEquals(7.0, replayed.get().getDouble(StatsAccumulator.KEY_MIN), 0.001);
+        assertEquals(8.0, replayed.get().getDouble(StatsAccumulator.KEY_MAX), 0.001);
+        assertEquals(7.5, replayed.get().getDouble(StatsAccumulator.KEY_AVERAGE), 0.001);
+
+        // Live data supersedes the replay
+        routing.onNewData(30, new Bundle());
+        CountingObserver later = new CountingObserver();
+        r.putListeners("sensorId", later, new RecordingStatusListener());
+        assertEquals(0, later.count);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.test.AndroidTestCase;
+
+import com.google.android.apps.forscience.javalib.Consumer;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.ApplicationLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.Label;
+import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecordingJournalTest extends AndroidTestCase {
+    private static final String SENSOR_ID = "sensorId";
+    private static final int ZOOM_BUFFER_SIZE = ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS * 2;
+
+    private static class MemoryStorage implements RecordingJournal.Storage {
+        byte[] bytes = null;
+
+        @Override
+        public byte[] read() {
+            return bytes;
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void clear() {
+            bytes = null;
+        }
+    }
+
+    private final MemoryStorage mStorage = new MemoryStorage();
+    private final MemoryMetadataManager mMetadata = new MemoryMetadataManager();
+    private final InMemorySensorDatabase mDatabase = new InMemorySensorDatabase();
+    private Experiment mExperiment;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExperiment = mMetadata.newExperiment(mMetadata.newProject(), 1, "experimentId");
+    }
+
+    /**
+     * A fresh DataControllerImpl over the same storage, as if the process had restarted.
+     */
+    private DataControllerImpl startProcess() {
+        DataControllerImpl dc = new DataControllerImpl(mDatabase, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), MoreExecutors.directExecutor(), mMetadata,
+                new MonotonicClock());
+        dc.setRecordingJournal(new RecordingJournal(mStorage, new MonotonicClock()));
+        return dc;
+    }
+
+    private String startRun(DataControllerImpl dc) {
+        final ApplicationLabel[] startLabel = new ApplicationLabel[1];
+        dc.startRun(mExperiment, TestConsumers.expectingSuccess(
+                new Consumer<ApplicationLabel>() {
+                    @Override
+                    public void take(ApplicationLabel label) {
+                        startLabel[0] = label;
+                    }
+                }));
+        return startLabel[0].getLabelId();
+    }
+
+    /**
+     * Stores readings the way a ScalarSensor does while recording, including zoom tiers.
+     */
+    private void record(RecordingDataController dc, ZoomRecorder zoomRecorder, int count) {
+        for (int i = 0; i < count; i++) {
+            long timestamp = 100 + i * 10;
+            double value = Math.sin(i / 7.0) * i;
+            dc.addScalarReading(SENSOR_ID, 0, timestamp, value);
+            zoomRecorder.addData(timestamp, value, dc);
+        }
+    }
+
+    private ApplicationLabel recover(DataControllerImpl dc) {
+        final ApplicationLabel[] stopLabel = new ApplicationLabel[1];
+        dc.recoverInterruptedRun(TestConsumers.expectingSuccess(
+                new Consumer<ApplicationLabel>() {
+                    @Override
+                    public void take(ApplicationLabel label) {
+                        stopLabel[0] = label;
+                    }
+                }));
+        return stopLabel[0];
+    }
+
+    public void testRecoversInterruptedRun() {
+        int count = 1234;
+        DataControllerImpl dc = startProcess();
+        String runId = startRun(dc);
+        ZoomRecorder zoomRecorder = new ZoomRecorder(SENSOR_ID, ZOOM_BUFFER_SIZE, 1);
+        record(dc, zoomRecorder, count);
+        // The process dies here, before stopRun or flushAllTiers.
+
+        // What a clean stop would have stored at each tier.
+        InMemorySensorDatabase expected = new InMemorySensorDatabase();
+        ZoomRecorder expectedZoom = new ZoomRecorder(SENSOR_ID, ZOOM_BUFFER_SIZE, 1);
+        record(expected.makeSimpleRecordingController(new MemoryMetadataManager()), expectedZoom,
+                count);
+        int expectedTierCount = expectedZoom.countTiers();
+        expectedZoom.flushAllTiers(expected.makeSimpleRecordingController(
+                new MemoryMetadataManager()));
+
+        ApplicationLabel stopLabel = recover(startProcess());
+        assertNotNull(stopLabel);
+        assertEquals(runId, stopLabel.getRunId());
+        assertEquals(100 + (count - 1) * 10, stopLabel.getTimeStamp());
+        assertEquals(ApplicationLabel.TYPE_RECORDING_STOP, stopLabel.getType());
+        assertNotNull(mMetadata.getRun(runId));
+
+        List<Label> labels = mMetadata.getLabelsWithStartId(runId);
+        assertEquals(2, labels.size());
+
+        RunStats stats = mMetadata.getStats(runId, SENSOR_ID);
+        assertEquals(count, stats.getStat(StatsAccumulator.KEY_NUM_DATA_POINTS), 0.001);
+        assertEquals(expectedTierCount, stats.getStat(ZoomRecorder.STATS_KEY_TIER_COUNT), 0.001);
+
+        for (int tier = 0; tier <= expectedTierCount; tier++) {
+            assertEquals("tier " + tier, expected.getReadings(tier), mDatabase.getReadings(tier));
+        }
+
+        // Only once.
+        assertNull(recover(startProcess()));
+    }
+
+    public void testNothingToRecoverAfterCleanStop() {
+        DataControllerImpl dc = startProcess();
+        String runId = startRun(dc);
+        record(dc, new ZoomRecorder(SENSOR_ID, ZOOM_BUFFER_SIZE, 1), 10);
+        dc.stopRun(mExperiment, runId, new ArrayList<GoosciSensorLayout.SensorLayout>(),
+                TestConsumers.<ApplicationLabel>expectingSuccess());
+        assertNull(mStorage.bytes);
+        assertNull(recover(startProcess()));
+    }
+
+    public void testDoesNotRecoverRunStillInProgress() {
+        DataControllerImpl dc = startProcess();
+        startRun(dc);
+        record(dc, new ZoomRecorder(SENSOR_ID, ZOOM_BUFFER_SIZE, 1), 10);
+        assertNull(recover(dc));
+        assertNotNull(mStorage.bytes);
+    }
+
+    public void testDiscardsCorruptJournal() {
+        mStorage.bytes = new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff};
+        assertNull(recover(startProcess()));
+        assertNull(mStorage.bytes);
+    }
+}
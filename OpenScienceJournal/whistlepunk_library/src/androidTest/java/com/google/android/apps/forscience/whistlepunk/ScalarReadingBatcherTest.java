@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.test.AndroidTestCase;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class ScalarReadingBatcherTest extends AndroidTestCase {
+    /**
+     * Runs tasks only when asked to, like a UI thread that is busy until the test is done.
+     */
+    private static class QueuedExecutor implements Executor {
+        List<Runnable> mQueue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        public void drain() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+
+    private static class CountingExecutor implements Executor {
+        int mCount = 0;
+
+        @Override
+        public void execute(Runnable command) {
+            mCount++;
+            command.run();
+        }
+    }
+
+    private static class RecordingDisplay implements GraphPopulator.ObservationDisplay {
+        List<ChartData.DataPoint> mPoints = new ArrayList<>();
+        boolean mFinished = false;
+
+        @Override
+        public void addRange(ScalarReadingList observations, long requestId) {
+            mPoints.addAll(observations.asDataPoints());
+        }
+
+        @Override
+        public void onFinish(long requestId) {
+            mFinished = true;
+        }
+    }
+
+    private static class CountingFailureListener implements FailureListener {
+        int mFailures = 0;
+
+        @Override
+        public void fail(Exception e) {
+            mFailures++;
+        }
+    }
+
+    private DataControllerImpl makeDataController(SensorDatabase db, Executor sensorDataThread) {
+        return new DataControllerImpl(db, MoreExecutors.directExecutor(),
+                MoreExecutors.directExecutor(), sensorDataThread, new MemoryMetadataManager(),
+                new MonotonicClock());
+    }
+
+    public void testPopulatorsShareOneTrip() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        for (int i = 0; i < 50; i++) {
+            db.addScalarReading("a", 0, i, i);
+            db.addScalarReading("b", 0, 1000 + i, -i);
+        }
+        CountingExecutor sensorDataThread = new CountingExecutor();
+        QueuedExecutor uiThread = new QueuedExecutor();
+        ScalarReadingBatcher batcher =
+                new ScalarReadingBatcher(makeDataController(db, sensorDataThread), uiThread);
+
+        RecordingDisplay displayA = new RecordingDisplay();
+        RecordingDisplay displayB = new RecordingDisplay();
+        FailureListener failure = LoggingConsumer.expectSuccess("test", "loading");
+        new GraphPopulator(displayA).requestObservations(
+                GraphPopulator.constantGraphStatus(0, 49), batcher, failure, 0, "a");
+        new GraphPopulator(displayB).requestObservations(
+                GraphPopulator.constantGraphStatus(1000, 1049), batcher, failure, 0, "b");
+
+        // Nothing is sent until the requesting task is done.
+        assertEquals(0, sensorDataThread.mCount);
+        uiThread.drain();
+
+        assertEquals(1, sensorDataThread.mCount);
+        assertEquals(50, displayA.mPoints.size());
+        assertEquals(0, displayA.mPoints.get(0).getX());
+        assertEquals(50, displayB.mPoints.size());
+        assertEquals(1000, displayB.mPoints.get(0).getX());
+        assertTrue(displayA.mFinished);
+        assertTrue(displayB.mFinished);
+    }
+
+    public void testFailureReachesEveryRequest() {
+        InMemorySensorDatabase db = new InMemorySensorDatabase() {
+            @Override
+            public ScalarReadingList getScalarReadings(String sensorTag, TimeRange range,
+                    int resolutionTier, int maxRecords) {
+                throw new IllegalStateException("database is gone");
+            }
+        };
+        QueuedExecutor uiThread = new QueuedExecutor();
+        ScalarReadingBatcher batcher = new ScalarReadingBatcher(
+                makeDataController(db, MoreExecutors.directExecutor()), uiThread);
+
+        CountingFailureListener failure = new CountingFailureListener();
+        new GraphPopulator(new RecordingDisplay()).requestObservations(
+                GraphPopulator.constantGraphStatus(0, 49), batcher, failure, 0, "a");
+        new GraphPopulator(new RecordingDisplay()).requestObservations(
+                GraphPopulator.constantGraphStatus(0, 49), batcher, failure, 0, "b");
+        uiThread.drain();
+
+        assertEquals(2, failure.mFailures);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.review;
+
+import android.test.AndroidTestCase;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.GraphPopulator;
+import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
+import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class ReadingTileCacheTest extends AndroidTestCase {
+    private static final int READINGS = 10000;
+
+    /**
+     * Runs tasks only when asked to, like a UI thread that is busy until the test is done.
+     */
+    private static class QueuedExecutor implements Executor {
+        List<Runnable> mQueue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        public void drain() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Answers from a database with a reading every millisecond, oldest first, and counts the
+     * trips.
+     */
+    private static class CountingSource implements GraphPopulator.ReadingSource {
+        private final InMemorySensorDatabase mDatabase = new InMemorySensorDatabase();
+        int mTrips = 0;
+
+        CountingSource() {
+            for (int i = 0; i < READINGS; i++) {
+                mDatabase.addScalarReading("tag", 0, i, i * 2);
+            }
+        }
+
+        @Override
+        public void getScalarReadings(String databaseTag, int resolutionTier, TimeRange timeRange,
+                int maxRecords, MaybeConsumer<ScalarReadingList> onSuccess) {
+            mTrips++;
+            onSuccess.success(mDatabase.getScalarReadings(databaseTag, timeRange, resolutionTier,
+                    maxRecords));
+        }
+    }
+
+    private static class Result implements MaybeConsumer<ScalarReadingList> {
+        List<ChartData.DataPoint> mPoints;
+
+        @Override
+        public void success(ScalarReadingList readings) {
+            mPoints = readings.asDataPoints();
+        }
+
+        @Override
+        public void fail(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final QueuedExecutor mUiThread = new QueuedExecutor();
+    private final CountingSource mSource = new CountingSource();
+
+    private ZoomPresenter makeZoomPresenter() {
+        // One reading per millisecond, so tiles are 500ms wide at tier 0.
+        RunStats stats = new RunStats();
+        stats.putStat(StatsAccumulator.KEY_TOTAL_DURATION, READINGS);
+        stats.putStat(StatsAccumulator.KEY_NUM_DATA_POINTS, READINGS);
+        stats.putStat(ZoomRecorder.STATS_KEY_TIER_COUNT, 2);
+        stats.putStat(ZoomRecorder.STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS, 10);
+        ZoomPresenter zp = new ZoomPresenter();
+        zp.setRunStats(stats);
+        return zp;
+    }
+
+    private List<ChartData.DataPoint> load(GraphPopulator.ReadingSource source,
+            Range<Long> times, int maxRecords) {
+        Result result = new Result();
+        source.getScalarReadings("tag", 0, TimeRange.oldest(times), maxRecords, result);
+        mUiThread.drain();
+        assertNotNull(result.mPoints);
+        return result.mPoints;
+    }
+
+    public void testMatchesUncachedReadings() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        GraphPopulator.ReadingSource cached = cache.forRun("run", makeZoomPresenter(), mSource);
+        List<Range<Long>> ranges = new ArrayList<>();
+        ranges.add(Range.closed(0L, 9999L));
+        ranges.add(Range.closedOpen(250L, 1750L));
+        ranges.add(Range.openClosed(499L, 500L));
+        ranges.add(Range.closed(9990L, 20000L));
+        for (Range<Long> range : ranges) {
+            for (int maxRecords : new int[]{0, 1, 100, 2000}) {
+                List<ChartData.DataPoint> expected = mSource.mDatabase.getScalarReadings("tag",
+                        TimeRange.oldest(range), 0, 0).asDataPoints();
+                if (maxRecords > 0 && expected.size() > maxRecords) {
+                    expected = expected.subList(0, maxRecords);
+                }
+                List<ChartData.DataPoint> actual = load(cached, range, maxRecords);
+                assertEquals(range + " " + maxRecords, expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i).getX(), actual.get(i).getX());
+                    assertEquals(expected.get(i).getY(), actual.get(i).getY(), 0);
+                }
+            }
+        }
+    }
+
+    public void testScrollingBackDoesNotReload() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        GraphPopulator.ReadingSource cached = cache.forRun("run", makeZoomPresenter(), mSource);
+
+        assertEquals(1000, load(cached, Range.closedOpen(0L, 1000L), 0).size());
+        assertEquals(1, mSource.mTrips);
+
+        // Panning forward only fetches the new tile.
+        assertEquals(1000, load(cached, Range.closedOpen(500L, 1500L), 0).size());
+        assertEquals(2, mSource.mTrips);
+
+        // ...and back, nothing.
+        assertEquals(1000, load(cached, Range.closedOpen(0L, 1000L), 0).size());
+        assertEquals(2, mSource.mTrips);
+    }
+
+    public void testWholeRunIsOneTrip() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        GraphPopulator.ReadingSource cached = cache.forRun("run", makeZoomPresenter(), mSource);
+        assertEquals(READINGS, load(cached, Range.closed(0L, 9999L), 0).size());
+        assertEquals(1, mSource.mTrips);
+    }
+
+    public void testEachGapIsOneTrip() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        GraphPopulator.ReadingSource cached = cache.forRun("run", makeZoomPresenter(), mSource);
+        load(cached, Range.closedOpen(500L, 1000L), 0);
+        load(cached, Range.closedOpen(2000L, 2500L), 0);
+        assertEquals(2, mSource.mTrips);
+
+        // Gaps at 0-500, 1000-2000 and 2500-4000.
+        List<ChartData.DataPoint> points = load(cached, Range.closedOpen(0L, 4000L), 0);
+        assertEquals(4000, points.size());
+        for (int i = 0; i < points.size(); i++) {
+            assertEquals(i, points.get(i).getX());
+        }
+        assertEquals(5, mSource.mTrips);
+    }
+
+    public void testPageOnlyFetchesTilesItNeeds() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        GraphPopulator.ReadingSource cached = cache.forRun("run", makeZoomPresenter(), mSource);
+        assertEquals(100, load(cached, Range.closed(0L, 9999L), 100).size());
+        assertEquals(1, mSource.mTrips);
+    }
+
+    public void testInvalidateRun() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        ZoomPresenter zp = makeZoomPresenter();
+        load(cache.forRun("run1", zp, mSource), Range.closedOpen(0L, 500L), 0);
+        load(cache.forRun("run2", zp, mSource), Range.closedOpen(0L, 500L), 0);
+        assertEquals(2, mSource.mTrips);
+
+        cache.invalidateRun("run1");
+        load(cache.forRun("run1", zp, mSource), Range.closedOpen(0L, 500L), 0);
+        load(cache.forRun("run2", zp, mSource), Range.closedOpen(0L, 500L), 0);
+        assertEquals(3, mSource.mTrips);
+    }
+
+    public void testLeastRecentlyUsedTilesAreDropped() {
+        // Room for two tiles.
+        ReadingTileCache cache = new ReadingTileCache(1000, mUiThread);
+        GraphPopulator.ReadingSource cached = cache.forRun("run", makeZoomPresenter(), mSource);
+        load(cached, Range.closedOpen(0L, 1500L), 0);
+        assertEquals(1, mSource.mTrips);
+
+        load(cached, Range.closedOpen(1000L, 1500L), 0);
+        assertEquals(1, mSource.mTrips);
+        load(cached, Range.closedOpen(0L, 500L), 0);
+        assertEquals(2, mSource.mTrips);
+    }
+
+    public void testNoStatsPassesThrough() {
+        ReadingTileCache cache = new ReadingTileCache(READINGS, mUiThread);
+        ZoomPresenter zp = new ZoomPresenter();
+        zp.setRunStats(new RunStats());
+        GraphPopulator.ReadingSource cached = cache.forRun("run", zp, mSource);
+        load(cached, Range.closedOpen(0L, 1000L), 0);
+        load(cached, Range.closedOpen(0L, 1000L), 0);
+        assertEquals(2, mSource.mTrips);
+    }
+}
@@ -18,6 +18,7 @@ package com.google.android.apps.forscience.whistlepunk.scalarchart;
 
 
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 import com.google.android.apps.forscience.whistlepunk.metadata.Label;
 import com.google.android.apps.forscience.whistlepunk.metadata.TextLabel;
@@ -26,6 +27,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class ChartDataTest extends AndroidTestCase {
+    private static final String TAG = "ChartDataTest";
 
     private void populatePointsList(int size, List<ChartData.DataPoint> result) {
         for (int i = 0; i < size; i++) {
@@ -33,6 +35,12 @@ public class ChartDataTest extends AndroidTestCase {
         }
     }
 
+    private void populateChartData(int size, ChartData chartData) {
+        for (int i = 0; i < size; i++) {
+            chartData.addPoint(new ChartData.DataPoint(i, i / 10.0));
+        }
+    }
+
     private void assertDataEquals(List<ChartData.DataPoint> expected,
             List<ChartData.DataPoint> actual) {
         assertEquals(expected.size(), actual.size());
@@ -52,13 +60,13 @@ public class ChartDataTest extends AndroidTestCase {
 
     public void testExactBinarySearch_sizeOne() {
         ChartData chartData = new ChartData();
-        populatePointsList(1, chartData.getPoints());
+        populateChartData(1, chartData);
         assertEquals(0, chartData.exactBinarySearch(0, 0));
     }
 
     public void testExactBinarySearch_sizeFive() {
         ChartData chartData = new ChartData();
-        populatePointsList(5, chartData.getPoints());
+        populateChartData(5, chartData);
         assertEquals(0, chartData.exactBinarySearch(0, 0));
         assertEquals(4, chartData.exactBinarySearch(4, 0));
     }
@@ -66,7 +74,7 @@ public class ChartDataTest extends AndroidTestCase {
     public void testApproximateBinarySearch_sizeFiveApproxMid() {
         // This chartData's approx range is 2 with a dataset size 5.
         ChartData chartData = new ChartData();
-        populatePointsList(5, chartData.getPoints());
+        populateChartData(5, chartData);
         assertEquals(0, chartData.approximateBinarySearch(1, 0, 4, true, 3));
         assertWithinRange(0, 3, chartData.approximateBinarySearch(3, 0, 4, true, 3));
         assertWithinRange(0, 3, chartData.approximateBinarySearch(1, 0, 4, false, 3));
@@ -77,14 +85,14 @@ public class ChartDataTest extends AndroidTestCase {
         // This chartData has a larger approx range than data size, so this is a test
         // of preferStart and ranges.
         ChartData chartData = new ChartData();
-        populatePointsList(5, chartData.getPoints());
+        populateChartData(5, chartData);
         assertEquals(0, chartData.approximateBinarySearch(1, 0, 4, true, 10));
         assertEquals(4, chartData.approximateBinarySearch(1, 0, 4, false, 10));
     }
 
     public void testApproximateBinarySearch_sizeOneHundredApprox() {
         ChartData chartData = new ChartData();
-        populatePointsList(100, chartData.getPoints());
+        populateChartData(100, chartData);
 
         for (int i = 5; i < 99; i += 10) {
             int result = chartData.approximateBinarySearch(i, 0, 99, true, 10);
@@ -147,4 +155,224 @@ public class ChartDataTest extends AndroidTestCase {
         List<ChartData.DataPoint> labelPoints = chartData.getLabelPoints();
         assertEquals(labelPoints.size(), 1);
     }
-}
\ No newline at end of file
+
+    public void testLabelAddedWhenDataReachesIt() {
+        ChartData chartData = new ChartData();
+        chartData.setDisplayableLabels(labelsAt(5, 25, 15));
+        assertEquals(0, chartData.getLabelPoints().size());
+
+        for (int i = 0; i <= 20; i += 2) {
+            chartData.addPoint(new ChartData.DataPoint(i, i / 10.0));
+        }
+        List<ChartData.DataPoint> labelPoints = chartData.getLabelPoints();
+        assertEquals(2, labelPoints.size());
+        // Drawn on the line between the points on either side.
+        assertDataPointEquals(new ChartData.DataPoint(5, .5), labelPoints.get(0));
+        assertDataPointEquals(new ChartData.DataPoint(15, 1.5), labelPoints.get(1));
+
+        chartData.addPoint(new ChartData.DataPoint(30, 3));
+        assertEquals(3, labelPoints.size());
+        assertEquals(25, labelPoints.get(2).getX());
+    }
+
+    public void testLabelsAddedByLoadedRange() {
+        ChartData chartData = new ChartData();
+        List<ChartData.DataPoint> data = new ArrayList<>();
+        for (int i = 100; i < 200; i++) {
+            data.add(new ChartData.DataPoint(i, i / 10.0));
+        }
+        chartData.setPoints(data);
+        chartData.setDisplayableLabels(labelsAt(150, 50, 250, 10));
+        assertEquals(1, chartData.getLabelPoints().size());
+
+        // Loading earlier data covers the labels before it.
+        data.clear();
+        for (int i = 40; i < 60; i++) {
+            data.add(new ChartData.DataPoint(i, i / 10.0));
+        }
+        chartData.addOrderedGroupOfPoints(data);
+        List<ChartData.DataPoint> labelPoints = chartData.getLabelPoints();
+        assertEquals(2, labelPoints.size());
+        assertEquals(50, labelPoints.get(0).getX());
+        assertEquals(150, labelPoints.get(1).getX());
+
+        chartData.addLabel(new TextLabel("", "120", "-1", 120));
+        chartData.addLabel(new TextLabel("", "300", "-1", 300));
+        assertEquals(3, labelPoints.size());
+        assertEquals(120, labelPoints.get(1).getX());
+    }
+
+    public void testGetLabelPointsInRange() {
+        ChartData chartData = new ChartData();
+        List<ChartData.DataPoint> data = new ArrayList<>();
+        populatePointsList(100, data);
+        chartData.setPoints(data);
+        chartData.setDisplayableLabels(labelsAt(90, 10, 50, 30, 70));
+
+        List<ChartData.DataPoint> inRange = chartData.getLabelPointsInRange(30, 70);
+        assertEquals(3, inRange.size());
+        assertEquals(30, inRange.get(0).getX());
+        assertEquals(50, inRange.get(1).getX());
+        assertEquals(70, inRange.get(2).getX());
+
+        assertEquals(0, chartData.getLabelPointsInRange(31, 49).size());
+        assertEquals(5, chartData.getLabelPointsInRange(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    private List<Label> labelsAt(long... timestamps) {
+        List<Label> labels = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            labels.add(new TextLabel("", String.valueOf(timestamp), "-1", timestamp));
+        }
+        return labels;
+    }
+
+    private void assertXsAre(ChartData chartData, long first, long last, long step) {
+        assertEquals((last - first) / step + 1, chartData.getNumPoints());
+        for (int i = 0; i < chartData.getNumPoints(); i++) {
+            assertEquals(first + i * step, chartData.getXAt(i));
+            assertEquals(chartData.getXAt(i) / 10.0, chartData.getYAt(i), .000001);
+        }
+    }
+
+    public void testTrimThenAppendWrapsAround() {
+        ChartData chartData = new ChartData();
+        populateChartData(200, chartData);
+        chartData.throwAwayBefore(150);
+        assertXsAre(chartData, 150, 199, 1);
+
+        for (int i = 200; i < 400; i++) {
+            chartData.addPoint(new ChartData.DataPoint(i, i / 10.0));
+        }
+        assertXsAre(chartData, 150, 399, 1);
+        assertEquals(150, chartData.getXMin());
+        assertEquals(399, chartData.getXMax());
+        assertEquals(249, chartData.exactBinarySearch(400, 0));
+    }
+
+    public void testThrowAwayFromMiddle() {
+        ChartData chartData = new ChartData(10);
+        populateChartData(100, chartData);
+
+        // Nearer the start
+        chartData.throwAwayBetween(20, 40);
+        assertEquals(80, chartData.getNumPoints());
+        assertEquals(19, chartData.getXAt(19));
+        assertEquals(40, chartData.getXAt(20));
+
+        // Nearer the end
+        chartData.throwAwayBetween(70, 95);
+        assertEquals(55, chartData.getNumPoints());
+        assertEquals(69, chartData.getXAt(49));
+        assertEquals(95, chartData.getXAt(50));
+        assertEquals(99, chartData.getXMax());
+    }
+
+    public void testMergeInterleaved() {
+        ChartData chartData = new ChartData();
+        for (int i = 0; i < 100; i += 2) {
+            chartData.addPoint(new ChartData.DataPoint(i, i / 10.0));
+        }
+        List<ChartData.DataPoint> odds = new ArrayList<>();
+        for (int i = 1; i < 100; i += 2) {
+            odds.add(new ChartData.DataPoint(i, i / 10.0));
+        }
+        chartData.addOrderedGroupOfPoints(odds);
+        assertXsAre(chartData, 0, 99, 1);
+    }
+
+    public void testMergeBeforeAndAfter() {
+        ChartData chartData = new ChartData();
+        List<ChartData.DataPoint> middle = new ArrayList<>();
+        List<ChartData.DataPoint> before = new ArrayList<>();
+        List<ChartData.DataPoint> after = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            List<ChartData.DataPoint> group = i < 100 ? before : i < 200 ? middle : after;
+            group.add(new ChartData.DataPoint(i, i / 10.0));
+        }
+        chartData.addOrderedGroupOfPoints(middle);
+        chartData.addOrderedGroupOfPoints(before);
+        chartData.addOrderedGroupOfPoints(after);
+        assertXsAre(chartData, 0, 299, 1);
+    }
+
+    public void testMergeKeepsExistingFirstOnTies() {
+        ChartData chartData = new ChartData();
+        chartData.addPoint(new ChartData.DataPoint(5, 1));
+        chartData.addPoint(new ChartData.DataPoint(10, 1));
+        List<ChartData.DataPoint> group = new ArrayList<>();
+        group.add(new ChartData.DataPoint(5, 2));
+        group.add(new ChartData.DataPoint(7, 2));
+        chartData.addOrderedGroupOfPoints(group);
+        assertEquals(4, chartData.getNumPoints());
+        assertEquals(1, chartData.getYAt(0), .000001);
+        assertEquals(2, chartData.getYAt(1), .000001);
+        assertEquals(7, chartData.getXAt(2));
+    }
+
+    /**
+     * Not a precise benchmark, but logs the per-point cost of the operations a live chart does
+     * all the time: appending, trimming old data off the front, finding the range to draw, and
+     * merging in data loaded from the database.
+     */
+    public void testOperationCost() {
+        int points = 200000;
+        int window = 1000;
+        ChartData chartData = new ChartData();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < points; i++) {
+            chartData.addPoint(new ChartData.DataPoint(i, i));
+            if (i % window == 0) {
+                chartData.throwAwayBefore(i - window);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, "Append and trim: " + (elapsed / (double) points) + " ns/point");
+        assertTrue(chartData.getNumPoints() <= 2 * window + ChartData.DEFAULT_THROWAWAY_THRESHOLD);
+
+        int searches = 100000;
+        long xMax = chartData.getXMax();
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < searches; i++) {
+            long xMin = xMax - (i % window);
+            int startIndex = chartData.getStartIndexForRange(xMin);
+            found += chartData.getEndIndexForRange(xMax, startIndex) - startIndex;
+        }
+        elapsed = System.nanoTime() - start;
+        Log.i(TAG, "Range: " + (elapsed / (double) searches) + " ns/search");
+        assertTrue(found > 0);
+
+        chartData.clear();
+        for (int i = 0; i < points; i += 2) {
+            chartData.addPoint(new ChartData.DataPoint(i, i));
+        }
+        List<ChartData.DataPoint> odds = new ArrayList<>();
+        for (int i = 1; i < points; i += 2) {
+            odds.add(new ChartData.DataPoint(i, i));
+        }
+        start = System.nanoTime();
+        chartData.addOrderedGroupOfPoints(odds);
+        elapsed = System.nanoTime() - start;
+        Log.i(TAG, "Merge: " + (elapsed / (double) points) + " ns/point");
+        assertEquals(points, chartData.getNumPoints());
+
+        // Labels that the data hasn't reached yet shouldn't slow down each new point.
+        chartData.clear();
+        int labels = 1000;
+        List<Label> pendingLabels = new ArrayList<>();
+        for (int i = 0; i < labels; i++) {
+            pendingLabels.add(new TextLabel("", "label" + i, "-1", (long) points * (i + 1)));
+        }
+        chartData.setDisplayableLabels(pendingLabels);
+        start = System.nanoTime();
+        for (int i = 0; i < points; i++) {
+            chartData.addPoint(new ChartData.DataPoint(i, i));
+        }
+        elapsed = System.nanoTime() - start;
+        Log.i(TAG, "Append with " + labels + " pending labels: " + (elapsed / (double) points)
+                + " ns/point");
+        assertEquals(0, chartData.getLabelPoints().size());
+    }
+}
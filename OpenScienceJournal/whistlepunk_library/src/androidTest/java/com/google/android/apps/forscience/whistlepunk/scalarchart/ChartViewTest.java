@@ -53,4 +53,24 @@ public class ChartViewTest extends AndroidTestCase {
         List<Double> points = initPoints();
         assertEquals(20, ChartView.calculateSizeShownNext(points, 1, 41));
     }
+
+    public void testCanTransformPath_scrollOnly() {
+        assertTrue(ChartView.canTransformPath(10000, 10000, 5.0, 5.0));
+    }
+
+    public void testCanTransformPath_smallStretch() {
+        assertTrue(ChartView.canTransformPath(10000, 10100, 5.0, 5.1));
+    }
+
+    public void testCanTransformPath_zoomedX() {
+        assertFalse(ChartView.canTransformPath(10000, 5000, 5.0, 5.0));
+    }
+
+    public void testCanTransformPath_rescaledY() {
+        assertFalse(ChartView.canTransformPath(10000, 10000, 5.0, 10.0));
+    }
+
+    public void testCanTransformPath_emptyRange() {
+        assertFalse(ChartView.canTransformPath(10000, 10000, 0, 0));
+    }
 }
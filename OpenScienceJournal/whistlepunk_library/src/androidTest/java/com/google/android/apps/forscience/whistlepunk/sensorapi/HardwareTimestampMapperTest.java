@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.test.AndroidTestCase;
+
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+
+public class HardwareTimestampMapperTest extends AndroidTestCase {
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+    private static final long WALL_EPOCH_MILLIS = 1000000;
+
+    /**
+     * Both clocks advance together, driven by the test.
+     */
+    private static class FakeClocks implements Clock, HardwareTimestampMapper.ElapsedClock {
+        long mElapsedNanos = 5000 * NANOS_PER_MILLI;
+        long mWallMinusElapsedNanos = WALL_EPOCH_MILLIS * NANOS_PER_MILLI;
+
+        @Override
+        public long getNow() {
+            return (mElapsedNanos + mWallMinusElapsedNanos) / NANOS_PER_MILLI;
+        }
+
+        @Override
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+    }
+
+    public void testUsesCaptureTimeNotDeliveryTime() {
+        FakeClocks clocks = new FakeClocks();
+        HardwareTimestampMapper mapper = new HardwareTimestampMapper(clocks, clocks);
+        long captured = clocks.mElapsedNanos;
+        clocks.mElapsedNanos += 30 * NANOS_PER_MILLI;
+        long mapped = mapper.toWallMillis(captured);
+        assertEquals(clocks.getNow() - 30, mapped, 1);
+    }
+
+    public void testStrictlyIncreasing() {
+        FakeClocks clocks = new FakeClocks();
+        HardwareTimestampMapper mapper = new HardwareTimestampMapper(clocks, clocks);
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            // Identical hardware timestamps must still come out in order.
+            long mapped = mapper.toWallNanos(clocks.mElapsedNanos);
+            assertTrue(mapped > last);
+            last = mapped;
+            clocks.mElapsedNanos += (i % 2) * 1000;
+        }
+    }
+
+    public void testFollowsWallClockChange() {
+        FakeClocks clocks = new FakeClocks();
+        HardwareTimestampMapper mapper = new HardwareTimestampMapper(clocks, clocks);
+        mapper.toWallMillis(clocks.mElapsedNanos);
+        clocks.mWallMinusElapsedNanos += 60 * 1000 * NANOS_PER_MILLI;
+        clocks.mElapsedNanos += NANOS_PER_MILLI;
+        assertEquals(clocks.getNow(), mapper.toWallMillis(clocks.mElapsedNanos), 1);
+    }
+
+    public void testFallsBackForForeignTimebase() {
+        FakeClocks clocks = new FakeClocks();
+        HardwareTimestampMapper mapper = new HardwareTimestampMapper(clocks, clocks);
+        clocks.mElapsedNanos += 60 * 1000 * NANOS_PER_MILLI;
+        assertEquals(clocks.getNow(), mapper.toWallMillis(12345), 1);
+        assertEquals(1, mapper.getUnmappableCount());
+    }
+
+    /**
+     * A 1kHz sensor whose events are delivered in batches of 10 every 10ms.  Stamping at delivery
+     * time collapses each batch onto one millisecond (so 9 of every 10 samples are dropped as
+     * duplicates); using the capture time keeps them all.
+     */
+    public void testDroppedDuplicatesBatchedDelivery() {
+        int batches = 100;
+        int batchSize = 10;
+
+        MemoryMetadataManager metadata = new MemoryMetadataManager();
+        RecordingDataController rdc =
+                new InMemorySensorDatabase().makeSimpleRecordingController(metadata);
+        ManualSensor deliveryStamped = new ManualSensor("delivery", Long.MAX_VALUE, 100);
+        ManualSensor captureStamped = new ManualSensor("capture", Long.MAX_VALUE, 100);
+        SensorRecorder deliveryRecorder = deliveryStamped.createRecorder(getContext(), rdc,
+                new RecordingSensorObserver());
+        SensorRecorder captureRecorder = captureStamped.createRecorder(getContext(), rdc,
+                new RecordingSensorObserver());
+        deliveryRecorder.startRecording("runId");
+        captureRecorder.startRecording("runId");
+
+        FakeClocks clocks = new FakeClocks();
+        HardwareTimestampMapper mapper = new HardwareTimestampMapper(clocks, clocks);
+        long firstCapture = clocks.mElapsedNanos;
+        long[] deliveryTimestamps = new long[batchSize];
+        long[] captureTimestamps = new long[batchSize];
+        double[] values = new double[batchSize];
+        for (int b = 0; b < batches; b++) {
+            clocks.mElapsedNanos = firstCapture + (b + 1) * batchSize * NANOS_PER_MILLI;
+            for (int i = 0; i < batchSize; i++) {
+                long captured = firstCapture + (b * batchSize + i) * NANOS_PER_MILLI;
+                deliveryTimestamps[i] = clocks.getNow();
+                captureTimestamps[i] = mapper.toWallMillis(captured);
+                values[i] = i;
+            }
+            deliveryStamped.pushBatch(deliveryTimestamps, values, batchSize);
+            captureStamped.pushBatch(captureTimestamps, values, batchSize);
+        }
+        deliveryRecorder.stopRecording();
+        captureRecorder.stopRecording();
+
+        RunStats deliveryStats = metadata.getStats("runId", "delivery");
+        assertEquals(batches * (batchSize - 1),
+                deliveryStats.getStat(ScalarSensor.STATS_KEY_DROPPED_OUT_OF_ORDER), 0.001);
+        RunStats captureStats = metadata.getStats("runId", "capture");
+        assertEquals(0.0, captureStats.getStat(ScalarSensor.STATS_KEY_DROPPED_OUT_OF_ORDER),
+                0.001);
+    }
+}
@@ -79,6 +79,44 @@ public class ScalarSensorTest extends AndroidTestCase {
         assertEquals(expectedObserved, observer.getReadings());
     }
 
+    public void testTrimsToSharedWindow() {
+        ManualSensor sensor = new ManualSensor("test", Long.MAX_VALUE, 100);
+        RecordingSensorObserver observer = new RecordingSensorObserver();
+        SensorRecorder recorder = sensor.createRecorder(getContext(),
+                mRecordingController, observer);
+
+        recorder.startObserving();
+        sensor.pushValue(1, 1);
+        recorder.armRecording("runId");
+        // Held until the start is known
+        sensor.pushValue(2, 2);
+        sensor.pushValue(5, 5);
+        assertEquals(0, mDb.getReadings(0).size());
+        recorder.setRecordingStart(4);
+        sensor.pushValue(6, 6);
+        recorder.setRecordingStop(7);
+        sensor.pushValue(7, 7);
+        sensor.pushValue(9, 9);
+        recorder.stopRecording();
+        recorder.stopObserving();
+
+        ArrayList<InMemorySensorDatabase.Reading> expectedRecorded = Lists.newArrayList(
+                new InMemorySensorDatabase.Reading("test", 5, 5),
+                new InMemorySensorDatabase.Reading("test", 6, 6),
+                new InMemorySensorDatabase.Reading("test", 7, 7));
+        assertEquals(expectedRecorded, mDb.getReadings(0));
+
+        // Trimmed data is still shown while observing
+        assertEquals(6, observer.getReadings().size());
+
+        RunStats stats = mMetadata.getStats("runId", "test");
+        assertEquals(3.0, stats.getStat(StatsAccumulator.KEY_NUM_DATA_POINTS), 0.001);
+        assertEquals(5.0, stats.getStat(StatsAccumulator.KEY_MIN), 0.001);
+        assertEquals(2.0, stats.getStat(ScalarSensor.STATS_KEY_TRIMMED_OUTSIDE_WINDOW), 0.001);
+        assertEquals(1.0, stats.getStat(ScalarSensor.STATS_KEY_START_SKEW_MILLIS), 0.001);
+        assertEquals(0.0, stats.getStat(ScalarSensor.STATS_KEY_STOP_SKEW_MILLIS), 0.001);
+    }
+
     public void testThrowawayData() {
         ManualSensor sensor = new ManualSensor("test", 10, 100);
         InMemorySensorDatabase db = new InMemorySensorDatabase();
@@ -137,6 +137,17 @@ public class BluetoothSensorTest extends AndroidTestCase {
         assertEquals(versionDecoder.getMaxPatchVersion(), versionDecoder.getPatchVersion());
     }
 
+    public void testSupportsBatches() {
+        assertFalse(new BluetoothSensor.BleProtocolVersion(new byte[]{0x00, 0x08})
+                .supportsBatches());
+        assertTrue(new BluetoothSensor.BleProtocolVersion(new byte[]{0x40, 0x08})
+                .supportsBatches());
+        assertTrue(new BluetoothSensor.BleProtocolVersion(new byte[]{0x00, 0x10})
+                .supportsBatches());
+        assertFalse(new BluetoothSensor.BleProtocolVersion(new byte[]{0x40, 0x00})
+                .supportsBatches());
+    }
+
     public void testVersionDecodeAll() {
         BluetoothSensor.BleProtocolVersion versionDecoder;
 
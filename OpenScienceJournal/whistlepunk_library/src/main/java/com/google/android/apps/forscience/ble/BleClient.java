@@ -49,11 +49,40 @@ public interface BleClient {
 
     boolean disableNotifications(String address, BluetoothGattCharacteristic characteristic);
 
+    /**
+     * Request a larger ATT MTU for the connection to {@code address}.  The result (the MTU that
+     * was actually agreed) is broadcast as MTU_CHANGE_OK or MTU_CHANGE_FAIL.  Requires API 21.
+     */
     void changeMtu(String address, int mtu);
 
+    /**
+     * Request a connection priority (one of the {@code BluetoothGatt.CONNECTION_PRIORITY_*}
+     * constants) for the connection to {@code address}.  Requires API 21.
+     *
+     * @return false if the request could not be made.
+     */
+    boolean requestConnectionPriority(String address, int priority);
+
     void startTransaction(String address);
 
     String getFirstDeviceAddress();
 
     void setMaxNoDevices(int maxNoDevices);
+
+    /**
+     * Deliver characteristic notifications from the device at {@code address} directly to
+     * {@code listener}, replacing any previous listener for that address.
+     */
+    void setNotificationListener(String address, BleNotificationListener listener);
+
+    /**
+     * Stop delivering notifications to {@code listener}, if it is still the current listener for
+     * {@code address}.
+     */
+    void clearNotificationListener(String address, BleNotificationListener listener);
+
+    /**
+     * @return the manager that keeps connections to devices on this client open.
+     */
+    BleConnectionManager getConnectionManager();
 }
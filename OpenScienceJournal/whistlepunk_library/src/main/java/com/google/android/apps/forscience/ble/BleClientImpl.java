@@ -28,8 +28,13 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -56,8 +61,10 @@ public class BleClientImpl implements BleDeviceListener, BleClient {
 
     private final Context context;
     private final List<BleFlow> flows;
+    private final Map<String, BleNotificationListener> notificationListeners = new HashMap<>();
     private BleClientStartListener startListener;
     private BleDeviceListener deviceListener;
+    private BleConnectionManager connectionManager;
 
     // service state changes
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -66,6 +73,10 @@ public class BleClientImpl implements BleDeviceListener, BleClient {
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             bleService = ((MyBleService.LocalBinder) service).getService();
             bleService.addDeviceListener(BleClientImpl.this);
+            for (Map.Entry<String, BleNotificationListener> entry :
+                    notificationListeners.entrySet()) {
+                bleService.setNotificationListener(entry.getKey(), entry.getValue());
+            }
             if (startListener != null) {
                 startListener.onClientStarted();
             }
@@ -251,6 +262,11 @@ public class BleClientImpl implements BleDeviceListener, BleClient {
         bleService.setMtu(address, mtu);
     }
 
+    @Override
+    public boolean requestConnectionPriority(String address, int priority) {
+        return bleService.requestConnectionPriority(address, priority);
+    }
+
     @Override
     public void startTransaction(String address) {
         bleService.startTransaction(address);
@@ -269,6 +285,37 @@ public class BleClientImpl implements BleDeviceListener, BleClient {
         bleService.setMaxNoDevices(maxNoDevices <= 0 ? 1 : maxNoDevices);
     }
 
+    @Override
+    public void setNotificationListener(String address, BleNotificationListener listener) {
+        notificationListeners.put(address, listener);
+        if (bleService != null) {
+            bleService.setNotificationListener(address, listener);
+        }
+    }
+
+    @Override
+    public void clearNotificationListener(String address, BleNotificationListener listener) {
+        if (notificationListeners.get(address) == listener) {
+            notificationListeners.remove(address);
+        }
+        if (bleService != null) {
+            bleService.clearNotificationListener(address, listener);
+        }
+    }
+
+    @Override
+    public BleConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            connectionManager = new BleConnectionManager(this, new Scheduler() {
+                @Override
+                public void schedule(Delay delay, Runnable doThis) {
+                    handler.postDelayed(doThis, delay.asMillis());
+                }
+            });
+        }
+        return connectionManager;
+    }
+
     @Override
     public void onDeviceAdded(BluetoothDevice device) {
         if (deviceListener != null) {
@@ -0,0 +1,509 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.util.Log;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps connections open to any number of BLE devices at once.
+ * <p/>
+ * Each device has its own queue of {@link Operation}s, which are run one at a time through that
+ * device's {@link BleFlow}, so that there is never more than one outstanding GATT request per
+ * connection.  Devices don't wait on each other, so connection setup for several devices
+ * proceeds in parallel.
+ * <p/>
+ * Operations that time out or fail are retried.  "Setup" operations (like subscribing to a
+ * characteristic) are remembered, and replayed automatically whenever the device reconnects.
+ * <p/>
+ * Must be called on the main thread (which is where BleFlow events arrive).
+ */
+public class BleConnectionManager {
+    private static final String TAG = "BleConnectionManager";
+    private static final boolean DEBUG = false;
+
+    private static final Delay DEFAULT_OPERATION_TIMEOUT = Delay.seconds(10);
+    private static final int DEFAULT_MAX_RETRIES = 2;
+    private static final int INITIAL_RECONNECT_DELAY_MS = 500;
+    private static final int MAX_RECONNECT_DELAY_MS = 16 * 1000;
+
+    /**
+     * A unit of work to be done on a connected device, as a script of BleFlow actions.
+     * <p/>
+     * Flow events that happen while the operation runs are delivered to the operation's
+     * BleFlowListener methods, which may append more actions to the flow (for example, to
+     * decide what to write based on a value just read).  {@link #onSuccess()} and
+     * {@link #onFailure(Exception)} are only called once, after any retries.
+     */
+    public static abstract class Operation extends BleFlowListener {
+        /**
+         * Append this operation's actions to {@code flow}.  May be called more than once, if
+         * the operation is retried or replayed on reconnect.
+         */
+        public abstract void addActions(BleFlow flow);
+
+        @Override
+        public void onSuccess() {}
+
+        @Override
+        public void onFailure(Exception error) {}
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, int flags, byte[] value) {}
+
+        @Override
+        public void onNotification(UUID characteristic, int flags, byte[] value) {}
+
+        @Override
+        public void onDisconnect() {}
+
+        @Override
+        public void onConnect() {}
+
+        @Override
+        public void onNotificationSubscribed() {}
+
+        @Override
+        public void onNotificationUnsubscribed() {}
+
+        @Override
+        public void onServicesDiscovered() {}
+    }
+
+    /**
+     * Notified of connection state changes for a device.
+     */
+    public interface ConnectionListener {
+        void onConnected(String address);
+
+        /**
+         * The device disconnected.  If anyone still has the device open, a reconnect will be
+         * attempted.
+         */
+        void onDisconnected(String address);
+
+        void onConnectionFailed(String address, Exception error);
+    }
+
+    private final BleClient mClient;
+    private final Scheduler mScheduler;
+    private final Map<String, Session> mSessions = new HashMap<>();
+    private Delay mOperationTimeout = DEFAULT_OPERATION_TIMEOUT;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    public BleConnectionManager(BleClient client, Scheduler scheduler) {
+        mClient = client;
+        mScheduler = scheduler;
+    }
+
+    public void setOperationTimeout(Delay timeout, int maxRetries) {
+        mOperationTimeout = timeout;
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Connect to the device at {@code address} (if not already connected), and keep it
+     * connected until every listener that opened it has called {@link #close}.
+     */
+    public void open(String address, ConnectionListener listener) {
+        Session session = getSession(address);
+        if (!session.mConnectionListeners.contains(listener)) {
+            session.mConnectionListeners.add(listener);
+        }
+        session.mWantConnection = true;
+        // Reopened right after the last close: if the disconnect hasn't started yet, the
+        // connection can simply be kept.
+        session.cancelPendingDisconnect();
+        if (session.isConnected()) {
+            listener.onConnected(address);
+        } else if (!session.mConnecting) {
+            // If a disconnect is still running, this connects again once it is done.
+            session.connect();
+        }
+    }
+
+    /**
+     * Stop keeping the device open on behalf of {@code listener}.  When nobody else has it open,
+     * {@code teardown} (if not null) is run, and the device is disconnected.
+     */
+    public void close(String address, ConnectionListener listener, Operation teardown) {
+        Session session = mSessions.get(address);
+        if (session == null) {
+            return;
+        }
+        session.mConnectionListeners.remove(listener);
+        if (!session.mConnectionListeners.isEmpty()) {
+            return;
+        }
+        session.mWantConnection = false;
+        session.mSetupOperations.clear();
+        session.mSubscriptions.clear();
+        session.clearQueue();
+        if (session.isConnected() && teardown != null) {
+            session.enqueue(teardown);
+        }
+        if (session.mConnected || session.mConnecting) {
+            session.enqueueDisconnect();
+        }
+        session.removeIfDone();
+    }
+
+    /**
+     * Run {@code operation} once, after anything already queued for this device.
+     */
+    public void enqueue(String address, Operation operation) {
+        getSession(address).enqueue(operation);
+    }
+
+    /**
+     * Run {@code operation} now if connected (or as soon as the pending connection completes),
+     * and again after every reconnect.
+     */
+    public void addSetupOperation(String address, Operation operation) {
+        Session session = getSession(address);
+        session.mSetupOperations.add(operation);
+        if (session.isConnected() || session.mConnecting) {
+            session.enqueue(operation);
+        }
+    }
+
+    /**
+     * Deliver notifications on {@code characteristic} from {@code address} to {@code listener}.
+     * Notifications still have to be enabled on the device, usually with a setup operation.
+     */
+    public void setNotificationListener(String address, UUID characteristic,
+            BleNotificationListener listener) {
+        getSession(address).mSubscriptions.put(characteristic, listener);
+    }
+
+    public boolean isConnected(String address) {
+        Session session = mSessions.get(address);
+        return session != null && session.isConnected();
+    }
+
+    private Session getSession(String address) {
+        Session session = mSessions.get(address);
+        if (session == null) {
+            session = new Session(address);
+            mSessions.put(address, session);
+        }
+        return session;
+    }
+
+    /**
+     * Connection state and operation queue for a single device.  This is the flow's listener for
+     * as long as the session exists, forwarding events to the operation currently running.
+     */
+    private class Session extends BleFlowListener {
+        private final String mAddress;
+        private final BleFlow mFlow;
+        private final Queue<Operation> mQueue = new ArrayDeque<>();
+        private final List<Operation> mSetupOperations = new ArrayList<>();
+        private final List<ConnectionListener> mConnectionListeners = new ArrayList<>();
+        // Written on the main thread, read on the GATT callback thread.
+        private final Map<UUID, BleNotificationListener> mSubscriptions =
+                new ConcurrentHashMap<>();
+
+        private Operation mCurrent = null;
+        private int mAttempt;
+        // Incremented every time an operation starts, so that stale timeouts can be ignored.
+        private int mGeneration = 0;
+
+        private boolean mConnected = false;
+        private boolean mConnecting = false;
+        private boolean mWantConnection = false;
+        // True from when a disconnect is queued until it finishes.
+        private boolean mDisconnectPending = false;
+        private int mReconnectAttempts = 0;
+
+        private final Operation mConnectOperation = new Operation() {
+            @Override
+            public void addActions(BleFlow flow) {
+                flow.connect();
+            }
+
+            @Override
+            public void onSuccess() {
+                mConnecting = false;
+                mConnected = true;
+                mReconnectAttempts = 0;
+                for (ConnectionListener listener : copyListeners()) {
+                    listener.onConnected(mAddress);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                mConnecting = false;
+                // Setup operations will be queued again when we reconnect.
+                clearQueue();
+                for (ConnectionListener listener : copyListeners()) {
+                    listener.onConnectionFailed(mAddress, error);
+                }
+                scheduleReconnect();
+                removeIfDone();
+            }
+        };
+
+        private final Operation mDisconnectOperation = new Operation() {
+            @Override
+            public void addActions(BleFlow flow) {
+                flow.disconnect();
+            }
+
+            @Override
+            public void onSuccess() {
+                mDisconnectPending = false;
+                mConnected = false;
+                removeIfDone();
+            }
+
+            @Override
+            public void onFailure(Exception error) {
+                mDisconnectPending = false;
+                removeIfDone();
+            }
+        };
+
+        Session(String address) {
+            mAddress = address;
+            mFlow = mClient.getFlowFor(address);
+        }
+
+        void connect() {
+            mWantConnection = true;
+            mConnecting = true;
+            enqueue(mConnectOperation);
+            for (Operation operation : mSetupOperations) {
+                enqueue(operation);
+            }
+        }
+
+        /**
+         * Connected, and not about to be disconnected: operations queued now will run on this
+         * connection.
+         */
+        boolean isConnected() {
+            return mConnected && !mDisconnectPending;
+        }
+
+        void enqueueDisconnect() {
+            mDisconnectPending = true;
+            enqueue(mDisconnectOperation);
+        }
+
+        void clearQueue() {
+            mQueue.clear();
+            mDisconnectPending = mCurrent == mDisconnectOperation;
+        }
+
+        void cancelPendingDisconnect() {
+            if (mDisconnectPending && mQueue.remove(mDisconnectOperation)) {
+                mDisconnectPending = false;
+            }
+        }
+
+        /**
+         * Forgets this session once it has been closed and has nothing left to do, so that a
+         * later {@link #open} starts afresh.
+         */
+        void removeIfDone() {
+            if (!mWantConnection && mConnectionListeners.isEmpty() && mCurrent == null
+                    && mQueue.isEmpty() && mSessions.get(mAddress) == this) {
+                mSessions.remove(mAddress);
+            }
+        }
+
+        void enqueue(Operation operation) {
+            mQueue.add(operation);
+            if (mCurrent == null) {
+                startNext();
+            }
+        }
+
+        private void startNext() {
+            mCurrent = mQueue.poll();
+            if (mCurrent == null) {
+                return;
+            }
+            mAttempt = 0;
+            startCurrent();
+        }
+
+        private void startCurrent() {
+            final int generation = ++mGeneration;
+            if (DEBUG) Log.d(TAG, mAddress + ": starting " + mCurrent + ", attempt " + mAttempt);
+            mFlow.resetAndAddListener(this);
+            mCurrent.addActions(mFlow);
+            mScheduler.schedule(mOperationTimeout, new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mGeneration) {
+                        retryOrFail(new Exception("Timed out waiting for " + mAddress));
+                    }
+                }
+            });
+            BleFlow.run(mFlow);
+        }
+
+        private void retryOrFail(Exception error) {
+            mFlow.cancel();
+            if (mAttempt < mMaxRetries) {
+                mAttempt++;
+                startCurrent();
+                return;
+            }
+            Operation failed = mCurrent;
+            finishCurrent();
+            Log.w(TAG, mAddress + ": operation failed: " + error.getMessage());
+            failed.onFailure(error);
+            if (failed != mConnectOperation && failed != mDisconnectOperation && mConnected) {
+                // After repeated failures, assume the connection itself is bad.
+                mConnected = false;
+                clearQueue();
+                enqueueDisconnect();
+                scheduleReconnect();
+            }
+        }
+
+        private void finishCurrent() {
+            mGeneration++;
+            mCurrent = null;
+        }
+
+        private void scheduleReconnect() {
+            if (!mWantConnection || mConnecting) {
+                return;
+            }
+            int delay = Math.min(MAX_RECONNECT_DELAY_MS,
+                    INITIAL_RECONNECT_DELAY_MS << Math.min(mReconnectAttempts, 16));
+            mReconnectAttempts++;
+            if (DEBUG) Log.d(TAG, mAddress + ": reconnecting in " + delay + "ms");
+            mScheduler.schedule(Delay.millis(delay), new Runnable() {
+                @Override
+                public void run() {
+                    if (mWantConnection && !mConnected && !mConnecting) {
+                        connect();
+                    }
+                }
+            });
+        }
+
+        private List<ConnectionListener> copyListeners() {
+            return new ArrayList<>(mConnectionListeners);
+        }
+
+        @Override
+        public void onSuccess() {
+            Operation done = mCurrent;
+            if (done == null) {
+                return;
+            }
+            finishCurrent();
+            done.onSuccess();
+            if (mCurrent == null) {
+                startNext();
+            }
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+            if (mCurrent == null) {
+                return;
+            }
+            retryOrFail(error);
+            if (mCurrent == null) {
+                startNext();
+            }
+        }
+
+        @Override
+        public void onNotification(UUID characteristic, int flags, byte[] value) {
+            BleNotificationListener listener = mSubscriptions.get(characteristic);
+            if (listener != null) {
+                listener.onNotification(characteristic, flags, value);
+            }
+        }
+
+        @Override
+        public void onDisconnect() {
+            // A disconnect we asked for isn't news to anyone: the listeners that wanted it are
+            // gone, and any that reopened since are waiting for the reconnect.
+            boolean wasConnected = isConnected();
+            mConnected = false;
+            if (wasConnected) {
+                for (ConnectionListener listener : copyListeners()) {
+                    listener.onDisconnected(mAddress);
+                }
+            }
+            scheduleReconnect();
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, int flags, byte[] value) {
+            if (mCurrent != null) {
+                mCurrent.onCharacteristicRead(characteristic, flags, value);
+            }
+        }
+
+        @Override
+        public void onConnect() {
+            if (mCurrent != null) {
+                mCurrent.onConnect();
+            }
+        }
+
+        @Override
+        public void onNotificationSubscribed() {
+            if (mCurrent != null) {
+                mCurrent.onNotificationSubscribed();
+            }
+        }
+
+        @Override
+        public void onNotificationUnsubscribed() {
+            if (mCurrent != null) {
+                mCurrent.onNotificationUnsubscribed();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            if (mCurrent != null) {
+                mCurrent.onServicesDiscovered();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(int mtu) {
+            if (mCurrent != null) {
+                mCurrent.onMtuChanged(mtu);
+            }
+        }
+    }
+}
@@ -53,7 +53,6 @@ public class BleEvents {
     static final String READ_DESC_FAIL = "READ_DESC_FAIL";
     static final String WRITE_DESC_OK = "WRITE_DESC_OK";
     static final String WRITE_DESC_FAIL = "WRITE_DESC_FAIL";
-    static final String CHAR_CHANGED = "CHAR_CHANGED";
 
     static final String MTU_CHANGE_OK = "MTU_CHANGE_OK";
     static final String MTU_CHANGE_FAIL = "MTU_CHANGE_FAIL";
@@ -89,8 +88,6 @@ public class BleEvents {
         intent.addAction(COMMIT_OK);
         intent.addAction(COMMIT_FAIL);
 
-        intent.addAction(CHAR_CHANGED);
-
         intent.addAction(READ_DESC_OK);
         intent.addAction(READ_DESC_FAIL);
         intent.addAction(WRITE_DESC_OK);
@@ -22,6 +22,7 @@ import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -58,9 +59,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class BleFlow {
     private enum Action {SCAN, CONNECT, LOOKUP_SRV, LOOKUP_CHARACT, READ_CHARACT, WRITE_CHARACT,
         LOOKUP_DESC, WRITE_DESC, ENABLE_NOTIF, DISABLE_NOTIF, DISCONNECT, COMMIT,
-        CHANGE_MTU, START_TX, WRITE_STREAM, PICK_FIRST_DEVICE }
+        CHANGE_MTU, CONNECTION_PRIORITY, START_TX, WRITE_STREAM, PICK_FIRST_DEVICE }
     private static String TAG = "BleFlow";
     private static final boolean DEBUG = false;
+    // Every connection starts with this MTU; 3 bytes of each packet are ATT overhead.
+    public static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER_SIZE = 3;
     private static UUID BLE_CLIENT_CONFIG_CHARACTERISTIC = UUID.fromString(
             "00002902-0000-1000-8000-00805f9b34fb");
     private static final BleFlowListener defaultListener = new BleFlowListener() {
@@ -105,7 +109,8 @@ public class BleFlow {
     private BluetoothGattService currentService;
     private BluetoothGattDescriptor currentDescriptor;
 
-    private BleFlowListener listener;
+    // Notifications are delivered on the GATT callback thread.
+    private volatile BleFlowListener listener;
     private int serviceIndex;
     private int characteristicIndex;
     private int valueIndex;
@@ -115,23 +120,26 @@ public class BleFlow {
     private String address;
     private AtomicBoolean flowEnded;
     private int mtu;
+    private int connectionPriority;
     private InputStream inputStream;
     private int maxNoDevices;
 
-    private int currentBufferSize = 20;
+    private int currentBufferSize = DEFAULT_MTU - ATT_HEADER_SIZE;
 
+    private final BleNotificationListener notificationListener = new BleNotificationListener() {
+        @Override
+        public void onNotification(UUID characteristic, int flags, byte[] value) {
+            listener.onNotification(characteristic, flags, value);
+        }
+    };
+
+    // Notifications are not broadcast (see notificationListener above); this only handles
+    // connection-lifecycle and request/response events.
     private BroadcastReceiver receiver = new BroadcastReceiver() {
 
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
-            if (BleEvents.CHAR_CHANGED.equals(action)) {
-                int flags = intent.getIntExtra(MyBleService.FLAGS, 0);
-                byte[] data = intent.getByteArrayExtra(MyBleService.DATA);
-                UUID characteristic = UUID.fromString(intent.getStringExtra(MyBleService.UUID));
-                listener.onNotification(characteristic, flags, data);
-                return;
-            }
             if (flowEnded.get() && (BleEvents.GATT_CONNECT_FAIL.equals(action)
                     || BleEvents.GATT_DISCONNECT.equals(action))) {
                 listener.onDisconnect();
@@ -147,6 +155,7 @@ public class BleFlow {
                 listener.onFailure(new Exception("BLE disabled"));
                 flowEnded.set(true);
             } else if (BleEvents.GATT_CONNECT.equals(action)) {
+                currentBufferSize = DEFAULT_MTU - ATT_HEADER_SIZE;
                 listener.onConnect();
                 nextAction();
             } else if (BleEvents.GATT_CONNECT_FAIL.equals(action)) {
@@ -204,11 +213,15 @@ public class BleFlow {
                         + currentDescriptor));
                 flowEnded.set(true);
             } else if (BleEvents.MTU_CHANGE_OK.equals(action)) {
-                currentBufferSize = mtu - 3;
+                int agreedMtu = intent.getIntExtra(MyBleService.MTU, mtu);
+                currentBufferSize = agreedMtu - ATT_HEADER_SIZE;
+                listener.onMtuChanged(agreedMtu);
                 nextAction();
             } else if (BleEvents.MTU_CHANGE_FAIL.equals(action)) {
-                listener.onFailure(new Exception("Mtu change failed."));
-                flowEnded.set(true);
+                // Not fatal: the connection just keeps the MTU it had.
+                Log.w(TAG, "Mtu change failed for " + address);
+                listener.onMtuChanged(currentBufferSize + ATT_HEADER_SIZE);
+                nextAction();
             } else {
                 Log.e(TAG, "Event not mapped: " + action);
             }
@@ -261,6 +274,7 @@ public class BleFlow {
                     listener.onFailure(new Exception("no device found"));
                     flowEnded.set(true);
                 } else {
+                    client.setNotificationListener(address, notificationListener);
                     nextAction();
                 }
                 break;
@@ -280,7 +294,19 @@ public class BleFlow {
                 client.commit(address);
                 break;
             case CHANGE_MTU:
-                client.changeMtu(address, mtu);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    client.changeMtu(address, mtu);
+                } else {
+                    nextAction();
+                }
+                break;
+            case CONNECTION_PRIORITY:
+                // There's no callback for this, so carry straight on.
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                        && !client.requestConnectionPriority(address, connectionPriority)) {
+                    Log.w(TAG, "Could not request connection priority for " + address);
+                }
+                nextAction();
                 break;
             case LOOKUP_SRV:
                 client.findServices(address);
@@ -506,13 +532,27 @@ public class BleFlow {
         return this;
     }
 
-    // TODO: If we need this, need to figure out how to make it work at API < 21
-    //
-    //    public BleFlow changeMessageTransferUnitSize(int mtu) {
-    //        actions.add(Action.CHANGE_MTU);
-    //        this.mtu = mtu;
-    //        return this;
-    //    }
+    /**
+     * Ask for a larger MTU, so that each notification or write can carry more data.  The MTU
+     * that was actually agreed is reported to {@link BleFlowListener#onMtuChanged(int)}.  Below
+     * API 21, or if the device refuses, the connection keeps the default MTU and the flow
+     * carries on.
+     */
+    public BleFlow changeMessageTransferUnitSize(int mtu) {
+        actions.add(Action.CHANGE_MTU);
+        this.mtu = mtu;
+        return this;
+    }
+
+    /**
+     * Ask for a connection priority (one of the {@code BluetoothGatt.CONNECTION_PRIORITY_*}
+     * constants).  Ignored below API 21.
+     */
+    public BleFlow requestConnectionPriority(int priority) {
+        actions.add(Action.CONNECTION_PRIORITY);
+        this.connectionPriority = priority;
+        return this;
+    }
 
     public BleFlow commit() {
         actions.add(Action.COMMIT);
@@ -535,6 +575,10 @@ public class BleFlow {
         Log.v(TAG, "descriptors: " + descriptors);
         Log.v(TAG, "values: " + Arrays.toString(values.toArray()));
 
+        if (address != null) {
+            client.setNotificationListener(address, notificationListener);
+        }
+
         if(flowEnded.get()) {
             flowEnded.set(false);
             nextAction();
@@ -560,6 +604,9 @@ public class BleFlow {
 
     void close() {
         LocalBroadcastManager.getInstance(context).unregisterReceiver(receiver);
+        if (address != null) {
+            client.clearNotificationListener(address, notificationListener);
+        }
     }
 
     public BleFlow writeInputStream(InputStream stream) {
@@ -594,6 +641,14 @@ public class BleFlow {
         }
     }
 
+    /**
+     * Abandon the actions currently running.  Events for them that arrive later are ignored, apart
+     * from disconnects.
+     */
+    void cancel() {
+        flowEnded.set(true);
+    }
+
     public String getAddress() {
         return address;
     }
@@ -40,4 +40,10 @@ public abstract class BleFlowListener {
     public abstract void onNotificationUnsubscribed();
 
     public abstract void onServicesDiscovered();
+
+    /**
+     * Called when an MTU change requested by the flow has been answered.  {@code mtu} is the MTU
+     * now in effect, which may be smaller than the one requested.
+     */
+    public void onMtuChanged(int mtu) {}
 }
\ No newline at end of file
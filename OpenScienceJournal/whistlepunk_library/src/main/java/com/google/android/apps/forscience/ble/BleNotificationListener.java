@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import java.util.UUID;
+
+/**
+ * An object receiving characteristic notifications for a single device.
+ *
+ * Notifications are delivered directly on the GATT callback thread, without going through a
+ * broadcast.  Implementations must be quick, and must not hold on to {@code value} after
+ * returning, since the underlying characteristic may reuse it for the next notification.
+ */
+public interface BleNotificationListener {
+    void onNotification(UUID characteristic, int flags, byte[] value);
+}
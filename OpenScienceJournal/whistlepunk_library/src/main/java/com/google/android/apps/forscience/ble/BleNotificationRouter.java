@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands characteristic notifications to the {@link BleNotificationListener} registered for the
+ * device they came from.
+ *
+ * Listeners are registered on the main thread, and notifications delivered on the GATT callback
+ * thread.  Notifications from a device nobody is listening to are dropped: there is no broadcast
+ * fallback.
+ */
+public class BleNotificationRouter {
+    private final Map<String, BleNotificationListener> addressToListener =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Replaces any listener already registered for {@code address}.
+     */
+    public void setListener(String address, BleNotificationListener listener) {
+        addressToListener.put(address, listener);
+    }
+
+    /**
+     * Unregisters {@code listener}, unless another listener has since replaced it.
+     */
+    public void clearListener(String address, BleNotificationListener listener) {
+        addressToListener.remove(address, listener);
+    }
+
+    /**
+     * @return true if a listener was registered for {@code address}, and has been given the
+     * notification.
+     */
+    public boolean deliver(String address, UUID characteristic, int flags, byte[] value) {
+        BleNotificationListener listener = addressToListener.get(address);
+        if (listener == null) {
+            return false;
+        }
+        listener.onNotification(characteristic, flags, value);
+        return true;
+    }
+}
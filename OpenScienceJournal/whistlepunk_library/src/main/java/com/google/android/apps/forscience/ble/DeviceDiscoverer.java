@@ -21,11 +21,11 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
-import android.support.v4.util.ArrayMap;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -35,11 +35,24 @@ import java.util.List;
 public abstract class DeviceDiscoverer {
 
     /**
-     * Receives notification of devices being discovered or errors.
+     * Receives notification of devices being discovered or errors.  Called on the main thread,
+     * at most a few times a second, with whatever changed since the last call.
      */
     public static class Callback {
         public void onDeviceFound(DeviceRecord record) {}
 
+        /**
+         * A device already reported by {@link #onDeviceFound(DeviceRecord)} has a new name, or
+         * its signal strength has changed noticeably.
+         */
+        public void onDeviceUpdated(DeviceRecord record) {}
+
+        /**
+         * A device already reported by {@link #onDeviceFound(DeviceRecord)} has not been seen
+         * for a while.
+         */
+        public void onDeviceLost(DeviceRecord record) {}
+
         public void onError(int error) {
             // TODO: define error codes
         }
@@ -65,11 +78,24 @@ public abstract class DeviceDiscoverer {
          */
         public int lastRssi;
 
+        /**
+         * Recent RSSI values, smoothed.  Better than lastRssi for comparing devices.
+         */
+        public double smoothedRssi;
+
         /**
          * Long version of the device name.
          */
         private String mLongName;
 
+        public String getLongName() {
+            return mLongName;
+        }
+
+        void setLongName(String longName) {
+            mLongName = longName;
+        }
+
         @Override
         public String toString() {
             // If long name is available show the long name instead.
@@ -83,9 +109,41 @@ public abstract class DeviceDiscoverer {
 
     private final Context mContext;
     private final BluetoothAdapter mBluetoothAdapter;
-    private final ArrayMap<String, DeviceRecord> mDevices;
+    // Scan results are delivered at most this often.
+    private static final long FLUSH_INTERVAL_MS = 500;
+
+    private final ScanCache mCache = new ScanCache();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private Callback mCallback;
 
+    private final ScanCache.Listener mCacheListener = new ScanCache.Listener() {
+        @Override
+        public void onAdded(DeviceRecord record) {
+            mCallback.onDeviceFound(record);
+        }
+
+        @Override
+        public void onUpdated(DeviceRecord record) {
+            mCallback.onDeviceUpdated(record);
+        }
+
+        @Override
+        public void onRemoved(DeviceRecord record) {
+            mCallback.onDeviceLost(record);
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (mCallback == null) {
+                return;
+            }
+            mCache.flush(SystemClock.uptimeMillis(), mCacheListener);
+            mHandler.postDelayed(this, FLUSH_INTERVAL_MS);
+        }
+    };
+
     public static DeviceDiscoverer getNewInstance(Context context) {
         DeviceDiscoverer discoverer;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -101,7 +159,6 @@ public abstract class DeviceDiscoverer {
         BluetoothManager manager = (BluetoothManager) mContext.getSystemService(
                 Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = manager.getAdapter();
-        mDevices = new ArrayMap<>();
     }
 
     public BluetoothAdapter getBluetoothAdapter() {
@@ -115,21 +172,24 @@ public abstract class DeviceDiscoverer {
 
         mCallback = callback;
         // Clear out the older devices so we don't think they're still there.
-        mDevices.clear();
+        mCache.clear();
         onStartScanning();
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, FLUSH_INTERVAL_MS);
     }
 
     public abstract void onStartScanning();
 
     public void stopScanning() {
         onStopScanning();
+        mHandler.removeCallbacks(mFlush);
         mCallback = null;
     }
 
     public abstract void onStopScanning();
 
     public List<DeviceRecord> getDevices() {
-        return new ArrayList<>(mDevices.values());
+        return mCache.getDevices();
     }
 
     public boolean canScan() {
@@ -140,22 +200,13 @@ public abstract class DeviceDiscoverer {
         return mContext;
     }
 
+    /**
+     * Records a scan result.  May be called on any thread; the callback hears about it on the
+     * next flush.
+     */
     protected void addOrUpdateDevice(BluetoothDevice device, int rssi, String longName) {
-        DeviceRecord deviceRecord = mDevices.get(device.getAddress());
-        boolean previouslyFound = deviceRecord != null;
-        if (!previouslyFound) {
-            deviceRecord = new DeviceRecord();
-            deviceRecord.device = device;
-            mDevices.put(device.getAddress(), deviceRecord);
-            deviceRecord.mLongName = longName;
-        }
-        // Update the last RSSI and last seen
-        deviceRecord.lastRssi = rssi;
-        deviceRecord.lastSeenTimestampMs = SystemClock.uptimeMillis();
-
-        if (!previouslyFound && mCallback != null) {
-            mCallback.onDeviceFound(deviceRecord);
-        }
+        mCache.onScanResult(device.getAddress(), device, rssi, longName,
+                SystemClock.uptimeMillis());
     }
 
     // Extract from raw scan record and combine with the shortname to make the long name.
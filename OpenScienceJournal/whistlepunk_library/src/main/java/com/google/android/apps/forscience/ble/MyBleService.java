@@ -37,6 +37,9 @@ import android.os.Message;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import com.google.android.apps.forscience.javalib.Counter;
+import com.google.android.apps.forscience.javalib.MetricRegistry;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -67,6 +70,7 @@ public class MyBleService extends Service {
     public static String DATA = "data";
     public static String UUID = "uuid";
     public static String FLAGS = "flags";
+    public static String MTU = "mtu";
 
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter btAdapter;
@@ -82,6 +86,9 @@ public class MyBleService extends Service {
     private Map<String, BluetoothGatt> addressToGattClient =
             Collections.synchronizedMap(new LinkedHashMap<String, BluetoothGatt>());
 
+    // Characteristic notifications skip the broadcast path and go straight to these listeners.
+    private final BleNotificationRouter notificationRouter = new BleNotificationRouter();
+
     private Handler handler;
 
     private List<BleDeviceListener> mDeviceListeners;
@@ -104,6 +111,14 @@ public class MyBleService extends Service {
         }
     };
 
+    private final Counter connectFailures =
+            MetricRegistry.getDefault().counter("ble.connect_failures");
+    private final Counter disconnects = MetricRegistry.getDefault().counter("ble.disconnects");
+    private final Counter notifications =
+            MetricRegistry.getDefault().counter("ble.notifications");
+    private final Counter unheardNotifications =
+            MetricRegistry.getDefault().counter("ble.notifications_without_listener");
+
     // GATT callbacks
     private BluetoothGattCallback gattCallbacks = new BluetoothGattCallback() {
 
@@ -112,6 +127,12 @@ public class MyBleService extends Service {
             if (DEBUG) Log.d(TAG, "CONNECTION CHANGED FOR " + gatt.getDevice().getAddress() + " : "
                     + newState);
             if (status != BluetoothGatt.GATT_SUCCESS) {
+                // A failed client can't be reused; make sure the next attempt starts fresh.
+                if (addressToGattClient.get(gatt.getDevice().getAddress()) == gatt) {
+                    addressToGattClient.remove(gatt.getDevice().getAddress());
+                }
+                gatt.close();
+                connectFailures.increment();
                 sendGattBroadcast(gatt.getDevice().getAddress(), BleEvents.GATT_CONNECT_FAIL, null);
                 return;
             }
@@ -121,6 +142,7 @@ public class MyBleService extends Service {
                 return;
             }
             if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                disconnects.increment();
                 sendGattBroadcast(gatt.getDevice().getAddress(), BleEvents.GATT_DISCONNECT, null);
                 addressToGattClient.remove(gatt.getDevice().getAddress());
                 gatt.close();
@@ -139,8 +161,15 @@ public class MyBleService extends Service {
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
             if (DEBUG) Log.d(TAG, "Got notification from " + characteristic.getUuid());
-            sendGattBroadcast(gatt.getDevice().getAddress(), BleEvents.CHAR_CHANGED,
-                    characteristic);
+            notifications.increment();
+            if (!notificationRouter.deliver(gatt.getDevice().getAddress(),
+                    characteristic.getUuid(), characteristic.getProperties(),
+                    characteristic.getValue())) {
+                unheardNotifications.increment();
+                if (DEBUG) {
+                    Log.d(TAG, "No notification listener for " + gatt.getDevice().getAddress());
+                }
+            }
         }
 
         @Override
@@ -190,8 +219,11 @@ public class MyBleService extends Service {
 
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            sendGattBroadcast(gatt.getDevice().getAddress(), status == BluetoothGatt.GATT_SUCCESS
-                    ? BleEvents.MTU_CHANGE_OK : BleEvents.MTU_CHANGE_OK, null);
+            Intent newIntent = BleEvents.createIntent(status == BluetoothGatt.GATT_SUCCESS
+                    ? BleEvents.MTU_CHANGE_OK : BleEvents.MTU_CHANGE_FAIL,
+                    gatt.getDevice().getAddress());
+            newIntent.putExtra(MTU, mtu);
+            LocalBroadcastManager.getInstance(MyBleService.this).sendBroadcast(newIntent);
         }
     };
 
@@ -314,8 +346,13 @@ public class MyBleService extends Service {
     }
 
     public void disconnectDevice(String address) {
+        if (btAdapter == null || address == null) {
+            return;
+        }
         BluetoothGatt bluetoothGatt = addressToGattClient.get(address);
-        if (btAdapter == null || address == null || bluetoothGatt == null) {
+        if (bluetoothGatt == null) {
+            // Already disconnected, but let whoever asked know that we're done.
+            sendGattBroadcast(address, BleEvents.GATT_DISCONNECT, null);
             return;
         }
         BluetoothDevice device = btAdapter.getRemoteDevice(address);
@@ -485,7 +522,25 @@ public class MyBleService extends Service {
             sendGattBroadcast(address, BleEvents.MTU_CHANGE_FAIL, null);
             return;
         }
-        bluetoothGatt.requestMtu(mtu);
+        if (!bluetoothGatt.requestMtu(mtu)) {
+            sendGattBroadcast(address, BleEvents.MTU_CHANGE_FAIL, null);
+        }
+    }
+
+    /**
+     * Asks the stack for a shorter (or longer) connection interval.  There is no callback; the
+     * new interval takes effect a few connection events later.
+     *
+     * @return false if the request could not be made.
+     */
+    @TargetApi(21)
+    public boolean requestConnectionPriority(String address, int priority) {
+        BluetoothGatt bluetoothGatt = addressToGattClient.get(address);
+        if (bluetoothGatt == null) {
+            Log.w(TAG, "No connection found for: " + address);
+            return false;
+        }
+        return bluetoothGatt.requestConnectionPriority(priority);
     }
 
     boolean setNotificationsFor(String address, BluetoothGattCharacteristic characteristic,
@@ -516,6 +571,14 @@ public class MyBleService extends Service {
         this.maxNoDevices = maxNoDevices;
     }
 
+    void setNotificationListener(String address, BleNotificationListener listener) {
+        notificationRouter.setListener(address, listener);
+    }
+
+    void clearNotificationListener(String address, BleNotificationListener listener) {
+        notificationRouter.clearListener(address, listener);
+    }
+
     public void addDeviceListener(BleDeviceListener listener) {
         mDeviceListeners.add(listener);
     }
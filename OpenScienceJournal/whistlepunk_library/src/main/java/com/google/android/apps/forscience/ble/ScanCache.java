@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.v4.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects raw scan results into one record per device, and turns them into a throttled stream
+ * of changes: devices added, devices whose name or (smoothed) signal strength changed, and
+ * devices that stopped advertising.
+ *
+ * Scan results may arrive on any thread; {@link #flush(long, Listener)} is expected to be
+ * called periodically from one thread, and calls the listener on that thread.
+ */
+class ScanCache {
+    interface Listener {
+        void onAdded(DeviceDiscoverer.DeviceRecord record);
+
+        void onUpdated(DeviceDiscoverer.DeviceRecord record);
+
+        void onRemoved(DeviceDiscoverer.DeviceRecord record);
+    }
+
+    // Devices usually advertise at least once a second; if one has been silent for this long,
+    // it's been switched off or carried away.
+    static final long DEFAULT_EXPIRY_MILLIS = 10 * 1000;
+
+    // Weight of each new RSSI reading in the smoothed value.  Single readings commonly swing
+    // by 10dB.
+    private static final double RSSI_ALPHA = 0.25;
+
+    // Smoothed RSSI changes smaller than this aren't worth telling anyone about.
+    private static final double RSSI_REPORT_THRESHOLD = 4;
+
+    private static final int CHANGE_NONE = 0;
+    private static final int CHANGE_ADDED = 1;
+    private static final int CHANGE_UPDATED = 2;
+
+    private final long mExpiryMillis;
+    private final ArrayMap<String, DeviceDiscoverer.DeviceRecord> mDevices = new ArrayMap<>();
+    // Change not yet flushed, by address.
+    private final ArrayMap<String, Integer> mPending = new ArrayMap<>();
+    // Smoothed RSSI at the time each device was last reported.
+    private final ArrayMap<String, Double> mReportedRssi = new ArrayMap<>();
+
+    ScanCache() {
+        this(DEFAULT_EXPIRY_MILLIS);
+    }
+
+    ScanCache(long expiryMillis) {
+        mExpiryMillis = expiryMillis;
+    }
+
+    /**
+     * Records one scan result.
+     */
+    synchronized void onScanResult(String address, BluetoothDevice device, int rssi,
+            String longName, long nowMillis) {
+        DeviceDiscoverer.DeviceRecord record = mDevices.get(address);
+        if (record == null) {
+            record = new DeviceDiscoverer.DeviceRecord();
+            record.device = device;
+            record.setLongName(longName);
+            record.smoothedRssi = rssi;
+            mDevices.put(address, record);
+            mPending.put(address, CHANGE_ADDED);
+        } else {
+            record.smoothedRssi += (rssi - record.smoothedRssi) * RSSI_ALPHA;
+            boolean nameChanged = !longName.isEmpty() && !longName.equals(record.getLongName());
+            if (nameChanged) {
+                record.setLongName(longName);
+            }
+            Double reported = mReportedRssi.get(address);
+            boolean rssiChanged = reported != null
+                    && Math.abs(record.smoothedRssi - reported) >= RSSI_REPORT_THRESHOLD;
+            if ((nameChanged || rssiChanged) && getPending(address) == CHANGE_NONE) {
+                mPending.put(address, CHANGE_UPDATED);
+            }
+        }
+        record.lastRssi = rssi;
+        record.lastSeenTimestampMs = nowMillis;
+    }
+
+    /**
+     * Reports everything that changed since the last flush, and drops devices that haven't
+     * been seen for a while.
+     */
+    void flush(long nowMillis, Listener listener) {
+        List<DeviceDiscoverer.DeviceRecord> added = new ArrayList<>();
+        List<DeviceDiscoverer.DeviceRecord> updated = new ArrayList<>();
+        List<DeviceDiscoverer.DeviceRecord> removed = new ArrayList<>();
+        synchronized (this) {
+            for (int i = mDevices.size() - 1; i >= 0; i--) {
+                DeviceDiscoverer.DeviceRecord record = mDevices.valueAt(i);
+                String address = mDevices.keyAt(i);
+                if (nowMillis - record.lastSeenTimestampMs > mExpiryMillis) {
+                    // If nobody heard about it, nobody needs to hear it's gone.
+                    if (getPending(address) != CHANGE_ADDED) {
+                        removed.add(record);
+                    }
+                    mDevices.removeAt(i);
+                    mPending.remove(address);
+                    mReportedRssi.remove(address);
+                }
+            }
+            for (int i = 0; i < mPending.size(); i++) {
+                String address = mPending.keyAt(i);
+                DeviceDiscoverer.DeviceRecord record = mDevices.get(address);
+                if (mPending.valueAt(i) == CHANGE_ADDED) {
+                    added.add(record);
+                } else {
+                    updated.add(record);
+                }
+                mReportedRssi.put(address, record.smoothedRssi);
+            }
+            mPending.clear();
+        }
+
+        for (DeviceDiscoverer.DeviceRecord record : removed) {
+            listener.onRemoved(record);
+        }
+        for (DeviceDiscoverer.DeviceRecord record : added) {
+            listener.onAdded(record);
+        }
+        for (DeviceDiscoverer.DeviceRecord record : updated) {
+            listener.onUpdated(record);
+        }
+    }
+
+    synchronized List<DeviceDiscoverer.DeviceRecord> getDevices() {
+        return new ArrayList<>(mDevices.values());
+    }
+
+    synchronized void clear() {
+        mDevices.clear();
+        mPending.clear();
+        mReportedRssi.clear();
+    }
+
+    private int getPending(String address) {
+        Integer change = mPending.get(address);
+        return change == null ? CHANGE_NONE : change;
+    }
+}
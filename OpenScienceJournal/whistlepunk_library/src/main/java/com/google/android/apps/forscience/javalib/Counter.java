@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.javalib;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count of events that only goes up.
+ */
+public class Counter implements Metric {
+    private final AtomicLong mCount = new AtomicLong();
+
+    public void increment() {
+        mCount.incrementAndGet();
+    }
+
+    public void add(long n) {
+        mCount.addAndGet(n);
+    }
+
+    public long get() {
+        return mCount.get();
+    }
+
+    @Override
+    public long[] capture() {
+        return new long[] {mCount.get()};
+    }
+
+    @Override
+    public long[] since(long[] later, long[] earlier) {
+        return new long[] {later[0] - earlier[0]};
+    }
+
+    @Override
+    public void describe(String name, long[] state, Map<String, Double> out) {
+        out.put(name, (double) state[0]);
+    }
+}
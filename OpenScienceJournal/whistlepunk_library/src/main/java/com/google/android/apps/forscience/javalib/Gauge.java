@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.javalib;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value that can go up and down (like the depth of a queue), along with the highest value it
+ * has ever had.
+ */
+public class Gauge implements Metric {
+    private final AtomicLong mValue = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void set(long value) {
+        mValue.set(value);
+        updateMax(value);
+    }
+
+    public void add(long delta) {
+        updateMax(mValue.addAndGet(delta));
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    private void updateMax(long value) {
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    @Override
+    public long[] capture() {
+        return new long[] {mValue.get(), mMax.get()};
+    }
+
+    @Override
+    public long[] since(long[] later, long[] earlier) {
+        // There's no way to know when the high-water mark was reached, so report it as is.
+        return later;
+    }
+
+    @Override
+    public void describe(String name, long[] state, Map<String, Double> out) {
+        out.put(name, (double) state[0]);
+        out.put(name + ".max", (double) state[1]);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.javalib;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values (like latencies), in log-linear buckets: each power of two
+ * is split into {@link #SUB_BUCKETS} equal buckets, so any recorded value is known to within
+ * 12.5%, across the whole range of longs, with a fixed 488 buckets.
+ */
+public class Histogram implements Metric {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    // Captured state is [count, sum, max, buckets...]
+    private static final int STATE_COUNT = 0;
+    private static final int STATE_SUM = 1;
+    private static final int STATE_MAX = 2;
+    private static final int STATE_BUCKETS = 3;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucketFor(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return a value that at least {@code quantile} (0 to 1) of the recorded values are less
+     * than or equal to, rounded up to the end of its bucket.
+     */
+    public long getPercentile(double quantile) {
+        return percentile(capture(), quantile);
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return bucketLowerBound(bucket + 1) - 1;
+    }
+
+    @Override
+    public long[] capture() {
+        long[] state = new long[STATE_BUCKETS + BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            state[STATE_BUCKETS + i] = mBuckets.get(i);
+        }
+        state[STATE_SUM] = mSum.get();
+        state[STATE_MAX] = mMax.get();
+        // Buckets were read first, so the count may be a little ahead of them; that only makes
+        // percentiles err on the high side.
+        state[STATE_COUNT] = mCount.get();
+        return state;
+    }
+
+    @Override
+    public long[] since(long[] later, long[] earlier) {
+        long[] delta = new long[later.length];
+        int highest = -1;
+        for (int i = STATE_BUCKETS; i < later.length; i++) {
+            delta[i] = later[i] - earlier[i];
+            if (delta[i] > 0) {
+                highest = i - STATE_BUCKETS;
+            }
+        }
+        delta[STATE_COUNT] = later[STATE_COUNT] - earlier[STATE_COUNT];
+        delta[STATE_SUM] = later[STATE_SUM] - earlier[STATE_SUM];
+        // The true maximum over the interval is somewhere in the highest non-empty bucket.
+        delta[STATE_MAX] = highest < 0 ? 0 : Math.min(later[STATE_MAX],
+                bucketUpperBound(highest));
+        return delta;
+    }
+
+    @Override
+    public void describe(String name, long[] state, Map<String, Double> out) {
+        long count = state[STATE_COUNT];
+        out.put(name + ".count", (double) count);
+        if (count == 0) {
+            return;
+        }
+        out.put(name + ".mean", (double) state[STATE_SUM] / count);
+        out.put(name + ".p50", (double) percentile(state, 0.5));
+        out.put(name + ".p90", (double) percentile(state, 0.9));
+        out.put(name + ".p99", (double) percentile(state, 0.99));
+        out.put(name + ".max", (double) state[STATE_MAX]);
+    }
+
+    private static long percentile(long[] state, double quantile) {
+        long total = 0;
+        for (int i = STATE_BUCKETS; i < state.length; i++) {
+            total += state[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = STATE_BUCKETS; i < state.length; i++) {
+            seen += state[i];
+            if (seen >= rank && state[i] > 0) {
+                return Math.min(bucketUpperBound(i - STATE_BUCKETS), state[STATE_MAX]);
+            }
+        }
+        return state[STATE_MAX];
+    }
+}
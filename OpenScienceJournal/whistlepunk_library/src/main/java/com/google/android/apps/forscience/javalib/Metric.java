@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.javalib;
+
+import java.util.Map;
+
+/**
+ * A value tracked by a {@link MetricRegistry}.  Metrics are updated without locking, and their
+ * state is captured as a plain array so that snapshots can be compared later.
+ */
+interface Metric {
+    /**
+     * @return a copy of the current state of this metric
+     */
+    long[] capture();
+
+    /**
+     * @return the state describing only what happened between {@code earlier} and {@code later}
+     */
+    long[] since(long[] later, long[] earlier);
+
+    /**
+     * Adds human-readable values for {@code state} to {@code out}, keyed by {@code name} (plus a
+     * suffix, if the metric reports more than one value).
+     */
+    void describe(String name, long[] state, Map<String, Double> out);
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.javalib;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Named counters, gauges and histograms describing the health of the app.  Looking up a metric
+ * is cheap but not free, so hot paths should hold on to the metric they update.
+ *
+ * Names are dotted paths, like "sensor.accelerometer.samples".
+ */
+public class MetricRegistry {
+    private static final MetricRegistry sDefault = new MetricRegistry();
+
+    /**
+     * @return the registry shared by the whole process.
+     */
+    public static MetricRegistry getDefault() {
+        return sDefault;
+    }
+
+    private final ConcurrentMap<String, Metric> mMetrics = new ConcurrentHashMap<>();
+
+    public Counter counter(String name) {
+        return register(name, new Counter());
+    }
+
+    public Gauge gauge(String name) {
+        return register(name, new Gauge());
+    }
+
+    public Histogram histogram(String name) {
+        return register(name, new Histogram());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Metric> T register(String name, T metric) {
+        Metric existing = mMetrics.putIfAbsent(name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (existing.getClass() != metric.getClass()) {
+            throw new IllegalArgumentException(name + " is already registered as "
+                    + existing.getClass().getSimpleName());
+        }
+        return (T) existing;
+    }
+
+    /**
+     * @return the current state of every metric.
+     */
+    public Snapshot snapshot() {
+        return snapshot("");
+    }
+
+    /**
+     * @return the current state of every metric whose name starts with {@code prefix}.
+     */
+    public Snapshot snapshot(String prefix) {
+        Map<String, Metric> metrics = new HashMap<>();
+        Map<String, long[]> states = new HashMap<>();
+        for (Map.Entry<String, Metric> entry : mMetrics.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                metrics.put(entry.getKey(), entry.getValue());
+                states.put(entry.getKey(), entry.getValue().capture());
+            }
+        }
+        return new Snapshot(metrics, states);
+    }
+
+    /**
+     * The state of a set of metrics at one moment.
+     */
+    public static class Snapshot {
+        private final Map<String, Metric> mMetrics;
+        private final Map<String, long[]> mStates;
+
+        private Snapshot(Map<String, Metric> metrics, Map<String, long[]> states) {
+            mMetrics = metrics;
+            mStates = states;
+        }
+
+        /**
+         * @return what happened between {@code earlier} and this snapshot.  Counters and
+         * histograms only include events in between; gauges report their values as of this
+         * snapshot.  Metrics that didn't exist yet at {@code earlier} are reported in full.
+         */
+        public Snapshot since(Snapshot earlier) {
+            Map<String, long[]> states = new HashMap<>();
+            for (Map.Entry<String, long[]> entry : mStates.entrySet()) {
+                String name = entry.getKey();
+                long[] before = earlier.mStates.get(name);
+                states.put(name, before == null ? entry.getValue()
+                        : mMetrics.get(name).since(entry.getValue(), before));
+            }
+            return new Snapshot(mMetrics, states);
+        }
+
+        /**
+         * @return readable values for every metric, sorted by name.  Gauges and histograms
+         * contribute several values each, with suffixes like ".max" or ".p99".
+         */
+        public SortedMap<String, Double> toMap() {
+            SortedMap<String, Double> out = new TreeMap<>();
+            for (Map.Entry<String, long[]> entry : mStates.entrySet()) {
+                mMetrics.get(entry.getKey()).describe(entry.getKey(), entry.getValue(), out);
+            }
+            return Collections.unmodifiableSortedMap(out);
+        }
+    }
+}
@@ -29,11 +29,13 @@ import com.google.android.apps.forscience.whistlepunk.metadata.SimpleMetaDataMan
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
 
+import java.io.File;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 public class AppSingleton {
     private static final String SENSOR_DATABASE_NAME = "sensors.db";
+    private static final String RECORDING_JOURNAL_NAME = "recording_journal";
     private static final String TAG = "AppSingleton";
     private static AppSingleton sInstance;
     private final Context mApplicationContext;
@@ -104,6 +106,9 @@ public class AppSingleton {
                 SENSOR_DATABASE_NAME), getUiThreadExecutor(), Executors.newSingleThreadExecutor(),
                 Executors.newSingleThreadExecutor(), new SimpleMetaDataManager(mApplicationContext),
                 getDefaultClock());
+        mDataController.setRecordingJournal(new RecordingJournal(
+                RecordingJournal.fileStorage(new File(mApplicationContext.getFilesDir(),
+                        RECORDING_JOURNAL_NAME)), getDefaultClock()));
     }
 
     public DataController getDataController() {
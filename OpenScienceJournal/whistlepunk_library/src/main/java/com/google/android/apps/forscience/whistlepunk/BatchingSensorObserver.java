@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.os.Bundle;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
+
+import java.util.Arrays;
+
+/**
+ * Coalesces scalar readings into batches, so that a remote observer gets one call per batch
+ * instead of one per reading.
+ *
+ * A batch is delivered when it reaches the maximum size, or when the maximum latency has passed
+ * since its first reading arrived, whichever comes first.  Like other SensorObservers, all calls
+ * (including the scheduled flushes) are expected on the main thread.
+ */
+public class BatchingSensorObserver implements SensorObserver {
+    public interface BatchListener {
+        /**
+         * @param timestamps one per reading; the array is owned by the listener after this call.
+         * @param values one per reading; the array is owned by the listener after this call.
+         * @param stats stream stats as of the last reading in the batch.
+         */
+        void onNewDataBatch(long[] timestamps, double[] values, Bundle stats);
+    }
+
+    private static final String[] STATS_KEYS = {StatsAccumulator.KEY_MIN,
+            StatsAccumulator.KEY_MAX, StatsAccumulator.KEY_AVERAGE};
+
+    private final BatchListener mListener;
+    private final Scheduler mScheduler;
+    private final int mMaxBatchSize;
+    private final Delay mMaxLatency;
+    private final long[] mTimestamps;
+    private final double[] mValues;
+    private final double[] mStats = new double[STATS_KEYS.length];
+    private boolean mHasStats = false;
+    private int mCount = 0;
+
+    // Bumped on every flush, so a scheduled flush can tell if its batch has already gone out.
+    private int mBatchGeneration = 0;
+
+    public BatchingSensorObserver(BatchListener listener, Scheduler scheduler, int maxBatchSize,
+            int maxLatencyMillis) {
+        mListener = listener;
+        mScheduler = scheduler;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mMaxLatency = Delay.millis(Math.max(0, maxLatencyMillis));
+        mTimestamps = new long[mMaxBatchSize];
+        mValues = new double[mMaxBatchSize];
+    }
+
+    @Override
+    public void onNewData(long timestamp, Bundle data) {
+        // The bundle may be re-used by the caller, so pull out everything we need right away.
+        mTimestamps[mCount] = timestamp;
+        mValues[mCount] = ScalarSensor.getValue(data);
+        copyStats(data);
+        mCount++;
+
+        if (mCount >= mMaxBatchSize) {
+            flush();
+        } else if (mCount == 1) {
+            scheduleFlush();
+        }
+    }
+
+    private void copyStats(Bundle data) {
+        if (!data.containsKey(STATS_KEYS[0])) {
+            return;
+        }
+        for (int i = 0; i < STATS_KEYS.length; i++) {
+            mStats[i] = data.getDouble(STATS_KEYS[i]);
+        }
+        mHasStats = true;
+    }
+
+    private void scheduleFlush() {
+        final int generation = mBatchGeneration;
+        mScheduler.schedule(mMaxLatency, new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mBatchGeneration) {
+                    flush();
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers any readings that are waiting, right away.
+     */
+    public void flush() {
+        mBatchGeneration++;
+        if (mCount == 0) {
+            return;
+        }
+        long[] timestamps = Arrays.copyOf(mTimestamps, mCount);
+        double[] values = Arrays.copyOf(mValues, mCount);
+        mCount = 0;
+        mListener.onNewDataBatch(timestamps, values, makeStatsBundle());
+    }
+
+    private Bundle makeStatsBundle() {
+        Bundle stats = new Bundle();
+        if (mHasStats) {
+            for (int i = 0; i < STATS_KEYS.length; i++) {
+                stats.putDouble(STATS_KEYS[i], mStats[i]);
+            }
+        }
+        return stats;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+}
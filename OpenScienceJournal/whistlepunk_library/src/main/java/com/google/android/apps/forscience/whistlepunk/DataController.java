@@ -28,6 +28,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.Project;
 import com.google.android.apps.forscience.whistlepunk.metadata.Run;
 import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingRequest;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 
 import java.util.List;
@@ -42,10 +43,24 @@ public interface DataController {
     void getScalarReadings(String databaseTag, final int resolutionTier, TimeRange timeRange,
             int maxRecords, MaybeConsumer<ScalarReadingList> onSuccess);
 
+    /**
+     * Runs several scalar reading queries in one trip to the database thread.  {@code onSuccess}
+     * receives the results in the same order as {@code requests}.
+     */
+    void getScalarReadingsBatch(List<ScalarReadingRequest> requests,
+            MaybeConsumer<List<ScalarReadingList>> onSuccess);
+
     void addLabel(Label label, MaybeConsumer<Label> onSuccess);
 
     void startRun(Experiment experiment, MaybeConsumer<ApplicationLabel> onSuccess);
 
+    /**
+     * If the process died while recording, turns what was stored of that recording into a
+     * complete run.  {@code onSuccess} receives the synthesized stop label, or null if there was
+     * nothing to recover.
+     */
+    void recoverInterruptedRun(MaybeConsumer<ApplicationLabel> onSuccess);
+
     void stopRun(Experiment experiment, String runId,
             List<GoosciSensorLayout.SensorLayout> sensorLayouts,
             MaybeConsumer<ApplicationLabel> onSuccess);
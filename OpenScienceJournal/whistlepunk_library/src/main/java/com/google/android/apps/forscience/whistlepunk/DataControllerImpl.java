@@ -19,10 +19,15 @@ package com.google.android.apps.forscience.whistlepunk;
 import android.support.v4.util.ArrayMap;
 
 import com.google.android.apps.forscience.javalib.Consumer;
+import com.google.android.apps.forscience.javalib.Counter;
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.javalib.Gauge;
+import com.google.android.apps.forscience.javalib.Histogram;
 import com.google.android.apps.forscience.javalib.MaybeConsumer;
 import com.google.android.apps.forscience.javalib.MaybeConsumers;
+import com.google.android.apps.forscience.javalib.MetricRegistry;
 import com.google.android.apps.forscience.javalib.Success;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciRecordingJournal;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
 import com.google.android.apps.forscience.whistlepunk.metadata.ApplicationLabel;
 import com.google.android.apps.forscience.whistlepunk.metadata.Experiment;
@@ -34,6 +39,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.Project;
 import com.google.android.apps.forscience.whistlepunk.metadata.Run;
 import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingRequest;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.base.Preconditions;
@@ -53,6 +59,14 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     private MetaDataManager mMetaDataManager;
     private Clock mClock;
     private Map<String, FailureListener> mSensorFailureListeners = new HashMap<>();
+    private RecordingJournal mRecordingJournal = null;
+
+    private final Gauge mQueueDepthMetric =
+            MetricRegistry.getDefault().gauge("data.sensor_queue_depth");
+    private final Histogram mInsertMicrosMetric =
+            MetricRegistry.getDefault().histogram("data.insert_micros");
+    private final Counter mInsertFailureMetric =
+            MetricRegistry.getDefault().counter("data.insert_failures");
 
     public DataControllerImpl(SensorDatabase sensorDatabase, Executor uiThread,
             Executor metaDataThread,
@@ -65,6 +79,13 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         mClock = clock;
     }
 
+    /**
+     * Journal runs as they are recorded, so that they can be recovered if the process dies.
+     */
+    public void setRecordingJournal(RecordingJournal journal) {
+        mRecordingJournal = journal;
+    }
+
     public void replaceSensorInExperiment(final String experimentId, final String oldSensorId,
             final String newSensorId, final MaybeConsumer<Success> onSuccess) {
         background(mMetaDataThread, onSuccess, new Callable<Success>() {
@@ -101,6 +122,9 @@ public class DataControllerImpl implements DataController, RecordingDataControll
                             @Override
                             public ApplicationLabel call() throws Exception {
                                 mMetaDataManager.newRun(experiment, runId, sensorLayouts);
+                                if (mRecordingJournal != null) {
+                                    mRecordingJournal.end();
+                                }
                                 return applicationLabel;
                             }
                         });
@@ -133,13 +157,21 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     @Override
     public void addScalarReading(final String sensorId, final int resolutionTier,
             final long timestampMillis, final double value) {
+        mQueueDepthMetric.add(1);
         mSensorDataThread.execute(new Runnable() {
             @Override
             public void run() {
+                mQueueDepthMetric.add(-1);
                 try {
+                    long startNanos = System.nanoTime();
                     mSensorDatabase.addScalarReading(sensorId, resolutionTier, timestampMillis,
                             value);
+                    mInsertMicrosMetric.record((System.nanoTime() - startNanos) / 1000);
+                    if (resolutionTier == 0 && mRecordingJournal != null) {
+                        mRecordingJournal.onReadingStored(sensorId, timestampMillis, value);
+                    }
                 } catch (final Exception e) {
+                    mInsertFailureMetric.increment();
                     mUiThread.execute(new Runnable() {
                         @Override
                         public void run() {
@@ -172,6 +204,24 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
     }
 
+    @Override
+    public void getScalarReadingsBatch(final List<ScalarReadingRequest> requests,
+            final MaybeConsumer<List<ScalarReadingList>> onSuccess) {
+        background(mSensorDataThread, onSuccess, new Callable<List<ScalarReadingList>>() {
+            @Override
+            public List<ScalarReadingList> call() throws Exception {
+                List<ScalarReadingList> results = new ArrayList<>(requests.size());
+                for (ScalarReadingRequest request : requests) {
+                    results.add(mSensorDatabase.getScalarReadings(
+                            Preconditions.checkNotNull(request.getDatabaseTag()),
+                            request.getTimeRange(), request.getResolutionTier(),
+                            request.getMaxRecords()));
+                }
+                return results;
+            }
+        });
+    }
+
     public void addLabel(final Label label, final MaybeConsumer<Label> onSuccess) {
         background(mMetaDataThread, onSuccess, new Callable<Label>() {
             @Override
@@ -216,9 +266,41 @@ public class DataControllerImpl implements DataController, RecordingDataControll
 
     @Override public void startRun(
             final Experiment experiment, final MaybeConsumer<ApplicationLabel> onSuccess) {
-        String id = generateNewLabelId();
-        addApplicationLabelWithId(
-                experiment, ApplicationLabel.TYPE_RECORDING_START, id, id, onSuccess);
+        final String id = generateNewLabelId();
+        background(mMetaDataThread, onSuccess, new Callable<ApplicationLabel>() {
+            @Override
+            public ApplicationLabel call() throws Exception {
+                ApplicationLabel label = storeApplicationLabel(experiment,
+                        ApplicationLabel.TYPE_RECORDING_START, id, id);
+                if (mRecordingJournal != null) {
+                    // Before any data can be recorded.
+                    mRecordingJournal.begin(experiment.getExperimentId(), id,
+                            label.getTimeStamp());
+                }
+                return label;
+            }
+        });
+    }
+
+    @Override
+    public void recoverInterruptedRun(MaybeConsumer<ApplicationLabel> onSuccess) {
+        background(mMetaDataThread, onSuccess, new Callable<ApplicationLabel>() {
+            @Override
+            public ApplicationLabel call() throws Exception {
+                if (mRecordingJournal == null) {
+                    return null;
+                }
+                GoosciRecordingJournal.RecordingJournal journal =
+                        mRecordingJournal.readInterrupted();
+                if (journal == null) {
+                    return null;
+                }
+                ApplicationLabel stopLabel = new InterruptedRunRecovery(mMetaDataManager,
+                        mSensorDatabase).recover(journal, generateNewLabelId());
+                mRecordingJournal.discardInterrupted();
+                return stopLabel;
+            }
+        });
     }
 
     private void addApplicationLabel(
@@ -234,14 +316,19 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         background(mMetaDataThread, onSuccess, new Callable<ApplicationLabel>() {
             @Override
             public ApplicationLabel call() throws Exception {
-                final ApplicationLabel label = new ApplicationLabel(type, id, startLabelId,
-                        mClock.getNow());
-                mMetaDataManager.addLabel(experiment, label);
-                return label;
+                return storeApplicationLabel(experiment, type, id, startLabelId);
             }
         });
     }
 
+    private ApplicationLabel storeApplicationLabel(Experiment experiment,
+            @ApplicationLabel.Type int type, String id, String startLabelId) {
+        final ApplicationLabel label = new ApplicationLabel(type, id, startLabelId,
+                mClock.getNow());
+        mMetaDataManager.addLabel(experiment, label);
+        return label;
+    }
+
     @Override
     public void createExperiment(final Project project,
                                  final MaybeConsumer<Experiment> onSuccess) {
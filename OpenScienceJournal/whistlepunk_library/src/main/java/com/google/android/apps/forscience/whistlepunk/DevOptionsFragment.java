@@ -16,18 +16,26 @@
 
 package com.google.android.apps.forscience.whistlepunk;
 
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
+import android.widget.ScrollView;
+import android.widget.TextView;
 
+import com.google.android.apps.forscience.javalib.MetricRegistry;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ScalarDisplayOptions;
 
+import java.util.Map;
+
 /**
  * Holder for Developer Testing Options
  */
@@ -43,6 +51,10 @@ public class DevOptionsFragment extends PreferenceFragment {
     public static final String KEY_ENABLE_ZOOM_IN = "live_zoom_type";
     public static final String KEY_BAROMETER_SENSOR = "enable_barometer_sensor";
     public static final String KEY_AMBIENT_TEMPERATURE_SENSOR = "enable_ambient_temp_sensor";
+    private static final String KEY_PIPELINE_METRICS = "pipeline_metrics";
+    private static final String KEY_CHART_METRICS_OVERLAY = "chart_metrics_overlay";
+
+    private static final int METRICS_REFRESH_MILLIS = 1000;
 
     public static DevOptionsFragment newInstance() {
         return new DevOptionsFragment();
@@ -75,6 +87,72 @@ public class DevOptionsFragment extends PreferenceFragment {
         } else {
             getPreferenceScreen().removePreference(leakPref);
         }
+
+        findPreference(KEY_PIPELINE_METRICS).setOnPreferenceClickListener(
+                new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        showPipelineMetrics();
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Shows every metric in the default {@link MetricRegistry}, refreshed each second (with
+     * counters shown as their change over the last second) until the dialog is closed.
+     */
+    private void showPipelineMetrics() {
+        final TextView text = new TextView(getActivity());
+        int padding = getResources().getDimensionPixelSize(R.dimen.options_padding_sides);
+        text.setPadding(padding, padding, padding, padding);
+        text.setTextIsSelectable(true);
+        ScrollView scroll = new ScrollView(getActivity());
+        scroll.addView(text);
+
+        final Handler handler = new Handler();
+        final Runnable refresh = new Runnable() {
+            private MetricRegistry.Snapshot mPrevious = MetricRegistry.getDefault().snapshot();
+
+            @Override
+            public void run() {
+                MetricRegistry.Snapshot current = MetricRegistry.getDefault().snapshot();
+                text.setText(formatMetrics(current, mPrevious));
+                mPrevious = current;
+                handler.postDelayed(this, METRICS_REFRESH_MILLIS);
+            }
+        };
+
+        AlertDialog dialog = new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.pipeline_metrics_title)
+                .setView(scroll)
+                .setPositiveButton(android.R.string.ok, null)
+                .create();
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialog) {
+                handler.removeCallbacks(refresh);
+            }
+        });
+        dialog.show();
+        refresh.run();
+    }
+
+    private static String formatMetrics(MetricRegistry.Snapshot current,
+            MetricRegistry.Snapshot previous) {
+        Map<String, Double> totals = current.toMap();
+        Map<String, Double> lastSecond = current.since(previous).toMap();
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Double> entry : totals.entrySet()) {
+            builder.append(entry.getKey()).append(": ")
+                    .append(String.format("%.1f", entry.getValue()));
+            Double recent = lastSecond.get(entry.getKey());
+            if (recent != null && !recent.equals(entry.getValue())) {
+                builder.append(" (").append(String.format("%.1f", recent)).append(")");
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
     }
 
     private static SharedPreferences getPrefs(Context context) {
@@ -121,6 +199,10 @@ public class DevOptionsFragment extends PreferenceFragment {
         return getBoolean(KEY_AMBIENT_TEMPERATURE_SENSOR, false, context);
     }
 
+    public static boolean isChartMetricsOverlayEnabled(Context context) {
+        return getBoolean(KEY_CHART_METRICS_OVERLAY, false, context);
+    }
+
     private static boolean getBoolean(String key, boolean defaultBool, Context context) {
         if (!isDebugVersion(context)) {
             return defaultBool;
@@ -0,0 +1,284 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+/**
+ * Maps timestamps from a device's own millisecond clock onto phone time, for one device.
+ *
+ * Every packet gives a sample (device time, receive time).  Receive time is the phone time of
+ * the reading plus some latency which is never negative and is usually close to its minimum,
+ * so the useful information is in the lower envelope of the samples.  Device time is bucketed
+ * into {@link #BUCKET_MILLIS} windows, the minimum (receive - device) of each window is kept,
+ * and a linear fit (offset plus drift) is kept over recent window minima, with older windows
+ * decaying away.  Window minima that sit far above the fit (a window where every packet was
+ * delayed) are rejected.  Each update is O(1).
+ *
+ * Device timestamps are 32-bit and wrap around; {@link #unwrap(int)} extends them.  If the
+ * device clock jumps (for example, because the device restarted), the fit starts over.
+ *
+ * Not thread-safe: use from one thread at a time.
+ */
+public class DeviceClockSynchronizer {
+    private static final long BUCKET_MILLIS = 1000;
+
+    // Weight of each earlier window, relative to the next one.  Older windows fade out over a
+    // minute or so, which lets the drift estimate follow temperature changes.
+    private static final double DECAY = 0.98;
+
+    // Below this many windows, don't try to estimate drift.
+    private static final int MIN_BUCKETS_FOR_DRIFT = 10;
+
+    // Crystals are usually good to 100ppm; ceramic resonators can be off by a few tenths of a
+    // percent.  Anything more is noise in the fit.
+    private static final double MAX_DRIFT = 0.005;
+
+    // A window minimum this far above the fit (or OUTLIER_RMS_FACTOR times the usual residual,
+    // if that's more) is ignored, unless it happens MAX_CONSECUTIVE_REJECTS times in a row.
+    private static final double MIN_OUTLIER_MILLIS = 20;
+    private static final double OUTLIER_RMS_FACTOR = 4;
+    private static final int MAX_CONSECUTIVE_REJECTS = 5;
+
+    // If device time and receive time disagree on how much time has passed by more than this,
+    // assume the device clock was reset.
+    private static final long RESET_THRESHOLD_MILLIS = 10 * 1000;
+
+    // Weight given to each packet in the mean excess latency.
+    private static final double LATENCY_ALPHA = 1 / 64.0;
+
+    private static final long WRAP = 1L << 32;
+
+    private boolean mHasSample = false;
+    private long mLastDeviceMillis;
+    private long mLastReceiveMillis;
+
+    // The window currently being filled.
+    private long mBucketStart;
+    private long mBucketMinDevice;
+    private long mBucketMinOffset;
+
+    // Exponentially weighted sums over window minima, of x = device time - mOrigin and
+    // y = receive time - device time.
+    private int mBucketCount = 0;
+    private long mOrigin;
+    private double mSw;
+    private double mSx;
+    private double mSy;
+    private double mSxx;
+    private double mSxy;
+    private double mSrr;
+
+    private double mOffset;
+    private double mDrift;
+
+    private int mConsecutiveRejects = 0;
+    private int mRejectedCount = 0;
+    private int mResetCount = 0;
+    private int mSampleCount = 0;
+    private double mMeanLatency = 0;
+    private long mMaxLatency = 0;
+
+    private boolean mHasMapped = false;
+    private long mLastMappedDevice;
+    private long mLastMappedPhone;
+
+    /**
+     * @return {@code timestampKey} (an unsigned 32-bit device time) extended to 64 bits, taking
+     * the value nearest to the last device time seen.
+     */
+    public long unwrap(int timestampKey) {
+        long raw = timestampKey & (WRAP - 1);
+        if (!mHasSample) {
+            return raw;
+        }
+        long delta = (raw - mLastDeviceMillis) & (WRAP - 1);
+        if (delta >= WRAP / 2) {
+            delta -= WRAP;
+        }
+        return mLastDeviceMillis + delta;
+    }
+
+    /**
+     * Adds a sample: a reading taken at (unwrapped) {@code deviceMillis} on the device was
+     * received at {@code receiveMillis} on the phone.
+     */
+    public void addSample(long deviceMillis, long receiveMillis) {
+        if (mHasSample && Math.abs((deviceMillis - mLastDeviceMillis)
+                - (receiveMillis - mLastReceiveMillis)) > RESET_THRESHOLD_MILLIS) {
+            reset();
+            mResetCount++;
+        }
+
+        long offset = receiveMillis - deviceMillis;
+        if (!mHasSample) {
+            mHasSample = true;
+            startBucket(deviceMillis, offset);
+        } else if (deviceMillis >= mBucketStart + BUCKET_MILLIS) {
+            addBucketMinimum(mBucketMinDevice, mBucketMinOffset);
+            startBucket(deviceMillis, offset);
+        } else if (offset < mBucketMinOffset) {
+            mBucketMinDevice = deviceMillis;
+            mBucketMinOffset = offset;
+        }
+        mLastDeviceMillis = deviceMillis;
+        mLastReceiveMillis = receiveMillis;
+
+        long latency = receiveMillis - estimate(deviceMillis);
+        mSampleCount++;
+        mMeanLatency += (latency - mMeanLatency) * LATENCY_ALPHA;
+        mMaxLatency = Math.max(mMaxLatency, latency);
+    }
+
+    /**
+     * @return the phone time of a reading taken at (unwrapped) {@code deviceMillis}.  For
+     * increasing device times, results never go backwards, even if the estimate has just been
+     * corrected.
+     */
+    public long toPhoneMillis(long deviceMillis) {
+        long phoneMillis = estimate(deviceMillis);
+        if (mHasMapped && deviceMillis > mLastMappedDevice && phoneMillis <= mLastMappedPhone) {
+            phoneMillis = mLastMappedPhone + 1;
+        }
+        mHasMapped = true;
+        mLastMappedDevice = deviceMillis;
+        mLastMappedPhone = phoneMillis;
+        return phoneMillis;
+    }
+
+    private long estimate(long deviceMillis) {
+        if (mBucketCount == 0) {
+            // Until the first window is complete, the best guess is the smallest delay so far.
+            return deviceMillis + mBucketMinOffset;
+        }
+        return deviceMillis + Math.round(mOffset + mDrift * (deviceMillis - mOrigin));
+    }
+
+    private void startBucket(long deviceMillis, long offset) {
+        mBucketStart = deviceMillis;
+        mBucketMinDevice = deviceMillis;
+        mBucketMinOffset = offset;
+    }
+
+    private void addBucketMinimum(long deviceMillis, long offset) {
+        if (mBucketCount == 0) {
+            mOrigin = deviceMillis;
+        }
+        double x = deviceMillis - mOrigin;
+        double y = offset;
+
+        if (mBucketCount > 0) {
+            double residual = y - (mOffset + mDrift * x);
+            double threshold = Math.max(MIN_OUTLIER_MILLIS,
+                    OUTLIER_RMS_FACTOR * getEnvelopeRmsMillis());
+            if (residual > threshold && mConsecutiveRejects < MAX_CONSECUTIVE_REJECTS) {
+                mConsecutiveRejects++;
+                mRejectedCount++;
+                return;
+            }
+            mSrr = mSrr * DECAY + residual * residual;
+        }
+        mConsecutiveRejects = 0;
+
+        mSw = mSw * DECAY + 1;
+        mSx = mSx * DECAY + x;
+        mSy = mSy * DECAY + y;
+        mSxx = mSxx * DECAY + x * x;
+        mSxy = mSxy * DECAY + x * y;
+        mBucketCount++;
+
+        double denominator = mSw * mSxx - mSx * mSx;
+        if (mBucketCount >= MIN_BUCKETS_FOR_DRIFT && denominator > 0) {
+            mDrift = (mSw * mSxy - mSx * mSy) / denominator;
+            mDrift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, mDrift));
+        } else {
+            mDrift = 0;
+        }
+        mOffset = (mSy - mDrift * mSx) / mSw;
+    }
+
+    private void reset() {
+        mHasSample = false;
+        mBucketCount = 0;
+        mSw = mSx = mSy = mSxx = mSxy = mSrr = 0;
+        mOffset = 0;
+        mDrift = 0;
+        mConsecutiveRejects = 0;
+        // A device restart can legitimately send device time backwards, so don't hold the
+        // output to the old timeline.
+        mHasMapped = false;
+    }
+
+    /**
+     * @return the estimated drift of the device clock: the phone gains this many milliseconds
+     * per device millisecond.
+     */
+    public double getDrift() {
+        return mDrift;
+    }
+
+    /**
+     * @return the estimated phone time minus device time, at the current device time.
+     */
+    public double getOffsetMillis() {
+        if (mBucketCount == 0) {
+            return mBucketMinOffset;
+        }
+        return mOffset + mDrift * (mLastDeviceMillis - mOrigin);
+    }
+
+    /**
+     * @return the typical distance of window minima from the fit: how well the clock model is
+     * doing.
+     */
+    public double getEnvelopeRmsMillis() {
+        if (mBucketCount < 2) {
+            return 0;
+        }
+        return Math.sqrt(mSrr / mSw);
+    }
+
+    /**
+     * @return recent mean of how much later packets arrived than the fit predicts.
+     */
+    public double getMeanLatencyMillis() {
+        return mMeanLatency;
+    }
+
+    /**
+     * @return the most any packet has arrived later than the fit predicts.
+     */
+    public long getMaxLatencyMillis() {
+        return mMaxLatency;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return how many window minima were ignored as outliers.
+     */
+    public int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * @return how many times the device clock jumped, and the fit started over.
+     */
+    public int getResetCount() {
+        return mResetCount;
+    }
+}
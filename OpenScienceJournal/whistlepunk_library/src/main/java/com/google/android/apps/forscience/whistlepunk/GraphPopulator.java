@@ -18,33 +18,77 @@ package com.google.android.apps.forscience.whistlepunk;
 
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.javalib.FallibleConsumer;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
 import com.google.android.apps.forscience.javalib.MaybeConsumers;
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartMetrics;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.DiscreteDomain;
 import com.google.common.collect.Range;
 
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
+/**
+ * Fetches the readings for a graph from the database a page at a time.
+ *
+ * Each page is requested as soon as the previous one arrives, before that one is added to the
+ * display, so that the database thread works on the next page while the UI thread applies the
+ * last one.  At most one request is in flight: each page starts where the one before it ended.
+ *
+ * Page sizes adapt so that each round trip takes about {@link #TARGET_MILLIS_PER_SENSOR_LOAD}.
+ *
+ * The time to the first page and to the whole load are recorded in {@link ChartMetrics}.
+ */
 // TODO(saff): port tests from Weather
 public class GraphPopulator {
-    // How many datapoints do we grab from the database at one time?
-    private static final int MAX_DATAPOINTS_PER_SENSOR_LOAD = 100;
+    // How many datapoints do we grab from the database at one time, at least?
+    @VisibleForTesting
+    static final int MIN_DATAPOINTS_PER_SENSOR_LOAD = 100;
+
+    // ...and at most.  Each page is added to the graph in one go on the UI thread.
+    @VisibleForTesting
+    static final int MAX_DATAPOINTS_PER_SENSOR_LOAD = 2000;
+
+    // How long we'd like each round trip to the database to take.  Longer ones delay the first
+    // data on the graph; shorter ones spend more of the load hopping between threads.
+    @VisibleForTesting
+    static final long TARGET_MILLIS_PER_SENSOR_LOAD = 50;
 
     private Range<Long> mRequestedTimes = null;
     private ObservationDisplay mObservationDisplay;
     private boolean mRequestInFlight = false;
     private final long mRequestId;
+    private int mPageSize = MIN_DATAPOINTS_PER_SENSOR_LOAD;
+
+    // Pages that have arrived but are not yet added to the display.  This only holds more than
+    // one page if the reading source delivers synchronously.
+    private final Queue<ScalarReadingList> mPagesToApply = new ArrayDeque<>();
+    private boolean mApplyingPages = false;
+
+    // When the current chain of requests started, and whether it has delivered any data yet.
+    private long mLoadStartMillis;
+    private boolean mDeliveredData;
 
     public GraphPopulator(ObservationDisplay observationDisplay) {
         mObservationDisplay = observationDisplay;
         mRequestId = SystemClock.uptimeMillis();
     }
 
+    /**
+     * Sets how many points the graph is expected to need, if known (for example, from the
+     * {@link com.google.android.apps.forscience.whistlepunk.review.ZoomPresenter}), so that the
+     * first page can fetch all of them.
+     */
+    public void setTargetPointCount(int targetPointCount) {
+        mPageSize = clampPageSize(targetPointCount);
+    }
+
     /**
      * GraphStatus for a graph that is not changing its x axis.
      */
@@ -79,50 +123,148 @@ public class GraphPopulator {
     public long requestObservations(final GraphStatus graphStatus,
             final DataController dataController, final FailureListener failureListener,
             final int resolutionTier, final String sensorId) {
-        if (mRequestInFlight) {
+        return requestObservations(graphStatus, readingsFrom(dataController), failureListener,
+                resolutionTier, sensorId);
+    }
+
+    /**
+     * Like {@link #requestObservations(GraphStatus, DataController, FailureListener, int, String)},
+     * but fetching from the given source, which may batch the request with others.
+     * <p/>
+     * Call only on the UI thread.
+     */
+    public long requestObservations(final GraphStatus graphStatus,
+            final ReadingSource readingSource, final FailureListener failureListener,
+            final int resolutionTier, final String sensorId) {
+        if (mRequestInFlight || mApplyingPages) {
             return mRequestId;
         }
+        mLoadStartMillis = SystemClock.uptimeMillis();
+        mDeliveredData = false;
+        if (!requestNextPage(graphStatus, readingSource, failureListener, resolutionTier,
+                sensorId)) {
+            mObservationDisplay.onFinish(mRequestId);
+        }
+        return mRequestId;
+    }
+
+    /**
+     * @return false if there was nothing left to request
+     */
+    private boolean requestNextPage(final GraphStatus graphStatus,
+            final ReadingSource readingSource, final FailureListener failureListener,
+            final int resolutionTier, final String sensorId) {
         final TimeRange r = getRequestRange(graphStatus);
         if (r == null) {
-            mObservationDisplay.onFinish(mRequestId);
-        } else {
-            mRequestInFlight = true;
-            dataController.getScalarReadings(sensorId, resolutionTier, r,
-                    MAX_DATAPOINTS_PER_SENSOR_LOAD, MaybeConsumers.chainFailure(failureListener,
-                            new FallibleConsumer<ScalarReadingList>() {
-                                @Override
-                                public void take(ScalarReadingList observations) {
-                                    mRequestInFlight = false;
-                                    if (graphStatus.graphIsStillValid()) {
-                                        final Range<Long> received =
-                                                addObservationsToDisplay(observations);
-                                        if (received != null) {
-                                            mObservationDisplay.addRange(observations, mRequestId);
-                                        }
-                                        addToRequestedTimes(getEffectiveAddedRange(r, received));
-                                        requestObservations(graphStatus, dataController,
-                                                failureListener, resolutionTier, sensorId);
+            return false;
+        }
+        mRequestInFlight = true;
+        final int pageSize = mPageSize;
+        final long requestTime = SystemClock.uptimeMillis();
+        readingSource.getScalarReadings(sensorId, resolutionTier, r, pageSize,
+                MaybeConsumers.chainFailure(failureListener,
+                        new FallibleConsumer<ScalarReadingList>() {
+                            @Override
+                            public void take(ScalarReadingList observations) {
+                                mRequestInFlight = false;
+                                if (graphStatus.graphIsStillValid()) {
+                                    mPageSize = nextPageSize(pageSize, observations.size(),
+                                            SystemClock.uptimeMillis() - requestTime);
+                                    mRequestedTimes = Ranges.span(mRequestedTimes,
+                                            getEffectiveAddedRange(r,
+                                                    getReceivedRange(observations)));
+                                    mPagesToApply.add(observations);
+                                    if (!mApplyingPages) {
+                                        applyPages(graphStatus, readingSource, failureListener,
+                                                resolutionTier, sensorId);
                                     }
                                 }
+                            }
+                        }));
+        return true;
+    }
 
-                                public void addToRequestedTimes(Range<Long> effectiveAdded) {
-                                    mRequestedTimes = Ranges.span(mRequestedTimes, effectiveAdded);
-                                }
+    private void applyPages(GraphStatus graphStatus, ReadingSource readingSource,
+            FailureListener failureListener, int resolutionTier, String sensorId) {
+        mApplyingPages = true;
+        while (!mPagesToApply.isEmpty()) {
+            ScalarReadingList page = mPagesToApply.remove();
+            // Ask for the next page first, so that it is fetched while this one is applied.
+            boolean requestedMore = requestNextPage(graphStatus, readingSource, failureListener,
+                    resolutionTier, sensorId);
+            if (page.size() > 0) {
+                mObservationDisplay.addRange(page, mRequestId);
+                if (!mDeliveredData) {
+                    mDeliveredData = true;
+                    ChartMetrics.LOAD_FIRST_DATA_MILLIS.record(
+                            SystemClock.uptimeMillis() - mLoadStartMillis);
+                }
+            }
+            if (!requestedMore) {
+                ChartMetrics.LOAD_COMPLETE_MILLIS.record(
+                        SystemClock.uptimeMillis() - mLoadStartMillis);
+                mObservationDisplay.onFinish(mRequestId);
+            }
+        }
+        mApplyingPages = false;
+    }
 
-                                public Range<Long> addObservationsToDisplay(
-                                        ScalarReadingList observations) {
-                                    List<ScalarReading> points = ScalarReading.slurp(observations);
-                                    Range<Long> range = null;
-                                    for (ScalarReading point : points) {
-                                        range = Ranges.span(range, Range.singleton(
-                                                point.getCollectedTimeMillis()));
-                                    }
-                                    return range;
-                                }
-                            })
-            );
+    /**
+     * @return the size of page to ask for after one of pageSize returned received points in
+     * elapsedMillis.
+     */
+    @VisibleForTesting
+    static int nextPageSize(int pageSize, int received, long elapsedMillis) {
+        if (received < pageSize) {
+            // We got everything there was in the range, so this doesn't tell us how long a full
+            // page would have taken.
+            return pageSize;
         }
-        return mRequestId;
+        if (elapsedMillis <= 0) {
+            return clampPageSize(pageSize * 2);
+        }
+        // Don't grow too fast on one quick trip.
+        long ideal = TARGET_MILLIS_PER_SENSOR_LOAD * received / elapsedMillis;
+        return clampPageSize((int) Math.min(ideal, pageSize * 2L));
+    }
+
+    private static int clampPageSize(int pageSize) {
+        return Math.max(MIN_DATAPOINTS_PER_SENSOR_LOAD,
+                Math.min(MAX_DATAPOINTS_PER_SENSOR_LOAD, pageSize));
+    }
+
+    /**
+     * @return the range of timestamps in observations, or null if it is empty
+     */
+    private static Range<Long> getReceivedRange(ScalarReadingList observations) {
+        if (observations.size() == 0) {
+            return null;
+        }
+        final long[] minAndMax = {Long.MAX_VALUE, Long.MIN_VALUE};
+        observations.deliver(new StreamConsumer() {
+            @Override
+            public void addData(long timestampMillis, double value) {
+                minAndMax[0] = Math.min(minAndMax[0], timestampMillis);
+                minAndMax[1] = Math.max(minAndMax[1], timestampMillis);
+            }
+        });
+        return Range.closed(minAndMax[0], minAndMax[1]);
+    }
+
+    /**
+     * @return a source that fetches each request from the DataController as it is made.
+     */
+    @NonNull
+    public static ReadingSource readingsFrom(final DataController dataController) {
+        return new ReadingSource() {
+            @Override
+            public void getScalarReadings(String databaseTag, int resolutionTier,
+                    TimeRange timeRange, int maxRecords,
+                    MaybeConsumer<ScalarReadingList> onSuccess) {
+                dataController.getScalarReadings(databaseTag, resolutionTier, timeRange,
+                        maxRecords, onSuccess);
+            }
+        };
     }
 
     private TimeRange getRequestRange(GraphStatus graphStatus) {
@@ -177,4 +319,12 @@ public class GraphPopulator {
 
         void onFinish(long requestId);
     }
+
+    /**
+     * Where readings are fetched from.  Results are delivered on the UI thread.
+     */
+    public interface ReadingSource {
+        void getScalarReadings(String databaseTag, int resolutionTier, TimeRange timeRange,
+                int maxRecords, MaybeConsumer<ScalarReadingList> onSuccess);
+    }
 }
\ No newline at end of file
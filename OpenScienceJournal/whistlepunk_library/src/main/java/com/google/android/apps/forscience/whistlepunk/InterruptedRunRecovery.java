@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciRecordingJournal;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.ApplicationLabel;
+import com.google.android.apps.forscience.whistlepunk.metadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
+import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the journal of a recording that was interrupted by process death into a complete run:
+ * the stop label, run, stats, and the zoom tiers that would have been flushed at stop are all
+ * rebuilt from the data that made it into the database.
+ *
+ * Does blocking database work, so should be called on a background thread.
+ */
+class InterruptedRunRecovery {
+    private static final int PAGE_SIZE = 1000;
+
+    private final MetaDataManager mMetaDataManager;
+    private final SensorDatabase mSensorDatabase;
+
+    InterruptedRunRecovery(MetaDataManager metaDataManager, SensorDatabase sensorDatabase) {
+        mMetaDataManager = metaDataManager;
+        mSensorDatabase = sensorDatabase;
+    }
+
+    /**
+     * @return the stop label added for the recovered run, or null if there was nothing to
+     * recover (the experiment is gone, the run was already saved, or no data was stored).
+     */
+    ApplicationLabel recover(GoosciRecordingJournal.RecordingJournal journal,
+            String stopLabelId) {
+        Experiment experiment = mMetaDataManager.getExperimentById(journal.experimentId);
+        if (experiment == null || mMetaDataManager.getRun(journal.runId) != null) {
+            return null;
+        }
+
+        long stopTimestamp = Long.MIN_VALUE;
+        List<String> sensorIds = new ArrayList<>();
+        for (GoosciRecordingJournal.RecordingJournal.SensorCheckpoint checkpoint :
+                journal.sensors) {
+            long lastTimestamp = rebuildSensor(journal, checkpoint);
+            if (lastTimestamp != Long.MIN_VALUE) {
+                sensorIds.add(checkpoint.sensorId);
+                stopTimestamp = Math.max(stopTimestamp, lastTimestamp);
+            }
+        }
+        if (sensorIds.isEmpty()) {
+            return null;
+        }
+
+        ApplicationLabel stopLabel = new ApplicationLabel(ApplicationLabel.TYPE_RECORDING_STOP,
+                stopLabelId, journal.runId, stopTimestamp);
+        mMetaDataManager.addLabel(experiment, stopLabel);
+        mMetaDataManager.newRun(experiment, journal.runId,
+                getLayouts(experiment.getExperimentId(), sensorIds));
+        return stopLabel;
+    }
+
+    /**
+     * Replays the sensor's stored readings to rebuild its stats and finish its zoom tiers.
+     *
+     * @return the timestamp of the last reading, or Long.MIN_VALUE if there were none.
+     */
+    private long rebuildSensor(GoosciRecordingJournal.RecordingJournal journal,
+            GoosciRecordingJournal.RecordingJournal.SensorCheckpoint checkpoint) {
+        final String sensorId = checkpoint.sensorId;
+        final StatsAccumulator stats = new StatsAccumulator();
+        final ZoomRecorder zoomRecorder = new ZoomRecorder(sensorId,
+                ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS * 2, 1);
+        final RecordingDataController tierWriter = makeTierWriter(sensorId,
+                journal.startTimestamp);
+
+        // Tier 0 timestamps are strictly increasing, so we can page by timestamp.
+        final long[] lastTimestamp = {journal.startTimestamp - 1};
+        final int[] count = {0};
+        while (true) {
+            long pageStart = lastTimestamp[0];
+            ScalarReadingList page = mSensorDatabase.getScalarReadings(sensorId,
+                    TimeRange.oldest(Range.greaterThan(pageStart)), 0, PAGE_SIZE);
+            page.deliver(new StreamConsumer() {
+                @Override
+                public void addData(long timestampMillis, double value) {
+                    if (timestampMillis <= lastTimestamp[0]) {
+                        return;
+                    }
+                    stats.updateRecordingStreamStats(timestampMillis, value);
+                    zoomRecorder.addData(timestampMillis, value, tierWriter);
+                    lastTimestamp[0] = timestampMillis;
+                    count[0]++;
+                }
+            });
+            if (page.size() < PAGE_SIZE || lastTimestamp[0] == pageStart) {
+                break;
+            }
+        }
+
+        RunStats runStats;
+        if (count[0] > 0) {
+            runStats = stats.makeSaveableStats();
+        } else if (checkpoint.count > 0) {
+            // The journal says data was stored, but we can't read it back; the checkpoint is the
+            // best we have.
+            runStats = makeStatsFromCheckpoint(journal, checkpoint);
+            lastTimestamp[0] = checkpoint.lastTimestamp;
+        } else {
+            return Long.MIN_VALUE;
+        }
+        runStats.putStat(ZoomRecorder.STATS_KEY_TIER_COUNT, zoomRecorder.countTiers());
+        runStats.putStat(ZoomRecorder.STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS,
+                ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS);
+        zoomRecorder.flushAllTiers(tierWriter);
+        mMetaDataManager.setStats(journal.runId, sensorId, runStats);
+        return lastTimestamp[0];
+    }
+
+    /**
+     * The replay regenerates every zoom tier point from the start of the run, but only the ones
+     * past what was already stored at each tier (the flushes the crash cut off) are written.
+     */
+    private RecordingDataController makeTierWriter(final String sensorId,
+            final long startTimestamp) {
+        final Map<Integer, Long> lastStoredByTier = new HashMap<>();
+        return new RecordingDataController() {
+            @Override
+            public void addScalarReading(String id, int resolutionTier, long timestampMillis,
+                    double value) {
+                Long lastStored = lastStoredByTier.get(resolutionTier);
+                if (lastStored == null) {
+                    lastStored = getLastStoredTimestamp(sensorId, resolutionTier,
+                            startTimestamp);
+                    lastStoredByTier.put(resolutionTier, lastStored);
+                }
+                if (timestampMillis > lastStored) {
+                    mSensorDatabase.addScalarReading(id, resolutionTier, timestampMillis, value);
+                }
+            }
+
+            @Override
+            public void setStats(String runId, String sensorId, RunStats runStats) {
+            }
+
+            @Override
+            public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {
+            }
+
+            @Override
+            public void clearDataErrorListenerForSensor(String sensorId) {
+            }
+        };
+    }
+
+    private long getLastStoredTimestamp(String sensorId, int resolutionTier,
+            long startTimestamp) {
+        final long[] last = {Long.MIN_VALUE};
+        mSensorDatabase.getScalarReadings(sensorId,
+                TimeRange.newest(Range.atLeast(startTimestamp)), resolutionTier, 1).deliver(
+                new StreamConsumer() {
+                    @Override
+                    public void addData(long timestampMillis, double value) {
+                        last[0] = Math.max(last[0], timestampMillis);
+                    }
+                });
+        return last[0];
+    }
+
+    private RunStats makeStatsFromCheckpoint(GoosciRecordingJournal.RecordingJournal journal,
+            GoosciRecordingJournal.RecordingJournal.SensorCheckpoint checkpoint) {
+        RunStats runStats = new RunStats();
+        runStats.putStat(StatsAccumulator.KEY_MIN, checkpoint.min);
+        runStats.putStat(StatsAccumulator.KEY_MAX, checkpoint.max);
+        runStats.putStat(StatsAccumulator.KEY_AVERAGE, checkpoint.sum / checkpoint.count);
+        runStats.putStat(StatsAccumulator.KEY_NUM_DATA_POINTS, checkpoint.count);
+        runStats.putStat(StatsAccumulator.KEY_TOTAL_DURATION,
+                checkpoint.lastTimestamp - journal.startTimestamp);
+        return runStats;
+    }
+
+    private List<GoosciSensorLayout.SensorLayout> getLayouts(String experimentId,
+            List<String> sensorIds) {
+        List<GoosciSensorLayout.SensorLayout> experimentLayouts =
+                mMetaDataManager.getExperimentSensorLayout(experimentId);
+        List<GoosciSensorLayout.SensorLayout> layouts = new ArrayList<>();
+        for (String sensorId : sensorIds) {
+            GoosciSensorLayout.SensorLayout layout = null;
+            for (GoosciSensorLayout.SensorLayout experimentLayout : experimentLayouts) {
+                if (sensorId.equals(experimentLayout.sensorId)) {
+                    layout = experimentLayout;
+                    break;
+                }
+            }
+            if (layout == null) {
+                layout = new GoosciSensorLayout.SensorLayout();
+                layout.sensorId = sensorId;
+            }
+            layouts.add(layout);
+        }
+        return layouts;
+    }
+}
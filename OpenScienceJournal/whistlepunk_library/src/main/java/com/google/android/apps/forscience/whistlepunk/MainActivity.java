@@ -41,9 +41,15 @@ import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants
 import com.google.android.apps.forscience.whistlepunk.feedback.FeedbackProvider;
 import com.google.android.apps.forscience.whistlepunk.intro.AgeVerifier;
 import com.google.android.apps.forscience.whistlepunk.intro.TutorialActivity;
+import com.google.android.apps.forscience.whistlepunk.metadata.ApplicationLabel;
 import com.google.android.apps.forscience.whistlepunk.project.ProjectTabsFragment;
+import com.google.android.apps.forscience.whistlepunk.review.RunReviewActivity;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartMetrics;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 
 public class MainActivity extends AppCompatActivity
         implements NavigationView.OnNavigationItemSelectedListener {
@@ -127,6 +133,36 @@ public class MainActivity extends AppCompatActivity
         };
 
         setVolumeControlStream(AudioManager.STREAM_MUSIC);
+
+        if (savedInstanceState == null) {
+            recoverInterruptedRun();
+        }
+    }
+
+    private void recoverInterruptedRun() {
+        AppSingleton.getInstance(this).getDataController().recoverInterruptedRun(
+                new LoggingConsumer<ApplicationLabel>(TAG, "recover interrupted run") {
+                    @Override
+                    public void success(final ApplicationLabel stopLabel) {
+                        if (stopLabel == null || isFinishing()) {
+                            return;
+                        }
+                        AccessibilityUtils.makeSnackbar(findViewById(R.id.drawer_layout),
+                                getResources().getString(R.string.recording_recovered),
+                                Snackbar.LENGTH_LONG)
+                                .setAction(R.string.recording_recovered_view,
+                                        new View.OnClickListener() {
+                                            @Override
+                                            public void onClick(View v) {
+                                                RunReviewActivity.launch(MainActivity.this,
+                                                        stopLabel.getRunId(), 0,
+                                                        false /* from record */,
+                                                        false /* create task */, null);
+                                            }
+                                        })
+                                .show();
+                    }
+                });
     }
 
     private void exitMetadataIfNeeded() {
@@ -406,4 +442,10 @@ public class MainActivity extends AppCompatActivity
             fragment.onActivityResult(requestCode, resultCode, data);
         }
     }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ChartMetrics.dump(prefix, writer);
+    }
 }
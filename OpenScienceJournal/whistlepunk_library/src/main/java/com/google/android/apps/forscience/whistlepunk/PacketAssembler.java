@@ -18,85 +18,324 @@ package com.google.android.apps.forscience.whistlepunk;
 
 import android.util.Log;
 
+import com.google.android.apps.forscience.javalib.Counter;
+import com.google.android.apps.forscience.javalib.Gauge;
+import com.google.android.apps.forscience.javalib.MetricRegistry;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.BatchStreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensors.BluetoothSensor;
-import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.nano.CodedInputByteBufferNano;
+import com.google.protobuf.nano.WireFormatNano;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
+/**
+ * Reassembles framed BLE notifications into SensorData messages, and passes the values on to a
+ * StreamConsumer.
+ *
+ * Each chunk is framed as a length byte, a "last chunk" flag byte, and then that many bytes of
+ * serialized proto.  With the default 23-byte MTU a notification holds one 20-byte chunk, so a
+ * message usually spans several notifications; once a larger MTU has been negotiated, a device
+ * may send a whole message in one chunk, and may put several chunks back to back in one
+ * notification.  Chunks are copied in bulk into a reusable buffer, and each message is parsed
+ * into the same SensorData instance, so steady-state parsing doesn't allocate.
+ *
+ * A message may carry a single reading, or (from protocol version 1.1) a SensorDataBatch of
+ * delta-encoded readings, which is handed to the consumer as one block if it is a
+ * {@link BatchStreamConsumer}.
+ */
 public class PacketAssembler {
   private static final String TAG = "PacketAssembler";
+  private static final int HEADER_SIZE = 2;
+  private static final int INITIAL_BUFFER_SIZE = 64;
+
+  // Wire format details needed to find out which oneof members a message sets (see
+  // clearAbsentOneofs).  In both SensorData and Data, the oneof members are the fields numbered
+  // 10 and up.
+  private static final int TAG_TYPE_BITS = 3;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int FIRST_ONEOF_FIELD = 10;
+  private static final int SENSOR_DATA_DATA_FIELD = 11;
 
   private final StreamConsumer mC;
   private final Clock mDefaultClock;
   private BluetoothSensor mBluetoothSensor;
 
   private static final boolean DEBUG = false;
-  private final ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream();
 
+  private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+  private int mLength = 0;
+  private CodedInputByteBufferNano mInput = CodedInputByteBufferNano.newInstance(mBuffer);
+  private final GoosciSensor.SensorData mSensorData = new GoosciSensor.SensorData();
+  private long[] mBatchTimestamps = new long[0];
+  private double[] mBatchValues = new double[0];
+
+  private int mParseErrorCount = 0;
+  private int mFramingErrorCount = 0;
+  private int mMissingValueCount = 0;
+
+  private final Counter mMessageMetric;
+  private final Counter mParseErrorMetric;
+  private final Counter mFramingErrorMetric;
+  private final Counter mMissingValueMetric;
+  private final Gauge mClockOffsetMetric;
+  private final Gauge mClockDriftPpmMetric;
+  private final Gauge mClockLatencyMetric;
+  private final Gauge mClockResetMetric;
 
   public PacketAssembler(final StreamConsumer c, final Clock defaultClock, final BluetoothSensor bs) {
     mC = c;
     mDefaultClock = defaultClock;
     mBluetoothSensor = bs;
-  }
 
+    MetricRegistry metrics = MetricRegistry.getDefault();
+    String id = bs.getId();
+    mMessageMetric = metrics.counter(ScalarSensor.metricName(id, "ble.messages"));
+    mParseErrorMetric = metrics.counter(ScalarSensor.metricName(id, "ble.parse_errors"));
+    mFramingErrorMetric = metrics.counter(ScalarSensor.metricName(id, "ble.framing_errors"));
+    mMissingValueMetric = metrics.counter(ScalarSensor.metricName(id, "ble.missing_values"));
+    mClockOffsetMetric = metrics.gauge(ScalarSensor.metricName(id, "clock.offset_millis"));
+    mClockDriftPpmMetric = metrics.gauge(ScalarSensor.metricName(id, "clock.drift_ppm"));
+    mClockLatencyMetric =
+        metrics.gauge(ScalarSensor.metricName(id, "clock.mean_latency_millis"));
+    mClockResetMetric = metrics.gauge(ScalarSensor.metricName(id, "clock.resets"));
+  }
 
   private void parse() {
-    GoosciSensor.SensorData sensorData = null;
-    byte[] bs = mOutputStream.toByteArray();
-    mOutputStream.reset();
-    try {
-      sensorData = GoosciSensor.SensorData.parseFrom(bs);
-    } catch (InvalidProtocolBufferNanoException e) {
-      Log.e(TAG, "Failed to parse sensor value because " + e.getMessage());
+    int length = mLength;
+    mLength = 0;
+    mMessageMetric.increment();
+    if (!parseInto(mSensorData, length)) {
+      mParseErrorCount++;
+      mParseErrorMetric.increment();
       return;
     }
+    GoosciSensor.SensorData sensorData = mSensorData;
 
-    int counter = 0;
-    long relativeTime;
-    double data;
+    if (sensorData.getBatch() != null) {
+      parseBatch(sensorData.timestampKey, sensorData.getBatch());
+      return;
+    }
 
     if (sensorData.getData() != null && sensorData.getData().getAnalogValue() != null) {
-
-      relativeTime = sensorData.timestampKey;
-      data = (double) sensorData.getData().getAnalogValue().value;
-      long timeSkew = mBluetoothSensor.getTimeSkew();
-      if (timeSkew == -1) {
-        if (DEBUG) Log.e(TAG, "Reset timeskew");
-        // Haven't seen a value yet. Let's calculate the time skew assuming no
-        // delay.
-        timeSkew = mDefaultClock.getNow() - relativeTime;
-        mBluetoothSensor.setTimeSkew(timeSkew);
-      }
+      DeviceClockSynchronizer clock = mBluetoothSensor.getClockSynchronizer();
+      long deviceTime = clock.unwrap(sensorData.timestampKey);
+      double data = (double) sensorData.getData().getAnalogValue().value;
+      clock.addSample(deviceTime, mDefaultClock.getNow());
+      updateClockMetrics(clock);
+      long timestamp = clock.toPhoneMillis(deviceTime);
 
       if (DEBUG) {
         Log.e(TAG, "timestampKey: " + sensorData.timestampKey);
-        Log.e(TAG, "relative time: " + relativeTime);
-        Log.e(TAG, "timeSkew: " + timeSkew);
-        Log.e(TAG, "add data time: " + (relativeTime + timeSkew));
-
+        Log.e(TAG, "device time: " + deviceTime);
+        Log.e(TAG, "clock offset: " + clock.getOffsetMillis());
+        Log.e(TAG, "add data time: " + timestamp);
       }
-      mC.addData(relativeTime + timeSkew, data);
+      mC.addData(timestamp, data);
     } else {
       // TODO: Send an error to the listener here if possible, so the user knows
       // why data isn't showing up.
+      mMissingValueCount++;
+      mMissingValueMetric.increment();
       Log.e(TAG, "Sensor data missing data or analog value");
     }
   }
 
-  public void append(byte[] value) {
-    int len = (int) value[0];
+  private void updateClockMetrics(DeviceClockSynchronizer clock) {
+    mClockOffsetMetric.set((long) clock.getOffsetMillis());
+    mClockDriftPpmMetric.set((long) (clock.getDrift() * 1e6));
+    mClockLatencyMetric.set((long) clock.getMeanLatencyMillis());
+    mClockResetMetric.set(clock.getResetCount());
+  }
+
+  private void parseBatch(int timestampKey, GoosciSensor.SensorDataBatch batch) {
+    int count = batch.timestampDelta.length;
+    if (count != batch.valueDelta.length) {
+      mParseErrorCount++;
+      mParseErrorMetric.increment();
+      Log.e(TAG, "Batch has " + count + " timestamps but " + batch.valueDelta.length
+          + " values");
+      return;
+    }
+    if (count == 0) {
+      return;
+    }
+    if (mBatchTimestamps.length < count) {
+      mBatchTimestamps = new long[count];
+      mBatchValues = new double[count];
+    }
+
+    DeviceClockSynchronizer clock = mBluetoothSensor.getClockSynchronizer();
+    long deviceTime = clock.unwrap(timestampKey);
+    long value = 0;
+    for (int i = 0; i < count; i++) {
+      deviceTime += batch.timestampDelta[i] & 0xFFFFFFFFL;
+      value += batch.valueDelta[i];
+      mBatchTimestamps[i] = deviceTime;
+      mBatchValues[i] = value;
+    }
 
-    boolean last = value[1] == 1;
+    // Only the newest reading tells us anything about delivery latency; the others were
+    // held back on purpose.
+    clock.addSample(deviceTime, mDefaultClock.getNow());
+    updateClockMetrics(clock);
+    for (int i = 0; i < count; i++) {
+      mBatchTimestamps[i] = clock.toPhoneMillis(mBatchTimestamps[i]);
+    }
 
-    for (int i = 0; i < len; ++i) {
-      mOutputStream.write(value[2 + i]);
+    if (mC instanceof BatchStreamConsumer) {
+      ((BatchStreamConsumer) mC).addData(mBatchTimestamps, mBatchValues, count);
+    } else {
+      for (int i = 0; i < count; i++) {
+        mC.addData(mBatchTimestamps[i], mBatchValues[i]);
+      }
     }
+  }
 
-    if (last) {
+  /**
+   * Parses the first {@code length} bytes of the buffer into {@code sensorData}, reusing its
+   * submessages where the wire data allows.
+   */
+  private boolean parseInto(GoosciSensor.SensorData sensorData, int length) {
+    // The required scalar fields are always overwritten.
+    sensorData.timestampKey = 0;
+    // Repeated fields are appended to on merge, so empty out the last batch's readings.
+    GoosciSensor.SensorDataBatch batch = sensorData.getBatch();
+    if (batch != null) {
+      batch.timestampDelta = WireFormatNano.EMPTY_INT_ARRAY;
+      batch.valueDelta = WireFormatNano.EMPTY_INT_ARRAY;
+    }
+    try {
+      mInput.rewindToPosition(0);
+      int oldLimit = mInput.pushLimit(length);
+      sensorData.mergeFrom(mInput);
+      mInput.popLimit(oldLimit);
+      clearAbsentOneofs(sensorData, length);
+      return true;
+    } catch (IOException e) {
+      // Start over with a fresh reader, in case the failure left it in an odd state.
+      mInput = CodedInputByteBufferNano.newInstance(mBuffer);
+      Log.e(TAG, "Failed to parse sensor value because " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Merging leaves a oneof alone if the message doesn't set it, so a message without a result
+   * (or with a Data without a value) would still show the previous message's.  Clearing the
+   * oneofs before merging would throw away the submessages we reuse, so instead this scans the
+   * first {@code length} bytes of the buffer for the oneof members, without allocating, and clears
+   * the ones that are missing.
+   */
+  private void clearAbsentOneofs(GoosciSensor.SensorData sensorData, int length)
+      throws IOException {
+    boolean hasResult = false;
+    boolean dataHasValue = false;
+    mInput.rewindToPosition(0);
+    int oldLimit = mInput.pushLimit(length);
+    int tag;
+    while ((tag = mInput.readTag()) != 0) {
+      int field = tag >>> TAG_TYPE_BITS;
+      if (field >= FIRST_ONEOF_FIELD) {
+        hasResult = true;
+      }
+      if (field == SENSOR_DATA_DATA_FIELD
+          && (tag & ((1 << TAG_TYPE_BITS) - 1)) == WIRETYPE_LENGTH_DELIMITED) {
+        int dataLimit = mInput.pushLimit(mInput.readRawVarint32());
+        int dataTag;
+        while ((dataTag = mInput.readTag()) != 0) {
+          if (dataTag >>> TAG_TYPE_BITS >= FIRST_ONEOF_FIELD) {
+            dataHasValue = true;
+          }
+          mInput.skipField(dataTag);
+        }
+        mInput.popLimit(dataLimit);
+      } else {
+        mInput.skipField(tag);
+      }
+    }
+    mInput.popLimit(oldLimit);
+
+    if (!hasResult) {
+      sensorData.clearResult();
+    } else if (sensorData.getData() != null && !dataHasValue) {
+      sensorData.getData().clearValue();
+    }
+  }
+
+  public void append(byte[] value) {
+    if (value == null || value.length < HEADER_SIZE) {
+      mFramingErrorCount++;
+      mFramingErrorMetric.increment();
+      return;
+    }
+    int offset = 0;
+    while (value.length - offset >= HEADER_SIZE) {
+      int len = value[offset] & 0xFF;
+      boolean last = value[offset + 1] == 1;
+      if (len == 0 && !last && offset > 0) {
+        // Padding after the last chunk.
+        return;
+      }
+      offset += HEADER_SIZE;
+
+      if (len > value.length - offset) {
+        // Truncated chunk; whatever message it belonged to can't be trusted.
+        mFramingErrorCount++;
+        mFramingErrorMetric.increment();
+        mLength = 0;
+        return;
+      }
+
+      ensureCapacity(mLength + len);
+      System.arraycopy(value, offset, mBuffer, mLength, len);
+      mLength += len;
+      offset += len;
+
+      if (!last) {
+        // A message only continues into the next notification from the end of this one.
+        return;
+      }
       parse();
     }
   }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= mBuffer.length) {
+      return;
+    }
+    byte[] newBuffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+    System.arraycopy(mBuffer, 0, newBuffer, 0, mLength);
+    mBuffer = newBuffer;
+    mInput = CodedInputByteBufferNano.newInstance(mBuffer);
+  }
+
+  /**
+   * @return the number of reassembled messages that could not be parsed.
+   */
+  public int getParseErrorCount() {
+    return mParseErrorCount;
+  }
+
+  /**
+   * @return the number of notifications that were too short for their declared length.
+   */
+  public int getFramingErrorCount() {
+    return mFramingErrorCount;
+  }
+
+  /**
+   * @return the number of parsed messages that didn't contain a value we could use.
+   */
+  public int getMissingValueCount() {
+    return mMissingValueCount;
+  }
+
+  @VisibleForTesting
+  int getBufferCapacity() {
+    return mBuffer.length;
+  }
 }
@@ -18,18 +18,25 @@ package com.google.android.apps.forscience.whistlepunk;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.javalib.Scheduler;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
 import com.google.android.apps.forscience.whistlepunk.wireapi.IRecorderController;
 import com.google.android.apps.forscience.whistlepunk.wireapi.IRecordingStateListener;
+import com.google.android.apps.forscience.whistlepunk.wireapi.ISensorBatchObserver;
 import com.google.android.apps.forscience.whistlepunk.wireapi.ISensorObserver;
+import com.google.android.apps.forscience.whistlepunk.wireapi.ISensorRingObserver;
 import com.google.android.apps.forscience.whistlepunk.wireapi.ISensorStatusListener;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
+import com.google.android.apps.forscience.whistlepunk.wireapi.SensorRing;
 import com.google.android.apps.forscience.whistlepunk.wireapi.TransportableSensorOptions;
 
+import java.io.IOException;
 import java.util.List;
 
 public class ProxyRecorderController extends IRecorderController.Stub {
@@ -37,17 +44,50 @@ public class ProxyRecorderController extends IRecorderController.Stub {
         public void checkBinderAllowed();
     }
 
+    /**
+     * Largest batch we'll send in one transaction.  At 16 bytes per reading, this stays far below
+     * the binder transaction buffer limit.
+     */
+    public static final int MAX_OBSERVER_BATCH_SIZE = 256;
+
+    /**
+     * Largest shared-memory ring we'll allocate, in records (about 1.5MB).
+     */
+    public static final int MAX_RING_CAPACITY = 64 * 1024;
+
     private final BindingPolicy mBindingPolicy;
     private final RecorderController mDelegate;
     private final FailureListener mFailureListener;
+    private Scheduler mScheduler;
     private String mSensorId = null;
     public String mObserverId = null;
+    private BatchingSensorObserver mBatchingObserver = null;
+    private SharedRegion.Allocator mSharedRegionAllocator = null;
+    private SharedRegion mSharedRegion = null;
+    private SharedRingStreamer mRingStreamer = null;
 
     public ProxyRecorderController(RecorderController delegate, BindingPolicy bindingPolicy,
             FailureListener failureListener) {
+        this(delegate, bindingPolicy, failureListener, null);
+    }
+
+    /**
+     * @param scheduler used to bound the latency of batched delivery.  If null, a main-thread
+     *                  scheduler is created when the first batched observer is added.
+     */
+    public ProxyRecorderController(RecorderController delegate, BindingPolicy bindingPolicy,
+            FailureListener failureListener, Scheduler scheduler) {
         mBindingPolicy = bindingPolicy;
         mDelegate = delegate;
         mFailureListener = failureListener;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Enables {@link #startObservingShared}, which is refused until an allocator is supplied.
+     */
+    public void setSharedRegionAllocator(SharedRegion.Allocator allocator) {
+        mSharedRegionAllocator = allocator;
     }
 
     @Override
@@ -65,6 +105,68 @@ public class ProxyRecorderController extends IRecorderController.Stub {
                 proxyStatusListener(listener, mFailureListener), initialOptions);
     }
 
+    @Override
+    public int getMaxObserverBatchSize() {
+        return MAX_OBSERVER_BATCH_SIZE;
+    }
+
+    @Override
+    public void startObservingBatched(String sensorId, ISensorBatchObserver observer,
+            ISensorStatusListener listener, TransportableSensorOptions initialOptions,
+            int maxBatchSize, int maxLatencyMillis) throws RemoteException {
+        mBindingPolicy.checkBinderAllowed();
+
+        if (mObserverId != null) {
+            throw new IllegalStateException("Already observing one sensor!");
+        }
+        mSensorId = sensorId;
+        mBatchingObserver = new BatchingSensorObserver(proxyBatchListener(observer),
+                getScheduler(), Math.min(maxBatchSize, MAX_OBSERVER_BATCH_SIZE),
+                maxLatencyMillis);
+        mObserverId = mDelegate.startObserving(sensorId, mBatchingObserver,
+                proxyStatusListener(listener, mFailureListener), initialOptions);
+    }
+
+    @Override
+    public ParcelFileDescriptor startObservingShared(String sensorId,
+            ISensorRingObserver observer, ISensorStatusListener listener,
+            TransportableSensorOptions initialOptions, int ringCapacity,
+            int maxWakeupLatencyMillis) throws RemoteException {
+        mBindingPolicy.checkBinderAllowed();
+
+        if (mObserverId != null) {
+            throw new IllegalStateException("Already observing one sensor!");
+        }
+        if (mSharedRegionAllocator == null) {
+            throw new IllegalStateException("Shared-memory streaming is not available");
+        }
+        int capacity = Math.max(1, Math.min(ringCapacity, MAX_RING_CAPACITY));
+        SharedRegion region;
+        try {
+            region = mSharedRegionAllocator.allocate(SensorRing.getRegionSize(capacity));
+        } catch (IOException e) {
+            mFailureListener.fail(e);
+            throw new IllegalStateException("Could not allocate shared memory");
+        }
+        SharedRingStreamer streamer = new SharedRingStreamer(
+                new SensorRing.Writer(region.getBuffer(), capacity), proxyWakeupListener(observer),
+                getScheduler(), maxWakeupLatencyMillis);
+        String observerId;
+        try {
+            observerId = mDelegate.startObserving(sensorId, streamer,
+                    proxyStatusListener(listener, mFailureListener), initialOptions);
+        } catch (RuntimeException e) {
+            // Don't leak the region, or leave this half-registered.
+            region.close();
+            throw e;
+        }
+        mSensorId = sensorId;
+        mSharedRegion = region;
+        mRingStreamer = streamer;
+        mObserverId = observerId;
+        return region.getReadOnlyDescriptor();
+    }
+
     @Override
     public void stopObserving(String sensorId) {
         if (!sensorId.equals(mSensorId)) {
@@ -72,6 +174,24 @@ public class ProxyRecorderController extends IRecorderController.Stub {
         }
         mDelegate.stopObserving(sensorId, mObserverId);
         mObserverId = null;
+        if (mBatchingObserver != null) {
+            // Don't strand the tail of the stream.
+            mBatchingObserver.flush();
+            mBatchingObserver = null;
+        }
+        if (mRingStreamer != null) {
+            mRingStreamer.close();
+            mRingStreamer = null;
+            mSharedRegion.close();
+            mSharedRegion = null;
+        }
+    }
+
+    private Scheduler getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = new SystemScheduler();
+        }
+        return mScheduler;
     }
 
     private SensorObserver proxyObserver(final ISensorObserver observer) {
@@ -93,6 +213,46 @@ public class ProxyRecorderController extends IRecorderController.Stub {
         };
     }
 
+    private BatchingSensorObserver.BatchListener proxyBatchListener(
+            final ISensorBatchObserver observer) {
+        return new BatchingSensorObserver.BatchListener() {
+            boolean mValid = true;
+
+            @Override
+            public void onNewDataBatch(long[] timestamps, double[] values, Bundle stats) {
+                if (!mValid) {
+                    return;
+                }
+                try {
+                    observer.onNewDataBatch(timestamps, values, stats);
+                } catch (RemoteException e) {
+                    mFailureListener.fail(e);
+                    mValid = false;
+                }
+            }
+        };
+    }
+
+    private SharedRingStreamer.WakeupListener proxyWakeupListener(
+            final ISensorRingObserver observer) {
+        return new SharedRingStreamer.WakeupListener() {
+            boolean mValid = true;
+
+            @Override
+            public void onDataAvailable(long publishedSequence, boolean closed) {
+                if (!mValid) {
+                    return;
+                }
+                try {
+                    observer.onDataAvailable(publishedSequence, closed);
+                } catch (RemoteException e) {
+                    mFailureListener.fail(e);
+                    mValid = false;
+                }
+            }
+        };
+    }
+
     // TODO: implement the rest
 
     @Override
@@ -30,7 +30,8 @@ import com.google.android.apps.forscience.whistlepunk.wireapi.ISensorStatusListe
 
 /**
  * Exports the current main-thread RecorderController as a service that other applications can bind
- * to.  Currently only supports startObserving and stopObserving for a single sensor
+ * to.  Currently only supports startObserving (or startObservingBatched, or startObservingShared)
+ * and stopObserving for a single sensor
  */
 public class PublicRecorderService extends Service implements FailureListener,
         ProxyRecorderController.BindingPolicy {
@@ -54,7 +55,9 @@ public class PublicRecorderService extends Service implements FailureListener,
     // TODO: unit tests for this behavior
     private IRecorderController.Stub createController() {
         final RecorderController rc = AppSingleton.getInstance(this).getRecorderController();
-        return new ProxyRecorderController(rc, this, this);
+        ProxyRecorderController controller = new ProxyRecorderController(rc, this, this);
+        controller.setSharedRegionAllocator(SharedRegion.inDirectory(getCacheDir()));
+        return controller;
     }
 
     /**
@@ -87,11 +87,19 @@ public class RecorderControllerImpl implements RecorderController {
         /**
          * @param runId id for the run that is starting, to allow out-of-band data saving
          */
-        public void startRecording(String runId) {
-            mRecorder.startRecording(runId);
+        public void armRecording(String runId) {
+            mRecorder.armRecording(runId);
             mRecording = true;
         }
 
+        public void setRecordingStart(long startMillis) {
+            mRecorder.setRecordingStart(startMillis);
+        }
+
+        public void setRecordingStop(long stopMillis) {
+            mRecorder.setRecordingStop(stopMillis);
+        }
+
 
         public void stopRecording() {
             mRecorder.stopRecording();
@@ -275,6 +283,10 @@ public class RecorderControllerImpl implements RecorderController {
             for (StatefulRecorder recorder : mRecorders.values()) {
                 recorder.stopObserving();
             }
+        } else {
+            // Keep recording at full rate, but stop sending every sample to a UI that isn't
+            // there.  The charts reload what they missed from the database on resume.
+            mRegistry.setHeadless(true);
         }
         return String.valueOf(mPauseCount);
     }
@@ -283,8 +295,10 @@ public class RecorderControllerImpl implements RecorderController {
     @Override
     public boolean resumeObservingAll(String pauseId) {
         if (!Objects.equals(pauseId, String.valueOf(mPauseCount))) {
+            // A later pause is still in effect.
             return false;
         }
+        mRegistry.setHeadless(false);
         if (!isRecording()) {
             for (StatefulRecorder recorder : mRecorders.values()) {
                 RecorderControllerImpl.this.startObserving(recorder);
@@ -323,8 +337,14 @@ public class RecorderControllerImpl implements RecorderController {
                 recorderService.beginServiceRecording(recording.getExperimentName(), resumeIntent);
             }
         });
+        // Two phases, so that every sensor's data starts at the same moment, no matter how long
+        // each one takes to get going: arm every recorder, and only then publish the start.
+        for (StatefulRecorder recorder : mRecorders.values()) {
+            recorder.armRecording(recording.getRunId());
+        }
+        long startMillis = mSensorEnvironment.getDefaultClock().getNow();
         for (StatefulRecorder recorder : mRecorders.values()) {
-            recorder.startRecording(recording.getRunId());
+            recorder.setRecordingStart(startMillis);
         }
         updateRecordingListeners();
     }
@@ -335,6 +355,12 @@ public class RecorderControllerImpl implements RecorderController {
             return;
         }
         mRecording = null;
+        // Likewise, publish a shared stop before stopping any recorder, so that sensors stopped
+        // later don't store data past the point where earlier ones stopped.
+        long stopMillis = mSensorEnvironment.getDefaultClock().getNow();
+        for (StatefulRecorder recorder : mRecorders.values()) {
+            recorder.setRecordingStop(stopMillis);
+        }
         for (StatefulRecorder recorder : mRecorders.values()) {
             recorder.stopRecording();
         }
@@ -395,6 +421,14 @@ public class RecorderControllerImpl implements RecorderController {
         return mRecording != null;
     }
 
+    /**
+     * @return true if recording continues with nobody in the foreground to watch it.
+     */
+    @VisibleForTesting
+    public boolean isHeadless() {
+        return mRegistry.isHeadless();
+    }
+
     @Override
     public void replaceExternalSensors(Map<String, ExternalSensorSpec> sensors) {
         mSensors.replaceExternalSensors(sensors);
@@ -18,16 +18,14 @@ package com.google.android.apps.forscience.whistlepunk;
 
 import android.os.Bundle;
 
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HeadlessCapableObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Objects;
 
 /**
  * Routes information flowing back from the recorders to the listeners (if any) in the foreground
@@ -36,10 +34,20 @@ import java.util.Objects;
  * Is itself a SensorStatusListener, and makes routing SensorObservers that can be handed to
  * recorders so that recorders don't have to care about UI elements coming and going.
  *
- * These methods should all only be called on the service's main thread.
+ * Registration methods should all only be called on the service's main thread.  Routing
+ * observers may be called on any thread: each sensor's listeners are kept in an array that is
+ * copied on every change and published through a volatile field, so delivering a sample is a
+ * plain loop, with no locking, hashing, or allocation, that never sees a half-made change.
+ *
+ * While headless (recording with nobody in the foreground), routing observers for sensors that
+ * have no listeners tell recorders to skip delivery, and just keep the sensor's latest sample,
+ * which is handed to the next listener added for that sensor.
  */
 public class RecorderListenerRegistry implements SensorStatusListener {
-    private Multimap<String, ListenerSet> mListeners = HashMultimap.create();
+    private static final ListenerSet[] NO_LISTENERS = new ListenerSet[0];
+
+    // Slots are never removed, so routing observers can hold onto theirs.
+    private final Map<String, ListenerSlot> mListeners = new HashMap<>();
 
     private static class ListenerSet {
         public final String observerId;
@@ -54,34 +62,80 @@ public class RecorderListenerRegistry implements SensorStatusListener {
         }
     }
 
+    private static class ListenerSlot {
+        // Never mutated in place; replaced with a modified copy instead.
+        volatile ListenerSet[] listeners = NO_LISTENERS;
+
+        // Latest sample seen while headless, guarded by the slot itself.  Kept as primitives,
+        // and only made into a Bundle when a listener is added.
+        long latestTimestamp;
+        double latestValue;
+        double latestMin;
+        double latestMax;
+        double latestAverage;
+        volatile boolean hasLatest = false;
+    }
+
     private Map<String, Integer> mCurrentStatus = new HashMap<>();
     private int mObserverCount = 0;
+    private volatile boolean mHeadless = false;
+
+    /**
+     * While headless, recorders for sensors with no listeners should skip delivering every
+     * sample, and just keep the latest one up to date.
+     */
+    public void setHeadless(boolean headless) {
+        mHeadless = headless;
+    }
+
+    public boolean isHeadless() {
+        return mHeadless;
+    }
 
     @Override
     public void onSourceStatus(String id, @Status int status) {
         mCurrentStatus.put(id, status);
-        for (ListenerSet set : mListeners.get(id)) {
+        for (ListenerSet set : getListeners(id)) {
             set.statusListener.onSourceStatus(id, status);
         }
     }
 
     @Override
     public void onSourceError(String id, @Error int error, String errorMessage) {
-        for (ListenerSet set : mListeners.get(id)) {
+        for (ListenerSet set : getListeners(id)) {
             set.statusListener.onSourceError(id, error, errorMessage);
         }
     }
 
+    private ListenerSet[] getListeners(String sensorId) {
+        ListenerSlot slot = mListeners.get(sensorId);
+        return slot == null ? NO_LISTENERS : slot.listeners;
+    }
+
+    private ListenerSlot getSlot(String sensorId) {
+        ListenerSlot slot = mListeners.get(sensorId);
+        if (slot == null) {
+            slot = new ListenerSlot();
+            mListeners.put(sensorId, slot);
+        }
+        return slot;
+    }
+
     public String putListeners(String sensorId, SensorObserver observer,
             SensorStatusListener listener) {
         String observerId = sensorId + (++mObserverCount);
 
-        mListeners.put(sensorId, new ListenerSet(observerId, listener, observer));
+        ListenerSlot slot = getSlot(sensorId);
+        ListenerSet[] oldListeners = slot.listeners;
+        ListenerSet[] newListeners = Arrays.copyOf(oldListeners, oldListeners.length + 1);
+        newListeners[oldListeners.length] = new ListenerSet(observerId, listener, observer);
+        slot.listeners = newListeners;
 
         Integer status = mCurrentStatus.get(sensorId);
         if (status != null) {
             listener.onSourceStatus(sensorId, status);
         }
+        replayLatestData(slot, observer);
         return observerId;
     }
 
@@ -89,28 +143,85 @@ public class RecorderListenerRegistry implements SensorStatusListener {
      * @return true iff we just removed the last observer
      */
     public boolean remove(String sensorId, String observerId) {
-        Collection<ListenerSet> sensorListeners = mListeners.get(sensorId);
-        int size = sensorListeners.size();
-        Iterator<ListenerSet> iterator = sensorListeners.iterator();
-        while (iterator.hasNext()) {
-            if (iterator.next().observerId.equals(observerId)) {
-                iterator.remove();
-                return size == 1;
+        ListenerSlot slot = mListeners.get(sensorId);
+        if (slot == null) {
+            return false;
+        }
+        ListenerSet[] oldListeners = slot.listeners;
+        for (int i = 0; i < oldListeners.length; i++) {
+            if (oldListeners[i].observerId.equals(observerId)) {
+                ListenerSet[] newListeners = new ListenerSet[oldListeners.length - 1];
+                System.arraycopy(oldListeners, 0, newListeners, 0, i);
+                System.arraycopy(oldListeners, i + 1, newListeners, i, newListeners.length - i);
+                slot.listeners = newListeners;
+                return newListeners.length == 0;
             }
         }
         return false;
     }
 
+    /**
+     * Hands a new listener whatever the sensor last reported while headless, so that it has
+     * something to show before the next sample arrives.
+     */
+    private void replayLatestData(ListenerSlot slot, SensorObserver observer) {
+        long timestamp;
+        double value;
+        double min;
+        double max;
+        double average;
+        synchronized (slot) {
+            if (!slot.hasLatest) {
+                return;
+            }
+            timestamp = slot.latestTimestamp;
+            value = slot.latestValue;
+            min = slot.latestMin;
+            max = slot.latestMax;
+            average = slot.latestAverage;
+        }
+        Bundle data = new Bundle();
+        ScalarSensor.putValue(data, value);
+        StatsAccumulator.addStatsToBundle(data, min, max, average);
+        observer.onNewData(timestamp, data);
+    }
+
     /**
      * Returns a new SensorObserver that routes new data to the currently-active UI listener, if
      * any, for the given sensor.
      */
-    public SensorObserver makeObserverForRecorder(final String sensorId) {
-        return new SensorObserver() {
+    public HeadlessCapableObserver makeObserverForRecorder(final String sensorId) {
+        final ListenerSlot slot = getSlot(sensorId);
+        return new HeadlessCapableObserver() {
             @Override
             public void onNewData(long timestamp, Bundle bundle) {
-                for (ListenerSet set : mListeners.get(sensorId)) {
-                    set.observer.onNewData(timestamp, bundle);
+                if (slot.hasLatest) {
+                    synchronized (slot) {
+                        slot.hasLatest = false;
+                    }
+                }
+                ListenerSet[] listeners = slot.listeners;
+                for (int i = 0; i < listeners.length; i++) {
+                    listeners[i].observer.onNewData(timestamp, bundle);
+                }
+            }
+
+            @Override
+            public boolean isHeadless() {
+                // Anyone still listening (like a remote observer) keeps getting every sample.
+                return mHeadless && slot.listeners.length == 0;
+            }
+
+            @Override
+            public void onLatestData(long timestamp, double value, double min, double max,
+                    double average) {
+                synchronized (slot) {
+                    slot.latestTimestamp = timestamp;
+                    slot.latestValue = value;
+                    slot.latestMin = min;
+                    slot.latestMax = max;
+                    slot.latestAverage = average;
+                    slot.hasLatest = true;
                 }
             }
         };
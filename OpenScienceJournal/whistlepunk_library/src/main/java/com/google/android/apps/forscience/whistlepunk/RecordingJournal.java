@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.support.v4.util.ArrayMap;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import com.google.android.apps.forscience.whistlepunk.data.GoosciRecordingJournal;
+import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
+import com.google.protobuf.nano.MessageNano;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Write-ahead record of the recording in progress.  Written as soon as a run starts, and
+ * checkpointed as readings are stored, so that if the process dies before the run is stopped,
+ * the run can be reconstructed at the next startup (see {@link InterruptedRunRecovery}).
+ *
+ * Methods may be called from any thread.
+ */
+public class RecordingJournal {
+    private static final String TAG = "RecordingJournal";
+
+    /**
+     * How often, at most, to write a checkpoint while readings are arriving.
+     */
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 5000;
+
+    public interface Storage {
+        /**
+         * @return the bytes most recently written, or null if there are none.
+         */
+        byte[] read() throws IOException;
+
+        /**
+         * Replaces the stored bytes.  Must be atomic: after a crash, read returns either the old
+         * bytes or the new ones.
+         */
+        void write(byte[] bytes) throws IOException;
+
+        void clear();
+    }
+
+    public static Storage fileStorage(File file) {
+        final AtomicFile atomicFile = new AtomicFile(file);
+        return new Storage() {
+            @Override
+            public byte[] read() throws IOException {
+                try {
+                    return atomicFile.readFully();
+                } catch (FileNotFoundException e) {
+                    return null;
+                }
+            }
+
+            @Override
+            public void write(byte[] bytes) throws IOException {
+                FileOutputStream stream = atomicFile.startWrite();
+                try {
+                    stream.write(bytes);
+                    atomicFile.finishWrite(stream);
+                } catch (IOException e) {
+                    atomicFile.failWrite(stream);
+                    throw e;
+                }
+            }
+
+            @Override
+            public void clear() {
+                atomicFile.delete();
+            }
+        };
+    }
+
+    private final Storage mStorage;
+    private final Clock mClock;
+    private GoosciRecordingJournal.RecordingJournal mJournal = null;
+    private final ArrayMap<String, GoosciRecordingJournal.RecordingJournal.SensorCheckpoint>
+            mSensors = new ArrayMap<>();
+    private long mLastCheckpointMillis;
+
+    public RecordingJournal(Storage storage, Clock clock) {
+        mStorage = storage;
+        mClock = clock;
+    }
+
+    /**
+     * Records that a run has started, before any of its data is stored.
+     */
+    public synchronized void begin(String experimentId, String runId, long startTimestamp) {
+        mJournal = new GoosciRecordingJournal.RecordingJournal();
+        mJournal.experimentId = experimentId;
+        mJournal.runId = runId;
+        mJournal.startTimestamp = startTimestamp;
+        mSensors.clear();
+        checkpoint();
+    }
+
+    /**
+     * Notes a tier-0 reading that has been stored, and checkpoints if it's been a while.
+     */
+    public synchronized void onReadingStored(String sensorId, long timestampMillis,
+            double value) {
+        if (mJournal == null) {
+            return;
+        }
+        GoosciRecordingJournal.RecordingJournal.SensorCheckpoint sensor = mSensors.get(sensorId);
+        if (sensor == null) {
+            sensor = new GoosciRecordingJournal.RecordingJournal.SensorCheckpoint();
+            sensor.sensorId = sensorId;
+            sensor.min = value;
+            sensor.max = value;
+            mSensors.put(sensorId, sensor);
+        }
+        sensor.lastTimestamp = timestampMillis;
+        sensor.count++;
+        sensor.min = Math.min(sensor.min, value);
+        sensor.max = Math.max(sensor.max, value);
+        sensor.sum += value;
+
+        if (mClock.getNow() - mLastCheckpointMillis >= CHECKPOINT_INTERVAL_MILLIS) {
+            checkpoint();
+        }
+    }
+
+    private void checkpoint() {
+        mLastCheckpointMillis = mClock.getNow();
+        mJournal.checkpointTimestamp = mLastCheckpointMillis;
+        mJournal.sensors = mSensors.values().toArray(
+                new GoosciRecordingJournal.RecordingJournal.SensorCheckpoint[mSensors.size()]);
+        try {
+            mStorage.write(MessageNano.toByteArray(mJournal));
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Could not write recording journal", e);
+            }
+        }
+    }
+
+    /**
+     * Records that the run has been stopped and saved normally.
+     */
+    public synchronized void end() {
+        mJournal = null;
+        mSensors.clear();
+        mStorage.clear();
+    }
+
+    /**
+     * @return true if a run begun in this process hasn't ended yet.
+     */
+    public synchronized boolean isActive() {
+        return mJournal != null;
+    }
+
+    /**
+     * @return the journal of a run that was never ended, or null if there is none (or if a run
+     * begun in this process is still going).
+     */
+    public synchronized GoosciRecordingJournal.RecordingJournal readInterrupted() {
+        if (mJournal != null) {
+            return null;
+        }
+        try {
+            byte[] bytes = mStorage.read();
+            if (bytes == null) {
+                return null;
+            }
+            return GoosciRecordingJournal.RecordingJournal.parseFrom(bytes);
+        } catch (InvalidProtocolBufferNanoException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Discarding unreadable recording journal", e);
+            }
+            mStorage.clear();
+            return null;
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.ERROR)) {
+                Log.e(TAG, "Could not read recording journal", e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Forgets an interrupted run, once it has been recovered (or can't be).
+     */
+    public synchronized void discardInterrupted() {
+        if (mJournal == null) {
+            mStorage.clear();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingRequest;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects the reading requests made during one pass of the UI thread (for example, by the
+ * GraphPopulators of every series in a chart when it scrolls) and sends them to the
+ * DataController as a single batch, so that they share one trip to the database thread.
+ *
+ * Populators that are answered by the same batch make their follow-up requests together, so
+ * they stay batched until they are done.
+ *
+ * Call only on the UI thread.
+ */
+public class ScalarReadingBatcher implements GraphPopulator.ReadingSource {
+    private final DataController mDataController;
+    private final Executor mUiThread;
+    private List<ScalarReadingRequest> mPendingRequests = new ArrayList<>();
+    private List<MaybeConsumer<ScalarReadingList>> mPendingConsumers = new ArrayList<>();
+
+    public ScalarReadingBatcher(DataController dataController) {
+        this(dataController, AppSingleton.getUiThreadExecutor());
+    }
+
+    /**
+     * @param uiThread the batch is sent from a task posted here, after the requests made in the
+     *                 current task have been collected.
+     */
+    public ScalarReadingBatcher(DataController dataController, Executor uiThread) {
+        mDataController = dataController;
+        mUiThread = uiThread;
+    }
+
+    public DataController getDataController() {
+        return mDataController;
+    }
+
+    @Override
+    public void getScalarReadings(String databaseTag, int resolutionTier, TimeRange timeRange,
+            int maxRecords, MaybeConsumer<ScalarReadingList> onSuccess) {
+        mPendingRequests.add(
+                new ScalarReadingRequest(databaseTag, resolutionTier, timeRange, maxRecords));
+        mPendingConsumers.add(onSuccess);
+        if (mPendingRequests.size() == 1) {
+            mUiThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendPendingRequests();
+                }
+            });
+        }
+    }
+
+    private void sendPendingRequests() {
+        final List<MaybeConsumer<ScalarReadingList>> consumers = mPendingConsumers;
+        List<ScalarReadingRequest> requests = mPendingRequests;
+        mPendingRequests = new ArrayList<>();
+        mPendingConsumers = new ArrayList<>();
+        mDataController.getScalarReadingsBatch(requests,
+                new MaybeConsumer<List<ScalarReadingList>>() {
+                    @Override
+                    public void success(List<ScalarReadingList> results) {
+                        for (int i = 0; i < consumers.size(); i++) {
+                            consumers.get(i).success(results.get(i));
+                        }
+                    }
+
+                    @Override
+                    public void fail(Exception e) {
+                        for (MaybeConsumer<ScalarReadingList> consumer : consumers) {
+                            consumer.fail(e);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A block of memory that this process writes, and that another process can map read-only through
+ * a file descriptor.
+ */
+public class SharedRegion {
+    public interface Allocator {
+        SharedRegion allocate(int size) throws IOException;
+    }
+
+    private final ByteBuffer mBuffer;
+    private final ParcelFileDescriptor mReadOnlyDescriptor;
+
+    public SharedRegion(ByteBuffer buffer, ParcelFileDescriptor readOnlyDescriptor) {
+        mBuffer = buffer;
+        mReadOnlyDescriptor = readOnlyDescriptor;
+    }
+
+    /**
+     * @return an allocator that maps regions from files in {@code directory}.
+     *
+     * The file is unlinked as soon as it is mapped, so nothing is left behind if we crash, and
+     * nobody else can open it; the only ways in are our mapping and the descriptor we hand out.
+     * (MemoryFile's descriptor isn't public API on the versions we support, so we can't hand out
+     * ashmem directly; both processes share the same page-cache pages either way.)
+     */
+    public static Allocator inDirectory(final File directory) {
+        return new Allocator() {
+            @Override
+            public SharedRegion allocate(int size) throws IOException {
+                File file = File.createTempFile("sensor_ring", null, directory);
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.setLength(size);
+                        // The mapping stays valid after the file is closed.
+                        ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                size);
+                        return new SharedRegion(buffer, ParcelFileDescriptor.open(file,
+                                ParcelFileDescriptor.MODE_READ_ONLY));
+                    } finally {
+                        raf.close();
+                    }
+                } finally {
+                    file.delete();
+                }
+            }
+        };
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return a descriptor that can be passed to another process to map this region read-only,
+     * or null if this region can't be shared (as in tests).
+     */
+    public ParcelFileDescriptor getReadOnlyDescriptor() {
+        return mReadOnlyDescriptor;
+    }
+
+    public void close() {
+        if (mReadOnlyDescriptor == null) {
+            return;
+        }
+        try {
+            mReadOnlyDescriptor.close();
+        } catch (IOException e) {
+            // Already closed, most likely by being sent.
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.os.Bundle;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
+import com.google.android.apps.forscience.whistlepunk.wireapi.SensorRing;
+
+/**
+ * Writes scalar readings into a {@link SensorRing}, and wakes up the reader no more often than
+ * once per wakeup interval.  Like other SensorObservers, all calls (including the scheduled
+ * wakeups) are expected on the main thread.
+ */
+public class SharedRingStreamer implements SensorObserver {
+    public interface WakeupListener {
+        void onDataAvailable(long publishedSequence, boolean closed);
+    }
+
+    private final SensorRing.Writer mWriter;
+    private final WakeupListener mListener;
+    private final Scheduler mScheduler;
+    private final Delay mMaxWakeupLatency;
+    private boolean mWakeupPending = false;
+    private boolean mClosed = false;
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            mWakeupPending = false;
+            if (!mClosed) {
+                mListener.onDataAvailable(mWriter.getPublishedSequence(), false);
+            }
+        }
+    };
+
+    public SharedRingStreamer(SensorRing.Writer writer, WakeupListener listener,
+            Scheduler scheduler, int maxWakeupLatencyMillis) {
+        mWriter = writer;
+        mListener = listener;
+        mScheduler = scheduler;
+        mMaxWakeupLatency = Delay.millis(Math.max(0, maxWakeupLatencyMillis));
+    }
+
+    @Override
+    public void onNewData(long timestamp, Bundle data) {
+        if (mClosed) {
+            return;
+        }
+        mWriter.append(timestamp, ScalarSensor.getValue(data));
+        if (!mWakeupPending) {
+            mWakeupPending = true;
+            mScheduler.schedule(mMaxWakeupLatency, mWakeup);
+        }
+    }
+
+    /**
+     * Marks the ring closed, and tells the reader right away, so it can drain what's left.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mWriter.close();
+        mListener.onDataAvailable(mWriter.getPublishedSequence(), true);
+    }
+}
@@ -143,14 +143,30 @@ public class StatsAccumulator {
         }
     }
 
-    private double getAverage() {
+    public double getMin() {
+        return mMin;
+    }
+
+    public double getMax() {
+        return mMax;
+    }
+
+    public double getAverage() {
         return mSum / mStatSize;
     }
 
     public void addStatsToBundle(Bundle data) {
-        data.putDouble(KEY_MIN, mMin);
-        data.putDouble(KEY_MAX, mMax);
-        data.putDouble(KEY_AVERAGE, getAverage());
+        addStatsToBundle(data, mMin, mMax, getAverage());
+    }
+
+    /**
+     * Puts stats into a bundle in the same form as {@link #addStatsToBundle(Bundle)}, for stats
+     * that were read on another thread.
+     */
+    public static void addStatsToBundle(Bundle data, double min, double max, double average) {
+        data.putDouble(KEY_MIN, min);
+        data.putDouble(KEY_MAX, max);
+        data.putDouble(KEY_AVERAGE, average);
     }
 
     public void updateDisplayDirectly(StatsDisplay display) {
@@ -30,6 +30,12 @@ public interface ExternalSensorDiscoverer {
         boolean isSensorAlreadyKnown(String key);
 
         void addAvailableSensorPreference(Preference newPref);
+
+        /**
+         * Removes a preference added by {@link #addAvailableSensorPreference(Preference)}, for a
+         * sensor that is no longer available.
+         */
+        void removeAvailableSensorPreference(String key);
     }
 
     /**
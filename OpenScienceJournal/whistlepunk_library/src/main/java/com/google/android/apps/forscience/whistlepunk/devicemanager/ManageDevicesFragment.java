@@ -225,6 +225,14 @@ public class ManageDevicesFragment extends PreferenceFragment {
             public void addAvailableSensorPreference(Preference newPref) {
                 mAvailableDevices.addPreference(newPref);
             }
+
+            @Override
+            public void removeAvailableSensorPreference(String key) {
+                Preference preference = getDevicePreference(mAvailableDevices, key);
+                if (preference != null) {
+                    mAvailableDevices.removePreference(preference);
+                }
+            }
         };
 
         boolean started = false;
@@ -20,6 +20,7 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.preference.Preference;
 import android.support.annotation.NonNull;
+import android.support.v4.util.ArrayMap;
 
 import com.google.android.apps.forscience.ble.DeviceDiscoverer;
 import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
@@ -30,6 +31,8 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpe
  */
 public class NativeBleDiscoverer implements ExternalSensorDiscoverer {
     private DeviceDiscoverer mDeviceDiscoverer;
+    // Preferences we've added to the "available" list, by address.
+    private final ArrayMap<String, Preference> mAvailablePreferences = new ArrayMap<>();
 
     @Override
     @NonNull
@@ -55,6 +58,24 @@ public class NativeBleDiscoverer implements ExternalSensorDiscoverer {
                 onDeviceRecordFound(context, record, sensorPrefCallbacks);
             }
 
+            @Override
+            public void onDeviceUpdated(DeviceDiscoverer.DeviceRecord record) {
+                Preference preference = mAvailablePreferences.get(record.device.getAddress());
+                // The long name from the scan record, which is what ScanCache found changed.
+                String name = record.toString();
+                if (preference != null && name != null && !name.equals(preference.getTitle())) {
+                    preference.setTitle(name);
+                }
+            }
+
+            @Override
+            public void onDeviceLost(DeviceDiscoverer.DeviceRecord record) {
+                String address = record.device.getAddress();
+                if (mAvailablePreferences.remove(address) != null) {
+                    sensorPrefCallbacks.removeAvailableSensorPreference(address);
+                }
+            }
+
             @Override
             public void onError(int error) {
                 // TODO: handle errors
@@ -69,6 +90,7 @@ public class NativeBleDiscoverer implements ExternalSensorDiscoverer {
             mDeviceDiscoverer.stopScanning();
             mDeviceDiscoverer = null;
         }
+        mAvailablePreferences.clear();
     }
 
     private void onDeviceRecordFound(Context context, DeviceDiscoverer.DeviceRecord record,
@@ -83,6 +105,7 @@ public class NativeBleDiscoverer implements ExternalSensorDiscoverer {
                     BleSensorSpec.TYPE, false, context);
             newPref.setWidgetLayoutResource(0);
             sensorPrefCallbacks.addAvailableSensorPreference(newPref);
+            mAvailablePreferences.put(address, newPref);
         }
     }
 }
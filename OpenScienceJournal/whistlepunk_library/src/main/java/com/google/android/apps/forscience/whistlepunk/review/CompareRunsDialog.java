@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.review;
+
+import android.app.AlertDialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.os.Bundle;
+
+import com.google.android.apps.forscience.whistlepunk.R;
+
+import java.util.ArrayList;
+
+/**
+ * DialogFragment for choosing which other runs of the experiment to draw over the one being
+ * reviewed.
+ */
+public class CompareRunsDialog extends DialogFragment {
+    public static final String TAG = "compare_runs_dialog";
+
+    private static final String KEY_RUN_IDS = "run_ids";
+    private static final String KEY_RUN_TITLES = "run_titles";
+    private static final String KEY_CHECKED = "checked";
+
+    public interface CompareRunsDialogListener {
+        public void onComparedRunsChosen(ArrayList<String> runIds);
+    }
+
+    /**
+     * @param runIds the runs that can be compared
+     * @param runTitles the titles to show for them
+     * @param checked which of them are being compared now
+     */
+    public static CompareRunsDialog newInstance(String[] runIds, String[] runTitles,
+            boolean[] checked) {
+        CompareRunsDialog dialog = new CompareRunsDialog();
+        Bundle args = new Bundle();
+        args.putStringArray(KEY_RUN_IDS, runIds);
+        args.putStringArray(KEY_RUN_TITLES, runTitles);
+        args.putBooleanArray(KEY_CHECKED, checked);
+        dialog.setArguments(args);
+        return dialog;
+    }
+
+    public CompareRunsDialog() {
+    }
+
+    @Override
+    public AlertDialog onCreateDialog(Bundle savedInstanceState) {
+        final String[] runIds = getArguments().getStringArray(KEY_RUN_IDS);
+        final boolean[] checked = savedInstanceState != null
+                ? savedInstanceState.getBooleanArray(KEY_CHECKED)
+                : getArguments().getBooleanArray(KEY_CHECKED);
+        AlertDialog.Builder alertDialog = new AlertDialog.Builder(getActivity());
+        alertDialog.setTitle(R.string.compare_runs_dialog_title);
+        alertDialog.setMultiChoiceItems(getArguments().getStringArray(KEY_RUN_TITLES), checked,
+                new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        checked[which] = isChecked;
+                    }
+                });
+        alertDialog.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                ArrayList<String> chosen = new ArrayList<>();
+                for (int i = 0; i < runIds.length; i++) {
+                    if (checked[i]) {
+                        chosen.add(runIds[i]);
+                    }
+                }
+                ((CompareRunsDialogListener) getParentFragment()).onComparedRunsChosen(chosen);
+            }
+        });
+        alertDialog.setNegativeButton(android.R.string.cancel,
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dialog.cancel();
+                    }
+                });
+        alertDialog.setCancelable(true);
+        return alertDialog.create();
+    }
+}
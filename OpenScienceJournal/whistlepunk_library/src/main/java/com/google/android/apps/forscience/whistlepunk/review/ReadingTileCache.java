@@ -0,0 +1,401 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.review;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.LruCache;
+
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.AppSingleton;
+import com.google.android.apps.forscience.whistlepunk.GraphPopulator;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the readings of completed runs in memory, so that panning and zooming back over parts of
+ * a run that were already loaded doesn't go back to the database.
+ *
+ * Readings are cached in tiles: fixed stretches of time, with widths chosen per resolution tier
+ * so that each tile holds about {@link #READINGS_PER_TILE} readings.  A request is answered
+ * from the tiles that cover it, and only the missing tiles are fetched, each run of adjacent
+ * missing tiles in a single query.  The readings of a
+ * completed run never change, so tiles are only dropped when the cache is full (least recently
+ * used first), or when {@link #invalidateRun(String)} is called.
+ *
+ * Call only on the UI thread.
+ */
+public class ReadingTileCache {
+    // About how many readings should each tile hold?
+    @VisibleForTesting
+    static final int READINGS_PER_TILE = 500;
+
+    // At 16 bytes per reading, about 1.6MB.
+    private static final int DEFAULT_MAX_CACHED_READINGS = 100000;
+
+    private final LruCache<TileKey, Tile> mTiles;
+    private final Executor mUiThread;
+
+    public ReadingTileCache() {
+        this(DEFAULT_MAX_CACHED_READINGS, AppSingleton.getUiThreadExecutor());
+    }
+
+    /**
+     * @param uiThread answers that come straight from the cache are delivered from a task posted
+     *                 here, as if they had come from the database.
+     */
+    @VisibleForTesting
+    public ReadingTileCache(int maxCachedReadings, Executor uiThread) {
+        mTiles = new LruCache<TileKey, Tile>(maxCachedReadings) {
+            @Override
+            protected int sizeOf(TileKey key, Tile tile) {
+                return Math.max(1, tile.size());
+            }
+        };
+        mUiThread = uiThread;
+    }
+
+    /**
+     * @return a source for the readings of a completed run, which answers from the cache where
+     * it can, and fetches missing tiles from {@code source}.  Requests at tiers for which
+     * {@code zoomPresenter} can't tell the tile width are passed straight through.
+     */
+    public GraphPopulator.ReadingSource forRun(final String runId,
+            final ZoomPresenter zoomPresenter, final GraphPopulator.ReadingSource source) {
+        return new GraphPopulator.ReadingSource() {
+            @Override
+            public void getScalarReadings(String databaseTag, int resolutionTier,
+                    TimeRange timeRange, int maxRecords,
+                    MaybeConsumer<ScalarReadingList> onSuccess) {
+                long tileMillis = zoomPresenter.getMillisForReadings(resolutionTier,
+                        READINGS_PER_TILE);
+                Range<Long> times = timeRange.getTimes().canonical(DiscreteDomain.longs());
+                if (tileMillis <= 0 || !times.hasLowerBound() || !times.hasUpperBound()
+                        || timeRange.getOrder() != TimeRange.ObservationOrder.OLDEST_FIRST) {
+                    source.getScalarReadings(databaseTag, resolutionTier, timeRange,
+                            maxRecords, onSuccess);
+                    return;
+                }
+                new TiledRequest(runId, databaseTag, resolutionTier, tileMillis,
+                        times.lowerEndpoint(), times.upperEndpoint(), maxRecords, source,
+                        onSuccess).fill();
+            }
+        };
+    }
+
+    /**
+     * Drops every cached tile of the run, for example because it was deleted.
+     */
+    public void invalidateRun(String runId) {
+        for (TileKey key : mTiles.snapshot().keySet()) {
+            if (key.mRunId.equals(runId)) {
+                mTiles.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        mTiles.evictAll();
+    }
+
+    /**
+     * Collects the tiles covering [mMinTime, mMaxTime) in order, fetching the missing ones a run
+     * at a time, until there are enough readings to answer the request.
+     */
+    private class TiledRequest {
+        private final String mRunId;
+        private final String mDatabaseTag;
+        private final int mResolutionTier;
+        private final long mTileMillis;
+        private final long mMinTime;
+        private final long mMaxTime;
+        private final int mMaxRecords;
+        private final GraphPopulator.ReadingSource mSource;
+        private final MaybeConsumer<ScalarReadingList> mOnSuccess;
+
+        // Holding on to the tiles, so that they can't be evicted before they're copied.
+        private final List<Tile> mCollectedTiles = new ArrayList<>();
+        private long mNextTileIndex;
+        private int mCollectedReadings = 0;
+        private boolean mFetchedAny = false;
+
+        TiledRequest(String runId, String databaseTag, int resolutionTier, long tileMillis,
+                long minTime, long maxTime, int maxRecords, GraphPopulator.ReadingSource source,
+                MaybeConsumer<ScalarReadingList> onSuccess) {
+            mRunId = runId;
+            mDatabaseTag = databaseTag;
+            mResolutionTier = resolutionTier;
+            mTileMillis = tileMillis;
+            mMinTime = minTime;
+            mMaxTime = maxTime;
+            mMaxRecords = maxRecords;
+            mSource = source;
+            mOnSuccess = onSuccess;
+            mNextTileIndex = tileIndex(minTime);
+        }
+
+        void fill() {
+            while (mNextTileIndex * mTileMillis < mMaxTime && !hasEnough()) {
+                Tile tile = mTiles.get(tileKey(mNextTileIndex));
+                if (tile == null) {
+                    fetch(mNextTileIndex, endOfMissingRun());
+                    return;
+                }
+                collect(tile);
+            }
+            final ScalarReadingList result = assemble();
+            if (mFetchedAny) {
+                // Already on the UI thread, in the last fetch's callback.
+                mOnSuccess.success(result);
+            } else {
+                mUiThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mOnSuccess.success(result);
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return the index just past the run of missing tiles that starts at mNextTileIndex.  The
+         * run stops at the first cached tile, at the end of the request, or once it has about
+         * enough tiles to hold the readings that are still needed.
+         */
+        private long endOfMissingRun() {
+            long limit = tileIndex(mMaxTime - 1) + 1;
+            if (mMaxRecords > 0) {
+                int tilesNeeded = (mMaxRecords - mCollectedReadings + READINGS_PER_TILE - 1)
+                        / READINGS_PER_TILE;
+                limit = Math.min(limit, mNextTileIndex + Math.max(1, tilesNeeded));
+            }
+            long end = mNextTileIndex + 1;
+            while (end < limit && mTiles.get(tileKey(end)) == null) {
+                end++;
+            }
+            return end;
+        }
+
+        /**
+         * Fetches tiles [firstIndex, endIndex) in one query, and splits the answer into tiles.
+         */
+        private void fetch(final long firstIndex, final long endIndex) {
+            TimeRange runRange = TimeRange.oldest(
+                    Range.closedOpen(firstIndex * mTileMillis, endIndex * mTileMillis));
+            // Fetch the whole tiles, however many readings they turn out to have.
+            mSource.getScalarReadings(mDatabaseTag, mResolutionTier, runRange, 0,
+                    new MaybeConsumer<ScalarReadingList>() {
+                        @Override
+                        public void success(ScalarReadingList readings) {
+                            Tile run = Tile.copyOf(readings);
+                            for (long index = firstIndex; index < endIndex; index++) {
+                                long tileStart = index * mTileMillis;
+                                Tile tile = run.between(tileStart, tileStart + mTileMillis);
+                                mTiles.put(tileKey(index), tile);
+                                collect(tile);
+                            }
+                            mFetchedAny = true;
+                            fill();
+                        }
+
+                        @Override
+                        public void fail(Exception e) {
+                            mOnSuccess.fail(e);
+                        }
+                    });
+        }
+
+        private void collect(Tile tile) {
+            mCollectedTiles.add(tile);
+            mCollectedReadings += tile.countBetween(mMinTime, mMaxTime);
+            mNextTileIndex++;
+        }
+
+        private boolean hasEnough() {
+            return mMaxRecords > 0 && mCollectedReadings >= mMaxRecords;
+        }
+
+        private ScalarReadingList assemble() {
+            int count = mMaxRecords > 0 ? Math.min(mMaxRecords, mCollectedReadings)
+                    : mCollectedReadings;
+            long[] timestamps = new long[count];
+            double[] values = new double[count];
+            int copied = 0;
+            for (Tile tile : mCollectedTiles) {
+                copied += tile.copyBetween(mMinTime, mMaxTime, timestamps, values, copied);
+            }
+            return new Tile(timestamps, values, count);
+        }
+
+        private TileKey tileKey(long tileIndex) {
+            return new TileKey(mRunId, mDatabaseTag, mResolutionTier, mTileMillis, tileIndex);
+        }
+
+        private long tileIndex(long timestamp) {
+            long index = timestamp / mTileMillis;
+            return timestamp < 0 && index * mTileMillis != timestamp ? index - 1 : index;
+        }
+    }
+
+    private static class TileKey {
+        private final String mRunId;
+        private final String mDatabaseTag;
+        private final int mResolutionTier;
+        private final long mTileMillis;
+        private final long mTileIndex;
+
+        TileKey(String runId, String databaseTag, int resolutionTier, long tileMillis,
+                long tileIndex) {
+            mRunId = runId;
+            mDatabaseTag = databaseTag;
+            mResolutionTier = resolutionTier;
+            mTileMillis = tileMillis;
+            mTileIndex = tileIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return mResolutionTier == other.mResolutionTier && mTileMillis == other.mTileMillis
+                    && mTileIndex == other.mTileIndex && mRunId.equals(other.mRunId)
+                    && mDatabaseTag.equals(other.mDatabaseTag);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mRunId.hashCode();
+            result = 31 * result + mDatabaseTag.hashCode();
+            result = 31 * result + mResolutionTier;
+            result = 31 * result + (int) (mTileMillis ^ (mTileMillis >>> 32));
+            result = 31 * result + (int) (mTileIndex ^ (mTileIndex >>> 32));
+            return result;
+        }
+    }
+
+    /**
+     * Readings in timestamp order, in primitive arrays.
+     */
+    private static class Tile implements ScalarReadingList {
+        private final long[] mTimestamps;
+        private final double[] mValues;
+        private final int mCount;
+
+        Tile(long[] timestamps, double[] values, int count) {
+            mTimestamps = timestamps;
+            mValues = values;
+            mCount = count;
+        }
+
+        static Tile copyOf(ScalarReadingList readings) {
+            final long[] timestamps = new long[readings.size()];
+            final double[] values = new double[readings.size()];
+            readings.deliver(new StreamConsumer() {
+                int mIndex = 0;
+
+                @Override
+                public void addData(long timestampMillis, double value) {
+                    timestamps[mIndex] = timestampMillis;
+                    values[mIndex] = value;
+                    mIndex++;
+                }
+            });
+            return new Tile(timestamps, values, timestamps.length);
+        }
+
+        /**
+         * @return a new tile with the readings from minTime (inclusive) to maxTime (exclusive)
+         */
+        Tile between(long minTime, long maxTime) {
+            int start = firstIndexAtOrAfter(minTime);
+            int end = firstIndexAtOrAfter(maxTime);
+            return new Tile(Arrays.copyOfRange(mTimestamps, start, end),
+                    Arrays.copyOfRange(mValues, start, end), end - start);
+        }
+
+        int countBetween(long minTime, long maxTime) {
+            return firstIndexAtOrAfter(maxTime) - firstIndexAtOrAfter(minTime);
+        }
+
+        /**
+         * Copies the readings from minTime (inclusive) to maxTime (exclusive) into the arrays,
+         * starting at offset, as far as there is room.
+         *
+         * @return how many were copied
+         */
+        int copyBetween(long minTime, long maxTime, long[] timestamps, double[] values,
+                int offset) {
+            int start = firstIndexAtOrAfter(minTime);
+            int count = Math.min(firstIndexAtOrAfter(maxTime) - start,
+                    timestamps.length - offset);
+            if (count <= 0) {
+                return 0;
+            }
+            System.arraycopy(mTimestamps, start, timestamps, offset, count);
+            System.arraycopy(mValues, start, values, offset, count);
+            return count;
+        }
+
+        private int firstIndexAtOrAfter(long timestamp) {
+            int low = 0;
+            int high = mCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mTimestamps[mid] < timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public void deliver(StreamConsumer c) {
+            for (int i = 0; i < mCount; i++) {
+                c.addData(mTimestamps[i], mValues[i]);
+            }
+        }
+
+        @Override
+        public int size() {
+            return mCount;
+        }
+
+        @Override
+        public List<ChartData.DataPoint> asDataPoints() {
+            List<ChartData.DataPoint> result = new ArrayList<>(mCount);
+            for (int i = 0; i < mCount; i++) {
+                result.add(new ChartData.DataPoint(mTimestamps[i], mValues[i]));
+            }
+            return result;
+        }
+    }
+}
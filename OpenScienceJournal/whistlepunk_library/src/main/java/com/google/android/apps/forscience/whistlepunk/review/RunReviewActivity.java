@@ -29,6 +29,10 @@ import com.google.android.apps.forscience.whistlepunk.PictureUtils;
 import com.google.android.apps.forscience.whistlepunk.R;
 import com.google.android.apps.forscience.whistlepunk.intro.AgeVerifier;
 import com.google.android.apps.forscience.whistlepunk.project.MetadataActivity;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartMetrics;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class RunReviewActivity extends MetadataActivity {
     public static final String EXTRA_FROM_RECORD = "from_record_activity";
@@ -126,4 +130,10 @@ public class RunReviewActivity extends MetadataActivity {
         }
         super.onBackPressed();
     }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ChartMetrics.dump(prefix, writer);
+    }
 }
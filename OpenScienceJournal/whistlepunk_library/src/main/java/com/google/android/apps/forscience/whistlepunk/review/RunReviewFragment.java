@@ -51,6 +51,7 @@ import com.google.android.apps.forscience.whistlepunk.AccessibilityUtils;
 import com.google.android.apps.forscience.whistlepunk.AddNoteDialog;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.AudioSettingsDialog;
+import com.google.android.apps.forscience.whistlepunk.ColorAllocator;
 import com.google.android.apps.forscience.whistlepunk.CurrentTimeClock;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.EditNoteDialog;
@@ -62,6 +63,7 @@ import com.google.android.apps.forscience.whistlepunk.audiogen.AudioPlaybackCont
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartOptions;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartSeries;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartView;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.GraphOptionsController;
 import com.google.android.apps.forscience.whistlepunk.LoggingConsumer;
@@ -98,7 +100,7 @@ import java.util.List;
 public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNoteDialogListener,
         EditNoteDialog.EditNoteDialogListener, EditTimeDialogListener,
         DeleteRunDialog.DeleteRunDialogListener, AudioSettingsDialog.AudioSettingsDialogListener,
-        ChartController.ChartLoadingStatus {
+        CompareRunsDialog.CompareRunsDialogListener, ChartController.ChartLoadingStatus {
     public static final String ARG_START_LABEL_ID = "start_label_id";
     public static final String ARG_SENSOR_INDEX = "sensor_tag_index";
     public static final String ARG_CREATE_TASK = "create_task";
@@ -109,6 +111,8 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
     private static final String KEY_EXTERNAL_AXIS_MINIMUM = "external_axis_min";
     private static final String KEY_EXTERNAL_AXIS_MAXIMUM = "external_axis_max";
     private static final String KEY_RUN_REVIEW_OVERLAY_TIMESTAMP = "run_review_overlay_time";
+    private static final String KEY_COMPARED_RUN_IDS = "compared_run_ids";
+    private static final String KEY_COMPARED_RUNS_OWN_Y_AXIS = "compared_runs_own_y_axis";
 
     private int mLoadingStatus = GRAPH_LOAD_STATUS_IDLE;
 
@@ -137,6 +141,9 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
     private RunReviewExporter mRunReviewExporter;
     private RunStats mCurrentSensorStats;
     private boolean mShowStatsOverlay = false;
+    // Other runs of the experiment drawn over this one, lined up at their start times.
+    private List<ExperimentRun> mComparedRuns = new ArrayList<>();
+    private boolean mComparedRunsUseOwnYAxis = false;
 
     /**
      * Use this factory method to create a new instance of
@@ -261,11 +268,19 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
                     mExperimentRun.getAutoZoomEnabled());
             menu.findItem(R.id.action_enable_auto_zoom).setVisible(
                     !mExperimentRun.getAutoZoomEnabled());
+            menu.findItem(R.id.action_run_review_compare).setVisible(true);
+            menu.findItem(R.id.action_compare_own_y_axis).setVisible(
+                    !mComparedRuns.isEmpty() && !mComparedRunsUseOwnYAxis);
+            menu.findItem(R.id.action_compare_shared_y_axis).setVisible(
+                    !mComparedRuns.isEmpty() && mComparedRunsUseOwnYAxis);
         } else {
             menu.findItem(R.id.action_run_review_archive).setVisible(false);
             menu.findItem(R.id.action_run_review_unarchive).setVisible(false);
             menu.findItem(R.id.action_disable_auto_zoom).setVisible(false);
             menu.findItem(R.id.action_enable_auto_zoom).setVisible(false);
+            menu.findItem(R.id.action_run_review_compare).setVisible(false);
+            menu.findItem(R.id.action_compare_own_y_axis).setVisible(false);
+            menu.findItem(R.id.action_compare_shared_y_axis).setVisible(false);
         }
         menu.findItem(R.id.action_export).setEnabled(!mRunReviewExporter.isExporting());
 
@@ -495,6 +510,14 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
             }
         } else if (id == R.id.action_run_review_audio_settings) {
             launchAudioSettings();
+        } else if (id == R.id.action_run_review_compare) {
+            if (mExperimentRun != null) {
+                launchCompareRuns();
+            }
+        } else if (id == R.id.action_compare_own_y_axis) {
+            setComparedRunsUseOwnYAxis(true);
+        } else if (id == R.id.action_compare_shared_y_axis) {
+            setComparedRunsUseOwnYAxis(false);
         }
         return super.onOptionsItemSelected(item);
     }
@@ -549,6 +572,8 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
         outState.putLong(KEY_EXTERNAL_AXIS_MINIMUM, mExternalAxis.getXMin());
         outState.putLong(KEY_EXTERNAL_AXIS_MAXIMUM, mExternalAxis.getXMax());
         outState.putLong(KEY_RUN_REVIEW_OVERLAY_TIMESTAMP, mRunReviewOverlay.getTimestamp());
+        outState.putStringArrayList(KEY_COMPARED_RUN_IDS, getComparedRunIds());
+        outState.putBoolean(KEY_COMPARED_RUNS_OWN_Y_AXIS, mComparedRunsUseOwnYAxis);
     }
 
     private void attachToRun(final Experiment experiment, final ExperimentRun run,
@@ -658,6 +683,13 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
             if (overlayTimestamp != RunReviewOverlay.NO_TIMESTAMP_SELECTED) {
                 mRunReviewOverlay.setActiveTimestamp(overlayTimestamp);
             }
+            mComparedRunsUseOwnYAxis = savedInstanceState.getBoolean(
+                    KEY_COMPARED_RUNS_OWN_Y_AXIS, false);
+            ArrayList<String> comparedRunIds =
+                    savedInstanceState.getStringArrayList(KEY_COMPARED_RUN_IDS);
+            if (comparedRunIds != null && !comparedRunIds.isEmpty()) {
+                onComparedRunsChosen(comparedRunIds);
+            }
         }
         loadRunData(rootView);
         if (getActivity() != null) {
@@ -665,6 +697,119 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
         }
     }
 
+    private void launchCompareRuns() {
+        final String sensorId = getSensorLayout().sensorId;
+        getDataController().getExperimentRuns(mExperimentRun.getExperimentId(), false,
+                new LoggingConsumer<List<ExperimentRun>>(TAG, "load runs to compare") {
+                    @Override
+                    public void success(List<ExperimentRun> runs) {
+                        if (getActivity() == null) {
+                            return;
+                        }
+                        List<ExperimentRun> candidates = new ArrayList<>();
+                        for (ExperimentRun run : runs) {
+                            if (!run.getRunId().equals(mExperimentRun.getRunId()) &&
+                                    run.getSensorTags().contains(sensorId)) {
+                                candidates.add(run);
+                            }
+                        }
+                        if (candidates.isEmpty()) {
+                            AccessibilityUtils.makeSnackbar(getView(), getResources().getString(
+                                    R.string.compare_runs_none_available),
+                                    Snackbar.LENGTH_SHORT).show();
+                            return;
+                        }
+                        List<String> comparedRunIds = getComparedRunIds();
+                        String[] runIds = new String[candidates.size()];
+                        String[] runTitles = new String[candidates.size()];
+                        boolean[] checked = new boolean[candidates.size()];
+                        for (int i = 0; i < candidates.size(); i++) {
+                            ExperimentRun run = candidates.get(i);
+                            runIds[i] = run.getRunId();
+                            runTitles[i] = run.getRunTitle(getActivity());
+                            checked[i] = comparedRunIds.contains(run.getRunId());
+                        }
+                        CompareRunsDialog dialog = CompareRunsDialog.newInstance(runIds, runTitles,
+                                checked);
+                        dialog.show(getChildFragmentManager(), CompareRunsDialog.TAG);
+                    }
+                });
+    }
+
+    @Override
+    public void onComparedRunsChosen(final ArrayList<String> runIds) {
+        if (runIds.isEmpty()) {
+            mComparedRuns.clear();
+            mChartController.clearOverlaySeries();
+            getActivity().invalidateOptionsMenu();
+            return;
+        }
+        getDataController().getExperimentRuns(mExperimentRun.getExperimentId(), true,
+                new LoggingConsumer<List<ExperimentRun>>(TAG, "load compared runs") {
+                    @Override
+                    public void success(List<ExperimentRun> runs) {
+                        if (getActivity() == null) {
+                            return;
+                        }
+                        mComparedRuns.clear();
+                        for (ExperimentRun run : runs) {
+                            if (runIds.contains(run.getRunId())) {
+                                mComparedRuns.add(run);
+                            }
+                        }
+                        // Overlays that are added while the chart has data are loaded right away;
+                        // otherwise they are loaded along with the chart.
+                        mChartController.clearOverlaySeries();
+                        for (ChartSeries series : createComparedSeries(getSensorLayout())) {
+                            mChartController.addOverlaySeries(series, getDataController());
+                        }
+                        getActivity().invalidateOptionsMenu();
+                    }
+                });
+    }
+
+    private void setComparedRunsUseOwnYAxis(boolean useOwnYAxis) {
+        mComparedRunsUseOwnYAxis = useOwnYAxis;
+        for (ChartSeries series : mChartController.getOverlaySeries()) {
+            series.setUsesSecondaryYAxis(useOwnYAxis);
+        }
+        mChartController.refreshChartView();
+        getActivity().invalidateOptionsMenu();
+    }
+
+    private ArrayList<String> getComparedRunIds() {
+        ArrayList<String> runIds = new ArrayList<>();
+        for (ExperimentRun run : mComparedRuns) {
+            runIds.add(run.getRunId());
+        }
+        return runIds;
+    }
+
+    /**
+     * Creates a series for each compared run that recorded the given sensor, shifted so that the
+     * runs start where this one does.  Runs longer than this one are cut off at its end.
+     */
+    private List<ChartSeries> createComparedSeries(GoosciSensorLayout.SensorLayout sensorLayout) {
+        List<ChartSeries> result = new ArrayList<>();
+        ColorAllocator colorAllocator = new ColorAllocator(getResources().getIntArray(
+                R.array.graph_colors_array));
+        int[] usedColors = new int[mComparedRuns.size() + 1];
+        usedColors[0] = sensorLayout.color;
+        for (ExperimentRun run : mComparedRuns) {
+            if (!run.getSensorTags().contains(sensorLayout.sensorId)) {
+                continue;
+            }
+            int color = colorAllocator.getNextColor(usedColors);
+            usedColors[result.size() + 1] = color;
+            ChartSeries series = ChartSeries.alignedRun(sensorLayout.sensorId,
+                    mExperimentRun.getFirstTimestamp(), run.getFirstTimestamp(),
+                    run.getLastTimestamp(), color);
+            series.setUsesSecondaryYAxis(mComparedRunsUseOwnYAxis);
+            result.add(series);
+        }
+        return result;
+    }
+
     private void deleteThisRun() {
         DeleteRunDialog dialog = DeleteRunDialog.newInstance();
         dialog.show(getChildFragmentManager(), DeleteRunDialog.TAG);
@@ -717,6 +862,8 @@ public class RunReviewFragment extends Fragment implements AddNoteDialog.AddNote
         final ChartController.ChartLoadingStatus fragmentRef = this;
         mCurrentSensorStats = null;
         final StatsList statsList = (StatsList) rootView.findViewById(R.id.stats_drawer);
+        // The compared runs' series for this sensor are loaded along with the run's data.
+        mChartController.setOverlaySeries(createComparedSeries(sensorLayout));
 
         dataController.getStats(mExperimentRun.getRunId(), sensorLayout.sensorId,
                 new LoggingConsumer<RunStats>(TAG, "load stats") {
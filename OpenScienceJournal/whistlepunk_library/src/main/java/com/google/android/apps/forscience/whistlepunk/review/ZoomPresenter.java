@@ -71,6 +71,29 @@ public class ZoomPresenter {
         return mCurrentTier;
     }
 
+    /**
+     * @return how many points the tier is chosen to display across the loaded range
+     */
+    public int getIdealNumberOfDisplayedDatapoints() {
+        return mIdealNumberOfDisplayedDatapoints;
+    }
+
+    /**
+     * @return how long a stretch of the run holds about the given number of readings at the given
+     * tier, or 0 if the run doesn't have the stats to tell.
+     */
+    public long getMillisForReadings(int tier, int readings) {
+        if (mRunStats == null || !hasRequiredStats(mRunStats)) {
+            return 0;
+        }
+        double meanMillisPerDataPoint = mRunStats.getStat(StatsAccumulator.KEY_TOTAL_DURATION)
+                / mRunStats.getStat(StatsAccumulator.KEY_NUM_DATA_POINTS);
+        int zoomLevelBetweenTiers = mRunStats.getIntStat(
+                ZoomRecorder.STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS);
+        return (long) Math.ceil(
+                meanMillisPerDataPoint * readings * Math.pow(zoomLevelBetweenTiers, tier));
+    }
+
     @VisibleForTesting
     public static int computeTier(int currentTier, int idealNumberOfDisplayedDatapoints,
             RunStats runStats, long loadedRange) {
@@ -30,10 +30,12 @@ import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.ExternalAxisController;
 import com.google.android.apps.forscience.whistlepunk.GraphPopulator;
 import com.google.android.apps.forscience.whistlepunk.LoggingConsumer;
+import com.google.android.apps.forscience.whistlepunk.ScalarReadingBatcher;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentRun;
 import com.google.android.apps.forscience.whistlepunk.metadata.Label;
 import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
+import com.google.android.apps.forscience.whistlepunk.review.ReadingTileCache;
 import com.google.android.apps.forscience.whistlepunk.review.ZoomPresenter;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
@@ -97,6 +99,10 @@ public class ChartController {
     private String mSensorId;
 
     private ZoomPresenter mZoomPresenter;
+    // In run review, readings that were loaded once are kept here, so that scrolling back to them
+    // doesn't reload them from the database.
+    private ReadingTileCache mTileCache;
+    private String mRunId;
     // Need to keep track of min/max loaded separately from what is in ChartData,
     // because repeated async callbacks adding data can cause data to be added after
     // that region was meant to be cleared, causing bugs. Therefore mMinLoadedX and mMaxLoadedX
@@ -109,6 +115,13 @@ public class ChartController {
     private List<Long> mCurrentLoadIds = new ArrayList<>();
     public List<ChartDataLoadedCallback> mChartDataLoadedCallbacks = new ArrayList<>();
 
+    // Series drawn over this chart's line.  Their data is loaded for the same range as the
+    // chart's, and all of the loads for one range are sent to the database as one batch.
+    private final List<ChartSeries> mOverlaySeries = new ArrayList<>();
+    private ScalarReadingBatcher mReadingBatcher;
+    // Incremented whenever overlay data is cleared, so that loads from before then are dropped.
+    private int mOverlayLoadGeneration = 0;
+
     public ChartController(ChartOptions.ChartPlacementType chartPlacementType,
             ScalarDisplayOptions scalarDisplayOptions) {
         this(chartPlacementType, scalarDisplayOptions, ChartData.DEFAULT_THROWAWAY_THRESHOLD,
@@ -137,6 +150,7 @@ public class ChartController {
         if (mInteractionListener != null) {
             mChartView.addInteractionListener(mInteractionListener);
         }
+        mChartView.setOverlaySeries(mOverlaySeries);
         mChartView.initialize(mChartOptions, mChartData);
     }
 
@@ -171,6 +185,9 @@ public class ChartController {
         mChartData.addPoint(point);
         if (mChartOptions.isPinnedToNow()) {
             mChartOptions.adjustYAxisStep(point);
+        } else {
+            mChartOptions.trackYValue(point,
+                    point.getX() - KEEP_THIS_MANY_SCREENS * mDefaultGraphRange);
         }
         if (mChartView != null && mChartView.isDrawn()) {
             mChartView.addPointToEndOfPath(point);
@@ -195,6 +212,7 @@ public class ChartController {
     // to update zoom levels on the same sensor in the same range, for example.
     public void clearLineData() {
         mChartData.clear();
+        clearOverlayData();
         mCurrentLoadIds.clear();
         if (mChartView != null) {
             mChartView.clear();
@@ -203,6 +221,7 @@ public class ChartController {
 
     public void clearData() {
         mChartData.clear();
+        clearOverlayData();
         mCurrentLoadIds.clear();
         mChartOptions.reset();
         if (mChartView != null) {
@@ -219,6 +238,61 @@ public class ChartController {
         mChartData.clear();
         mCurrentLoadIds.clear();
         mChartDataLoadedCallbacks.clear();
+        mOverlaySeries.clear();
+        mOverlayLoadGeneration++;
+        if (mTileCache != null) {
+            mTileCache.clear();
+            mTileCache = null;
+        }
+    }
+
+    /**
+     * Adds a series to draw over this chart's line, on the same time axis.  If data is already
+     * loaded, the series' data for the same range is loaded now; after that, it is loaded along
+     * with the chart's own data.
+     */
+    public void addOverlaySeries(ChartSeries series, DataController dataController) {
+        mOverlaySeries.add(series);
+        if (mMinLoadedX != NOTHING_LOADED) {
+            int currentTier = mZoomPresenter == null ? 0 : mZoomPresenter.getCurrentTier();
+            loadOverlayReadings(series, dataController, mMinLoadedX, mMaxLoadedX, currentTier,
+                    mOverlayLoadGeneration);
+        }
+        refreshChartView();
+    }
+
+    public void removeOverlaySeries(ChartSeries series) {
+        mOverlaySeries.remove(series);
+        refreshChartView();
+    }
+
+    public void clearOverlaySeries() {
+        mOverlaySeries.clear();
+        mOverlayLoadGeneration++;
+        refreshChartView();
+    }
+
+    /**
+     * Replaces the series drawn over this chart's line without loading them; their data is
+     * loaded along with the chart's own on the next load.  Use this when the chart is about to
+     * be reloaded anyway, for example when switching sensors.
+     */
+    public void setOverlaySeries(List<ChartSeries> series) {
+        mOverlaySeries.clear();
+        mOverlaySeries.addAll(series);
+        mOverlayLoadGeneration++;
+        refreshChartView();
+    }
+
+    public List<ChartSeries> getOverlaySeries() {
+        return mOverlaySeries;
+    }
+
+    private void clearOverlayData() {
+        for (ChartSeries series : mOverlaySeries) {
+            series.getChartData().clear();
+        }
+        mOverlayLoadGeneration++;
     }
 
     public void onViewRecycled() {
@@ -424,6 +498,10 @@ public class ChartController {
         mChartOptions.setRecordingStartTime(firstTimestamp);
         mChartOptions.setRecordingEndTime(lastTimestamp);
         mSensorId = sensorLayout.sensorId;
+        if (mTileCache != null && mRunId != null && !mRunId.equals(run.getRunId())) {
+            mTileCache.invalidateRun(mRunId);
+        }
+        mRunId = run.getRunId();
         tryLoadingChartData(run.getRunId(), sensorLayout, dc, firstTimestamp, lastTimestamp, status,
                 stats, chartDataLoadedCallback);
     }
@@ -476,9 +554,11 @@ public class ChartController {
             }
         });
 
+        graphPopulator.setTargetPointCount(zp.getIdealNumberOfDisplayedDatapoints());
         mCurrentLoadIds.add(graphPopulator.requestObservations(
-                GraphPopulator.constantGraphStatus(firstTimestamp, lastTimestamp), dc,
-                mDataFailureListener, currentTier, mSensorId));
+                GraphPopulator.constantGraphStatus(firstTimestamp, lastTimestamp),
+                getChartReadingSource(dc), mDataFailureListener, currentTier, mSensorId));
+        loadOverlayReadings(dc, firstTimestamp, lastTimestamp, currentTier);
     }
 
     private ZoomPresenter getZoomPresenter(RunStats stats) {
@@ -572,6 +652,10 @@ public class ChartController {
         if (isRunReview) {
             mChartData.throwAwayBefore(mMinLoadedX);
             mChartData.throwAwayAfter(mMaxLoadedX);
+            for (ChartSeries series : mOverlaySeries) {
+                series.throwAwayBefore(mMinLoadedX);
+                series.throwAwayAfter(mMaxLoadedX);
+            }
         } else {
             setPinnedToNow(isPinnedToNow);
             long throwawayThreshold = xMin - (KEEP_THIS_MANY_SCREENS - 1) *
@@ -582,6 +666,9 @@ public class ChartController {
             // TODO: Should this be a throwAwayBetween or throwAwayafter, depending on which way
             // the x axis changed??
             mChartData.throwAwayBefore(throwawayThreshold);
+            for (ChartSeries series : mOverlaySeries) {
+                series.throwAwayBefore(throwawayThreshold);
+            }
         }
     }
 
@@ -612,13 +699,95 @@ public class ChartController {
             }
         });
 
+        graphPopulator.setTargetPointCount(getTargetPointCount(minToLoad, maxToLoad));
         mCurrentLoadIds.add(graphPopulator.requestObservations(
                 GraphPopulator.constantGraphStatus(minToLoad, maxToLoad),
-                dataController, mDataFailureListener, currentTier, mSensorId));
+                getChartReadingSource(dataController), mDataFailureListener, currentTier,
+                mSensorId));
+        loadOverlayReadings(dataController, minToLoad, maxToLoad, currentTier);
 
         callChartDataStartLoadingCallbacks();
     }
 
+    /**
+     * @return about how many points there are to load from minToLoad to maxToLoad at the
+     * current zoom level, or 0 if we can't tell.
+     */
+    private int getTargetPointCount(long minToLoad, long maxToLoad) {
+        long displayedRange = mChartOptions.getRenderedXMax() - mChartOptions.getRenderedXMin();
+        if (mZoomPresenter == null || displayedRange <= 0) {
+            return 0;
+        }
+        return (int) (mZoomPresenter.getIdealNumberOfDisplayedDatapoints()
+                * ((maxToLoad - minToLoad) / (double) displayedRange));
+    }
+
+    /**
+     * In run review, the chart's own loads are answered from the tile cache where they can be.
+     */
+    private GraphPopulator.ReadingSource getChartReadingSource(DataController dataController) {
+        GraphPopulator.ReadingSource source = getReadingSource(dataController);
+        if (mChartOptions.getChartPlacementType() != ChartOptions.ChartPlacementType.TYPE_RUN_REVIEW
+                || mRunId == null || mZoomPresenter == null) {
+            return source;
+        }
+        if (mTileCache == null) {
+            mTileCache = new ReadingTileCache();
+        }
+        return mTileCache.forRun(mRunId, mZoomPresenter, source);
+    }
+
+    /**
+     * With overlays, the chart's loads go through a batcher, so that they are sent to the
+     * database together with the overlays' loads for the same range.
+     */
+    private GraphPopulator.ReadingSource getReadingSource(DataController dataController) {
+        if (mOverlaySeries.isEmpty()) {
+            return GraphPopulator.readingsFrom(dataController);
+        }
+        if (mReadingBatcher == null || mReadingBatcher.getDataController() != dataController) {
+            mReadingBatcher = new ScalarReadingBatcher(dataController);
+        }
+        return mReadingBatcher;
+    }
+
+    private void loadOverlayReadings(DataController dataController, long minToLoad,
+            long maxToLoad, int resolutionTier) {
+        for (ChartSeries series : mOverlaySeries) {
+            loadOverlayReadings(series, dataController, minToLoad, maxToLoad, resolutionTier,
+                    mOverlayLoadGeneration);
+        }
+    }
+
+    private void loadOverlayReadings(final ChartSeries series, DataController dataController,
+            long minToLoad, long maxToLoad, int resolutionTier, final int generation) {
+        long seriesMin = series.getLoadMin(minToLoad);
+        long seriesMax = series.getLoadMax(maxToLoad);
+        if (seriesMin > seriesMax) {
+            return;
+        }
+        GraphPopulator graphPopulator = new GraphPopulator(new GraphPopulator.ObservationDisplay() {
+            @Override
+            public void addRange(ScalarReadingList observations, long requestId) {
+                if (generation == mOverlayLoadGeneration) {
+                    series.getChartData().addOrderedGroupOfPoints(observations.asDataPoints());
+                }
+            }
+
+            @Override
+            public void onFinish(long requestId) {
+                if (generation == mOverlayLoadGeneration) {
+                    series.updateSecondaryYRange();
+                    refreshChartView();
+                }
+            }
+        });
+        graphPopulator.setTargetPointCount(getTargetPointCount(minToLoad, maxToLoad));
+        graphPopulator.requestObservations(GraphPopulator.constantGraphStatus(seriesMin, seriesMax),
+                getReadingSource(dataController), mDataFailureListener, resolutionTier,
+                series.getSensorId());
+    }
+
     public void addChartDataLoadedCallback(ChartDataLoadedCallback callback) {
         mChartDataLoadedCallbacks.add(callback);
     }
@@ -21,12 +21,25 @@ import android.support.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.metadata.Label;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * The points shown in a chart, ordered by timestamp.
+ *
+ * Points are stored in parallel primitive arrays used as a ring, so that the steady stream of
+ * appends and trims while observing neither allocates per point nor shifts the whole array:
+ * appending and throwing away from either end are O(1), and loaded ranges are merged into place.
+ * {@link DataPoint}s are only created on demand, for callers that still want them.
+ *
+ * The points are changed and read on the UI thread, and also read from a background thread to
+ * compute chart geometry.  Methods that change the points synchronize on this object, and so
+ * must any reader on another thread (see {@link ChartGeometry#compute}).
+ */
 public class ChartData {
     public static class DataPoint {
 
@@ -56,16 +69,37 @@ public class ChartData {
     public static final int DEFAULT_THROWAWAY_THRESHOLD = 100;
     private int mThrowawayDataSizeThreshold;
 
-    private List<DataPoint> mData = new ArrayList<>();
+    // Must be a power of two, so that ring indices can be masked rather than divided.
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The data, as a ring: point i is at (mHead + i) & (capacity - 1).
+    private long[] mXs = new long[INITIAL_CAPACITY];
+    private double[] mYs = new double[INITIAL_CAPACITY];
+    private int mHead = 0;
+    private int mSize = 0;
 
-    // The list of data points at which a label should be displayed.
+    // Bumped on every change to the data, so that things computed from it can be reused.
+    private int mModificationCount = 0;
+
+    // A live view of the data, for callers that want DataPoints.
+    private final List<DataPoint> mPointsView = new PointsView();
+
+    // The list of data points at which a label should be displayed, ordered by timestamp.
     private List<DataPoint> mLabels = new ArrayList<>();
 
     // The list of Label objects which are not yet converted into DataPoints and added to the
     // mLabels list. This happens when the Label is outside of the range for which we have data,
-    // so we cannot calculate where that label should be drawn.
+    // so we cannot calculate where that label should be drawn.  Ordered by timestamp, so that
+    // the ones covered by newly added data can be found without looking at the rest.
     private List<Label> mUnaddedLabels = new ArrayList<>();
 
+    private static final Comparator<Label> LABEL_TIMESTAMP_COMPARATOR = new Comparator<Label>() {
+        @Override
+        public int compare(Label lhs, Label rhs) {
+            return Long.compare(lhs.getTimeStamp(), rhs.getTimeStamp());
+        }
+    };
+
     // The stats for this list.
     private List<StreamStat> mStats = new ArrayList<>();
 
@@ -77,6 +111,25 @@ public class ChartData {
         }
     };
 
+    /**
+     * Read-only, and creates a DataPoint on every get.  Prefer {@link #getXAt} and
+     * {@link #getYAt} in loops.
+     */
+    private class PointsView extends AbstractList<DataPoint> implements RandomAccess {
+        @Override
+        public DataPoint get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+            }
+            return new DataPoint(getXAt(index), getYAt(index));
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
     public ChartData() {
         this(DEFAULT_THROWAWAY_THRESHOLD);
     }
@@ -87,68 +140,161 @@ public class ChartData {
 
     // This assumes the data point occurs after all previous data points.
     // Order is not checked.
-    public void addPoint(DataPoint point) {
-        mData.add(point);
+    public synchronized void addPoint(DataPoint point) {
+        long newlyCoveredMin = mSize == 0 ? point.getX() : getXMax();
+        append(point.getX(), point.getY());
         if (mUnaddedLabels.size() > 0) {
-            // TODO to avoid extra work, only try again if new data might come in in the direction
-            // of these labels...?
-            Iterator<Label> unaddedLabelIterator = mUnaddedLabels.iterator();
-            while (unaddedLabelIterator.hasNext()) {
-                Label next = unaddedLabelIterator.next();
-                if (tryAddingLabel(next)) {
-                    unaddedLabelIterator.remove();
-                }
-            }
+            addLabelsBetween(newlyCoveredMin, point.getX());
         }
     }
 
+    /**
+     * @return a live view of all of the points.  It creates a DataPoint on every get, so prefer
+     * {@link #getXAt} and {@link #getYAt} when iterating.
+     */
     public List<DataPoint> getPoints() {
-        return mData;
+        return mPointsView;
     }
 
     // This assumes the List<DataPoint> is ordered by timestamp.
-    public void setPoints(List<DataPoint> data) {
-        mData = data;
+    public synchronized void setPoints(List<DataPoint> data) {
+        mHead = 0;
+        mSize = 0;
+        mModificationCount++;
+        ensureCapacity(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            DataPoint point = data.get(i);
+            append(point.getX(), point.getY());
+        }
+        addLabelsBetween(Long.MIN_VALUE, Long.MAX_VALUE);
     }
 
-    public void addOrderedGroupOfPoints(List<DataPoint> points) {
+    /**
+     * Merges in a group of points that is ordered by timestamp (order is not checked), but may
+     * overlap or interleave with the points we already have.  Where timestamps are equal, the
+     * existing points come first.
+     */
+    public synchronized void addOrderedGroupOfPoints(List<DataPoint> points) {
         if (points == null || points.size() == 0) {
             return;
         }
-        mData.addAll(points);
-        Collections.sort(mData, DATA_POINT_COMPARATOR);
+        int count = points.size();
+
+        // The data now covers the group, and any gap between it and the data we had.
+        long newlyCoveredMin = points.get(0).getX();
+        long newlyCoveredMax = points.get(count - 1).getX();
+        if (mSize > 0) {
+            newlyCoveredMin = Math.min(newlyCoveredMin, getXMax());
+            newlyCoveredMax = Math.max(newlyCoveredMax, getXMin());
+        }
+
+        if (mSize == 0 || points.get(0).getX() >= getXMax()) {
+            ensureCapacity(mSize + count);
+            for (int i = 0; i < count; i++) {
+                DataPoint point = points.get(i);
+                append(point.getX(), point.getY());
+            }
+        } else if (points.get(count - 1).getX() < getXMin()) {
+            ensureCapacity(mSize + count);
+            for (int i = count - 1; i >= 0; i--) {
+                DataPoint point = points.get(i);
+                prepend(point.getX(), point.getY());
+            }
+        } else {
+            mergeInterleaved(points);
+        }
+        addLabelsBetween(newlyCoveredMin, newlyCoveredMax);
+    }
+
+    private void mergeInterleaved(List<DataPoint> points) {
+        int count = points.size();
+        int capacity = capacityFor(mSize + count);
+        long[] xs = new long[capacity];
+        double[] ys = new double[capacity];
+        int existing = 0;
+        int added = 0;
+        int merged = 0;
+        while (existing < mSize && added < count) {
+            DataPoint point = points.get(added);
+            long existingX = getXAt(existing);
+            if (existingX <= point.getX()) {
+                xs[merged] = existingX;
+                ys[merged] = getYAt(existing);
+                existing++;
+            } else {
+                xs[merged] = point.getX();
+                ys[merged] = point.getY();
+                added++;
+            }
+            merged++;
+        }
+        while (existing < mSize) {
+            xs[merged] = getXAt(existing);
+            ys[merged] = getYAt(existing);
+            existing++;
+            merged++;
+        }
+        while (added < count) {
+            DataPoint point = points.get(added);
+            xs[merged] = point.getX();
+            ys[merged] = point.getY();
+            added++;
+            merged++;
+        }
+        mXs = xs;
+        mYs = ys;
+        mHead = 0;
+        mSize = merged;
+        mModificationCount++;
     }
 
     public List<DataPoint> getPointsInRangeToEnd(long xMin) {
-        int startIndex = approximateBinarySearch(xMin, 0, true);
-        return mData.subList(startIndex, mData.size());
+        int startIndex = getStartIndexForRange(xMin);
+        return mPointsView.subList(startIndex, mSize);
     }
 
     public List<DataPoint> getPointsInRange(long xMin, long xMax) {
-        int startIndex = approximateBinarySearch(xMin, 0, true);
-        int endIndex = approximateBinarySearch(xMax, startIndex, false);
+        int startIndex = getStartIndexForRange(xMin);
+        int endIndex = getEndIndexForRange(xMax, startIndex);
         if (startIndex > endIndex) {
             return Collections.emptyList();
         }
-        return mData.subList(startIndex, endIndex + 1);
+        return mPointsView.subList(startIndex, endIndex + 1);
+    }
+
+    /**
+     * @return the index of the first point to draw for a range starting at xMin.  The point may
+     * be a little before xMin, but never after it.
+     */
+    public int getStartIndexForRange(long xMin) {
+        return approximateBinarySearch(xMin, 0, true);
+    }
+
+    /**
+     * @return the index of the last point to draw for a range ending at xMax, searching from
+     * startIndex.  The point may be a little after xMax, but never before it.  If there is nothing
+     * to draw, this is less than startIndex.
+     */
+    public int getEndIndexForRange(long xMax, int startIndex) {
+        return approximateBinarySearch(xMax, startIndex, false);
     }
 
     public DataPoint getClosestDataPointToTimestamp(long timestamp) {
-        int index = getClosestIndexToTimestamp(timestamp);
-        if (mData.size() == 0) {
+        if (mSize == 0) {
             return null;
         }
-        return mData.get(index);
+        int index = getClosestIndexToTimestamp(timestamp);
+        return new DataPoint(getXAt(index), getYAt(index));
     }
 
     // Searches for the closest index to a given timestamp.
     public int getClosestIndexToTimestamp(long timestamp) {
         int lowerIndex = exactBinarySearch(timestamp, 0);
-        if (lowerIndex >= mData.size() - 1) {
+        if (lowerIndex >= mSize - 1) {
             return lowerIndex;
         }
-        long valueAtLowerIndex = mData.get(lowerIndex).getX();
-        long valueAtUpperIndex = mData.get(lowerIndex + 1).getX();
+        long valueAtLowerIndex = getXAt(lowerIndex);
+        long valueAtUpperIndex = getXAt(lowerIndex + 1);
         if (timestamp - valueAtLowerIndex < valueAtUpperIndex - timestamp) {
             return lowerIndex;
         }
@@ -164,7 +310,7 @@ public class ChartData {
      */
     @VisibleForTesting
     int exactBinarySearch(long searchX, int startSearchIndex) {
-        return approximateBinarySearch(searchX, startSearchIndex, mData.size() - 1, true, 0);
+        return approximateBinarySearch(searchX, startSearchIndex, mSize - 1, true, 0);
     }
 
     /**
@@ -178,7 +324,7 @@ public class ChartData {
      * @return The index of an approximate X match in the array
      */
     private int approximateBinarySearch(long searchX, int startSearchIndex, boolean preferStart) {
-        return approximateBinarySearch(searchX, startSearchIndex, mData.size() - 1, preferStart,
+        return approximateBinarySearch(searchX, startSearchIndex, mSize - 1, preferStart,
                 DEFAULT_APPROX_RANGE);
     }
 
@@ -203,83 +349,194 @@ public class ChartData {
     @VisibleForTesting
     int approximateBinarySearch(long searchX, int startIndex, int endIndex,
             boolean preferStart, int searchRange) {
-        if (endIndex - startIndex <= searchRange) {
-            return preferStart ? startIndex: endIndex;
-        }
-        int mid = (startIndex + endIndex) / 2;
-        if (mData.get(mid).getX() < searchX) {
-            return approximateBinarySearch(searchX, mid + 1, endIndex, preferStart, searchRange);
-        } else if (mData.get(mid).getX() > searchX){
-            return approximateBinarySearch(searchX, startIndex, mid - 1, preferStart, searchRange);
-        } else {
-            return mid;
+        int mask = mXs.length - 1;
+        while (endIndex - startIndex > searchRange) {
+            int mid = (startIndex + endIndex) / 2;
+            long midX = mXs[(mHead + mid) & mask];
+            if (midX < searchX) {
+                startIndex = mid + 1;
+            } else if (midX > searchX) {
+                endIndex = mid - 1;
+            } else {
+                return mid;
+            }
         }
+        return preferStart ? startIndex : endIndex;
     }
 
     public int getNumPoints() {
-        return mData.size();
+        return mSize;
     }
 
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSize == 0;
+    }
+
+    /**
+     * @return a number that changes whenever the points change.
+     */
+    int getModificationCount() {
+        return mModificationCount;
+    }
+
+    /**
+     * @return the timestamp of the point at index, counting from the earliest point.
+     */
+    public long getXAt(int index) {
+        return mXs[(mHead + index) & (mXs.length - 1)];
+    }
+
+    /**
+     * @return the value of the point at index, counting from the earliest point.
+     */
+    public double getYAt(int index) {
+        return mYs[(mHead + index) & (mYs.length - 1)];
     }
 
     // Assume points are ordered
     public long getXMin() {
-        return mData.get(0).getX();
+        return getXAt(0);
     }
 
     // Assume points are ordered
     public long getXMax() {
-        return mData.get(mData.size() - 1).getX();
+        return getXAt(mSize - 1);
     }
 
-    public void clear() {
-        mData.clear();
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+        mModificationCount++;
         mLabels.clear();
         mUnaddedLabels.clear();
     }
 
-    public void setDisplayableLabels(List<Label> labels) {
+    public synchronized void setDisplayableLabels(List<Label> labels) {
         mLabels.clear();
         mUnaddedLabels.clear();
-        for (Label label : labels) {
-            if (!tryAddingLabel(label)) {
-                mUnaddedLabels.add(label);
-            }
-        }
+        mUnaddedLabels.addAll(labels);
+        Collections.sort(mUnaddedLabels, LABEL_TIMESTAMP_COMPARATOR);
+        addLabelsBetween(Long.MIN_VALUE, Long.MAX_VALUE);
     }
 
-    public void addLabel(Label label) {
+    public synchronized void addLabel(Label label) {
         if (!tryAddingLabel(label)) {
-            mUnaddedLabels.add(label);
+            mUnaddedLabels.add(findFirstUnaddedLabelAtOrAfter(label.getTimeStamp()), label);
         }
     }
 
     @VisibleForTesting
     protected boolean tryAddingLabel(Label label) {
         long timestamp = label.getTimeStamp();
-        if (mData.isEmpty() || timestamp < getXMin() || timestamp > getXMax()) {
+        if (isEmpty() || timestamp < getXMin() || timestamp > getXMax()) {
             return false;
         }
-        int indexPrev = exactBinarySearch(timestamp, 0);
-        int indexEnd = exactBinarySearch(timestamp, indexPrev);
-        DataPoint start = mData.get(indexPrev);
-        DataPoint end = mData.get(indexEnd);
-        if (start.getX() == end.getX()) {
-            mLabels.add(start);
-        } else {
-            double weight = (timestamp - start.getX()) / (end.getX() - start.getX()) * 1.0;
-            mLabels.add(
-                    new DataPoint(timestamp, start.getY() * weight + end.getY() * (1 - weight)));
-        }
+        DataPoint labelPoint = makeLabelPoint(timestamp, findPointAtOrBefore(timestamp));
+        mLabels.add(findFirstLabelPointAtOrAfter(timestamp), labelPoint);
         return true;
     }
 
+    /**
+     * Adds label points for the unadded labels from minX to maxX (inclusive) that are covered by
+     * the data, in one pass through the data.
+     */
+    private void addLabelsBetween(long minX, long maxX) {
+        if (mUnaddedLabels.isEmpty() || mSize == 0) {
+            return;
+        }
+        minX = Math.max(minX, getXMin());
+        maxX = Math.min(maxX, getXMax());
+        int first = findFirstUnaddedLabelAtOrAfter(minX);
+        int end = first;
+        int dataIndex = -1;
+        while (end < mUnaddedLabels.size() && mUnaddedLabels.get(end).getTimeStamp() <= maxX) {
+            long timestamp = mUnaddedLabels.get(end).getTimeStamp();
+            if (dataIndex < 0) {
+                dataIndex = findPointAtOrBefore(timestamp);
+            }
+            while (dataIndex < mSize - 1 && getXAt(dataIndex + 1) <= timestamp) {
+                dataIndex++;
+            }
+            DataPoint labelPoint = makeLabelPoint(timestamp, dataIndex);
+            mLabels.add(findFirstLabelPointAtOrAfter(timestamp), labelPoint);
+            end++;
+        }
+        mUnaddedLabels.subList(first, end).clear();
+    }
+
+    /**
+     * @return the index of the last point at or before timestamp, which must be in the data range.
+     */
+    private int findPointAtOrBefore(long timestamp) {
+        // The search can end one past the point we want when there's no exact match.
+        int index = exactBinarySearch(timestamp, 0);
+        while (index > 0 && getXAt(index) > timestamp) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * @return where a label at timestamp should be drawn: on the line between the point at
+     * index (which is at or just before timestamp) and the next one.
+     */
+    private DataPoint makeLabelPoint(long timestamp, int index) {
+        long startX = getXAt(index);
+        if (startX == timestamp || index == mSize - 1) {
+            return new DataPoint(startX, getYAt(index));
+        }
+        long endX = getXAt(index + 1);
+        double weight = (timestamp - startX) / (double) (endX - startX);
+        return new DataPoint(timestamp, getYAt(index) * (1 - weight) + getYAt(index + 1) * weight);
+    }
+
+    private int findFirstUnaddedLabelAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = mUnaddedLabels.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mUnaddedLabels.get(mid).getTimeStamp() < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int findFirstLabelPointAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = mLabels.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mLabels.get(mid).getX() < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the points at which labels should be displayed, ordered by timestamp.
+     */
     public List<DataPoint> getLabelPoints() {
         return mLabels;
     }
 
+    /**
+     * @return the label points from xMin to xMax (inclusive), ordered by timestamp.
+     */
+    public List<DataPoint> getLabelPointsInRange(long xMin, long xMax) {
+        int start = findFirstLabelPointAtOrAfter(xMin);
+        int end = xMax == Long.MAX_VALUE ? mLabels.size() : findFirstLabelPointAtOrAfter(xMax + 1);
+        if (start >= end) {
+            return Collections.emptyList();
+        }
+        return mLabels.subList(start, end);
+    }
+
     public void updateStats(List<StreamStat> stats) {
         mStats = stats;
     }
@@ -296,7 +553,7 @@ public class ChartData {
         throwAwayBetween(throwawayThreshold, Long.MAX_VALUE);
     }
 
-    public void throwAwayBetween(long throwAwayMinX, long throwAwayMaxX) {
+    public synchronized void throwAwayBetween(long throwAwayMinX, long throwAwayMaxX) {
         if (throwAwayMaxX <= throwAwayMinX) {
             return;
         }
@@ -308,7 +565,71 @@ public class ChartData {
         if (indexEnd - indexStart < mThrowawayDataSizeThreshold) {
             return;
         }
-        mData.subList(indexStart, indexEnd).clear();
+        removeRange(indexStart, indexEnd);
+    }
+
+    /**
+     * Removes the points from index start (inclusive) to end (exclusive).  Free at either end of
+     * the data; in the middle, only the shorter side is moved.
+     */
+    private void removeRange(int start, int end) {
+        int count = end - start;
+        if (start < mSize - end) {
+            for (int i = start - 1; i >= 0; i--) {
+                set(i + count, getXAt(i), getYAt(i));
+            }
+            mHead = (mHead + count) & (mXs.length - 1);
+        } else {
+            for (int i = end; i < mSize; i++) {
+                set(i - count, getXAt(i), getYAt(i));
+            }
+        }
+        mSize -= count;
+        mModificationCount++;
+    }
+
+    private void append(long x, double y) {
+        ensureCapacity(mSize + 1);
+        mSize++;
+        mModificationCount++;
+        set(mSize - 1, x, y);
+    }
+
+    private void prepend(long x, double y) {
+        ensureCapacity(mSize + 1);
+        mHead = (mHead - 1) & (mXs.length - 1);
+        mSize++;
+        mModificationCount++;
+        set(0, x, y);
+    }
+
+    private void set(int index, long x, double y) {
+        int physical = (mHead + index) & (mXs.length - 1);
+        mXs[physical] = x;
+        mYs[physical] = y;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mXs.length) {
+            return;
+        }
+        int newCapacity = capacityFor(capacity);
+        long[] xs = new long[newCapacity];
+        double[] ys = new double[newCapacity];
+        for (int i = 0; i < mSize; i++) {
+            xs[i] = getXAt(i);
+            ys[i] = getYAt(i);
+        }
+        mXs = xs;
+        mYs = ys;
+        mHead = 0;
     }
 
-}
\ No newline at end of file
+    private static int capacityFor(int size) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
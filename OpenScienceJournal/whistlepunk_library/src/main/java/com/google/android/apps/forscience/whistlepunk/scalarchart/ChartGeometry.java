@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+/**
+ * The screen geometry of the line through a chart's data, for a given rendered range and chart
+ * size.
+ *
+ * Computing this means searching the data, decimating it and projecting each point, so it is
+ * done off the UI thread: {@link #compute} holds the ChartData's lock while it reads, and after
+ * that the geometry is not changed again, so it can be handed to the UI thread as is.
+ */
+class ChartGeometry {
+    // The rendered range and chart layout that the vertices are projected for.
+    private final long mXMin;
+    private final long mXMax;
+    private final double mYMin;
+    private final double mYMax;
+    private final float mChartWidth;
+    private final float mChartHeight;
+    private final float mStartPadding;
+    private final float mTopPadding;
+
+    // The vertices of the line, as x, y pairs.
+    private float[] mVertices = new float[0];
+    private int mVertexCount = 0;
+
+    // Which data the line covers.
+    private long mXMinInPath;
+    private long mXMaxInPath;
+    private boolean mReachesEnd;
+
+    public ChartGeometry(long xMin, long xMax, double yMin, double yMax, float chartWidth,
+            float chartHeight, float startPadding, float topPadding) {
+        mXMin = xMin;
+        mXMax = xMax;
+        mYMin = yMin;
+        mYMax = yMax;
+        mChartWidth = chartWidth;
+        mChartHeight = chartHeight;
+        mStartPadding = startPadding;
+        mTopPadding = topPadding;
+    }
+
+    /**
+     * Computes the vertices of the line through the data from rangeXMin to rangeXMax (or to the
+     * end of the data, if toEnd).  Decimator must only be used from one thread at a time.
+     */
+    public void compute(ChartData data, PathDecimator decimator, long rangeXMin, long rangeXMax,
+            boolean toEnd) {
+        synchronized (data) {
+            int numPoints = data.getNumPoints();
+            if (numPoints == 0) {
+                return;
+            }
+            int startIndex = data.getStartIndexForRange(rangeXMin);
+            int endIndex = toEnd ? numPoints - 1 : data.getEndIndexForRange(rangeXMax, startIndex);
+            if (startIndex > endIndex) {
+                return;
+            }
+
+            // There's no point in drawing more than a few points per pixel column.
+            decimator.decimate(data, startIndex, endIndex, mXMin,
+                    mChartWidth / (double) (mXMax - mXMin), mStartPadding);
+            int count = decimator.getCount();
+            mVertices = new float[count * 2];
+            for (int i = 0; i < count; i++) {
+                int index = decimator.getIndex(i);
+                mVertices[i * 2] = getPathX(data.getXAt(index));
+                mVertices[i * 2 + 1] = getPathY(data.getYAt(index));
+            }
+            mVertexCount = count;
+            mXMinInPath = data.getXAt(startIndex);
+            mXMaxInPath = data.getXAt(endIndex);
+            mReachesEnd = endIndex == numPoints - 1;
+        }
+    }
+
+    /**
+     * @return the x coordinate of a data point, in the coordinates this geometry was computed in.
+     */
+    public float getPathX(long x) {
+        return (1.0f * (x - mXMin)) / (mXMax - mXMin) * mChartWidth + mStartPadding;
+    }
+
+    /**
+     * @return the y coordinate of a data point, in the coordinates this geometry was computed in.
+     */
+    public float getPathY(double y) {
+        return (float) (mChartHeight * (1 - ((y - mYMin) / (mYMax - mYMin))) + mTopPadding);
+    }
+
+    public long getXMin() {
+        return mXMin;
+    }
+
+    public long getXMax() {
+        return mXMax;
+    }
+
+    public double getYMin() {
+        return mYMin;
+    }
+
+    public double getYMax() {
+        return mYMax;
+    }
+
+    /**
+     * @return the number of vertices, each of which is an x, y pair in {@link #getVertices}.
+     */
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    public float[] getVertices() {
+        return mVertices;
+    }
+
+    public long getXMinInPath() {
+        return mXMinInPath;
+    }
+
+    public long getXMaxInPath() {
+        return mXMaxInPath;
+    }
+
+    /**
+     * @return true if the line goes all the way to the latest data point (as of when it was
+     * computed), so that points added since can be appended to it.
+     */
+    public boolean reachesEnd() {
+        return mReachesEnd;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import android.support.annotation.VisibleForTesting;
+import android.view.Choreographer;
+
+import com.google.android.apps.forscience.javalib.Counter;
+import com.google.android.apps.forscience.javalib.Histogram;
+import com.google.android.apps.forscience.javalib.MetricRegistry;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Performance metrics for charts, kept in the default {@link MetricRegistry} under
+ * {@link #PREFIX}: how long charts take to draw and to build their paths, how many points they
+ * draw, how long their data takes to load, and how many frames are late while they are shown.
+ *
+ * Frames are only counted while something asks for them with {@link #startTrackingFrames()},
+ * since watching every frame keeps the display from going idle.
+ */
+public class ChartMetrics {
+    public static final String PREFIX = "chart.";
+
+    private static final MetricRegistry REGISTRY = MetricRegistry.getDefault();
+
+    static final Histogram DRAW_MICROS = REGISTRY.histogram(PREFIX + "draw_micros");
+    static final Histogram GEOMETRY_MICROS = REGISTRY.histogram(PREFIX + "geometry_micros");
+    static final Histogram POINTS_PER_FRAME = REGISTRY.histogram(PREFIX + "points_per_frame");
+
+    /**
+     * From asking for a chart's data to the first of it being added to the chart.
+     */
+    public static final Histogram LOAD_FIRST_DATA_MILLIS =
+            REGISTRY.histogram(PREFIX + "load_first_data_millis");
+
+    /**
+     * From asking for a chart's data to all of it being added to the chart.
+     */
+    public static final Histogram LOAD_COMPLETE_MILLIS =
+            REGISTRY.histogram(PREFIX + "load_complete_millis");
+
+    static final Counter FRAMES = REGISTRY.counter(PREFIX + "frames");
+    static final Counter JANKY_FRAMES = REGISTRY.counter(PREFIX + "janky_frames");
+    static final Counter DROPPED_FRAMES = REGISTRY.counter(PREFIX + "dropped_frames");
+
+    // Assume a 60Hz display.
+    @VisibleForTesting
+    static final long FRAME_INTERVAL_NANOS = 1000000000L / 60;
+
+    // A frame that comes this much later than the one before it missed at least one vsync.
+    private static final long JANK_THRESHOLD_NANOS = FRAME_INTERVAL_NANOS * 3 / 2;
+
+    private static int sFrameTrackers = 0;
+    private static boolean sFrameCallbackPosted = false;
+    private static long sLastFrameNanos = 0;
+
+    private static final Choreographer.FrameCallback FRAME_CALLBACK =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    if (sFrameTrackers == 0) {
+                        sFrameCallbackPosted = false;
+                        sLastFrameNanos = 0;
+                        return;
+                    }
+                    if (sLastFrameNanos != 0) {
+                        onFrame(frameTimeNanos - sLastFrameNanos);
+                    }
+                    sLastFrameNanos = frameTimeNanos;
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            };
+
+    private ChartMetrics() {
+    }
+
+    /**
+     * Starts counting frames, until each call has been matched by
+     * {@link #stopTrackingFrames()}.  Call only on the UI thread.
+     */
+    public static void startTrackingFrames() {
+        sFrameTrackers++;
+        if (!sFrameCallbackPosted) {
+            sFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(FRAME_CALLBACK);
+        }
+    }
+
+    /**
+     * Call only on the UI thread.
+     */
+    public static void stopTrackingFrames() {
+        if (sFrameTrackers > 0) {
+            sFrameTrackers--;
+        }
+    }
+
+    private static void onFrame(long intervalNanos) {
+        FRAMES.increment();
+        int dropped = countDroppedFrames(intervalNanos);
+        if (dropped > 0) {
+            JANKY_FRAMES.increment();
+            DROPPED_FRAMES.add(dropped);
+        }
+    }
+
+    /**
+     * @return how many vsyncs were missed between two frames intervalNanos apart.
+     */
+    @VisibleForTesting
+    static int countDroppedFrames(long intervalNanos) {
+        if (intervalNanos < JANK_THRESHOLD_NANOS) {
+            return 0;
+        }
+        return (int) ((intervalNanos + FRAME_INTERVAL_NANOS / 2) / FRAME_INTERVAL_NANOS) - 1;
+    }
+
+    /**
+     * @return the current values of the chart metrics.  Automated performance tests can compare
+     * snapshots from before and after a run with {@link MetricRegistry.Snapshot#since}.
+     */
+    public static MetricRegistry.Snapshot snapshot() {
+        return REGISTRY.snapshot(PREFIX);
+    }
+
+    /**
+     * Writes the chart metrics one per line, for an activity's
+     * {@link android.app.Activity#dump}, so that they can be read with
+     * {@code adb shell dumpsys activity}.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Chart metrics:");
+        for (Map.Entry<String, Double> entry : snapshot().toMap().entrySet()) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(entry.getKey());
+            writer.print(": ");
+            writer.println(String.format("%.1f", entry.getValue()));
+        }
+    }
+}
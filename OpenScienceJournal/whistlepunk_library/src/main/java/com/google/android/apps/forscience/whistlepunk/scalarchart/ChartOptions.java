@@ -46,6 +46,11 @@ public class ChartOptions {
     // The fraction of the screen size by which we can zoom at the addition of each new data point.
     public static final double SCALE_SCREEN_SIZE_FRACTION = 0.05;
 
+    // Only start zooming in automatically once the visible points (with their buffer) take up
+    // less than this fraction of the Y axis, so that the axis doesn't keep zooming in and out as
+    // small peaks scroll in and out of view.
+    private static final double ZOOM_IN_SPREAD_FRACTION = 0.5;
+
     private final boolean mCanPanX;
     private final boolean mCanPanY;
     private final boolean mCanZoomX;
@@ -53,8 +58,9 @@ public class ChartOptions {
     private final boolean mShowLeadingEdge;
     private final ChartPlacementType mChartPlacementType;
 
-    private double mYMinPoint = Double.MAX_VALUE;
-    private double mYMaxPoint = Double.MIN_VALUE;
+    // The Y range of the points that have arrived since the start of the rendered X range.
+    private final SlidingWindowMinMax mVisibleYRange = new SlidingWindowMinMax();
+    private boolean mZoomingIn = false;
 
     private long mRenderedXMin;
     private long mRenderedXMax;
@@ -138,19 +144,32 @@ public class ChartOptions {
     }
 
     public double getMaxRenderedYRange() {
-        return (mYMaxPoint - mYMinPoint) * MAXIMUM_Y_SPREAD_FACTOR;
+        return (mVisibleYRange.getMax() - mVisibleYRange.getMin()) * MAXIMUM_Y_SPREAD_FACTOR;
+    }
+
+    /**
+     * Records a live point for autoscaling without adjusting the Y axis, so that the range used
+     * for autoscaling is still right when the chart is pinned to now again.
+     *
+     * @param oldestX points before this are no longer needed for autoscaling.
+     */
+    public void trackYValue(ChartData.DataPoint point, long oldestX) {
+        mVisibleYRange.add(point.getX(), point.getY());
+        mVisibleYRange.removeBefore(Math.min(oldestX, point.getX()));
     }
 
+    /**
+     * Moves the Y axis a step towards fitting the points in the rendered X range, including
+     * latestPoint.  It zooms out as soon as points don't fit, but only zooms in once they take up
+     * much less of the axis than they could.
+     */
     public void adjustYAxisStep(ChartData.DataPoint latestPoint) {
-        if (latestPoint.getY() < mYMinPoint) {
-            mYMinPoint = latestPoint.getY();
-        }
-        if (latestPoint.getY() > mYMaxPoint) {
-            mYMaxPoint = latestPoint.getY();
-        }
-        double buffer = getYBuffer(mYMinPoint, mYMaxPoint);
-        double idealYMax = mYMaxPoint + buffer;
-        double idealYMin = mYMinPoint - buffer;
+        trackYValue(latestPoint, getRenderedXMin());
+        double yMin = mVisibleYRange.getMin();
+        double yMax = mVisibleYRange.getMax();
+        double buffer = getYBuffer(yMin, yMax);
+        double idealYMax = yMax + buffer;
+        double idealYMin = yMin - buffer;
 
         double lastYMin = getRenderedYMin();
         double lastYMax = getRenderedYMax();
@@ -163,9 +182,23 @@ public class ChartOptions {
         // Don't zoom too fast
         double maxMove = calculateMaxMove(lastYMin, lastYMax);
 
-        // Only zoom out automatically. Don't zoom in automatically!
-        double newYMin = Math.min(lastYMin, calculateMovedValue(lastYMin, idealYMin, maxMove));
-        double newYMax = Math.max(lastYMax, calculateMovedValue(lastYMax, idealYMax, maxMove));
+        if (!mZoomingIn && idealYMin >= lastYMin && idealYMax <= lastYMax
+                && idealYMax - idealYMin < ZOOM_IN_SPREAD_FRACTION * (lastYMax - lastYMin)) {
+            mZoomingIn = true;
+        }
+
+        double newYMin;
+        double newYMax;
+        if (mZoomingIn) {
+            // Keep going until the points fit snugly again.
+            newYMin = calculateMovedValue(lastYMin, idealYMin, maxMove);
+            newYMax = calculateMovedValue(lastYMax, idealYMax, maxMove);
+            mZoomingIn = newYMin != idealYMin || newYMax != idealYMax;
+        } else {
+            // Otherwise, only zoom out.
+            newYMin = Math.min(lastYMin, calculateMovedValue(lastYMin, idealYMin, maxMove));
+            newYMax = Math.max(lastYMax, calculateMovedValue(lastYMax, idealYMax, maxMove));
+        }
 
         setRenderedYRange(newYMin, newYMax);
     }
@@ -237,8 +270,8 @@ public class ChartOptions {
         mRenderedXMax = Long.MIN_VALUE;
         mRenderedYMin = Double.MAX_VALUE;
         mRenderedYMax = Double.MIN_VALUE;
-        mYMinPoint = Double.MAX_VALUE;
-        mYMaxPoint = Double.MIN_VALUE;
+        mVisibleYRange.clear();
+        mZoomingIn = false;
     }
 
     public boolean canPan() {
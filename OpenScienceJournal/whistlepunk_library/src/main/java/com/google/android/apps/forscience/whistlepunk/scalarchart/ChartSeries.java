@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+/**
+ * A series of data drawn over a chart's main line, on the same time axis: another sensor from
+ * the same run, or the same sensor from another run.
+ *
+ * The series' data is stored in its own timestamps.  It is drawn shifted by a time offset, so
+ * that a run recorded at a different time can be lined up with the chart's run at their start
+ * times.  It can either share the chart's Y axis, or be scaled to its own (secondary) Y axis,
+ * which covers the range of its loaded data.
+ */
+public class ChartSeries {
+    private final String mSensorId;
+    private final long mTimeOffset;
+    private final long mFirstTimestamp;
+    private final long mLastTimestamp;
+    private final ChartData mChartData;
+    private int mColor;
+    private boolean mUsesSecondaryYAxis = false;
+    private double mSecondaryYMin;
+    private double mSecondaryYMax;
+
+    // Only used on the geometry thread.
+    private final PathDecimator mDecimator = new PathDecimator();
+
+    /**
+     * @param sensorId the database tag that the series' readings are stored under
+     * @param timeOffset what to add to the series' timestamps to put them on the chart's axis
+     * @param firstTimestamp the first timestamp of the series' recording, in its own time
+     * @param lastTimestamp the last timestamp of the series' recording, in its own time
+     */
+    public ChartSeries(String sensorId, long timeOffset, long firstTimestamp, long lastTimestamp,
+            int color) {
+        mSensorId = sensorId;
+        mTimeOffset = timeOffset;
+        mFirstTimestamp = firstTimestamp;
+        mLastTimestamp = lastTimestamp;
+        mColor = color;
+        mChartData = new ChartData();
+    }
+
+    /**
+     * A series for another run of a sensor, lined up so that both runs start at the same point
+     * on the chart.
+     */
+    public static ChartSeries alignedRun(String sensorId, long chartRunStart, long runStart,
+            long runEnd, int color) {
+        return new ChartSeries(sensorId, chartRunStart - runStart, runStart, runEnd, color);
+    }
+
+    public String getSensorId() {
+        return mSensorId;
+    }
+
+    public ChartData getChartData() {
+        return mChartData;
+    }
+
+    public long getTimeOffset() {
+        return mTimeOffset;
+    }
+
+    public int getColor() {
+        return mColor;
+    }
+
+    public void setColor(int color) {
+        mColor = color;
+    }
+
+    public boolean usesSecondaryYAxis() {
+        return mUsesSecondaryYAxis;
+    }
+
+    public void setUsesSecondaryYAxis(boolean usesSecondaryYAxis) {
+        mUsesSecondaryYAxis = usesSecondaryYAxis;
+        updateSecondaryYRange();
+    }
+
+    public double getSecondaryYMin() {
+        return mSecondaryYMin;
+    }
+
+    public double getSecondaryYMax() {
+        return mSecondaryYMax;
+    }
+
+    /**
+     * @return the earliest time in the series' own timestamps worth loading to show the chart
+     * range starting at chartXMin.
+     */
+    public long getLoadMin(long chartXMin) {
+        return Math.max(chartXMin - mTimeOffset, mFirstTimestamp);
+    }
+
+    /**
+     * @return the latest time in the series' own timestamps worth loading to show the chart
+     * range ending at chartXMax.
+     */
+    public long getLoadMax(long chartXMax) {
+        return Math.min(chartXMax - mTimeOffset, mLastTimestamp);
+    }
+
+    /**
+     * Drops loaded data from before the given time on the chart's axis.
+     */
+    public void throwAwayBefore(long chartX) {
+        mChartData.throwAwayBefore(chartX - mTimeOffset);
+    }
+
+    /**
+     * Drops loaded data from after the given time on the chart's axis.
+     */
+    public void throwAwayAfter(long chartX) {
+        mChartData.throwAwayAfter(chartX - mTimeOffset);
+    }
+
+    /**
+     * Resizes the secondary Y axis, if there is one, to fit the data loaded so far.
+     */
+    public void updateSecondaryYRange() {
+        if (!mUsesSecondaryYAxis) {
+            return;
+        }
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        synchronized (mChartData) {
+            for (int i = 0; i < mChartData.getNumPoints(); i++) {
+                double y = mChartData.getYAt(i);
+                min = Math.min(min, y);
+                max = Math.max(max, y);
+            }
+        }
+        if (min > max) {
+            return;
+        }
+        double buffer = ChartOptions.getYBuffer(min, max);
+        mSecondaryYMin = min - buffer;
+        mSecondaryYMax = max + buffer;
+    }
+
+    PathDecimator getDecimator() {
+        return mDecimator;
+    }
+}
@@ -32,19 +32,26 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.google.android.apps.forscience.javalib.Histogram;
+import com.google.android.apps.forscience.whistlepunk.AppSingleton;
+import com.google.android.apps.forscience.whistlepunk.DevOptionsFragment;
 import com.google.android.apps.forscience.whistlepunk.ExternalAxisController;
 import com.google.android.apps.forscience.whistlepunk.R;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 
+import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class ChartView extends View {
 
-    // Every now and then, force a full redraw instead of adding a point to the path.
-    // This keeps us from having too many points offscreen.
-    // Tweak this to optimize between performance and accuracy. Probably numbers around 500 are OK.
-    public static final int DRAWN_POINTS_REDRAW_THRESHOLD = 400;
+    // The path is drawn through a matrix that moves it from where it was built to where the data
+    // is now.  If that would stretch it by more than this fraction, the line visibly thickens or
+    // thins, so the path is rebuilt instead.
+    private static final float MAX_PATH_STRETCH = 0.05f;
 
     // 1 second buffer for loading data, so that zooming and panning have some buffer before
     // they have to do a full reload again. This number can be tweaked for performance.
@@ -70,6 +77,12 @@ public class ChartView extends View {
     private Path mPath;
     private boolean mHasPath;
 
+    // Series drawn over the main line, and the paths built for them along with the main path.
+    private List<ChartSeries> mOverlaySeries = Collections.emptyList();
+    private List<OverlayPath> mOverlayPaths = Collections.emptyList();
+    private Paint mOverlayPathPaint;
+    private Paint mSecondaryAxisTextPaint;
+
     private Paint mAxisPaint;
     private Paint mAxisTextPaint;
     private float mAxisTextHeight;
@@ -98,6 +111,11 @@ public class ChartView extends View {
     private ChartOptions mChartOptions;
     private ChartData mChartData;
 
+    // Developer metrics, drawn over the chart if enabled in the developer options.
+    private boolean mShowMetricsOverlay = false;
+    private Paint mMetricsTextPaint;
+    private final Histogram mDrawMicros = new Histogram();
+
     private float mWidth = 1;
     private float mHeight = 1;
     private float mChartHeight;
@@ -105,14 +123,30 @@ public class ChartView extends View {
     private RectF mChartRect; // Save this to avoid reallocations.
     private RectF mPreviousChartRect = new RectF();
 
-    // These describe the minimum and maximum values which the path covers, in the coordinates
-    // of the chart data. If the path is not being transformed, they should be the same as the
-    // the ChartOptions.getRenderedXMin, XMax, YMin and YMax. If a change in rendered values has
-    // occured, these values are used to figure out the transformation needed on the path.
-    private long mXMinForPathCalcs;
-    private long mXMaxForPathCalcs;
-    private double mYMinForPathCalcs;
-    private double mYMaxForPathCalcs;
+    // Maps the path from the coordinates it was built in (those of mGeometry) to the current
+    // screen coordinates.  Applied when drawing, so that scrolling costs nothing per point.
+    private final Matrix mPathMatrix = new Matrix();
+
+    // Path geometry is computed on this thread, shared by all charts, rather than the UI thread.
+    private static Executor sGeometryExecutor;
+
+    // Only used on the geometry thread.
+    private final PathDecimator mDecimator = new PathDecimator();
+
+    // The geometry that mPath was built from.  It describes the ranges of the chart data that
+    // the path was built for, which are used to figure out the transformation from the path to
+    // the currently rendered range.  Null if there is no path yet.
+    private ChartGeometry mGeometry;
+
+    // How many points are in mPath, including those added since it was built.
+    private int mPointsInPath = 0;
+
+    // The most recent geometry request, whether a request is in flight, and whether another
+    // rebuild has been asked for since then.
+    private int mGeometryRequestId = 0;
+    private boolean mGeometryRequestPending = false;
+    private boolean mGeometryRequestDirty = false;
+    private boolean mGeometryRequestToEnd = true;
 
     // These track how much data is covered in the path, and are only updated when the path is
     // redrawn.
@@ -142,6 +176,24 @@ public class ChartView extends View {
     private Path mStatsPath;
     private float mStartPadding;
 
+    /**
+     * The path built for an overlay series, and what is needed to draw it.
+     */
+    private static class OverlayPath {
+        final ChartSeries mSeries;
+        final ChartGeometry mGeometry;
+        final Path mPath;
+        final Matrix mMatrix = new Matrix();
+        String mYMaxLabel;
+        String mYMinLabel;
+
+        OverlayPath(ChartSeries series, ChartGeometry geometry, Path path) {
+            mSeries = series;
+            mGeometry = geometry;
+            mPath = path;
+        }
+    }
+
     public ChartView(Context context) {
         super(context);
         finishConstruction();
@@ -170,10 +222,14 @@ public class ChartView extends View {
     private void createPaints() {
         mPathPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mPathPaint.setStyle(Paint.Style.STROKE);
+        mOverlayPathPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mOverlayPathPaint.setStyle(Paint.Style.STROKE);
         mAxisPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mAxisPaint.setStyle(Paint.Style.STROKE);
         mAxisTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mAxisTextPaint.setTextAlign(Paint.Align.RIGHT);
+        mSecondaryAxisTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mSecondaryAxisTextPaint.setTextAlign(Paint.Align.RIGHT);
         mLeadingEdgePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mLeadingEdgePaint.setStyle(Paint.Style.FILL);
         mEndpointPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -191,6 +247,7 @@ public class ChartView extends View {
         mStatMaxPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mStatMinPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mStatAvgPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mMetricsTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
     }
 
     @Override
@@ -218,10 +275,13 @@ public class ChartView extends View {
         mPathPaint.setPathEffect(new CornerPathEffect(
                 res.getDimensionPixelSize(mChartOptions.getCornerPathRadiusId())));
         mPathPaint.setStrokeWidth(res.getDimensionPixelSize(mChartOptions.getLineWidthId()));
+        mOverlayPathPaint.setPathEffect(mPathPaint.getPathEffect());
+        mOverlayPathPaint.setStrokeWidth(mPathPaint.getStrokeWidth());
         mAxisPaint.setStrokeWidth(res.getDimensionPixelSize(
                 mChartOptions.getAxisLabelsLineWidthId()));
         mAxisTextHeight = res.getDimensionPixelSize(mChartOptions.getAxisLabelsTextSizeId());
         mAxisTextPaint.setTextSize(mAxisTextHeight);
+        mSecondaryAxisTextPaint.setTextSize(mAxisTextHeight);
         float chartStartPadding = res.getDimensionPixelSize(mChartOptions.getChartStartPaddingId());
         mAxisTextStartPadding = res.getDimensionPixelSize(
                 mChartOptions.getAxisLabelsStartPaddingId());
@@ -279,6 +339,9 @@ public class ChartView extends View {
 
         mPath = new Path();
         mStatsPath = new Path();
+        mGeometry = null;
+        mHasPath = false;
+        mOverlayPaths = Collections.emptyList();
 
         populatePath(false);
 
@@ -409,6 +472,13 @@ public class ChartView extends View {
         }
     }
 
+    /**
+     * Sets the series to draw over the main line.  They are drawn on the next {@link #redraw}.
+     */
+    public void setOverlaySeries(List<ChartSeries> overlaySeries) {
+        mOverlaySeries = overlaySeries;
+    }
+
     public void updateColorOptions() {
         int chartColor = mChartOptions.getLineColor();
         mPathPaint.setColor(chartColor);
@@ -470,8 +540,10 @@ public class ChartView extends View {
      * @return The screen y coordinate
      */
     public float getScreenY(double y) {
-        double yMax = mChartOptions.getRenderedYMax();
-        double yMin = mChartOptions.getRenderedYMin();
+        return getScreenY(y, mChartOptions.getRenderedYMin(), mChartOptions.getRenderedYMax());
+    }
+
+    private float getScreenY(double y, double yMin, double yMax) {
         double result = mChartHeight * (1 - ((y - yMin) / (yMax - yMin))) + mTopPadding;
         return (float) result;
     }
@@ -498,53 +570,172 @@ public class ChartView extends View {
     }
 
     /**
-     * Populates the path from the chart data, from scratch.
+     * Asks for the path to be rebuilt from the chart data, from scratch.  The work is done on
+     * the geometry thread, and the current path is drawn until the new one is ready.
+     * @param optimizePinnedToEnd Whether the path can run to the end of the data, instead of
+     *                            searching for the end of the rendered range.
      */
     private void populatePath(boolean optimizePinnedToEnd) {
-        int numPoints = mChartData.getNumPoints();
-        mPath.reset();
-
-        if (numPoints == 0) {
+        if (mChartData.getNumPoints() == 0) {
+            // Nothing to compute, so drop any current path (and any in flight) right away.
+            mGeometryRequestId++;
+            mGeometryRequestPending = false;
+            mGeometryRequestDirty = false;
+            mGeometryRequestToEnd = true;
+            mGeometry = null;
+            mPath.reset();
+            mHasPath = false;
+            mOverlayPaths = Collections.emptyList();
+            return;
+        }
+        if (mGeometryRequestPending) {
+            // Coalesce with the request in flight: ask again once it's done.
+            mGeometryRequestToEnd = mGeometryRequestToEnd && optimizePinnedToEnd;
+            mGeometryRequestDirty = true;
             return;
         }
+        mGeometryRequestPending = true;
+        final int requestId = ++mGeometryRequestId;
 
         // Just get the points in the range that we want to render, instead of all the points.
         // Adds some buffer to the load in case of scrolling, if those data points are available.
-        updatePathCalcs();
-        List<ChartData.DataPoint> points;
-        if (optimizePinnedToEnd) {
-            // This is a slightly more efficient call, so use it when possible.
-            points = mChartData.getPointsInRangeToEnd(mChartOptions.getRenderedXMin() - BUFFER_MS);
-        } else {
-            points = mChartData.getPointsInRange(mChartOptions.getRenderedXMin() - BUFFER_MS,
-                    mChartOptions.getRenderedXMax() + BUFFER_MS);
+        final ChartGeometry geometry = new ChartGeometry(mChartOptions.getRenderedXMin(),
+                mChartOptions.getRenderedXMax(), mChartOptions.getRenderedYMin(),
+                mChartOptions.getRenderedYMax(), mChartWidth, mChartHeight, mStartPadding,
+                mTopPadding);
+        final long rangeXMin = mChartOptions.getRenderedXMin() - BUFFER_MS;
+        final long rangeXMax = mChartOptions.getRenderedXMax() + BUFFER_MS;
+        final boolean toEnd = optimizePinnedToEnd;
+        final ChartData chartData = mChartData;
+
+        // Overlays are rebuilt along with the main path, each in its own time and Y range.
+        final List<ChartSeries> overlays = new ArrayList<>(mOverlaySeries);
+        final List<ChartGeometry> overlayGeometries = new ArrayList<>(overlays.size());
+        for (ChartSeries series : overlays) {
+            long offset = series.getTimeOffset();
+            boolean secondary = series.usesSecondaryYAxis();
+            overlayGeometries.add(new ChartGeometry(mChartOptions.getRenderedXMin() - offset,
+                    mChartOptions.getRenderedXMax() - offset,
+                    secondary ? series.getSecondaryYMin() : mChartOptions.getRenderedYMin(),
+                    secondary ? series.getSecondaryYMax() : mChartOptions.getRenderedYMax(),
+                    mChartWidth, mChartHeight, mStartPadding, mTopPadding));
         }
-        int numPlottedPoints = points.size();
-        if (numPlottedPoints == 0) {
+
+        getGeometryExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                geometry.compute(chartData, mDecimator, rangeXMin, rangeXMax, toEnd);
+                final Path path = buildPath(geometry);
+                final List<OverlayPath> overlayPaths = new ArrayList<>(overlays.size());
+                for (int i = 0; i < overlays.size(); i++) {
+                    ChartSeries series = overlays.get(i);
+                    ChartGeometry overlayGeometry = overlayGeometries.get(i);
+                    long offset = series.getTimeOffset();
+                    overlayGeometry.compute(series.getChartData(), series.getDecimator(),
+                            rangeXMin - offset, rangeXMax - offset, false);
+                    overlayPaths.add(new OverlayPath(series, overlayGeometry,
+                            buildPath(overlayGeometry)));
+                }
+                ChartMetrics.GEOMETRY_MICROS.record((System.nanoTime() - startNanos) / 1000);
+                AppSingleton.getUiThreadExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onGeometryReady(requestId, geometry, path, overlayPaths);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Path buildPath(ChartGeometry geometry) {
+        Path path = new Path();
+        float[] vertices = geometry.getVertices();
+        int vertexCount = geometry.getVertexCount();
+        if (vertexCount > 0) {
+            path.moveTo(vertices[0], vertices[1]);
+            for (int i = 1; i < vertexCount; i++) {
+                path.lineTo(vertices[i * 2], vertices[i * 2 + 1]);
+            }
+        }
+        return path;
+    }
+
+    private static Executor getGeometryExecutor() {
+        if (sGeometryExecutor == null) {
+            sGeometryExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sGeometryExecutor;
+    }
+
+    /**
+     * Swaps in a newly built path, on the UI thread.
+     */
+    private void onGeometryReady(int requestId, ChartGeometry geometry, Path path,
+            List<OverlayPath> overlayPaths) {
+        if (requestId == mGeometryRequestId) {
+            mGeometryRequestPending = false;
+        } else {
+            // Superseded (for example by a clear); a newer request will take care of things.
             return;
         }
-        mPath.moveTo(getPathX(points.get(0).getX()), getPathY(points.get(0).getY()));
-        for (int i = 1; i < numPlottedPoints; i++) {
-            mPath.lineTo(getPathX(points.get(i).getX()), getPathY(points.get(i).getY()));
+        mGeometry = geometry;
+        mPath = path;
+        mHasPath = geometry.getVertexCount() > 0;
+        mPointsInPath = geometry.getVertexCount();
+        for (OverlayPath overlay : overlayPaths) {
+            if (overlay.mSeries.usesSecondaryYAxis() && overlay.mGeometry.getVertexCount() > 0) {
+                NumberFormat format = mChartOptions.getAxisNumberFormat();
+                overlay.mYMaxLabel = format.format(overlay.mGeometry.getYMax());
+                overlay.mYMinLabel = format.format(overlay.mGeometry.getYMin());
+            }
         }
-        mHasPath = true;
+        mOverlayPaths = overlayPaths;
 
         // Only update these when the path is redrawn. They track how much data the path covers.
-        mXMinInPath = points.get(0).getX();
-        mXMaxInPath = points.get(numPlottedPoints - 1).getX();
+        mXMinInPath = geometry.getXMinInPath();
+        mXMaxInPath = geometry.getXMaxInPath();
+
+        // Catch up with any points that were added while the geometry was computed.
+        if (mHasPath && geometry.reachesEnd()) {
+            int index = mChartData.getNumPoints();
+            while (index > 0 && mChartData.getXAt(index - 1) > mXMaxInPath) {
+                index--;
+            }
+            for (; index < mChartData.getNumPoints(); index++) {
+                mXMaxInPath = mChartData.getXAt(index);
+                mPath.lineTo(geometry.getPathX(mXMaxInPath),
+                        geometry.getPathY(mChartData.getYAt(index)));
+                mPointsInPath++;
+            }
+        }
+
+        if (mGeometryRequestDirty) {
+            mGeometryRequestDirty = false;
+            boolean toEnd = mGeometryRequestToEnd;
+            mGeometryRequestToEnd = true;
+            populatePath(toEnd);
+        }
+        updatePathMatrix();
+        postInvalidateOnAnimation();
     }
 
     /**
-     * Efficiently adds data points to a chart view by adding them to the existing path and then
-     * transforming the path based on updated renderer values.
+     * Efficiently adds data points to a chart view by adding them to the existing path, which is
+     * moved into place when it is drawn.
      * This reduces the need to recalculate all the points in the path every time a new point is
-     * added.
+     * added: the path is only rebuilt when the data it covers has scrolled well off screen, or
+     * when the axes have been rescaled.
      * @param point The data point to add to the end of the path.
      */
     public void addPointToEndOfPath(ChartData.DataPoint point) {
         int numPoints = mChartData.getNumPoints();
-        if (!mHasPath || numPoints < MAXIMUM_NUM_POINTS_FOR_POPULATE_PATH ||
-                (numPoints % DRAWN_POINTS_REDRAW_THRESHOLD == 0 && mChartOptions.isPinnedToNow())) {
+        if (mGeometryRequestPending) {
+            // The path in flight will be brought up to date when it arrives; until then, keep
+            // extending the one we have.
+            appendToPath(point);
+        } else if (!mHasPath || numPoints < MAXIMUM_NUM_POINTS_FOR_POPULATE_PATH ||
+                (mChartOptions.isPinnedToNow() && pathHasScrolledOffScreen())) {
             populatePath(true);
             postInvalidateOnAnimation();
         } else {
@@ -554,56 +745,103 @@ public class ChartView extends View {
             } else if ((mChartOptions.isPinnedToNow()) ||
                     mChartOptions.getRenderedXMax() >= point.getX() || mLeadingEdgeIsDrawn) {
                 // Add the point to the end only if the end is being rendered.
-                // The path is in the previous coordinates, so we can add a point using those
-                // mins/maxes.
-                mPath.lineTo(getPathX(point.getX()), getPathY(point.getY()));
-                mXMaxInPath = point.getX();
-                transformPath();
+                appendToPath(point);
             }
         }
         mWasPinnedToNow = mChartOptions.isPinnedToNow();
     }
 
+    private void appendToPath(ChartData.DataPoint point) {
+        if (!mHasPath) {
+            return;
+        }
+        // The path is in the coordinates it was built in, so we can add a point using the
+        // geometry's mins/maxes.
+        mPath.lineTo(mGeometry.getPathX(point.getX()), mGeometry.getPathY(point.getY()));
+        mPointsInPath++;
+        mXMaxInPath = point.getX();
+        transformPath();
+    }
+
     /**
-     * Transform the path by stretching and translating it to meet the new rendered size.
+     * @return true if the start of the path is more than a screen's width before the rendered
+     * range, so that most of the path is drawing nothing.
+     */
+    private boolean pathHasScrolledOffScreen() {
+        long renderedXMin = mChartOptions.getRenderedXMin();
+        long renderedRange = mChartOptions.getRenderedXMax() - renderedXMin;
+        return mXMinInPath < renderedXMin - Math.max(renderedRange, BUFFER_MS);
+    }
+
+    /**
+     * Moves the path to match the new rendered range, by updating the matrix it is drawn with.
+     * This does not touch the points in the path, unless the range has been rescaled so much that
+     * the path needs to be rebuilt.
      */
     public void transformPath() {
-        // The path needs to be scaled in X and Y based on the range of the new data points.
-        Matrix matrix = new Matrix();
-        mPreviousChartRect.set(getScreenX(mXMinForPathCalcs), getScreenY(mYMaxForPathCalcs),
-                getScreenX(mXMaxForPathCalcs), getScreenY(mYMinForPathCalcs));
-        matrix.setRectToRect(mChartRect, mPreviousChartRect, Matrix.ScaleToFit.FILL);
-        mPath.transform(matrix);
-
-        updatePathCalcs();
+        if (mGeometry == null) {
+            return;
+        }
+        updatePathMatrix();
+        if (!canTransformPath(mGeometry.getXMax() - mGeometry.getXMin(),
+                mChartOptions.getRenderedXMax() - mChartOptions.getRenderedXMin(),
+                mGeometry.getYMax() - mGeometry.getYMin(),
+                mChartOptions.getRenderedYMax() - mChartOptions.getRenderedYMin())) {
+            // Draw the stretched path until the rebuilt one is ready.
+            populatePath(false);
+        }
         postInvalidateOnAnimation();
     }
 
-    private void updatePathCalcs() {
-        mXMaxForPathCalcs = mChartOptions.getRenderedXMax();
-        mXMinForPathCalcs = mChartOptions.getRenderedXMin();
-        mYMinForPathCalcs = mChartOptions.getRenderedYMin();
-        mYMaxForPathCalcs = mChartOptions.getRenderedYMax();
-    }
+    private void updatePathMatrix() {
+        if (mGeometry == null) {
+            mPathMatrix.reset();
+            return;
+        }
+        mPreviousChartRect.set(getScreenX(mGeometry.getXMin()), getScreenY(mGeometry.getYMax()),
+                getScreenX(mGeometry.getXMax()), getScreenY(mGeometry.getYMin()));
+        mPathMatrix.setRectToRect(mChartRect, mPreviousChartRect, Matrix.ScaleToFit.FILL);
 
-    // Gets the X coordinate of a point in the current path coordinates, which may be different
-    // from the rendered min/max coordinates if the path has not yet been transformed and drawn.
-    // This should just be used when drawing the path.
-    private float getPathX(long x) {
-        return (1.0f * (x - mXMinForPathCalcs)) / (mXMaxForPathCalcs - mXMinForPathCalcs) *
-                mChartWidth + mStartPadding;
+        for (OverlayPath overlay : mOverlayPaths) {
+            ChartGeometry geometry = overlay.mGeometry;
+            if (geometry.getVertexCount() == 0) {
+                continue;
+            }
+            long offset = overlay.mSeries.getTimeOffset();
+            double yMin = mChartOptions.getRenderedYMin();
+            double yMax = mChartOptions.getRenderedYMax();
+            if (overlay.mSeries.usesSecondaryYAxis()) {
+                yMin = overlay.mSeries.getSecondaryYMin();
+                yMax = overlay.mSeries.getSecondaryYMax();
+            }
+            mPreviousChartRect.set(getScreenX(geometry.getXMin() + offset),
+                    getScreenY(geometry.getYMax(), yMin, yMax),
+                    getScreenX(geometry.getXMax() + offset),
+                    getScreenY(geometry.getYMin(), yMin, yMax));
+            overlay.mMatrix.setRectToRect(mChartRect, mPreviousChartRect,
+                    Matrix.ScaleToFit.FILL);
+        }
     }
 
-    // Gets the Y coordinate of a point in the current path coordinates, which may be different
-    // from the rendered min/max coordinates if the path has not yet been transformed and drawn.
-    // This should just be used when drawing the path.
-    private float getPathY(double y) {
-        return (float) (mChartHeight * (1 - ((y - mYMinForPathCalcs) /
-                (mYMaxForPathCalcs - mYMinForPathCalcs))) + mTopPadding);
+    /**
+     * @return true if a path built for the path ranges can be drawn for the rendered ranges by
+     * moving it, without stretching it enough to notice.
+     */
+    @VisibleForTesting
+    static boolean canTransformPath(long pathXRange, long renderedXRange, double pathYRange,
+            double renderedYRange) {
+        if (pathXRange <= 0 || renderedXRange <= 0 || pathYRange <= 0 || renderedYRange <= 0) {
+            return false;
+        }
+        double xStretch = (double) pathXRange / renderedXRange;
+        double yStretch = pathYRange / renderedYRange;
+        return Math.abs(xStretch - 1) <= MAX_PATH_STRETCH
+                && Math.abs(yStretch - 1) <= MAX_PATH_STRETCH;
     }
 
     @Override
     public void onDraw(Canvas canvas) {
+        long startNanos = System.nanoTime();
         canvas.drawRect(0, 0, mWidth, mHeight, mBackgroundPaint);
 
         if (mChartData == null || mChartData.getNumPoints() == 0) {
@@ -614,7 +852,11 @@ public class ChartView extends View {
 
         // Draw the Y label lines under the path.
         drawYAxis(canvas);
+        drawOverlayPaths(canvas);
+        canvas.save();
+        canvas.concat(mPathMatrix);
         canvas.drawPath(mPath, mPathPaint);
+        canvas.restore();
         // Try drawing the endpoints, if they are needed.
         tryDrawingEndpoints(canvas);
 
@@ -638,20 +880,105 @@ public class ChartView extends View {
 
         // Draw the Y label text above the rect that whites out the Y label axis.
         drawYAxisText(canvas);
+        drawSecondaryYAxisText(canvas);
+
+        if (mShowMetricsOverlay) {
+            drawMetricsOverlay(canvas);
+        }
 
         mIsDrawn = true;
+        long drawMicros = (System.nanoTime() - startNanos) / 1000;
+        ChartMetrics.DRAW_MICROS.record(drawMicros);
+        mDrawMicros.record(drawMicros);
+        ChartMetrics.POINTS_PER_FRAME.record(getPointsInPaths());
+    }
+
+    /**
+     * @return how many points are in the paths drawn for the chart, including the overlays.
+     */
+    private int getPointsInPaths() {
+        int points = mHasPath ? mPointsInPath : 0;
+        for (OverlayPath overlay : mOverlayPaths) {
+            points += overlay.mGeometry.getVertexCount();
+        }
+        return points;
+    }
+
+    /**
+     * Draws this chart's draw times and point count, and the frame and load metrics shared by all
+     * charts, in the top corner of the chart.
+     */
+    private void drawMetricsOverlay(Canvas canvas) {
+        mMetricsTextPaint.setColor(mAxisTextPaint.getColor());
+        mMetricsTextPaint.setTextSize(mAxisTextHeight);
+        float x = mStartPadding + mAxisTextHeight / 2;
+        float y = mTopPadding + mAxisTextHeight * 1.5f;
+        canvas.drawText(String.format("draw p50 %dus p99 %dus, %d points",
+                mDrawMicros.getPercentile(0.5), mDrawMicros.getPercentile(0.99),
+                getPointsInPaths()), x, y, mMetricsTextPaint);
+        y += mAxisTextHeight * 1.25f;
+        canvas.drawText(String.format("janky frames %d/%d, load first %dms done %dms",
+                ChartMetrics.JANKY_FRAMES.get(), ChartMetrics.FRAMES.get(),
+                ChartMetrics.LOAD_FIRST_DATA_MILLIS.getPercentile(0.5),
+                ChartMetrics.LOAD_COMPLETE_MILLIS.getPercentile(0.5)), x, y, mMetricsTextPaint);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mShowMetricsOverlay = DevOptionsFragment.isChartMetricsOverlayEnabled(getContext());
+        if (mShowMetricsOverlay) {
+            ChartMetrics.startTrackingFrames();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mShowMetricsOverlay) {
+            ChartMetrics.stopTrackingFrames();
+            mShowMetricsOverlay = false;
+        }
+        super.onDetachedFromWindow();
     }
 
     public boolean isDrawn() {
         return mIsDrawn;
     }
 
-    private void drawLabels(Canvas canvas) {
-        List<ChartData.DataPoint> labels = mChartData.getLabelPoints();
-        for (ChartData.DataPoint label : labels) {
-            if (label.getX() < mXMinInPath || label.getX() > mXMaxInPath) {
+    private void drawOverlayPaths(Canvas canvas) {
+        for (OverlayPath overlay : mOverlayPaths) {
+            mOverlayPathPaint.setColor(overlay.mSeries.getColor());
+            canvas.save();
+            canvas.concat(overlay.mMatrix);
+            canvas.drawPath(overlay.mPath, mOverlayPathPaint);
+            canvas.restore();
+        }
+    }
+
+    /**
+     * Labels the top and bottom of each secondary Y axis at the end of the chart, in the color of
+     * its series.
+     */
+    private void drawSecondaryYAxisText(Canvas canvas) {
+        int row = 0;
+        for (OverlayPath overlay : mOverlayPaths) {
+            if (overlay.mYMaxLabel == null) {
                 continue;
             }
+            mSecondaryAxisTextPaint.setColor(overlay.mSeries.getColor());
+            float x = mWidth - mAxisTextStartPadding;
+            canvas.drawText(overlay.mYMaxLabel, x, mTopPadding + mAxisTextHeight * (row + 1),
+                    mSecondaryAxisTextPaint);
+            canvas.drawText(overlay.mYMinLabel, x, mTopPadding + mChartHeight -
+                    mAxisTextHeight * row, mSecondaryAxisTextPaint);
+            row++;
+        }
+    }
+
+    private void drawLabels(Canvas canvas) {
+        List<ChartData.DataPoint> labels =
+                mChartData.getLabelPointsInRange(mXMinInPath, mXMaxInPath);
+        for (ChartData.DataPoint label : labels) {
             float x = getScreenX(label.getX());
             float y = getScreenY(label.getY());
             if (mChartOptions.shouldDrawRecordingOverlay()) {
@@ -667,10 +994,11 @@ public class ChartView extends View {
 
     private void tryDrawingEndpoints(Canvas canvas) {
         if (mChartOptions.isShowLeadingEdge()) {
-            ChartData.DataPoint point = mChartData.getPoints().get(mChartData.getNumPoints() - 1);
-            if (point.getX() == mXMaxInPath && mXMaxInPath <= mXMaxForPathCalcs) {
+            int last = mChartData.getNumPoints() - 1;
+            long lastX = mChartData.getXAt(last);
+            if (lastX == mXMaxInPath && mXMaxInPath <= mChartOptions.getRenderedXMax()) {
                 mLeadingEdgeIsDrawn = true;
-                canvas.drawCircle(getScreenX(point.getX()), getScreenY(point.getY()),
+                canvas.drawCircle(getScreenX(lastX), getScreenY(mChartData.getYAt(last)),
                         mLeadingEdgeRadius, mLeadingEdgePaint);
             } else {
                 mLeadingEdgeIsDrawn = false;
@@ -680,20 +1008,18 @@ public class ChartView extends View {
             // start and/or end times.
             if (mChartOptions.getRenderedXMin() < mChartOptions.getRecordingStartTime() &&
                     mChartOptions.getRecordingStartTime() < mChartOptions.getRenderedXMax()) {
-                ChartData.DataPoint start = mChartData.getPoints().get(0);
-                if (start.getX() >= mXMinForPathCalcs) {
-                    float screenX = getScreenX(start.getX());
-                    float screenY = getScreenY(start.getY());
+                if (mChartData.getXMin() >= mChartOptions.getRenderedXMin()) {
+                    float screenX = getScreenX(mChartData.getXMin());
+                    float screenY = getScreenY(mChartData.getYAt(0));
                     canvas.drawCircle(screenX, screenY, mEndpointOuterRadius, mEndpointPaint);
                     canvas.drawCircle(screenX, screenY, mEndpointInnerRadius, mBackgroundPaint);
                 }
             }
             if (mChartOptions.getRenderedXMin() < mChartOptions.getRecordingEndTime() &&
                     mChartOptions.getRecordingEndTime() < mChartOptions.getRenderedXMax()) {
-                ChartData.DataPoint end = mChartData.getPoints().get(mChartData.getNumPoints() - 1);
-                if (end.getX() <= mXMaxForPathCalcs) {
-                    float screenX = getScreenX(end.getX());
-                    float screenY = getScreenY(end.getY());
+                if (mChartData.getXMax() <= mChartOptions.getRenderedXMax()) {
+                    float screenX = getScreenX(mChartData.getXMax());
+                    float screenY = getScreenY(mChartData.getYAt(mChartData.getNumPoints() - 1));
                     canvas.drawCircle(screenX, screenY, mEndpointOuterRadius, mEndpointPaint);
                     canvas.drawCircle(screenX, screenY, mEndpointInnerRadius, mBackgroundPaint);
                 }
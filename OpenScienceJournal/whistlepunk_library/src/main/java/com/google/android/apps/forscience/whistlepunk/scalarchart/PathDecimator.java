@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+/**
+ * Picks out the points of a chart that are worth drawing, when there are many more points than
+ * there are pixel columns to draw them in.
+ *
+ * For each pixel column, only the first, minimum, maximum and last points are kept (in their
+ * original order).  A line through just those points covers exactly the same pixels in each
+ * column as a line through all of them: segments within a column stay between its min and max,
+ * and the segments that cross into the next column are kept as they were.
+ *
+ * The result is kept, and reused as long as it is asked for the same range of unchanged data.
+ */
+class PathDecimator {
+    private int[] mIndices = new int[0];
+    private int mCount = 0;
+
+    // What the current result was computed for.
+    private ChartData mData;
+    private int mModificationCount;
+    private int mStartIndex;
+    private int mEndIndex;
+    private long mXMin;
+    private double mColumnsPerX;
+    private double mColumnOffset;
+
+    /**
+     * Decimates the points from startIndex to endIndex (both inclusive) of data.
+     *
+     * @param xMin an x value whose pixel position is known
+     * @param columnsPerX how many pixel columns there are per unit of x.  If this is not positive,
+     *                    every point is kept.
+     * @param columnOffset the pixel position of xMin, so that the columns line up with pixels
+     * @return false if the previous result could be reused.
+     */
+    public boolean decimate(ChartData data, int startIndex, int endIndex, long xMin,
+            double columnsPerX, double columnOffset) {
+        if (data == mData && data.getModificationCount() == mModificationCount
+                && startIndex == mStartIndex && endIndex == mEndIndex && xMin == mXMin
+                && columnsPerX == mColumnsPerX && columnOffset == mColumnOffset) {
+            return false;
+        }
+        mData = data;
+        mModificationCount = data.getModificationCount();
+        mStartIndex = startIndex;
+        mEndIndex = endIndex;
+        mXMin = xMin;
+        mColumnsPerX = columnsPerX;
+        mColumnOffset = columnOffset;
+
+        mCount = 0;
+        if (startIndex > endIndex) {
+            return true;
+        }
+        if (!(columnsPerX > 0) || Double.isInfinite(columnsPerX)) {
+            ensureCapacity(endIndex - startIndex + 1);
+            for (int i = startIndex; i <= endIndex; i++) {
+                mIndices[mCount++] = i;
+            }
+            return true;
+        }
+
+        long column = column(data.getXAt(startIndex));
+        int first = startIndex;
+        int min = startIndex;
+        int max = startIndex;
+        double minY = data.getYAt(startIndex);
+        double maxY = minY;
+        for (int i = startIndex + 1; i <= endIndex; i++) {
+            long nextColumn = column(data.getXAt(i));
+            double y = data.getYAt(i);
+            if (nextColumn != column) {
+                addColumn(first, min, max, i - 1);
+                column = nextColumn;
+                first = min = max = i;
+                minY = maxY = y;
+            } else if (y < minY) {
+                min = i;
+                minY = y;
+            } else if (y > maxY) {
+                max = i;
+                maxY = y;
+            }
+        }
+        addColumn(first, min, max, endIndex);
+        return true;
+    }
+
+    private long column(long x) {
+        return (long) Math.floor((x - mXMin) * mColumnsPerX + mColumnOffset);
+    }
+
+    private void addColumn(int first, int min, int max, int last) {
+        ensureCapacity(mCount + 4);
+        int lower = Math.min(min, max);
+        int upper = Math.max(min, max);
+        mIndices[mCount++] = first;
+        if (lower > first) {
+            mIndices[mCount++] = lower;
+        }
+        if (upper > lower) {
+            mIndices[mCount++] = upper;
+        }
+        if (last > upper) {
+            mIndices[mCount++] = last;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIndices.length) {
+            return;
+        }
+        int[] indices = new int[Math.max(capacity, mIndices.length * 2)];
+        System.arraycopy(mIndices, 0, indices, 0, mCount);
+        mIndices = indices;
+    }
+
+    /**
+     * @return how many points are left after decimation.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the index into the ChartData of the i'th point left after decimation.
+     */
+    public int getIndex(int i) {
+        return mIndices[i];
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+/**
+ * Keeps the minimum and maximum Y of a window of points that are added at the new end (in
+ * timestamp order) and dropped from the old end, in amortized constant time per point.
+ *
+ * Each extreme is kept in a deque of the points that could still become the extreme once older
+ * points are dropped: a new point removes every point before it that it beats, so the deque is
+ * ordered by both timestamp and Y, and the extreme is always at its old end.
+ */
+class SlidingWindowMinMax {
+    private final MonotonicDeque mMins = new MonotonicDeque(true);
+    private final MonotonicDeque mMaxes = new MonotonicDeque(false);
+
+    /**
+     * Adds a point, which must not be older than any point already in the window.
+     */
+    public void add(long x, double y) {
+        mMins.add(x, y);
+        mMaxes.add(x, y);
+    }
+
+    /**
+     * Drops the points older than x from the window.
+     */
+    public void removeBefore(long x) {
+        mMins.removeBefore(x);
+        mMaxes.removeBefore(x);
+    }
+
+    public boolean isEmpty() {
+        return mMins.isEmpty();
+    }
+
+    /**
+     * @return the smallest Y in the window, or Double.MAX_VALUE if it is empty.
+     */
+    public double getMin() {
+        return mMins.isEmpty() ? Double.MAX_VALUE : mMins.getOldestY();
+    }
+
+    /**
+     * @return the largest Y in the window, or -Double.MAX_VALUE if it is empty.
+     */
+    public double getMax() {
+        return mMaxes.isEmpty() ? -Double.MAX_VALUE : mMaxes.getOldestY();
+    }
+
+    public void clear() {
+        mMins.clear();
+        mMaxes.clear();
+    }
+
+    /**
+     * A ring buffer of points whose Ys only increase (for minimums) or decrease (for maximums)
+     * from the oldest to the newest.
+     */
+    private static class MonotonicDeque {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final boolean mKeepsMinimum;
+        private long[] mXs = new long[INITIAL_CAPACITY];
+        private double[] mYs = new double[INITIAL_CAPACITY];
+        private int mHead = 0;
+        private int mSize = 0;
+
+        MonotonicDeque(boolean keepsMinimum) {
+            mKeepsMinimum = keepsMinimum;
+        }
+
+        void add(long x, double y) {
+            int mask = mXs.length - 1;
+            while (mSize > 0) {
+                double newestY = mYs[(mHead + mSize - 1) & mask];
+                if (mKeepsMinimum ? newestY < y : newestY > y) {
+                    break;
+                }
+                mSize--;
+            }
+            if (mSize == mXs.length) {
+                grow();
+                mask = mXs.length - 1;
+            }
+            int index = (mHead + mSize) & mask;
+            mXs[index] = x;
+            mYs[index] = y;
+            mSize++;
+        }
+
+        void removeBefore(long x) {
+            int mask = mXs.length - 1;
+            while (mSize > 0 && mXs[mHead] < x) {
+                mHead = (mHead + 1) & mask;
+                mSize--;
+            }
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        double getOldestY() {
+            return mYs[mHead];
+        }
+
+        void clear() {
+            mHead = 0;
+            mSize = 0;
+        }
+
+        private void grow() {
+            int mask = mXs.length - 1;
+            long[] xs = new long[mXs.length * 2];
+            double[] ys = new double[mYs.length * 2];
+            for (int i = 0; i < mSize; i++) {
+                xs[i] = mXs[(mHead + i) & mask];
+                ys[i] = mYs[(mHead + i) & mask];
+            }
+            mXs = xs;
+            mYs = ys;
+            mHead = 0;
+        }
+    }
+}
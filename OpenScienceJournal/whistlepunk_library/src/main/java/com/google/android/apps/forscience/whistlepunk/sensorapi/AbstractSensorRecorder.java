@@ -32,6 +32,21 @@ public class AbstractSensorRecorder implements SensorRecorder {
 
     }
 
+    @Override
+    public void armRecording(String runId) {
+        startRecording(runId);
+    }
+
+    @Override
+    public void setRecordingStart(long startMillis) {
+
+    }
+
+    @Override
+    public void setRecordingStop(long stopMillis) {
+
+    }
+
     @Override
     public void stopRecording() {
 
@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * A StreamConsumer that can also take a block of data points at once, so that sources which
+ * receive readings in batches don't pay per-reading overhead on the way through.
+ */
+public interface BatchStreamConsumer extends StreamConsumer {
+    /**
+     * The first {@code count} entries of the arrays are new values, in time order.  The arrays
+     * still belong to the caller, and may be reused as soon as this returns.  Like
+     * {@link #addData(long, double)}, this may be called from any thread.
+     */
+    void addData(long[] timestampsMillis, double[] values, int count);
+}
@@ -31,6 +31,18 @@ public class DelegatingSensorRecorder implements SensorRecorder {
         mDelegate.startRecording(runId);
     }
 
+    public void armRecording(String runId) {
+        mDelegate.armRecording(runId);
+    }
+
+    public void setRecordingStart(long startMillis) {
+        mDelegate.setRecordingStart(startMillis);
+    }
+
+    public void setRecordingStop(long stopMillis) {
+        mDelegate.setRecordingStop(stopMillis);
+    }
+
     public void applyOptions(ReadableSensorOptions settings) {
         mDelegate.applyOptions(settings);
     }
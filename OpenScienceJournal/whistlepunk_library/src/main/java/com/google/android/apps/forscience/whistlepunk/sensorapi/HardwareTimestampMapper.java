@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.os.SystemClock;
+
+import com.google.android.apps.forscience.whistlepunk.Clock;
+
+/**
+ * Maps hardware event timestamps onto the wall-clock millis that the rest of the app stores.
+ *
+ * Hardware timestamps (like {@link android.hardware.SensorEvent#timestamp}) are nanoseconds on
+ * the {@link SystemClock#elapsedRealtimeNanos()} timebase, and record when the value was
+ * captured rather than when the callback happened to run.  The offset between that timebase and
+ * wall time is re-estimated on every event, so that wall-clock adjustments are followed without
+ * reintroducing delivery jitter.
+ *
+ * Timestamps handed out in nanos are strictly increasing, so sub-millisecond ordering is
+ * preserved even when the offset estimate moves.
+ */
+public class HardwareTimestampMapper {
+    /**
+     * Source of the monotonic timebase that hardware timestamps are expressed in.
+     */
+    public interface ElapsedClock {
+        long getElapsedNanos();
+    }
+
+    public static final ElapsedClock SYSTEM_ELAPSED_CLOCK = new ElapsedClock() {
+        @Override
+        public long getElapsedNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    // Wall clock readings are truncated to the millisecond, so on average they are half a
+    // millisecond behind the truth.
+    private static final long WALL_CLOCK_TRUNCATION_BIAS_NANOS = NANOS_PER_MILLI / 2;
+
+    // Each new offset sample moves the estimate by this fraction of the difference.
+    private static final int OFFSET_SMOOTHING_SHIFT = 6;
+
+    // If a single sample disagrees with the estimate by more than this, we assume the wall clock
+    // was changed, and start over.
+    private static final long OFFSET_RESET_THRESHOLD_NANOS = 100 * NANOS_PER_MILLI;
+
+    // Hardware timestamps more than this far from the elapsed clock (in either direction) are
+    // assumed not to be on the elapsedRealtimeNanos timebase (some older devices use uptime, or
+    // their own epoch), and the delivery time is used instead.
+    private static final long MAX_EVENT_AGE_NANOS = 10 * 1000 * NANOS_PER_MILLI;
+    private static final long MAX_EVENT_FUTURE_NANOS = 100 * NANOS_PER_MILLI;
+
+    private final Clock mWallClock;
+    private final ElapsedClock mElapsedClock;
+    private boolean mHasOffset = false;
+    private long mOffsetNanos;
+    private long mLastWallNanos = Long.MIN_VALUE;
+    private int mUnmappableCount = 0;
+
+    public HardwareTimestampMapper(Clock wallClock) {
+        this(wallClock, SYSTEM_ELAPSED_CLOCK);
+    }
+
+    public HardwareTimestampMapper(Clock wallClock, ElapsedClock elapsedClock) {
+        mWallClock = wallClock;
+        mElapsedClock = elapsedClock;
+    }
+
+    /**
+     * @return wall-clock time in millis corresponding to the given hardware timestamp.
+     */
+    public long toWallMillis(long eventNanos) {
+        return toWallNanos(eventNanos) / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return wall-clock time in nanos corresponding to the given hardware timestamp.  Successive
+     * return values are strictly increasing.
+     */
+    public long toWallNanos(long eventNanos) {
+        long elapsedNow = mElapsedClock.getElapsedNanos();
+        updateOffset(mWallClock.getNow() * NANOS_PER_MILLI + WALL_CLOCK_TRUNCATION_BIAS_NANOS
+                - elapsedNow);
+
+        long age = elapsedNow - eventNanos;
+        if (age > MAX_EVENT_AGE_NANOS || age < -MAX_EVENT_FUTURE_NANOS) {
+            mUnmappableCount++;
+            eventNanos = elapsedNow;
+        }
+
+        long wallNanos = eventNanos + mOffsetNanos;
+        if (wallNanos <= mLastWallNanos) {
+            wallNanos = mLastWallNanos + 1;
+        }
+        mLastWallNanos = wallNanos;
+        return wallNanos;
+    }
+
+    private void updateOffset(long sampleOffsetNanos) {
+        long error = sampleOffsetNanos - mOffsetNanos;
+        if (!mHasOffset || Math.abs(error) > OFFSET_RESET_THRESHOLD_NANOS) {
+            mOffsetNanos = sampleOffsetNanos;
+            mHasOffset = true;
+            // Ordering across a wall-clock change is meaningless, so don't clamp to it.
+            mLastWallNanos = Long.MIN_VALUE;
+            return;
+        }
+        mOffsetNanos += error >> OFFSET_SMOOTHING_SHIFT;
+    }
+
+    /**
+     * @return the current estimate of (wall time - elapsed time), in nanos.
+     */
+    public long getOffsetNanos() {
+        return mOffsetNanos;
+    }
+
+    /**
+     * @return how many timestamps could not be mapped, and fell back to delivery time.
+     */
+    public int getUnmappableCount() {
+        return mUnmappableCount;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * A SensorObserver that may have nobody watching it, for example while a recording continues
+ * with the app in the background.
+ *
+ * While {@link #isHeadless()} is true, sources should skip the usual delivery through
+ * {@link #onNewData} (which usually means a hop to the UI thread for every sample), and instead
+ * hand each sample to {@link #onLatestData} on whatever thread they are on.  The observer keeps
+ * only the most recent one, to show as soon as someone starts watching again.  Anything older
+ * is expected to be reloaded from the database.
+ */
+public interface HeadlessCapableObserver extends SensorObserver {
+    /**
+     * @return true if nobody is watching, so that per-sample delivery can be skipped.  Cheap
+     * enough to check for every sample.
+     */
+    boolean isHeadless();
+
+    /**
+     * Records the latest sample, with the stats as of that sample, while headless.  May be called
+     * on any thread, and must be cheap: the data is passed as primitives so that nothing has to
+     * be allocated per sample.  It is only made into a Bundle (like the ones passed to
+     * {@link #onNewData}) when someone starts watching.
+     */
+    void onLatestData(long timestamp, double value, double min, double max, double average);
+}
@@ -26,7 +26,10 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.google.android.apps.forscience.javalib.Counter;
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.javalib.Histogram;
+import com.google.android.apps.forscience.javalib.MetricRegistry;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.ExternalAxisController;
@@ -47,7 +50,9 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.FrequencyOptions
         .FilterChangeListener;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
@@ -61,6 +66,38 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
      */
     public static final int DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS = 20;
 
+    /**
+     * Stats key for the number of samples that were dropped during a recording because their
+     * timestamps did not advance past the previous sample.
+     */
+    public static final String STATS_KEY_DROPPED_OUT_OF_ORDER = "stats_dropped_out_of_order";
+
+    /**
+     * Stats key for the number of samples that were not stored because their timestamps fell
+     * outside the run's shared [start, stop] window.
+     */
+    public static final String STATS_KEY_TRIMMED_OUTSIDE_WINDOW = "stats_trimmed_outside_window";
+
+    /**
+     * Stats key for how long after the run's shared start timestamp this sensor's first stored
+     * sample was taken.  Comparing this across the sensors in a run gives their start skew.
+     */
+    public static final String STATS_KEY_START_SKEW_MILLIS = "stats_start_skew_millis";
+
+    /**
+     * Stats key for how long before the run's shared stop timestamp this sensor's last stored
+     * sample was taken.
+     */
+    public static final String STATS_KEY_STOP_SKEW_MILLIS = "stats_stop_skew_millis";
+
+    /**
+     * Prefix for stats keys holding what the {@link MetricRegistry} recorded during the run, for
+     * this sensor and for the shared recording pipeline.
+     */
+    public static final String STATS_KEY_METRIC_PREFIX = "metric_";
+
+    private static final String SENSOR_METRIC_PREFIX = "sensor.";
+
     private static final String TAG = "ScalarSensor";
     protected static final double DENOMINATOR_FOR_RPMS = 60 * 1000.0;
     private static final String BUNDLE_KEY_SENSOR_VALUE = "key_sensor_value";
@@ -335,10 +372,22 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         return bundle.getDouble(BUNDLE_KEY_SENSOR_VALUE);
     }
 
+    public static void putValue(Bundle bundle, double value) {
+        bundle.putDouble(BUNDLE_KEY_SENSOR_VALUE, value);
+    }
+
     public static boolean hasValue(Bundle bundle) {
         return bundle.containsKey(BUNDLE_KEY_SENSOR_VALUE);
     }
 
+    /**
+     * @return the name under which {@code metric} is tracked for the given sensor in the
+     * {@link MetricRegistry}.
+     */
+    public static String metricName(String sensorId, String metric) {
+        return SENSOR_METRIC_PREFIX + sensorId + "." + metric;
+    }
+
     @Override
     public SensorRecorder createRecorder(final Context context,
             final SensorObserver observer, SensorStatusListener listener,
@@ -356,6 +405,7 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         final SensorRecorder recorder = makeScalarControl(consumer, environment, context, listener);
         return new DelegatingSensorRecorder(recorder) {
             private String mRunId;
+            private MetricRegistry.Snapshot mMetricsAtStart;
 
             @Override
             public void startObserving() {
@@ -371,11 +421,35 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
 
             @Override
             public void startRecording(String runId) {
+                prepareRun(runId);
+                consumer.setRecordingStart(Long.MIN_VALUE);
+                super.startRecording(runId);
+            }
+
+            @Override
+            public void armRecording(String runId) {
+                prepareRun(runId);
+                super.armRecording(runId);
+            }
+
+            private void prepareRun(String runId) {
                 mRunId = runId;
+                mMetricsAtStart = MetricRegistry.getDefault().snapshot();
                 statsAccumulator.clearStats();
                 zoomRecorder.clear();
                 consumer.startRecording();
-                super.startRecording(runId);
+            }
+
+            @Override
+            public void setRecordingStart(long startMillis) {
+                consumer.setRecordingStart(startMillis);
+                super.setRecordingStart(startMillis);
+            }
+
+            @Override
+            public void setRecordingStop(long stopMillis) {
+                consumer.setRecordingStop(stopMillis);
+                super.setRecordingStop(stopMillis);
             }
 
             @Override
@@ -386,10 +460,35 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
                 runStats.putStat(ZoomRecorder.STATS_KEY_TIER_COUNT, zoomRecorder.countTiers());
                 runStats.putStat(ZoomRecorder.STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS,
                         mZoomLevelBetweenTiers);
+                runStats.putStat(STATS_KEY_DROPPED_OUT_OF_ORDER,
+                        consumer.getDroppedOutOfOrderCount());
+                consumer.putWindowStats(runStats);
+                putMetricStats(runStats);
                 environment.getDataController().setStats(mRunId, getId(), runStats);
                 consumer.stopRecording();
                 statsAccumulator.clearStats();
             }
+
+            private void putMetricStats(RunStats runStats) {
+                if (mMetricsAtStart == null) {
+                    return;
+                }
+                // This sensor's own metrics (without the sensor prefix), plus everything that
+                // isn't specific to a sensor.
+                String ownPrefix = metricName(getId(), "");
+                Map<String, Double> metrics = MetricRegistry.getDefault().snapshot().since(
+                        mMetricsAtStart).toMap();
+                for (Map.Entry<String, Double> entry : metrics.entrySet()) {
+                    String name = entry.getKey();
+                    if (name.startsWith(ownPrefix)) {
+                        name = name.substring(ownPrefix.length());
+                    } else if (name.startsWith(SENSOR_METRIC_PREFIX)) {
+                        continue;
+                    }
+                    runStats.putStat(STATS_KEY_METRIC_PREFIX + name, entry.getValue());
+                }
+                mMetricsAtStart = null;
+            }
         };
     }
 
@@ -434,14 +533,43 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     protected abstract SensorRecorder makeScalarControl(StreamConsumer c,
             SensorEnvironment environment, Context context, SensorStatusListener listener);
 
-    private class ScalarStreamConsumer implements StreamConsumer {
-        private final Bundle mBundle;
+    private class ScalarStreamConsumer implements BatchStreamConsumer {
+        // Only touched on the UI thread.  Each post to the UI thread carries its own values,
+        // which are copied in here there.
+        private final Bundle mUiBundle = new Bundle();
         private final StatsAccumulator mStatsAccumulator;
         private final SensorObserver mObserver;
         private final RecordingDataController mDataController;
         private final ZoomRecorder mZoomRecorder;
-        private boolean mIsRecording = false;
+        private volatile boolean mIsRecording = false;
         private long mLastDataTimestampMillis;
+        private int mDroppedOutOfOrderCount = 0;
+        private boolean mHasData = false;
+
+        private final Counter mSampleMetric;
+        private final Counter mDroppedMetric;
+        private final Counter mTrimmedMetric;
+        private final Histogram mIntervalMetric;
+        private final Counter mUiPostMetric;
+        private final Counter mHeadlessMetric;
+
+        // Non-null if the observer can tell us that nobody is watching.
+        private final HeadlessCapableObserver mHeadlessObserver;
+
+        // The shared recording window.  Guarded by "this", since the start and stop are
+        // published from the UI thread while data arrives on the sensor's own thread.
+        private long mWindowStartMillis;
+        private long mWindowStopMillis;
+        private boolean mWindowStartPublished;
+        private int mTrimmedCount;
+        private long mFirstStoredTimestampMillis;
+        private long mLastStoredTimestampMillis;
+
+        // Filtered samples that arrived after the sensor was armed, but before the start of the
+        // window was known.
+        private long[] mPendingTimestamps = new long[16];
+        private double[] mPendingValues = new double[16];
+        private int mPendingCount;
 
         public ScalarStreamConsumer(StatsAccumulator statsAccumulator,
                 SensorObserver observer, RecordingDataController dataController,
@@ -449,19 +577,79 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
             mStatsAccumulator = statsAccumulator;
             mObserver = observer;
             mDataController = dataController;
-            mBundle = new Bundle();
             mZoomRecorder = zoomRecorder;
+
+            MetricRegistry metrics = MetricRegistry.getDefault();
+            mSampleMetric = metrics.counter(metricName(getId(), "samples"));
+            mDroppedMetric = metrics.counter(metricName(getId(), "dropped_out_of_order"));
+            mTrimmedMetric = metrics.counter(metricName(getId(), "trimmed_outside_window"));
+            mIntervalMetric = metrics.histogram(metricName(getId(), "interval_millis"));
+            mUiPostMetric = metrics.counter(metricName(getId(), "ui_posts"));
+            mHeadlessMetric = metrics.counter(metricName(getId(), "headless_samples"));
+
+            mHeadlessObserver = observer instanceof HeadlessCapableObserver
+                    ? (HeadlessCapableObserver) observer : null;
         }
 
-        public void startRecording() {
+        /**
+         * Starts a recording whose window start is not yet known: nothing will be stored until
+         * {@link #setRecordingStart} is called.
+         */
+        public synchronized void startRecording() {
+            mDroppedOutOfOrderCount = 0;
+            mWindowStartMillis = Long.MAX_VALUE;
+            mWindowStopMillis = Long.MAX_VALUE;
+            mWindowStartPublished = false;
+            mTrimmedCount = 0;
+            mFirstStoredTimestampMillis = Long.MIN_VALUE;
+            mLastStoredTimestampMillis = Long.MIN_VALUE;
+            mPendingCount = 0;
             mIsRecording = true;
         }
 
-        public void stopRecording() {
+        /**
+         * Stores the samples that were held while armed, if they fall inside the window, and
+         * everything from now on that does.  Pass {@code Long.MIN_VALUE} for a recording that
+         * is not synchronized with any other sensor.
+         */
+        public synchronized void setRecordingStart(long startMillis) {
+            mWindowStartMillis = startMillis;
+            mWindowStartPublished = startMillis != Long.MIN_VALUE;
+            for (int i = 0; i < mPendingCount; i++) {
+                recordIfInWindow(mPendingTimestamps[i], mPendingValues[i]);
+            }
+            mPendingCount = 0;
+        }
+
+        public synchronized void setRecordingStop(long stopMillis) {
+            mWindowStopMillis = stopMillis;
+        }
+
+        public synchronized void stopRecording() {
             mIsRecording = false;
+            mPendingCount = 0;
             mZoomRecorder.flushAllTiers(mDataController);
         }
 
+        /**
+         * Adds the window trimming counts and this sensor's skew relative to the shared start
+         * and stop (if they were published) to the stats for the run.
+         */
+        public synchronized void putWindowStats(RunStats runStats) {
+            runStats.putStat(STATS_KEY_TRIMMED_OUTSIDE_WINDOW, mTrimmedCount);
+            if (mFirstStoredTimestampMillis == Long.MIN_VALUE) {
+                return;
+            }
+            if (mWindowStartPublished) {
+                runStats.putStat(STATS_KEY_START_SKEW_MILLIS,
+                        mFirstStoredTimestampMillis - mWindowStartMillis);
+            }
+            if (mWindowStopMillis != Long.MAX_VALUE) {
+                runStats.putStat(STATS_KEY_STOP_SKEW_MILLIS,
+                        mWindowStopMillis - mLastStoredTimestampMillis);
+            }
+        }
+
         public boolean maintainsTimeSeries (final long timestampMillis) {
             if (timestampMillis > mLastDataTimestampMillis) {
                 return true;
@@ -471,36 +659,175 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
 
         @Override
         public void addData(final long timestampMillis, double value) {
-            if (!maintainsTimeSeries(timestampMillis)) {
+            if (!accept(timestampMillis)) {
                 return;
             }
-            if (mValueFilter != null) {
-                value = mValueFilter.filterValue(timestampMillis, value);
+            value = filterAndRecord(timestampMillis, value);
+            if (isHeadless()) {
+                mHeadlessMetric.increment();
+                deliverLatest(timestampMillis, value);
+                return;
             }
-            final Bundle data = makeBundle(value);
-            mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
-            mStatsAccumulator.addStatsToBundle(data);
+            final double uiValue = value;
+            final double min = mStatsAccumulator.getMin();
+            final double max = mStatsAccumulator.getMax();
+            final double average = mStatsAccumulator.getAverage();
 
             // TODO: try to remove this allocation
+            mUiPostMetric.increment();
             mUiThreadExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    mObserver.onNewData(timestampMillis, data);
+                    StatsAccumulator.addStatsToBundle(mUiBundle, min, max, average);
+                    mUiBundle.putDouble(BUNDLE_KEY_SENSOR_VALUE, uiValue);
+                    mObserver.onNewData(timestampMillis, mUiBundle);
                 }
             });
+        }
+
+        @Override
+        public void addData(long[] timestampsMillis, double[] values, int count) {
+            if (isHeadless()) {
+                addDataHeadless(timestampsMillis, values, count);
+                return;
+            }
+            final long[] uiTimestamps = new long[count];
+            final double[] uiValues = new double[count];
+            int accepted = 0;
+            for (int i = 0; i < count; i++) {
+                long timestampMillis = timestampsMillis[i];
+                if (accept(timestampMillis)) {
+                    uiTimestamps[accepted] = timestampMillis;
+                    uiValues[accepted] = filterAndRecord(timestampMillis, values[i]);
+                    accepted++;
+                }
+            }
+            if (accepted == 0) {
+                return;
+            }
+            final int uiCount = accepted;
+            final double min = mStatsAccumulator.getMin();
+            final double max = mStatsAccumulator.getMax();
+            final double average = mStatsAccumulator.getAverage();
+
+            // One hop to the UI thread for the whole block.
+            mUiPostMetric.increment();
+            mUiThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    StatsAccumulator.addStatsToBundle(mUiBundle, min, max, average);
+                    for (int i = 0; i < uiCount; i++) {
+                        mUiBundle.putDouble(BUNDLE_KEY_SENSOR_VALUE, uiValues[i]);
+                        mObserver.onNewData(uiTimestamps[i], mUiBundle);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Records a block of data while nobody is watching: only the newest accepted sample is
+         * passed on, and nothing is sent to the UI thread.
+         */
+        private void addDataHeadless(long[] timestampsMillis, double[] values, int count) {
+            boolean anyAccepted = false;
+            long latestTimestamp = 0;
+            double latestValue = 0;
+            for (int i = 0; i < count; i++) {
+                long timestampMillis = timestampsMillis[i];
+                if (accept(timestampMillis)) {
+                    latestValue = filterAndRecord(timestampMillis, values[i]);
+                    latestTimestamp = timestampMillis;
+                    anyAccepted = true;
+                    mHeadlessMetric.increment();
+                }
+            }
+            if (anyAccepted) {
+                deliverLatest(latestTimestamp, latestValue);
+            }
+        }
+
+        private boolean isHeadless() {
+            return mHeadlessObserver != null && mHeadlessObserver.isHeadless();
+        }
 
+        private void deliverLatest(long timestampMillis, double value) {
+            mHeadlessObserver.onLatestData(timestampMillis, value, mStatsAccumulator.getMin(),
+                    mStatsAccumulator.getMax(), mStatsAccumulator.getAverage());
+        }
+
+        private boolean accept(long timestampMillis) {
+            if (!maintainsTimeSeries(timestampMillis)) {
+                if (mIsRecording) {
+                    mDroppedOutOfOrderCount++;
+                }
+                mDroppedMetric.increment();
+                return false;
+            }
+            mSampleMetric.increment();
+            if (mHasData) {
+                mIntervalMetric.record(timestampMillis - mLastDataTimestampMillis);
+            }
+            mHasData = true;
+            return true;
+        }
+
+        /**
+         * Filters the value, updates stats, and stores it if we're recording.
+         *
+         * @return the filtered value
+         */
+        private double filterAndRecord(long timestampMillis, double value) {
+            if (mValueFilter != null) {
+                value = mValueFilter.filterValue(timestampMillis, value);
+            }
             if (mIsRecording) {
-                mZoomRecorder.addData(timestampMillis, value, mDataController);
-                mDataController.addScalarReading(getId(), 0, timestampMillis, value);
+                synchronized (this) {
+                    if (!mIsRecording) {
+                        mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
+                    } else if (mWindowStartMillis == Long.MAX_VALUE) {
+                        holdPending(timestampMillis, value);
+                    } else {
+                        recordIfInWindow(timestampMillis, value);
+                    }
+                }
+            } else {
+                mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
             }
             mLastDataTimestampMillis = timestampMillis;
+            return value;
+        }
+
+        private void recordIfInWindow(long timestampMillis, double value) {
+            if (timestampMillis < mWindowStartMillis || timestampMillis > mWindowStopMillis) {
+                mTrimmedCount++;
+                mTrimmedMetric.increment();
+                return;
+            }
+            if (mFirstStoredTimestampMillis == Long.MIN_VALUE) {
+                mFirstStoredTimestampMillis = timestampMillis;
+            }
+            mLastStoredTimestampMillis = timestampMillis;
+            mStatsAccumulator.updateRecordingStreamStats(timestampMillis, value);
+            mZoomRecorder.addData(timestampMillis, value, mDataController);
+            mDataController.addScalarReading(getId(), 0, timestampMillis, value);
+        }
+
+        private void holdPending(long timestampMillis, double value) {
+            if (mPendingCount == mPendingTimestamps.length) {
+                mPendingTimestamps = Arrays.copyOf(mPendingTimestamps, mPendingCount * 2);
+                mPendingValues = Arrays.copyOf(mPendingValues, mPendingCount * 2);
+            }
+            mPendingTimestamps[mPendingCount] = timestampMillis;
+            mPendingValues[mPendingCount] = value;
+            mPendingCount++;
         }
 
-        // TODO: profile this to make sure Bundles don't add extravagant memory and
-        // CPU overhead
-        private Bundle makeBundle(double value) {
-            mBundle.putDouble(BUNDLE_KEY_SENSOR_VALUE, value);
-            return mBundle;
+        /**
+         * @return how many samples have been dropped since recording started, because their
+         * timestamps were not later than the previous sample.
+         */
+        public int getDroppedOutOfOrderCount() {
+            return mDroppedOutOfOrderCount;
         }
     }
 
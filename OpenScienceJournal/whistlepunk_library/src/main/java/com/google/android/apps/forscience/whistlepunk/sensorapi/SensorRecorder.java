@@ -42,6 +42,27 @@ public interface SensorRecorder extends OptionsListener {
      */
     void startRecording(String runId);
 
+    /**
+     * First phase of a recording that is synchronized across several sensors.  The sensor should
+     * start up exactly as for {@link #startRecording}, but must not persist any data until
+     * {@link #setRecordingStart} publishes the start timestamp shared by every sensor in the run.
+     *
+     * @param runId runId that will identify this run in the database.
+     */
+    void armRecording(String runId);
+
+    /**
+     * Every sensor in the run has been armed.  Data timestamped before {@code startMillis} must
+     * not be persisted.
+     */
+    void setRecordingStart(long startMillis);
+
+    /**
+     * The run is about to stop.  Data timestamped after {@code stopMillis} must not be
+     * persisted, even if it arrives before {@link #stopRecording} is called.
+     */
+    void setRecordingStop(long stopMillis);
+
     /**
      * The user has requested that recording stop.
      *
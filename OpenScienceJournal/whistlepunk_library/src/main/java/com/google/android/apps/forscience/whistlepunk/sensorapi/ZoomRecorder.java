@@ -16,6 +16,8 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
+import com.google.android.apps.forscience.javalib.Counter;
+import com.google.android.apps.forscience.javalib.MetricRegistry;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 
 /**
@@ -41,6 +43,7 @@ public class ZoomRecorder {
     private final String mSensorId;
     private final int mZoomBufferSize;
     private final int mTier;
+    private final Counter mTierWrites;
 
     private int mSeenThisPass = 0;
     private long mTimestampOfMinSeen;
@@ -59,6 +62,8 @@ public class ZoomRecorder {
         mSensorId = id;
         mTier = tier;
         mZoomBufferSize = zoomBufferSize;
+        mTierWrites = MetricRegistry.getDefault().counter(
+                ScalarSensor.metricName(id, "zoom_tier_writes"));
         resetBuffer();
     }
 
@@ -92,6 +97,7 @@ public class ZoomRecorder {
     private void addReadingAtThisTier(RecordingDataController dc, long timestamp,
             double value) {
         dc.addScalarReading(mSensorId, mTier, timestamp, value);
+        mTierWrites.increment();
         getNextTierUp().addData(timestamp, value, dc);
     }
 
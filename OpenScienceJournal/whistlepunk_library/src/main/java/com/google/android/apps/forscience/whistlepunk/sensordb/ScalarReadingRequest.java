@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+/**
+ * One query in a batch of scalar reading queries.  See
+ * {@link SensorDatabase#getScalarReadings(String, TimeRange, int, int)} for the meaning of the
+ * parameters.
+ */
+public class ScalarReadingRequest {
+    private final String mDatabaseTag;
+    private final int mResolutionTier;
+    private final TimeRange mTimeRange;
+    private final int mMaxRecords;
+
+    public ScalarReadingRequest(String databaseTag, int resolutionTier, TimeRange timeRange,
+            int maxRecords) {
+        mDatabaseTag = databaseTag;
+        mResolutionTier = resolutionTier;
+        mTimeRange = timeRange;
+        mMaxRecords = maxRecords;
+    }
+
+    public String getDatabaseTag() {
+        return mDatabaseTag;
+    }
+
+    public int getResolutionTier() {
+        return mResolutionTier;
+    }
+
+    public TimeRange getTimeRange() {
+        return mTimeRange;
+    }
+
+    public int getMaxRecords() {
+        return mMaxRecords;
+    }
+}
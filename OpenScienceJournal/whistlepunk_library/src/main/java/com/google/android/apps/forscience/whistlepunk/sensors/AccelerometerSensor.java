@@ -22,8 +22,8 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HardwareTimestampMapper;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -75,11 +75,12 @@ public class AccelerometerSensor extends ScalarSensor {
                 if (mSensorEventListener != null) {
                     getSensorManager(context).unregisterListener(mSensorEventListener);
                 }
-                final Clock clock = environment.getDefaultClock();
+                final HardwareTimestampMapper timestamps = new HardwareTimestampMapper(
+                        environment.getDefaultClock());
                 mSensorEventListener = new SensorEventListener() {
                     @Override
                     public void onSensorChanged(SensorEvent event) {
-                        c.addData(clock.getNow(), mAxis.getValue(event));
+                        c.addData(timestamps.toWallMillis(event.timestamp), mAxis.getValue(event));
                     }
 
                     @Override
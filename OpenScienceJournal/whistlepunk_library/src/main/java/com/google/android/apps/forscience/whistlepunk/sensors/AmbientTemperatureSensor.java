@@ -23,8 +23,8 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
 import com.google.android.apps.forscience.javalib.DataRefresher;
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HardwareTimestampMapper;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
@@ -57,11 +57,12 @@ public class AmbientTemperatureSensor extends ScalarSensor {
                 if (mSensorEventListener != null) {
                     getSensorManager(context).unregisterListener(mSensorEventListener);
                 }
-                final Clock clock = environment.getDefaultClock();
+                final HardwareTimestampMapper timestamps = new HardwareTimestampMapper(
+                        environment.getDefaultClock());
                 mSensorEventListener = new SensorEventListener() {
                     @Override
                     public void onSensorChanged(SensorEvent event) {
-                        c.addData(clock.getNow(), event.values[0]);
+                        c.addData(timestamps.toWallMillis(event.timestamp), event.values[0]);
                     }
 
                     @Override
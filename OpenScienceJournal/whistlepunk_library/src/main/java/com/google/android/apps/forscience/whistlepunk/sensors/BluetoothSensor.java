@@ -16,13 +16,15 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensors;
 
+import android.bluetooth.BluetoothGatt;
 import android.content.Context;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.google.android.apps.forscience.ble.BleConnectionManager;
 import com.google.android.apps.forscience.ble.BleFlow;
-import com.google.android.apps.forscience.ble.BleFlowListener;
-import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.ble.BleNotificationListener;
+import com.google.android.apps.forscience.whistlepunk.DeviceClockSynchronizer;
 import com.google.android.apps.forscience.whistlepunk.PacketAssembler;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorConfig;
@@ -115,6 +117,13 @@ public class BluetoothSensor extends ScalarSensor {
             return mPatchVersion;
         }
 
+        /**
+         * @return true if the device may send SensorDataBatch messages (version 1.1.0 and up).
+         */
+        public boolean supportsBatches() {
+            return mMajorVersion > 1 || (mMajorVersion == 1 && mMinorVersion >= 1);
+        }
+
         @VisibleForTesting
         public int getMaxMajorVersion() {
             return MAJOR_MAX;
@@ -146,21 +155,32 @@ public class BluetoothSensor extends ScalarSensor {
     public static final BleServiceSpec[] SUPPORTED_SERVICES =
             new BleServiceSpec[]{ANNING_SERVICE_SPEC};
 
+    // Large enough for any SensorData in one notification.  Devices may agree to less.
+    private static final int REQUESTED_MTU = 247;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    // Most readings we let a device put in one SensorDataBatch.  Enough to keep the radio from
+    // being the bottleneck at 1kHz, without holding readings back from the graph for long.
+    private static final int MAX_BATCH_SIZE = 50;
+
     private static final long DEFAULT_FREQUENCY_WINDOW = 2000;
     private static final float DEFAULT_FREQUENCY_FILTER = 0;
     private final BleSensorSpec mSensor;
     private final BleServiceSpec mServiceSpec;
     private boolean mDeviceFrequencyEnabled;
     private boolean mNotificationSubscribed = false;
+    private int mMaxNotificationSize = BleFlow.DEFAULT_MTU - ATT_HEADER_SIZE;
+    private boolean mRecording = false;
+    private boolean mSupportsBatches = false;
 
-    private long mTimeSkew = -1;
+    // Replaced, rather than reset, so that the GATT thread never sees one half-reset.
+    private volatile DeviceClockSynchronizer mClockSynchronizer = new DeviceClockSynchronizer();
     private String mAddress;
     private GoosciSensorConfig.BleSensorConfig.ScaleTransform mDeviceScaleTransform;
 
-    public long getTimeSkew() { return mTimeSkew; }
-    public void setTimeSkew(long skew) { mTimeSkew = skew; }
-    BleFlow mFlow;
-    BleFlowListener mBleFlowListener;
+    public DeviceClockSynchronizer getClockSynchronizer() { return mClockSynchronizer; }
+    private BleConnectionManager mConnectionManager;
+    private BleConnectionManager.ConnectionListener mConnectionListener;
 
     public BluetoothSensor(String sensorId, BleSensorSpec sensor, BleServiceSpec serviceSpec) {
         super(sensorId);
@@ -170,23 +190,65 @@ public class BluetoothSensor extends ScalarSensor {
         readConfigurationFrom(sensor);
     }
 
-    private BleFlowListener createBleFlowListener(final StreamConsumer c, final Clock defaultClock,
+    private BleConnectionManager.ConnectionListener createConnectionListener(
             final SensorStatusListener listener) {
-        return new BleFlowListener() {
-            final PacketAssembler mPa = new PacketAssembler(c, defaultClock, BluetoothSensor.this);
+        return new BleConnectionManager.ConnectionListener() {
+            @Override
+            public void onConnected(String address) {
+                // The device may have restarted its clock while we were away.
+                mClockSynchronizer = new DeviceClockSynchronizer();
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
+            }
 
             @Override
-            public void onSuccess() {
+            public void onDisconnected(String address) {
+                // The connection manager will reconnect and resubscribe for us.
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTING);
             }
 
             @Override
-            public void onFailure(Exception error) {
+            public void onConnectionFailed(String address, Exception error) {
                 Log.d(TAG, "Failure " + error.getMessage());
                 listener.onSourceError(getId(), SensorStatusListener.ERROR_UNKNOWN,
                         error.getLocalizedMessage());
-                mFlow.resetAndAddListener(mBleFlowListener)
-                        .disconnect();
-                BleFlow.run(mFlow);
+            }
+        };
+    }
+
+    /**
+     * Reads the protocol version (if the device has one), writes our configuration, and
+     * subscribes to values.  This is replayed by the connection manager after every reconnect.
+     */
+    private BleConnectionManager.Operation createSubscribeOperation() {
+        return new BleConnectionManager.Operation() {
+            private BleFlow mFlow;
+
+            @Override
+            public void addActions(BleFlow flow) {
+                mFlow = flow;
+                mMaxNotificationSize = BleFlow.DEFAULT_MTU - ATT_HEADER_SIZE;
+                // Only devices that tell us their version can batch.
+                mSupportsBatches = false;
+                flow.changeMessageTransferUnitSize(REQUESTED_MTU);
+                if (mRecording) {
+                    flow.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                }
+                flow.lookupService(mServiceSpec.getServiceId());
+            }
+
+            @Override
+            public void onMtuChanged(int mtu) {
+                mMaxNotificationSize = mtu - ATT_HEADER_SIZE;
+            }
+
+            @Override
+            public void onServicesDiscovered() {
+                if (mFlow.isCharacteristicValid(mServiceSpec.getVersionId())) {
+                    mFlow.lookupCharacteristic(mServiceSpec.getVersionId())
+                            .read();
+                } else {
+                    writeConfigAndSetNotification(mFlow);
+                }
             }
 
             @Override
@@ -196,50 +258,50 @@ public class BluetoothSensor extends ScalarSensor {
                 // For Description (UUID:555a0002), it's a string desc (eg. "Goosci Windmill")
                 if (characteristic.compareTo(mServiceSpec.getVersionId()) == 0) {
                     BleProtocolVersion protocolVersion = new BleProtocolVersion(value);
+                    mSupportsBatches = protocolVersion.supportsBatches();
                     switch (protocolVersion.getMajorVersion()) {
                         // Currently no version requires a special connection sequence
                         default:
-                            writeConfigAndSetNotification();
+                            writeConfigAndSetNotification(mFlow);
                     }
                 }
             }
 
             @Override
-            public void onNotification(UUID characteristic, int flags, byte[] value) {
-                mPa.append(value);
-            }
-            @Override
-            public void onDisconnect() {
-                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
-            }
-
-            @Override
-            public void onConnect() {
-                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
+            public void onNotificationSubscribed(){
+                mNotificationSubscribed = true;
             }
+        };
+    }
 
+    private BleConnectionManager.Operation createUnsubscribeOperation() {
+        return new BleConnectionManager.Operation() {
             @Override
-            public void onNotificationSubscribed(){
-                mNotificationSubscribed = true;
+            public void addActions(BleFlow flow) {
+                if (mNotificationSubscribed) {
+                    flow.lookupService(mServiceSpec.getServiceId())
+                            .lookupCharacteristic(mServiceSpec.getValueId())
+                            .disableNotification();
+                }
             }
 
             @Override
             public void onNotificationUnsubscribed() {
                 mNotificationSubscribed = false;
-                mFlow.resetAndAddListener(mBleFlowListener)
-                        .disconnect();
-                BleFlow.run(mFlow);
             }
+        };
+    }
 
+    /**
+     * While recording, a shorter connection interval gets samples to us sooner and with fewer
+     * drops, at the cost of battery on both ends.
+     */
+    private BleConnectionManager.Operation createConnectionPriorityOperation(
+            final int priority) {
+        return new BleConnectionManager.Operation() {
             @Override
-            public void onServicesDiscovered() {
-                if (mFlow.isCharacteristicValid(mServiceSpec.getVersionId())) {
-                    mFlow.lookupCharacteristic(mServiceSpec.getVersionId())
-                            .read();
-                    BleFlow.run(mFlow);
-                } else {
-                    writeConfigAndSetNotification();
-                }
+            public void addActions(BleFlow flow) {
+                flow.requestConnectionPriority(priority);
             }
         };
     }
@@ -260,6 +322,12 @@ public class BluetoothSensor extends ScalarSensor {
         sdr.interval = new GoosciSensor.Interval();
         sdr.interval.count = 1;
         sdr.interval.frequency = 20;
+        if (mMaxNotificationSize > BleFlow.DEFAULT_MTU - ATT_HEADER_SIZE) {
+            sdr.maxNotificationSize = mMaxNotificationSize;
+        }
+        if (mSupportsBatches) {
+            sdr.maxBatchSize = MAX_BATCH_SIZE;
+        }
 
         sdr.pin = new GoosciSensor.Pin[]{
                 new GoosciSensor.Pin(),
@@ -298,15 +366,14 @@ public class BluetoothSensor extends ScalarSensor {
         return outputStream.toByteArray();
     }
 
-    private void writeConfigAndSetNotification() {
+    private void writeConfigAndSetNotification(BleFlow flow) {
         byte[] sensorConfig = buildConfigProtoForDevice(mSensor);
-        if (sensorConfig != null && mFlow.isCharacteristicValid(mServiceSpec.getSettingId())) {
-            mFlow.lookupCharacteristic(mServiceSpec.getSettingId())
+        if (sensorConfig != null && flow.isCharacteristicValid(mServiceSpec.getSettingId())) {
+            flow.lookupCharacteristic(mServiceSpec.getSettingId())
                     .write(sensorConfig);
         }
-        mFlow.lookupCharacteristic(mServiceSpec.getValueId())
+        flow.lookupCharacteristic(mServiceSpec.getValueId())
                 .enableNotification();
-        BleFlow.run(mFlow);
     }
 
     private void readConfigurationFrom(BleSensorSpec bleSensor) {
@@ -325,35 +392,53 @@ public class BluetoothSensor extends ScalarSensor {
     protected SensorRecorder makeScalarControl(final StreamConsumer c,
             final SensorEnvironment environment, Context context,
             final SensorStatusListener listener) {
-        mFlow = environment.getBleClient().getFlowFor(mAddress);
+        mConnectionManager = environment.getBleClient().getConnectionManager();
         return new AbstractSensorRecorder() {
             @Override
             public void startObserving() {
                 // make BLE connection
                 listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTING);
-                mBleFlowListener =
-                        createBleFlowListener(c, environment.getDefaultClock(), listener);
-                mTimeSkew = -1;
-                mFlow.resetAndAddListener(mBleFlowListener)
-                        .connect()
-                        .lookupService(mServiceSpec.getServiceId());
-                BleFlow.run(mFlow);
+                final PacketAssembler pa = new PacketAssembler(c, environment.getDefaultClock(),
+                        BluetoothSensor.this);
+                mClockSynchronizer = new DeviceClockSynchronizer();
+                mConnectionManager.setNotificationListener(mAddress, mServiceSpec.getValueId(),
+                        new BleNotificationListener() {
+                            @Override
+                            public void onNotification(UUID characteristic, int flags,
+                                    byte[] value) {
+                                pa.append(value);
+                            }
+                        });
+                mConnectionListener = createConnectionListener(listener);
+                mConnectionManager.open(mAddress, mConnectionListener);
+                mConnectionManager.addSetupOperation(mAddress, createSubscribeOperation());
             }
 
             @Override
-            public void stopObserving() {
-                mTimeSkew = -1;
-                mFlow.resetAndAddListener(mBleFlowListener);
-                if(mNotificationSubscribed) {
-                    mFlow.lookupService(mServiceSpec.getServiceId())
-                            .lookupCharacteristic(mServiceSpec.getValueId())
-                            .disableNotification();
-                    BleFlow.run(mFlow);
-                } else {
-                    mFlow.disconnect();
-                    BleFlow.run(mFlow);
+            public void startRecording(String runId) {
+                mRecording = true;
+                if (mConnectionManager.isConnected(mAddress)) {
+                    mConnectionManager.enqueue(mAddress, createConnectionPriorityOperation(
+                            BluetoothGatt.CONNECTION_PRIORITY_HIGH));
+                }
+            }
+
+            @Override
+            public void stopRecording() {
+                mRecording = false;
+                if (mConnectionManager.isConnected(mAddress)) {
+                    mConnectionManager.enqueue(mAddress, createConnectionPriorityOperation(
+                            BluetoothGatt.CONNECTION_PRIORITY_BALANCED));
                 }
             }
+
+            @Override
+            public void stopObserving() {
+                mClockSynchronizer = new DeviceClockSynchronizer();
+                mConnectionManager.close(mAddress, mConnectionListener,
+                        createUnsubscribeOperation());
+                listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
+            }
         };
     }
 }
@@ -22,8 +22,8 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HardwareTimestampMapper;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -54,7 +54,8 @@ public class MagneticRotationSensor extends ScalarSensor {
                 if (mSensorEventListener != null) {
                     getSensorManager(context).unregisterListener(mSensorEventListener);
                 }
-                final Clock clock = environment.getDefaultClock();
+                final HardwareTimestampMapper timestamps = new HardwareTimestampMapper(
+                        environment.getDefaultClock());
                 mSensorEventListener = new SensorEventListener() {
                     @Override
                     public void onSensorChanged(SensorEvent event) {
@@ -63,7 +64,7 @@ public class MagneticRotationSensor extends ScalarSensor {
                         // Convert X and Y components to angle
                         // https://en.wikipedia.org/wiki/Atan2
                         double angle = Math.toDegrees(Math.atan2(y,x)) + 180.;
-                        c.addData(clock.getNow(), angle);
+                        c.addData(timestamps.toWallMillis(event.timestamp), angle);
                     }
 
                     @Override
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands out plain heap buffers, and remembers the last one, so that a test can play the part of
+ * the remote reader in the same process.
+ */
+public class HeapSharedRegionAllocator implements SharedRegion.Allocator {
+    private SharedRegion mLastRegion;
+
+    @Override
+    public SharedRegion allocate(int size) {
+        mLastRegion = new SharedRegion(ByteBuffer.allocate(size), null);
+        return mLastRegion;
+    }
+
+    public SharedRegion getLastRegion() {
+        return mLastRegion;
+    }
+}
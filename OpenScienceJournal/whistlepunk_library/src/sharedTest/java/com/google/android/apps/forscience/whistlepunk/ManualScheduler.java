@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+
+import java.util.PriorityQueue;
+
+/**
+ * Runs scheduled tasks when the test advances the clock.
+ */
+public class ManualScheduler implements Scheduler {
+    private static class Task implements Comparable<Task> {
+        final long mAt;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Task(long at, long sequence, Runnable runnable) {
+            mAt = at;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mAt != other.mAt) {
+                return mAt < other.mAt ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private long mNow = 0;
+    private long mSequence = 0;
+
+    @Override
+    public void schedule(Delay delay, Runnable doThis) {
+        mTasks.add(new Task(mNow + delay.asMillis(), mSequence++, doThis));
+    }
+
+    public void advanceTo(long now) {
+        while (!mTasks.isEmpty() && mTasks.peek().mAt <= now) {
+            Task task = mTasks.poll();
+            mNow = task.mAt;
+            task.mRunnable.run();
+        }
+        mNow = now;
+    }
+}
@@ -75,7 +75,9 @@ public class TestData {
         checkRawData(rawData);
     }
 
-    public void checkRawData(List<ChartData.DataPoint> rawData) {
+    public void checkRawData(List<ChartData.DataPoint> chartData) {
+        // ChartData's view of its points is read-only, so copy before removing dupes.
+        List<ChartData.DataPoint> rawData = new ArrayList<>(chartData);
         removeDupes(rawData);
         final Iterator<Point> iterator = mPoints.iterator();
 
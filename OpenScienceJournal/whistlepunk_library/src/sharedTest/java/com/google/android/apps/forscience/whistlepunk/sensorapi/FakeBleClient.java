@@ -22,7 +22,11 @@ import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 
 import com.google.android.apps.forscience.ble.BleClient;
+import com.google.android.apps.forscience.ble.BleConnectionManager;
 import com.google.android.apps.forscience.ble.BleFlow;
+import com.google.android.apps.forscience.ble.BleNotificationListener;
+import com.google.android.apps.forscience.ble.BleNotificationRouter;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
 
 import java.util.UUID;
 
@@ -31,6 +35,8 @@ public class FakeBleClient implements BleClient {
     public String mostRecentAddress = null;
 
     private Context mContext;
+    private BleNotificationRouter mNotificationRouter = new BleNotificationRouter();
+    private BleConnectionManager mConnectionManager;
 
     public FakeBleClient(Context context) {
         this.mContext = context;
@@ -111,6 +117,11 @@ public class FakeBleClient implements BleClient {
 
     }
 
+    @Override
+    public boolean requestConnectionPriority(String address, int priority) {
+        return true;
+    }
+
     @Override
     public void startTransaction(String address) {
 
@@ -125,4 +136,31 @@ public class FakeBleClient implements BleClient {
     public void setMaxNoDevices(int maxNoDevices) {
 
     }
+
+    @Override
+    public void setNotificationListener(String address, BleNotificationListener listener) {
+        mNotificationRouter.setListener(address, listener);
+    }
+
+    @Override
+    public void clearNotificationListener(String address, BleNotificationListener listener) {
+        mNotificationRouter.clearListener(address, listener);
+    }
+
+    @Override
+    public BleConnectionManager getConnectionManager() {
+        if (mConnectionManager == null) {
+            mConnectionManager = new BleConnectionManager(this, new SystemScheduler());
+        }
+        return mConnectionManager;
+    }
+
+    /**
+     * Delivers a notification as if it had arrived on the GATT callback thread.
+     *
+     * @return false if nothing was listening to {@code address}
+     */
+    public boolean notifyCharacteristic(String address, UUID characteristic, byte[] value) {
+        return mNotificationRouter.deliver(address, characteristic, 0, value);
+    }
 }
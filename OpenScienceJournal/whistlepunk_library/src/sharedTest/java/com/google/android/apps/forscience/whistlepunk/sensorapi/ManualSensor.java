@@ -31,6 +31,7 @@ import com.google.android.apps.forscience.whistlepunk.StatsListener;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class ManualSensor extends ScalarSensor {
     private StreamConsumer mConsumer;
@@ -40,10 +41,15 @@ public class ManualSensor extends ScalarSensor {
 
     public ManualSensor(String sensorId, long defaultGraphRange,
             int zoomLevelBetweenResolutionTiers) {
-        super(sensorId, defaultGraphRange, MoreExecutors.directExecutor(),
+        this(sensorId, defaultGraphRange, MoreExecutors.directExecutor(),
                 zoomLevelBetweenResolutionTiers);
     }
 
+    public ManualSensor(String sensorId, long defaultGraphRange, Executor uiThreadExecutor,
+            int zoomLevelBetweenResolutionTiers) {
+        super(sensorId, defaultGraphRange, uiThreadExecutor, zoomLevelBetweenResolutionTiers);
+    }
+
     public SensorRecorder createRecorder(Context context, RecordingDataController rdc,
             RecordingSensorObserver observer) {
         return createRecorder(context, observer, new StubStatusListener(),
@@ -64,6 +70,21 @@ public class ManualSensor extends ScalarSensor {
                 startObserving();
             }
 
+            @Override
+            public void armRecording(String runId) {
+                startRecording(runId);
+            }
+
+            @Override
+            public void setRecordingStart(long startMillis) {
+
+            }
+
+            @Override
+            public void setRecordingStop(long stopMillis) {
+
+            }
+
             @Override
             public void stopRecording() {
 
@@ -109,6 +130,12 @@ public class ManualSensor extends ScalarSensor {
         }
     }
 
+    public void pushBatch(long[] timestampsMillis, double[] values, int count) {
+        if (mConsumer != null) {
+            ((BatchStreamConsumer) mConsumer).addData(timestampsMillis, values, count);
+        }
+    }
+
     public SensorPresenter createPresenter() {
         StatsListener statsListener = new StubStatsListener();
         ExternalAxisController.InteractionListener interactionListener =
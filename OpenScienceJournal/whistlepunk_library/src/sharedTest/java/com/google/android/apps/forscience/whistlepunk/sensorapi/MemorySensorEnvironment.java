@@ -20,11 +20,13 @@ import com.google.android.apps.forscience.ble.BleClient;
 import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.SensorHistoryStorage;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
 
 public class MemorySensorEnvironment implements SensorEnvironment {
     private final RecordingDataController mDataController;
     private FakeBleClient mBleClient;
     private SensorHistoryStorage mHistoryStorage;
+    private Clock mClock = new MonotonicClock();
 
     public MemorySensorEnvironment(RecordingDataController dataController, FakeBleClient bleClient,
             SensorHistoryStorage shs) {
@@ -45,7 +47,11 @@ public class MemorySensorEnvironment implements SensorEnvironment {
 
     @Override
     public Clock getDefaultClock() {
-        return null;
+        return mClock;
+    }
+
+    public void setDefaultClock(Clock clock) {
+        mClock = clock;
     }
 
     @Override
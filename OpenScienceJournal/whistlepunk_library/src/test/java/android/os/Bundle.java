@@ -29,6 +29,17 @@ import java.util.Map;
 public class Bundle {
     private Map<String, String> mValues = new HashMap<>();
 
+    public Bundle() {
+    }
+
+    public Bundle(Bundle b) {
+        putAll(b);
+    }
+
+    public void putAll(Bundle b) {
+        mValues.putAll(b.mValues);
+    }
+
     public void putDouble(String key, double value) {
         mValues.put(key, String.valueOf(value));
     }
@@ -36,4 +47,8 @@ public class Bundle {
     public double getDouble(String key) {
         return Double.parseDouble(mValues.get(key));
     }
+
+    public boolean containsKey(String key) {
+        return mValues.containsKey(key);
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.javalib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+public class MetricRegistryTest {
+    @Test
+    public void sameNameSameMetric() {
+        MetricRegistry registry = new MetricRegistry();
+        assertSame(registry.counter("a"), registry.counter("a"));
+        try {
+            registry.gauge("a");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // success!
+        }
+    }
+
+    @Test
+    public void gaugeTracksHighWaterMark() {
+        Gauge gauge = new MetricRegistry().gauge("queue");
+        gauge.add(1);
+        gauge.add(1);
+        gauge.add(-1);
+        assertEquals(1, gauge.get());
+        assertEquals(2, gauge.getMax());
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = Histogram.bucketFor(value);
+            assertTrue(value + " >= lower bound", value >= Histogram.bucketLowerBound(bucket));
+            assertTrue(value + " <= upper bound", value <= Histogram.bucketUpperBound(bucket));
+            // Within 12.5%
+            assertTrue(Histogram.bucketUpperBound(bucket) - Histogram.bucketLowerBound(bucket)
+                    <= Math.max(0, value / 8));
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new MetricRegistry().histogram("latency");
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        // Log-linear buckets are within 12.5% of the true value
+        assertEquals(50, histogram.getPercentile(0.5), 50 / 8);
+        assertEquals(99, histogram.getPercentile(0.99), 99 / 8);
+        assertEquals(100, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void snapshotSince() {
+        MetricRegistry registry = new MetricRegistry();
+        Counter counter = registry.counter("sensor.a.samples");
+        Histogram histogram = registry.histogram("data.insert_micros");
+        counter.add(10);
+        histogram.record(1000);
+
+        MetricRegistry.Snapshot start = registry.snapshot();
+        counter.add(5);
+        histogram.record(10);
+        registry.counter("sensor.a.late").increment();
+
+        Map<String, Double> delta = registry.snapshot().since(start).toMap();
+        assertEquals(5.0, delta.get("sensor.a.samples"), 0.001);
+        assertEquals(1.0, delta.get("sensor.a.late"), 0.001);
+        assertEquals(1.0, delta.get("data.insert_micros.count"), 0.001);
+        assertEquals(10.0, delta.get("data.insert_micros.max"), 0.001);
+
+        Map<String, Double> total = registry.snapshot("sensor.").toMap();
+        assertEquals(15.0, total.get("sensor.a.samples"), 0.001);
+        assertFalse(total.containsKey("data.insert_micros.count"));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchingSensorObserverTest {
+    private static final double DELTA = 0.0001;
+
+    private static class RecordingBatchListener implements BatchingSensorObserver.BatchListener {
+        List<long[]> timestamps = new ArrayList<>();
+        List<double[]> values = new ArrayList<>();
+        List<Bundle> stats = new ArrayList<>();
+
+        @Override
+        public void onNewDataBatch(long[] timestamps, double[] values, Bundle stats) {
+            this.timestamps.add(timestamps);
+            this.values.add(values);
+            this.stats.add(stats);
+        }
+    }
+
+    private final Bundle mBundle = new Bundle();
+
+    private void send(SensorObserver observer, long timestamp, double value) {
+        mBundle.putDouble("key_sensor_value", value);
+        mBundle.putDouble(StatsAccumulator.KEY_MIN, -value);
+        mBundle.putDouble(StatsAccumulator.KEY_MAX, value);
+        mBundle.putDouble(StatsAccumulator.KEY_AVERAGE, 0);
+        observer.onNewData(timestamp, mBundle);
+    }
+
+    @Test
+    public void flushesWhenFull() {
+        ManualScheduler scheduler = new ManualScheduler();
+        RecordingBatchListener listener = new RecordingBatchListener();
+        BatchingSensorObserver observer = new BatchingSensorObserver(listener, scheduler, 3, 1000);
+
+        for (int i = 0; i < 7; i++) {
+            send(observer, i, i * 10);
+        }
+        assertEquals(2, listener.timestamps.size());
+        assertArrayEquals(new long[] {0, 1, 2}, listener.timestamps.get(0));
+        assertArrayEquals(new double[] {30, 40, 50}, listener.values.get(1), DELTA);
+        assertEquals(50, listener.stats.get(1).getDouble(StatsAccumulator.KEY_MAX), DELTA);
+
+        // The stale latency flush for the first batch must not cut the third one short.
+        scheduler.advanceTo(999);
+        assertEquals(2, listener.timestamps.size());
+        observer.flush();
+        assertArrayEquals(new long[] {6}, listener.timestamps.get(2));
+    }
+
+    @Test
+    public void flushesWhenLate() {
+        ManualScheduler scheduler = new ManualScheduler();
+        RecordingBatchListener listener = new RecordingBatchListener();
+        BatchingSensorObserver observer = new BatchingSensorObserver(listener, scheduler, 100,
+                50);
+
+        scheduler.advanceTo(10);
+        send(observer, 10, 1);
+        scheduler.advanceTo(40);
+        send(observer, 40, 2);
+        scheduler.advanceTo(59);
+        assertEquals(0, listener.timestamps.size());
+        scheduler.advanceTo(60);
+        assertEquals(1, listener.timestamps.size());
+        assertArrayEquals(new long[] {10, 40}, listener.timestamps.get(0));
+
+        // Nothing pending: no empty batches.
+        scheduler.advanceTo(200);
+        observer.flush();
+        assertEquals(1, listener.timestamps.size());
+    }
+
+    /**
+     * Keeps an eye on the transaction rate (each listener call would be one binder transaction)
+     * for 3 sensors at 200 Hz.
+     */
+    @Test
+    public void threeSensorsAt200Hz() {
+        int sensors = 3;
+        int periodMillis = 5;
+        int seconds = 60;
+
+        final int[] perSampleTransactions = new int[1];
+        SensorObserver perSample = new SensorObserver() {
+            @Override
+            public void onNewData(long timestamp, Bundle data) {
+                perSampleTransactions[0]++;
+            }
+        };
+        runSensors(sensors, periodMillis, seconds, new ManualScheduler(),
+                perSample, perSample, perSample);
+
+        ManualScheduler scheduler = new ManualScheduler();
+        final int[] batchedTransactions = new int[1];
+        BatchingSensorObserver.BatchListener listener = new BatchingSensorObserver.BatchListener() {
+            @Override
+            public void onNewDataBatch(long[] timestamps, double[] values, Bundle stats) {
+                batchedTransactions[0]++;
+            }
+        };
+        SensorObserver[] batched = new SensorObserver[sensors];
+        for (int i = 0; i < sensors; i++) {
+            batched[i] = new BatchingSensorObserver(listener, scheduler, 64, 50);
+        }
+        runSensors(sensors, periodMillis, seconds, scheduler, batched);
+
+        assertEquals(sensors * 1000 / periodMillis, perSampleTransactions[0] / seconds);
+        // 50ms of latency at 200Hz is 10 readings per transaction.
+        assertTrue("per-sample " + perSampleTransactions[0] + ", batched "
+                + batchedTransactions[0], perSampleTransactions[0] >= 10 * batchedTransactions[0]);
+    }
+
+    private void runSensors(int sensors, int periodMillis, int seconds,
+            ManualScheduler scheduler, SensorObserver... observers) {
+        for (long now = 0; now < seconds * 1000; now += periodMillis) {
+            scheduler.advanceTo(now);
+            for (int i = 0; i < sensors; i++) {
+                send(observers[i], now, Math.sin(now + i));
+            }
+        }
+        scheduler.advanceTo(seconds * 1000);
+    }
+}
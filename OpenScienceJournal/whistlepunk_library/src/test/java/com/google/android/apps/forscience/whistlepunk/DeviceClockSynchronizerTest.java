@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceClockSynchronizerTest {
+    private static final long PACKET_INTERVAL_MILLIS = 20;
+    private static final long MIN_LATENCY_MILLIS = 5;
+    private static final double MEAN_EXTRA_LATENCY_MILLIS = 15;
+
+    /**
+     * A device whose clock starts at {@code mStart} and gains {@code drift} ms per phone ms
+     * relative to the phone, and whose packets take a minimum latency plus an exponentially
+     * distributed extra delay to arrive.
+     */
+    private static class DriftingDevice {
+        final long mStart;
+        final double mDrift;
+        final long mPhoneEpoch = 1000000;
+        final Random mRandom = new Random(42);
+
+        DriftingDevice(long start, double drift) {
+            mStart = start;
+            mDrift = drift;
+        }
+
+        long deviceTime(long phoneMillis) {
+            return mStart + Math.round((phoneMillis - mPhoneEpoch) * (1 + mDrift));
+        }
+
+        long truePhoneTime(long deviceMillis) {
+            return mPhoneEpoch + Math.round((deviceMillis - mStart) / (1 + mDrift));
+        }
+
+        long receiveTime(long phoneMillis) {
+            return phoneMillis + MIN_LATENCY_MILLIS
+                    + Math.round(-Math.log(1 - mRandom.nextDouble()) * MEAN_EXTRA_LATENCY_MILLIS);
+        }
+    }
+
+    @Test
+    public void tracksDriftBetterThanOneTimeSkew() {
+        // The device clock runs 200ppm slow.
+        DriftingDevice device = new DriftingDevice(0, -0.0002);
+        DeviceClockSynchronizer sync = new DeviceClockSynchronizer();
+        long oneTimeSkew = Long.MIN_VALUE;
+        long maxSyncError = 0;
+        long maxSkewError = 0;
+        long tenMinutes = 10 * 60 * 1000;
+        for (long t = device.mPhoneEpoch; t < device.mPhoneEpoch + tenMinutes;
+                t += PACKET_INTERVAL_MILLIS) {
+            long deviceTime = sync.unwrap((int) device.deviceTime(t));
+            long received = device.receiveTime(t);
+            sync.addSample(deviceTime, received);
+            long mapped = sync.toPhoneMillis(deviceTime);
+            if (oneTimeSkew == Long.MIN_VALUE) {
+                oneTimeSkew = received - deviceTime;
+            }
+            if (t > device.mPhoneEpoch + tenMinutes - 60 * 1000) {
+                long truth = device.truePhoneTime(deviceTime);
+                maxSyncError = Math.max(maxSyncError, Math.abs(mapped - truth));
+                maxSkewError = Math.max(maxSkewError,
+                        Math.abs(deviceTime + oneTimeSkew - truth));
+            }
+        }
+
+        // The minimum latency can't be told apart from the offset, so it stays in the error.
+        assertTrue("sync error " + maxSyncError, maxSyncError < MIN_LATENCY_MILLIS + 5);
+        assertTrue("skew error " + maxSkewError, maxSkewError > 50);
+        assertEquals(0.0002, sync.getDrift(), 0.00005);
+        assertEquals(0, sync.getResetCount());
+        assertTrue(sync.getEnvelopeRmsMillis() < 5);
+        assertEquals(MEAN_EXTRA_LATENCY_MILLIS, sync.getMeanLatencyMillis(), 5);
+    }
+
+    @Test
+    public void handlesWraparound() {
+        long start = (1L << 32) - 30 * 1000;
+        DriftingDevice device = new DriftingDevice(start, 0);
+        DeviceClockSynchronizer sync = new DeviceClockSynchronizer();
+        long lastMapped = Long.MIN_VALUE;
+        for (long t = device.mPhoneEpoch; t < device.mPhoneEpoch + 60 * 1000;
+                t += PACKET_INTERVAL_MILLIS) {
+            long deviceTime = sync.unwrap((int) device.deviceTime(t));
+            assertEquals(device.deviceTime(t), deviceTime);
+            sync.addSample(deviceTime, device.receiveTime(t));
+            long mapped = sync.toPhoneMillis(deviceTime);
+            assertTrue(mapped > lastMapped);
+            lastMapped = mapped;
+        }
+        assertEquals(0, sync.getResetCount());
+    }
+
+    @Test
+    public void startsOverWhenDeviceRestarts() {
+        DriftingDevice device = new DriftingDevice(500000, 0);
+        DeviceClockSynchronizer sync = new DeviceClockSynchronizer();
+        long t = device.mPhoneEpoch;
+        for (; t < device.mPhoneEpoch + 30 * 1000; t += PACKET_INTERVAL_MILLIS) {
+            long deviceTime = sync.unwrap((int) device.deviceTime(t));
+            sync.addSample(deviceTime, device.receiveTime(t));
+        }
+
+        // Restarted device counts from zero again.
+        long restartedAt = t;
+        for (; t < restartedAt + 30 * 1000; t += PACKET_INTERVAL_MILLIS) {
+            long deviceTime = sync.unwrap((int) (t - restartedAt));
+            sync.addSample(deviceTime, device.receiveTime(t));
+            long mapped = sync.toPhoneMillis(deviceTime);
+            assertEquals(t, mapped, MIN_LATENCY_MILLIS + 10);
+        }
+        assertEquals(1, sync.getResetCount());
+    }
+
+    @Test
+    public void ignoresWindowsWhereEverythingWasLate() {
+        DriftingDevice device = new DriftingDevice(0, 0);
+        DeviceClockSynchronizer sync = new DeviceClockSynchronizer();
+        long end = device.mPhoneEpoch + 120 * 1000;
+        long congestionStart = device.mPhoneEpoch + 60 * 1000;
+        long congestionEnd = congestionStart + 3000;
+        long maxError = 0;
+        for (long t = device.mPhoneEpoch; t < end; t += PACKET_INTERVAL_MILLIS) {
+            long deviceTime = sync.unwrap((int) device.deviceTime(t));
+            long received = device.receiveTime(t);
+            if (t >= congestionStart && t < congestionEnd) {
+                received += 300;
+            }
+            sync.addSample(deviceTime, received);
+            long mapped = sync.toPhoneMillis(deviceTime);
+            if (t > device.mPhoneEpoch + 30 * 1000) {
+                maxError = Math.max(maxError, Math.abs(mapped - device.truePhoneTime(deviceTime)));
+            }
+        }
+        assertTrue(sync.getRejectedCount() > 0);
+        assertTrue("error " + maxError, maxError < MIN_LATENCY_MILLIS + 5);
+        assertTrue(sync.getMaxLatencyMillis() >= 300);
+    }
+}
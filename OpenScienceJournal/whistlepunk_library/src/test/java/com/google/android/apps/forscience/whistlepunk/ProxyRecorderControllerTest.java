@@ -29,6 +29,8 @@ import com.google.android.apps.forscience.javalib.FallibleConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.MemorySensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
@@ -171,6 +173,38 @@ public class ProxyRecorderControllerTest {
         assertEquals(Arrays.asList("id1"), stateListener.recentObservedSensorIds);
     }
 
+    @Test
+    public void failedSharedStartLeavesNothingRegistered() throws RemoteException {
+        RecorderControllerImpl rc = new RecorderControllerImpl(null, mRegistry, mEnvironment) {
+            @Override
+            protected void withBoundRecorderService(FallibleConsumer<RecorderService> c) {
+                // do nothing
+            }
+
+            @Override
+            public String startObserving(String sensorId, SensorObserver observer,
+                    SensorStatusListener listener, TransportableSensorOptions initialOptions) {
+                throw new IllegalStateException("No such sensor");
+            }
+        };
+        ProxyRecorderController prc = new ProxyRecorderController(rc, mPolicy, mFailureListener,
+                new ManualScheduler());
+        prc.setSharedRegionAllocator(new HeapSharedRegionAllocator());
+
+        try {
+            prc.startObservingShared("id1", null, null, BLANK_OPTIONS, 16, 20);
+            fail("Should have passed on the delegate's failure");
+        } catch (IllegalStateException expected) {
+            // success!
+        }
+        try {
+            prc.stopObserving("id1");
+            fail("Should not think it is observing after a failed start");
+        } catch (IllegalArgumentException expected) {
+            // success!
+        }
+    }
+
     @NonNull
     private RecorderControllerImpl makeRecorderController() {
         return new RecorderControllerImpl(null, mRegistry, mEnvironment) {
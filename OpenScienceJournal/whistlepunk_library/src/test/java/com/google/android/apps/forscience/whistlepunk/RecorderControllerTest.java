@@ -17,19 +17,27 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.google.android.apps.forscience.javalib.Consumer;
+import com.google.android.apps.forscience.javalib.FallibleConsumer;
+import com.google.android.apps.forscience.whistlepunk.metadata.RunStats;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.MemorySensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorChoice;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StubStatusListener;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 
 import org.junit.Test;
 
+import java.util.concurrent.Executor;
+
 public class RecorderControllerTest {
     @Test
     public void multipleObservers() {
@@ -64,4 +72,123 @@ public class RecorderControllerTest {
         TestData.allPointsBetween(2, 3, 1).checkObserver(observer2);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void sharedRecordingWindow() {
+        final ManualSensor fast = new ManualSensor("fast", 100, 100);
+        final ManualSensor slow = new ManualSensor("slow", 100, 100);
+        SensorRegistry registry = new SensorRegistry() {
+            @Override
+            public void withSensorChoice(String id, Consumer<SensorChoice> consumer) {
+                consumer.take(id.equals("fast") ? fast : slow);
+            }
+        };
+        MemoryMetadataManager metadata = new MemoryMetadataManager();
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        MemorySensorEnvironment env = new MemorySensorEnvironment(
+                db.makeSimpleRecordingController(metadata), new FakeBleClient(null),
+                new MemorySensorHistoryStorage());
+        final long[] now = {10};
+        env.setDefaultClock(new Clock() {
+            @Override
+            public long getNow() {
+                return now[0];
+            }
+        });
+        RecorderControllerImpl rc = new RecorderControllerImpl(null, registry, env) {
+            @Override
+            protected void withBoundRecorderService(FallibleConsumer<RecorderService> c) {
+                // do nothing
+            }
+        };
+
+        rc.startObserving("fast", new RecordingSensorObserver(), new StubStatusListener(), null);
+        rc.startObserving("slow", new RecordingSensorObserver(), new StubStatusListener(), null);
+        fast.pushValue(5, 5);
+
+        now[0] = 20;
+        rc.startRecording(null, new RecordingMetadata(15, "runId", "experimentName"));
+        fast.pushValue(25, 25);
+        slow.pushValue(60, 60);
+        fast.pushValue(90, 90);
+        now[0] = 100;
+        rc.stopRecording();
+
+        assertEquals(3, db.getReadings(0).size());
+        RunStats fastStats = metadata.getStats("runId", "fast");
+        RunStats slowStats = metadata.getStats("runId", "slow");
+        assertEquals(5.0, fastStats.getStat(ScalarSensor.STATS_KEY_START_SKEW_MILLIS), 0.001);
+        assertEquals(40.0, slowStats.getStat(ScalarSensor.STATS_KEY_START_SKEW_MILLIS), 0.001);
+        assertEquals(10.0, fastStats.getStat(ScalarSensor.STATS_KEY_STOP_SKEW_MILLIS), 0.001);
+        assertEquals(40.0, slowStats.getStat(ScalarSensor.STATS_KEY_STOP_SKEW_MILLIS), 0.001);
+    }
+
+    @Test
+    public void headlessRecording() {
+        final int[] uiPosts = {0};
+        Executor countingExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                uiPosts[0]++;
+                command.run();
+            }
+        };
+        final ManualSensor sensor = new ManualSensor("sensorId", 100, countingExecutor, 100);
+        SensorRegistry registry = new SensorRegistry() {
+            @Override
+            public void withSensorChoice(String id, Consumer<SensorChoice> consumer) {
+                consumer.take(sensor);
+            }
+        };
+        InMemorySensorDatabase db = new InMemorySensorDatabase();
+        MemorySensorEnvironment env = new MemorySensorEnvironment(
+                db.makeSimpleRecordingController(new MemoryMetadataManager()),
+                new FakeBleClient(null), new MemorySensorHistoryStorage());
+        env.setDefaultClock(new Clock() {
+            @Override
+            public long getNow() {
+                return 0;
+            }
+        });
+        RecorderControllerImpl rc = new RecorderControllerImpl(null, registry, env) {
+            @Override
+            protected void withBoundRecorderService(FallibleConsumer<RecorderService> c) {
+                // do nothing
+            }
+        };
+
+        RecordingSensorObserver foreground = new RecordingSensorObserver();
+        String observerId = rc.startObserving("sensorId", foreground, new StubStatusListener(),
+                null);
+        rc.startRecording(null, new RecordingMetadata(0, "runId", "experimentName"));
+
+        // What RecordFragment does in onPause
+        rc.stopObserving("sensorId", observerId);
+        String stalePauseId = rc.pauseObservingAll();
+        String pauseId = rc.pauseObservingAll();
+        assertTrue(rc.isHeadless());
+
+        // Resuming from an earlier pause doesn't undo the later one.
+        assertFalse(rc.resumeObservingAll(stalePauseId));
+        assertTrue(rc.isHeadless());
+
+        int samples = 60000;
+        uiPosts[0] = 0;
+        for (int i = 1; i <= samples; i++) {
+            sensor.pushValue(i, i);
+        }
+        assertEquals(0, uiPosts[0]);
+        assertEquals(0, foreground.getReadings().size());
+        assertEquals(samples, db.getReadings(0).size());
+
+        assertTrue(rc.resumeObservingAll(pauseId));
+        assertFalse(rc.isHeadless());
+        RecordingSensorObserver resumed = new RecordingSensorObserver();
+        rc.startObserving("sensorId", resumed, new StubStatusListener(), null);
+        assertEquals(1, resumed.getReadings().size());
+        assertEquals(samples, resumed.getReadings().get(0).getCollectedTimeMillis());
+
+        sensor.pushValue(samples + 1, 1);
+        assertEquals(2, resumed.getReadings().size());
+        rc.stopRecording();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Bundle;
+
+import com.google.android.apps.forscience.whistlepunk.wireapi.SensorRing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SharedRingStreamerTest {
+    private static final double DELTA = 0.0001;
+
+    private static class RecordingWakeupListener implements SharedRingStreamer.WakeupListener {
+        List<Long> sequences = new ArrayList<>();
+        boolean closed = false;
+
+        @Override
+        public void onDataAvailable(long publishedSequence, boolean closed) {
+            sequences.add(publishedSequence);
+            this.closed = closed;
+        }
+    }
+
+    private final HeapSharedRegionAllocator mAllocator = new HeapSharedRegionAllocator();
+    private final Bundle mBundle = new Bundle();
+
+    private ByteBuffer allocateRing(int capacity) {
+        return mAllocator.allocate(SensorRing.getRegionSize(capacity)).getBuffer();
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.capacity());
+        for (int i = 0; i < buffer.capacity(); i++) {
+            copy.put(i, buffer.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * @return the offsets of the 8-byte words that differ, in the order they are in the region,
+     * which puts the header's sequence number first, then the record's tag and payload.
+     */
+    private static List<Integer> changedWords(ByteBuffer before, ByteBuffer after) {
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i + 8 <= after.capacity(); i += 8) {
+            if (before.getLong(i) != after.getLong(i)) {
+                offsets.add(i);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Copies some of the writer's stores into another process's view of the region.
+     */
+    private static void copyWords(ByteBuffer from, ByteBuffer to, List<Integer> offsets) {
+        for (int offset : offsets) {
+            to.putLong(offset, from.getLong(offset));
+        }
+    }
+
+    private void send(SharedRingStreamer streamer, long timestamp, double value) {
+        mBundle.putDouble("key_sensor_value", value);
+        streamer.onNewData(timestamp, mBundle);
+    }
+
+    @Test
+    public void readsAcrossWrap() {
+        ByteBuffer buffer = allocateRing(4);
+        SensorRing.Writer writer = new SensorRing.Writer(buffer, 4);
+        SensorRing.Reader reader = new SensorRing.Reader(buffer);
+        long[] timestamps = new long[3];
+        double[] values = new double[3];
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 3; i++) {
+                writer.append(round * 3 + i, -(round * 3 + i));
+            }
+            assertEquals(3, reader.read(timestamps, values));
+            long first = round * 3;
+            assertArrayEquals(new long[] {first, first + 1, first + 2}, timestamps);
+            assertArrayEquals(new double[] {-first, -first - 1, -first - 2}, values, DELTA);
+            assertFalse(reader.hasUnread());
+        }
+        assertEquals(0, reader.getMissedCount());
+    }
+
+    @Test
+    public void detectsOverrunPerReader() {
+        ByteBuffer buffer = allocateRing(4);
+        SensorRing.Writer writer = new SensorRing.Writer(buffer, 4);
+        SensorRing.Reader fast = new SensorRing.Reader(buffer);
+        SensorRing.Reader slow = new SensorRing.Reader(buffer);
+        long[] timestamps = new long[10];
+        double[] values = new double[10];
+
+        for (int i = 0; i < 10; i++) {
+            writer.append(i, i);
+            if (i % 2 == 1) {
+                assertEquals(2, fast.read(timestamps, values));
+            }
+        }
+        assertEquals(0, fast.getMissedCount());
+
+        // The slow reader gets the last 4, and knows it missed 6.
+        assertEquals(4, slow.read(timestamps, values));
+        assertEquals(6, timestamps[0]);
+        assertEquals(9, timestamps[3]);
+        assertEquals(6, slow.getMissedCount());
+    }
+
+    @Test
+    public void lateReaderStartsAtOldestRecord() {
+        ByteBuffer buffer = allocateRing(4);
+        SensorRing.Writer writer = new SensorRing.Writer(buffer, 4);
+        for (int i = 0; i < 6; i++) {
+            writer.append(i, i);
+        }
+        SensorRing.Reader reader = new SensorRing.Reader(buffer);
+        long[] timestamps = new long[10];
+        double[] values = new double[10];
+        assertEquals(4, reader.read(timestamps, values));
+        assertEquals(2, timestamps[0]);
+        assertEquals(0, reader.getMissedCount());
+    }
+
+    @Test
+    public void waitsForRecordPublishedBeforeItsBytes() {
+        ByteBuffer buffer = allocateRing(4);
+        SensorRing.Writer writer = new SensorRing.Writer(buffer, 4);
+        ByteBuffer before = copyOf(buffer);
+        ByteBuffer view = copyOf(buffer);
+        SensorRing.Reader reader = new SensorRing.Reader(view);
+        writer.append(1000, 2.5);
+        List<Integer> changed = changedWords(before, buffer);
+        long[] timestamps = new long[4];
+        double[] values = new double[4];
+
+        // Only the new sequence number has reached this process.
+        copyWords(buffer, view, changed.subList(0, 1));
+        assertEquals(0, reader.read(timestamps, values));
+        assertTrue(reader.hasUnread());
+
+        // The tag has too, but not the payload.
+        copyWords(buffer, view, changed.subList(0, 2));
+        assertEquals(0, reader.read(timestamps, values));
+
+        copyWords(buffer, view, changed);
+        assertEquals(1, reader.read(timestamps, values));
+        assertEquals(1000, timestamps[0]);
+        assertEquals(2.5, values[0], DELTA);
+        assertEquals(0, reader.getMissedCount());
+    }
+
+    @Test
+    public void rejectsTornPayload() {
+        ByteBuffer buffer = allocateRing(4);
+        SensorRing.Writer writer = new SensorRing.Writer(buffer, 4);
+        ByteBuffer before = copyOf(buffer);
+        ByteBuffer view = copyOf(buffer);
+        SensorRing.Reader reader = new SensorRing.Reader(view);
+        writer.append(1000, 2.5);
+        List<Integer> changed = changedWords(before, buffer);
+        long[] timestamps = new long[4];
+        double[] values = new double[4];
+
+        // Everything but the value.
+        List<Integer> allButValue = new ArrayList<>(changed);
+        allButValue.remove(3);
+        copyWords(buffer, view, allButValue);
+        assertEquals(0, reader.read(timestamps, values));
+
+        copyWords(buffer, view, changed);
+        assertEquals(1, reader.read(timestamps, values));
+        assertEquals(2.5, values[0], DELTA);
+    }
+
+    @Test
+    public void rejectsUnformattedRegion() {
+        try {
+            new SensorRing.Reader(allocateRing(4));
+            fail("Should not read a region with no ring in it");
+        } catch (IllegalArgumentException expected) {
+            // success!
+        }
+    }
+
+    @Test
+    public void wakeupsAreThrottled() {
+        ManualScheduler scheduler = new ManualScheduler();
+        ByteBuffer buffer = allocateRing(64);
+        RecordingWakeupListener listener = new RecordingWakeupListener();
+        SharedRingStreamer streamer = new SharedRingStreamer(new SensorRing.Writer(buffer, 64), listener,
+                scheduler, 20);
+        SensorRing.Reader reader = new SensorRing.Reader(buffer);
+
+        // 200Hz for 100ms: one wakeup per 20ms, not one per reading.
+        for (long now = 0; now < 100; now += 5) {
+            scheduler.advanceTo(now);
+            send(streamer, now, now);
+        }
+        scheduler.advanceTo(100);
+        assertEquals(5, listener.sequences.size());
+        assertEquals(20, (long) listener.sequences.get(4));
+
+        long[] timestamps = new long[64];
+        double[] values = new double[64];
+        assertEquals(20, reader.read(timestamps, values));
+        assertEquals(95, timestamps[19]);
+
+        send(streamer, 100, 100);
+        streamer.close();
+        assertTrue(listener.closed);
+        assertTrue(reader.isClosed());
+        assertEquals(1, reader.read(timestamps, values));
+
+        // Nothing more after closing.
+        scheduler.advanceTo(200);
+        send(streamer, 200, 200);
+        assertEquals(6, listener.sequences.size());
+        assertFalse(reader.hasUnread());
+    }
+}
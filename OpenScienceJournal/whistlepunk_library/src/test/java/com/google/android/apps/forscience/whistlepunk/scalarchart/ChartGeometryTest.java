@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ChartGeometryTest {
+    private static final float WIDTH = 100;
+    private static final float HEIGHT = 50;
+    private static final float START_PADDING = 10;
+    private static final float TOP_PADDING = 5;
+
+    private ChartGeometry makeGeometry(long xMin, long xMax) {
+        return new ChartGeometry(xMin, xMax, 0, 10, WIDTH, HEIGHT, START_PADDING, TOP_PADDING);
+    }
+
+    @Test
+    public void projectsIntoChartRect() {
+        ChartData data = new ChartData();
+        data.addPoint(new ChartData.DataPoint(0, 0));
+        data.addPoint(new ChartData.DataPoint(50, 5));
+        data.addPoint(new ChartData.DataPoint(100, 10));
+
+        ChartGeometry geometry = makeGeometry(0, 100);
+        geometry.compute(data, new PathDecimator(), 0, 100, false);
+        assertEquals(3, geometry.getVertexCount());
+        float[] vertices = geometry.getVertices();
+        assertEquals(START_PADDING, vertices[0], 0.001);
+        assertEquals(TOP_PADDING + HEIGHT, vertices[1], 0.001);
+        assertEquals(START_PADDING + WIDTH / 2, vertices[2], 0.001);
+        assertEquals(TOP_PADDING + HEIGHT / 2, vertices[3], 0.001);
+        assertEquals(START_PADDING + WIDTH, vertices[4], 0.001);
+        assertEquals(TOP_PADDING, vertices[5], 0.001);
+        assertEquals(0, geometry.getXMinInPath());
+        assertEquals(100, geometry.getXMaxInPath());
+        assertTrue(geometry.reachesEnd());
+    }
+
+    @Test
+    public void emptyData() {
+        ChartGeometry geometry = makeGeometry(0, 100);
+        geometry.compute(new ChartData(), new PathDecimator(), 0, 100, true);
+        assertEquals(0, geometry.getVertexCount());
+    }
+
+    @Test
+    public void limitedRangeDoesNotReachEnd() {
+        ChartData data = new ChartData();
+        for (int i = 0; i < 1000; i++) {
+            data.addPoint(new ChartData.DataPoint(i, i % 10));
+        }
+        ChartGeometry geometry = makeGeometry(0, 100);
+        geometry.compute(data, new PathDecimator(), 0, 100, false);
+        assertFalse(geometry.reachesEnd());
+        assertTrue(geometry.getXMaxInPath() >= 100);
+        assertTrue(geometry.getXMaxInPath() < 999);
+    }
+
+    /**
+     * The geometry is computed on a background thread while the UI thread keeps adding and
+     * throwing away points.  Every computed line must still be ordered and within the data.
+     */
+    @Test
+    public void computeWhileDataChanges() throws InterruptedException {
+        final ChartData data = new ChartData();
+        final int points = 200000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PathDecimator decimator = new PathDecimator();
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        ChartGeometry geometry = makeGeometry(0, points);
+                        geometry.compute(data, decimator, Long.MIN_VALUE, Long.MAX_VALUE, true);
+                        float[] vertices = geometry.getVertices();
+                        for (int v = 1; v < geometry.getVertexCount(); v++) {
+                            assertTrue(vertices[v * 2] >= vertices[v * 2 - 2]);
+                        }
+                        assertTrue(geometry.getXMinInPath() <= geometry.getXMaxInPath());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        worker.start();
+        for (int i = 0; i < points; i++) {
+            data.addPoint(new ChartData.DataPoint(i, Math.sin(i)));
+            if (i % 1000 == 0) {
+                data.throwAwayBefore(i - 5000);
+            }
+        }
+        worker.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
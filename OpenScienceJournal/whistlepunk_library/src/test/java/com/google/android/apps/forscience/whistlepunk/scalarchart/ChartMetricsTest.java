@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ChartMetricsTest {
+    private static final long FRAME = ChartMetrics.FRAME_INTERVAL_NANOS;
+
+    @Test
+    public void onTimeFramesAreNotJanky() {
+        assertEquals(0, ChartMetrics.countDroppedFrames(0));
+        assertEquals(0, ChartMetrics.countDroppedFrames(FRAME));
+        // Vsync timestamps wobble a little.
+        assertEquals(0, ChartMetrics.countDroppedFrames(FRAME * 5 / 4));
+    }
+
+    @Test
+    public void lateFramesCountTheVsyncsTheyMissed() {
+        assertEquals(1, ChartMetrics.countDroppedFrames(FRAME * 3 / 2));
+        assertEquals(1, ChartMetrics.countDroppedFrames(FRAME * 2));
+        assertEquals(2, ChartMetrics.countDroppedFrames(FRAME * 3 - FRAME / 4));
+        assertEquals(59, ChartMetrics.countDroppedFrames(1000000000L));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChartSeriesTest {
+    @Test
+    public void alignedRunLoadsInItsOwnTime() {
+        // The chart's run starts at 10000; the overlaid run was recorded from 500 to 2500.
+        ChartSeries series = ChartSeries.alignedRun("sensor", 10000, 500, 2500, 0);
+        assertEquals(9500, series.getTimeOffset());
+
+        assertEquals(600, series.getLoadMin(10100));
+        assertEquals(1500, series.getLoadMax(11000));
+
+        // Clipped to the run.
+        assertEquals(500, series.getLoadMin(9000));
+        assertEquals(2500, series.getLoadMax(20000));
+        assertTrue(series.getLoadMin(13000) > series.getLoadMax(14000));
+    }
+
+    @Test
+    public void throwAwayUsesChartTime() {
+        ChartSeries series = new ChartSeries("sensor", 10000, 0, 1000, 0);
+        for (int i = 0; i < 1000; i++) {
+            series.getChartData().addPoint(new ChartData.DataPoint(i, i));
+        }
+        series.throwAwayBefore(10200);
+        assertEquals(200, series.getChartData().getXMin());
+        series.throwAwayAfter(10800);
+        assertTrue(series.getChartData().getClosestDataPointToTimestamp(900).getX() != 900);
+    }
+
+    @Test
+    public void secondaryYAxisFitsData() {
+        ChartSeries series = new ChartSeries("sensor", 0, 0, 100, 0);
+        series.getChartData().addPoint(new ChartData.DataPoint(0, -20));
+        series.getChartData().addPoint(new ChartData.DataPoint(1, 80));
+        series.setUsesSecondaryYAxis(true);
+
+        double buffer = ChartOptions.getYBuffer(-20, 80);
+        assertEquals(-20 - buffer, series.getSecondaryYMin(), 0.0001);
+        assertEquals(80 + buffer, series.getSecondaryYMax(), 0.0001);
+
+        series.getChartData().addPoint(new ChartData.DataPoint(2, 180));
+        series.updateSecondaryYRange();
+        assertEquals(180 + ChartOptions.getYBuffer(-20, 180), series.getSecondaryYMax(), 0.0001);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PathDecimatorTest {
+    private static final int COLUMNS = 300;
+    private static final double OFFSET = 12.5;
+
+    private ChartData makeNoisyData(int size) {
+        ChartData data = new ChartData();
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            double y = Math.sin(i / 500.0) * 10 + random.nextGaussian();
+            if (random.nextInt(1000) == 0) {
+                // An occasional spike, which must not get lost.
+                y += 50;
+            }
+            data.addPoint(new ChartData.DataPoint(i * 3, y));
+        }
+        return data;
+    }
+
+    /**
+     * For each pixel column, the lowest and highest y covered by the line through the given
+     * points: the parts of the picture that antialiasing can't hide.
+     */
+    private double[][] rasterize(ChartData data, int[] indices, int count, long xMin,
+            double columnsPerX) {
+        double[][] envelope = new double[2][COLUMNS + 2];
+        for (int c = 0; c < envelope[0].length; c++) {
+            envelope[0][c] = Double.POSITIVE_INFINITY;
+            envelope[1][c] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            double x = (data.getXAt(index) - xMin) * columnsPerX + OFFSET;
+            double y = data.getYAt(index);
+            include(envelope, x, y);
+            if (i == 0) {
+                continue;
+            }
+            int prevIndex = indices[i - 1];
+            double prevX = (data.getXAt(prevIndex) - xMin) * columnsPerX + OFFSET;
+            double prevY = data.getYAt(prevIndex);
+            // Where the segment crosses a column boundary, it covers both columns.
+            for (double boundary = Math.floor(prevX) + 1; boundary <= x; boundary++) {
+                double crossingY = prevY + (y - prevY) * (boundary - prevX) / (x - prevX);
+                include(envelope, boundary - 0.5, crossingY);
+                include(envelope, boundary, crossingY);
+            }
+        }
+        return envelope;
+    }
+
+    private void include(double[][] envelope, double x, double y) {
+        int column = (int) Math.floor(x);
+        if (column < 0 || column >= envelope[0].length) {
+            return;
+        }
+        envelope[0][column] = Math.min(envelope[0][column], y);
+        envelope[1][column] = Math.max(envelope[1][column], y);
+    }
+
+    private int[] allIndices(int start, int end) {
+        int[] indices = new int[end - start + 1];
+        for (int i = start; i <= end; i++) {
+            indices[i - start] = i;
+        }
+        return indices;
+    }
+
+    private int[] decimatedIndices(PathDecimator decimator) {
+        int[] indices = new int[decimator.getCount()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = decimator.getIndex(i);
+        }
+        return indices;
+    }
+
+    @Test
+    public void looksTheSameAsUndecimated() {
+        ChartData data = makeNoisyData(100000);
+        long xMin = data.getXAt(1000);
+        double columnsPerX = COLUMNS / (double) (data.getXAt(90000) - xMin);
+        int start = 900;
+        int end = 90100;
+
+        PathDecimator decimator = new PathDecimator();
+        decimator.decimate(data, start, end, xMin, columnsPerX, OFFSET);
+        assertTrue(decimator.getCount() <= 4 * (COLUMNS + 4));
+
+        double[][] expected = rasterize(data, allIndices(start, end), end - start + 1, xMin,
+                columnsPerX);
+        double[][] actual = rasterize(data, decimatedIndices(decimator), decimator.getCount(),
+                xMin, columnsPerX);
+        for (int c = 0; c < expected[0].length; c++) {
+            assertEquals("min of column " + c, expected[0][c], actual[0][c], 1e-9);
+            assertEquals("max of column " + c, expected[1][c], actual[1][c], 1e-9);
+        }
+    }
+
+    @Test
+    public void keepsSparseData() {
+        ChartData data = makeNoisyData(100);
+        PathDecimator decimator = new PathDecimator();
+        // Ten columns per point
+        decimator.decimate(data, 0, 99, 0, 10.0 / 3, 0);
+        assertEquals(100, decimator.getCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, decimator.getIndex(i));
+        }
+    }
+
+    @Test
+    public void keepsEverythingWithoutColumns() {
+        ChartData data = makeNoisyData(100);
+        PathDecimator decimator = new PathDecimator();
+        decimator.decimate(data, 10, 19, 0, Double.POSITIVE_INFINITY, 0);
+        assertEquals(10, decimator.getCount());
+        assertEquals(10, decimator.getIndex(0));
+    }
+
+    @Test
+    public void reusesResultForSameRange() {
+        ChartData data = makeNoisyData(1000);
+        PathDecimator decimator = new PathDecimator();
+        assertTrue(decimator.decimate(data, 0, 999, 0, 0.1, 0));
+        assertFalse(decimator.decimate(data, 0, 999, 0, 0.1, 0));
+        assertTrue(decimator.decimate(data, 0, 999, 0, 0.2, 0));
+
+        data.addPoint(new ChartData.DataPoint(3000, 0));
+        assertTrue(decimator.decimate(data, 0, 999, 0, 0.2, 0));
+    }
+}
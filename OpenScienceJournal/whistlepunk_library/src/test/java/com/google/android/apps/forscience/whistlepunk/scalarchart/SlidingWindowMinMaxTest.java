@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.scalarchart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SlidingWindowMinMaxTest {
+    @Test
+    public void matchesScanOfWindow() {
+        Random random = new Random(42);
+        int count = 5000;
+        int window = 100;
+        double[] ys = new double[count];
+        SlidingWindowMinMax minMax = new SlidingWindowMinMax();
+        for (int i = 0; i < count; i++) {
+            ys[i] = random.nextGaussian() * 10 + i / 100.0;
+            minMax.add(i, ys[i]);
+            minMax.removeBefore(i - window + 1);
+
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int j = Math.max(0, i - window + 1); j <= i; j++) {
+                min = Math.min(min, ys[j]);
+                max = Math.max(max, ys[j]);
+            }
+            assertEquals(min, minMax.getMin(), 0);
+            assertEquals(max, minMax.getMax(), 0);
+        }
+    }
+
+    @Test
+    public void steadilyRisingValues() {
+        // Every point stays a candidate minimum, so the deque has to grow.
+        SlidingWindowMinMax minMax = new SlidingWindowMinMax();
+        for (int i = 0; i < 1000; i++) {
+            minMax.add(i, i);
+        }
+        assertEquals(0, minMax.getMin(), 0);
+        assertEquals(999, minMax.getMax(), 0);
+        minMax.removeBefore(990);
+        assertEquals(990, minMax.getMin(), 0);
+        minMax.add(1000, -5);
+        assertEquals(-5, minMax.getMin(), 0);
+        assertEquals(999, minMax.getMax(), 0);
+    }
+
+    @Test
+    public void emptyAfterEverythingIsRemoved() {
+        SlidingWindowMinMax minMax = new SlidingWindowMinMax();
+        assertTrue(minMax.isEmpty());
+        minMax.add(10, -3);
+        minMax.add(20, -1);
+        assertEquals(-3, minMax.getMin(), 0);
+        assertEquals(-1, minMax.getMax(), 0);
+        minMax.removeBefore(21);
+        assertTrue(minMax.isEmpty());
+        assertEquals(Double.MAX_VALUE, minMax.getMin(), 0);
+        assertEquals(-Double.MAX_VALUE, minMax.getMax(), 0);
+    }
+}
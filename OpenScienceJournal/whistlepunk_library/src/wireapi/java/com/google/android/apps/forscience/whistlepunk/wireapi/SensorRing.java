@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.wireapi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a shared-memory ring of (timestamp, value) records, written by exactly one producer
+ * and read by any number of consumers, without locks.
+ *
+ * The region starts with a header (magic, version, capacity, flags, and the published sequence
+ * number, which is the count of records ever written).  Record {@code n} lives in slot
+ * {@code n % capacity}, tagged with {@code n + 1} and a checksum of the tag and payload.  The
+ * producer clears the tag, writes the payload and checksum, then sets the tag and publishes.  Each
+ * consumer keeps its own cursor, so a slow consumer never blocks the producer: it finds out from
+ * the sequence numbers that it has been lapped, and how many records it missed.
+ *
+ * The producer and consumers are in different processes, so the Java memory model says nothing
+ * about the order in which a consumer sees the producer's writes: it may see a new published
+ * sequence number before the record's bytes, or a mix of old and new bytes.  So a consumer
+ * doesn't trust the order of the writes.  It reads the tag, the payload and checksum, and the tag
+ * again, and only takes the record if both tags are the one it expected and the checksum matches.
+ * A record that fails the check is counted as missed if the producer has since reused its slot,
+ * and otherwise left for a later {@link Reader#read} to try again.
+ */
+public class SensorRing {
+    public static final int MAGIC = 0x53524e47; // "SRNG"
+    public static final int VERSION = 2;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_FLAGS = 12;
+    private static final int OFFSET_PUBLISHED = 16;
+    private static final int HEADER_SIZE = 32;
+
+    private static final int RECORD_OFFSET_TAG = 0;
+    private static final int RECORD_OFFSET_TIMESTAMP = 8;
+    private static final int RECORD_OFFSET_VALUE = 16;
+    private static final int RECORD_OFFSET_CHECKSUM = 24;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int FLAG_CLOSED = 1;
+
+    // Volatile accesses to this field order the plain buffer accesses around them within a
+    // process, and on Android they compile to hardware barriers, which makes torn records rare
+    // across processes too.  Readers still check every record rather than rely on that.
+    private static volatile int sFence;
+
+    /**
+     * @return the number of bytes needed for a ring of the given capacity.
+     */
+    public static int getRegionSize(int capacity) {
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    private static int getSlotOffset(long sequence, int capacity) {
+        return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    }
+
+    private static long checksum(long tag, long timestamp, double value) {
+        // Never zero for a real tag, so a cleared slot can't pass.
+        long hash = tag * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ timestamp) * 0xC2B2AE3D27D4EB4FL;
+        hash = (hash ^ Double.doubleToRawLongBits(value)) * 0x165667B19E3779F9L;
+        return (hash ^ (hash >>> 32)) | 1;
+    }
+
+    public static class Writer {
+        private final ByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mNextSequence = 0;
+
+        /**
+         * Formats {@code buffer} (which must hold at least {@link #getRegionSize}(capacity) bytes)
+         * as an empty ring.
+         */
+        public Writer(ByteBuffer buffer, int capacity) {
+            if (capacity <= 0 || buffer.capacity() < getRegionSize(capacity)) {
+                throw new IllegalArgumentException("Buffer too small for capacity " + capacity);
+            }
+            mBuffer = buffer;
+            mCapacity = capacity;
+            for (int i = 0; i < getRegionSize(capacity); i += 8) {
+                mBuffer.putLong(i, 0);
+            }
+            mBuffer.putInt(OFFSET_VERSION, VERSION);
+            mBuffer.putInt(OFFSET_CAPACITY, capacity);
+            sFence = 0;
+            // Readers check the magic last, so it goes in last.
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+            sFence = 0;
+        }
+
+        public void append(long timestamp, double value) {
+            long sequence = mNextSequence;
+            int offset = getSlotOffset(sequence, mCapacity);
+            mBuffer.putLong(offset + RECORD_OFFSET_TAG, 0);
+            sFence = 0;
+            mBuffer.putLong(offset + RECORD_OFFSET_TIMESTAMP, timestamp);
+            mBuffer.putDouble(offset + RECORD_OFFSET_VALUE, value);
+            mBuffer.putLong(offset + RECORD_OFFSET_CHECKSUM,
+                    checksum(sequence + 1, timestamp, value));
+            sFence = 0;
+            mBuffer.putLong(offset + RECORD_OFFSET_TAG, sequence + 1);
+            mNextSequence = sequence + 1;
+            mBuffer.putLong(OFFSET_PUBLISHED, mNextSequence);
+            sFence = 0;
+        }
+
+        /**
+         * Tells readers that no more records will be written.
+         */
+        public void close() {
+            mBuffer.putInt(OFFSET_FLAGS, mBuffer.getInt(OFFSET_FLAGS) | FLAG_CLOSED);
+            sFence = 0;
+        }
+
+        /**
+         * @return the number of records written so far.
+         */
+        public long getPublishedSequence() {
+            return mNextSequence;
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+    }
+
+    public static class Reader {
+        private final ByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mNextSequence;
+        private long mMissedCount = 0;
+
+        /**
+         * Starts reading at the oldest record still in the ring.
+         *
+         * @throws IllegalArgumentException if {@code buffer} isn't a ring this reader understands.
+         */
+        public Reader(ByteBuffer buffer) {
+            int magic = buffer.getInt(OFFSET_MAGIC);
+            int dummy = sFence;
+            if (magic != MAGIC) {
+                throw new IllegalArgumentException("Not a sensor ring");
+            }
+            if (buffer.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IllegalArgumentException(
+                        "Unknown sensor ring version: " + buffer.getInt(OFFSET_VERSION));
+            }
+            int capacity = buffer.getInt(OFFSET_CAPACITY);
+            if (capacity <= 0 || buffer.capacity() < getRegionSize(capacity)) {
+                throw new IllegalArgumentException("Bad sensor ring capacity: " + capacity);
+            }
+            mBuffer = buffer;
+            mCapacity = capacity;
+            mNextSequence = Math.max(0, getPublishedSequence() - mCapacity);
+        }
+
+        /**
+         * Copies out up to {@code timestamps.length} records that this reader hasn't seen yet.
+         * This can stop short of the published sequence number if the next record's bytes aren't
+         * visible to this process yet; {@link #hasUnread()} stays true, and a later call picks it
+         * up.
+         *
+         * @return the number of records copied.
+         */
+        public int read(long[] timestamps, double[] values) {
+            int max = Math.min(timestamps.length, values.length);
+            long published = getPublishedSequence();
+            int count = 0;
+            while (count < max && mNextSequence < published) {
+                if (published - mNextSequence > mCapacity) {
+                    // Lapped: those records are gone.
+                    mMissedCount += published - mCapacity - mNextSequence;
+                    mNextSequence = published - mCapacity;
+                }
+                long sequence = mNextSequence;
+                long tag = sequence + 1;
+                int offset = getSlotOffset(sequence, mCapacity);
+                long tagBefore = mBuffer.getLong(offset + RECORD_OFFSET_TAG);
+                int dummy = sFence;
+                long timestamp = mBuffer.getLong(offset + RECORD_OFFSET_TIMESTAMP);
+                double value = mBuffer.getDouble(offset + RECORD_OFFSET_VALUE);
+                long checksum = mBuffer.getLong(offset + RECORD_OFFSET_CHECKSUM);
+                dummy = sFence;
+                long tagAfter = mBuffer.getLong(offset + RECORD_OFFSET_TAG);
+                if (tagBefore == tag && tagAfter == tag
+                        && checksum == checksum(tag, timestamp, value)) {
+                    mNextSequence++;
+                    timestamps[count] = timestamp;
+                    values[count] = value;
+                    count++;
+                    continue;
+                }
+                published = getPublishedSequence();
+                if (published - sequence < mCapacity) {
+                    // Published, but not all of it is visible here yet.
+                    break;
+                }
+                // The slot has been, or is being, reused for a later record.
+                mMissedCount++;
+                mNextSequence++;
+            }
+            return count;
+        }
+
+        /**
+         * @return how many records were overwritten before this reader got to them.
+         */
+        public long getMissedCount() {
+            return mMissedCount;
+        }
+
+        /**
+         * @return true if there are records this reader hasn't read yet.
+         */
+        public boolean hasUnread() {
+            return mNextSequence < getPublishedSequence();
+        }
+
+        /**
+         * @return true if the producer has said it won't write any more.  Records already
+         * published can still be read.
+         */
+        public boolean isClosed() {
+            int flags = mBuffer.getInt(OFFSET_FLAGS);
+            int dummy = sFence;
+            return (flags & FLAG_CLOSED) != 0;
+        }
+
+        private long getPublishedSequence() {
+            long published = mBuffer.getLong(OFFSET_PUBLISHED);
+            int dummy = sFence;
+            return published;
+        }
+    }
+}